@@ -14,11 +14,55 @@ public class ActiveRequestWithWritableBody {
     private final OutputStream bodyStream;
     private final InputStream inputStream;
     private final String httpMethod;
+    private final boolean keepRawHeaders;
+    private final Http2Stream stream;
+    private final HttpResponse rejection;
+    private final boolean expectContinue;
 
-    ActiveRequestWithWritableBody(OutputStream bodyStream, InputStream inputStream, String httpMethod) {
+    /**
+     * @param expectContinue
+     *            - true if "Expect: 100-continue" was sent, "100 Continue" might arrive after the body was sent
+     */
+    ActiveRequestWithWritableBody(OutputStream bodyStream, InputStream inputStream, String httpMethod,
+            boolean keepRawHeaders, boolean expectContinue) {
         this.bodyStream = bodyStream;
         this.inputStream = inputStream;
         this.httpMethod = httpMethod;
+        this.keepRawHeaders = keepRawHeaders;
+        this.stream = null;
+        this.rejection = null;
+        this.expectContinue = expectContinue;
+    }
+
+    ActiveRequestWithWritableBody(OutputStream bodyStream, Http2Stream stream, String httpMethod) {
+        this.bodyStream = bodyStream;
+        this.inputStream = null;
+        this.httpMethod = httpMethod;
+        this.keepRawHeaders = false;
+        this.stream = stream;
+        this.rejection = null;
+        this.expectContinue = false;
+    }
+
+    /**
+     * This creates a request which the server rejected before its body was sent
+     */
+    ActiveRequestWithWritableBody(HttpResponse rejection) {
+        this.bodyStream = null;
+        this.inputStream = null;
+        this.httpMethod = null;
+        this.keepRawHeaders = false;
+        this.stream = null;
+        this.rejection = rejection;
+        this.expectContinue = false;
+    }
+
+    /**
+     * @return true if the server responded with a final status to "Expect: 100-continue", in this case the body is not
+     *         sent and data written is discarded
+     */
+    public boolean isRejected() {
+        return rejection != null;
     }
 
     /**
@@ -27,7 +71,7 @@ public class ActiveRequestWithWritableBody {
      * @throws IOException
      */
     public void write(byte[] buffer) throws IOException {
-        bodyStream.write(buffer, 0, buffer.length);
+        write(buffer, 0, buffer.length);
     }
 
     /**
@@ -38,7 +82,9 @@ public class ActiveRequestWithWritableBody {
      * @throws IOException
      */
     public void write(byte[] buffer, int offset, int len) throws IOException {
-        bodyStream.write(buffer, offset, len);
+        if (rejection == null) {
+            bodyStream.write(buffer, offset, len);
+        }
     }
 
     /**
@@ -47,7 +93,21 @@ public class ActiveRequestWithWritableBody {
      * @throws IOException
      */
     public HttpResponse readResponse() throws IOException {
+        if (rejection != null) {
+            return rejection;
+        }
         bodyStream.close();
-        return new HttpResponse(inputStream, httpMethod);
+        if (stream != null) {
+            return new HttpResponse(stream, httpMethod);
+        }
+        HttpResponse response = new HttpResponse(inputStream, httpMethod, keepRawHeaders);
+        if (expectContinue) {
+            // the body was sent without waiting for the server, so interim responses may still come before the final
+            // one (but not 101, the connection is switched to another protocol after it)
+            while (response.getStatusCode() / 100 == 1 && response.getStatusCode() != 101) {
+                response = new HttpResponse(inputStream, httpMethod, keepRawHeaders);
+            }
+        }
+        return response;
     }
 }
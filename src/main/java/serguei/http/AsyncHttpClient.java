@@ -0,0 +1,510 @@
+package serguei.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import serguei.http.utils.Utils;
+
+/**
+ * Non-blocking HTTP/1.1 client
+ *
+ * Requests are sent and responses are received by a few selector threads, so many requests can be in flight without
+ * a thread waiting for each of them. Each request returns a CompletableFuture which is completed (by the callback
+ * executor, not by a selector thread) when the response is received completely. The response body is buffered in
+ * memory, so reading it never blocks.
+ *
+ * Connections are kept alive and reused for next requests to the same host and port. Only plain HTTP is supported,
+ * HttpClientConnection should be used for TLS.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class AsyncHttpClient implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_SELECT_TIMEOUT_MS = 1000;
+
+    private final SelectorLoop[] loops;
+    private final Executor callbackExecutor;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile int timeoutMs;
+    private volatile long idleTimeoutMs = 60000;
+    private volatile HostResolver hostResolver = HostResolver.SYSTEM;
+    private volatile boolean closed;
+
+    /**
+     * This creates a client with one selector thread, the futures are completed by the common fork-join pool
+     *
+     * @throws IOException
+     *             - if a selector cannot be opened
+     */
+    public AsyncHttpClient() throws IOException {
+        this(1, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param selectorThreads
+     *            - number of threads doing network IO
+     * @param callbackExecutor
+     *            - executor which completes the futures (and so runs dependent stages which are not async), it is
+     *            also used to resolve host names
+     * @throws IOException
+     *             - if a selector cannot be opened
+     */
+    public AsyncHttpClient(int selectorThreads, Executor callbackExecutor) throws IOException {
+        if (selectorThreads <= 0) {
+            throw new IllegalArgumentException("Number of selector threads must be positive");
+        }
+        this.callbackExecutor = callbackExecutor;
+        loops = new SelectorLoop[selectorThreads];
+        try {
+            for (int i = 0; i < selectorThreads; i++) {
+                loops[i] = new SelectorLoop(i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (SelectorLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * This sends a request without body, the host and port are taken from the request (from the URL in the request
+     * line or from Host header)
+     *
+     * @param requestHeaders
+     *            - request headers that will be sent to the server
+     * @return future which receives the response
+     */
+    public CompletableFuture<HttpResponse> send(HttpRequestHeaders requestHeaders) {
+        return send(requestHeaders, null);
+    }
+
+    /**
+     * This sends a request with a body, the host and port are taken from the request (from the URL in the request
+     * line or from Host header)
+     *
+     * This adds "Content-Length" header based on the length of the body to requestHeaders before sending request.
+     *
+     * @param requestHeaders
+     *            - request headers that will be sent to the server
+     * @param body
+     *            - a body of the request, null if there is no body
+     * @return future which receives the response
+     */
+    public CompletableFuture<HttpResponse> send(HttpRequestHeaders requestHeaders, byte[] body) {
+        URL url;
+        try {
+            url = requestHeaders.getUrl();
+        } catch (HttpException e) {
+            return failed(e);
+        }
+        if (!url.getProtocol().equals("http")) {
+            return failed(new HttpException("Protocol is not supported: " + url.getProtocol()));
+        }
+        return send(url.getHost(), url.getPort() >= 0 ? url.getPort() : 80, requestHeaders, body);
+    }
+
+    /**
+     * This sends a request without body
+     *
+     * @param host
+     *            - host name or IP address of the server
+     * @param port
+     *            - port
+     * @param requestHeaders
+     *            - request headers that will be sent to the server
+     * @return future which receives the response
+     */
+    public CompletableFuture<HttpResponse> send(String host, int port, HttpRequestHeaders requestHeaders) {
+        return send(host, port, requestHeaders, null);
+    }
+
+    /**
+     * This sends a request with a body
+     *
+     * This adds "Content-Length" header based on the length of the body to requestHeaders before sending request.
+     *
+     * @param host
+     *            - host name or IP address of the server
+     * @param port
+     *            - port
+     * @param requestHeaders
+     *            - request headers that will be sent to the server
+     * @param body
+     *            - a body of the request, null if there is no body
+     * @return future which receives the response
+     */
+    public CompletableFuture<HttpResponse> send(String host, int port, HttpRequestHeaders requestHeaders,
+            byte[] body) {
+        if (closed) {
+            return failed(new HttpException("Client is closed"));
+        }
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        try {
+            if (body != null) {
+                requestHeaders.setHeader("Content-Length", Integer.toString(body.length));
+            }
+            requestHeaders.write(request);
+            if (body != null) {
+                request.write(body);
+            }
+        } catch (IOException e) {
+            return failed(e);
+        }
+        AsyncHttpConnection.Exchange exchange = new AsyncHttpConnection.Exchange(host, port, requestHeaders,
+                request.toByteArray(), timeoutMs);
+        SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.execute(() -> loop.startExchange(exchange));
+        return exchange.future;
+    }
+
+    /**
+     * @param timeoutMs
+     *            - maximum time from sending a request till the response is received completely (including
+     *            connecting), 0 - no timeout. It applies to requests sent after this call.
+     */
+    public void setTimeoutMillis(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @param idleTimeoutMs
+     *            - connections which are not used for this time are closed, default - 60 seconds
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * @param hostResolver
+     *            - resolver used when a new connection is created, default - HostResolver.SYSTEM
+     */
+    public void setHostResolver(HostResolver hostResolver) {
+        this.hostResolver = hostResolver;
+    }
+
+    /**
+     * This closes all connections, requests in progress fail
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (SelectorLoop loop : loops) {
+            if (loop != null) {
+                loop.stop();
+            }
+        }
+    }
+
+    private static CompletableFuture<HttpResponse> failed(IOException e) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private void complete(AsyncHttpConnection.Exchange exchange, HttpResponse response) {
+        callbackExecutor.execute(() -> exchange.future.complete(response));
+    }
+
+    private void fail(AsyncHttpConnection.Exchange exchange, Throwable e) {
+        callbackExecutor.execute(() -> exchange.future.completeExceptionally(e));
+    }
+
+    private final class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // the most recently used connections first
+        private final Map<String, Deque<AsyncHttpConnection>> idle = new HashMap<>();
+        private final Set<AsyncHttpConnection> active = new HashSet<>();
+        private volatile boolean running = true;
+
+        private SelectorLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "AsyncHttpClient selector " + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(selectTimeout());
+                    runTasks();
+                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                    for (SelectionKey key : selectedKeys) {
+                        process(key);
+                    }
+                    selectedKeys.clear();
+                    checkTimeouts();
+                }
+            } catch (IOException | RuntimeException e) {
+                running = false;
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            if (running) {
+                selector.wakeup();
+            } else {
+                // the loop is stopped, the task fails immediately
+                runTasks();
+            }
+        }
+
+        private void stop() {
+            running = false;
+            selector.wakeup();
+            if (thread.isAlive() && thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (!thread.isAlive()) {
+                closeAll();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void startExchange(AsyncHttpConnection.Exchange exchange) {
+            if (!running) {
+                fail(exchange, new HttpException("Client is closed"));
+                return;
+            }
+            AsyncHttpConnection connection = pollIdle(exchange.route);
+            if (connection != null) {
+                begin(connection, exchange);
+            } else {
+                openConnection(exchange);
+            }
+        }
+
+        private void openConnection(AsyncHttpConnection.Exchange exchange) {
+            // resolving can block, so it is not done by the selector thread
+            callbackExecutor.execute(() -> {
+                InetSocketAddress address;
+                try {
+                    address = new InetSocketAddress(hostResolver.resolve(exchange.host)[0], exchange.port);
+                } catch (UnknownHostException | RuntimeException e) {
+                    exchange.future.completeExceptionally(e);
+                    return;
+                }
+                execute(() -> connect(exchange, address));
+            });
+        }
+
+        private void connect(AsyncHttpConnection.Exchange exchange, InetSocketAddress address) {
+            if (!running) {
+                fail(exchange, new HttpException("Client is closed"));
+                return;
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                AsyncHttpConnection connection = new AsyncHttpConnection(exchange.route, channel);
+                connection.setSelectionKey(channel.register(selector, 0, connection));
+                connection.start(exchange);
+                active.add(connection);
+                if (channel.connect(address)) {
+                    write(connection);
+                } else {
+                    connection.getSelectionKey().interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                Utils.closeQuietly(channel);
+                fail(exchange, e);
+            }
+        }
+
+        private void begin(AsyncHttpConnection connection, AsyncHttpConnection.Exchange exchange) {
+            connection.start(exchange);
+            active.add(connection);
+            try {
+                write(connection);
+            } catch (IOException e) {
+                failed(connection, e, true);
+            }
+        }
+
+        private void write(AsyncHttpConnection connection) throws IOException {
+            if (connection.write()) {
+                connection.getSelectionKey().interestOps(SelectionKey.OP_READ);
+            } else {
+                connection.getSelectionKey().interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void process(SelectionKey key) {
+            AsyncHttpConnection connection = (AsyncHttpConnection)key.attachment();
+            if (!key.isValid()) {
+                return;
+            }
+            if (connection.getExchange() == null) {
+                // idle connection was closed by the server or it sent something unexpected
+                removeIdle(connection);
+                connection.close();
+                return;
+            }
+            boolean reused = connection.getIdleSince() > 0;
+            try {
+                if (key.isConnectable()) {
+                    if (connection.getChannel().finishConnect()) {
+                        write(connection);
+                    }
+                } else if (key.isWritable()) {
+                    write(connection);
+                } else if (key.isReadable()) {
+                    HttpResponse response = connection.read(readBuffer);
+                    if (response != null) {
+                        completed(connection, response);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                failed(connection, e, reused);
+            }
+        }
+
+        private void completed(AsyncHttpConnection connection, HttpResponse response) {
+            AsyncHttpConnection.Exchange exchange = connection.getExchange();
+            active.remove(connection);
+            if (connection.finish() && running) {
+                idle.computeIfAbsent(connection.getRoute(), route -> new ArrayDeque<>()).addFirst(connection);
+            } else {
+                connection.close();
+            }
+            complete(exchange, response);
+        }
+
+        private void failed(AsyncHttpConnection connection, Throwable e, boolean reused) {
+            AsyncHttpConnection.Exchange exchange = connection.getExchange();
+            active.remove(connection);
+            connection.close();
+            if (reused && !connection.hasReceivedData() && exchange.isRetriable()) {
+                // the server closed the idle connection, the request was not processed
+                exchange.retried = true;
+                openConnection(exchange);
+            } else {
+                fail(exchange, e);
+            }
+        }
+
+        private AsyncHttpConnection pollIdle(String route) {
+            Deque<AsyncHttpConnection> connections = idle.get(route);
+            if (connections == null) {
+                return null;
+            }
+            AsyncHttpConnection connection = connections.pollFirst();
+            if (connections.isEmpty()) {
+                idle.remove(route);
+            }
+            return connection;
+        }
+
+        private void removeIdle(AsyncHttpConnection connection) {
+            Deque<AsyncHttpConnection> connections = idle.get(connection.getRoute());
+            if (connections != null) {
+                connections.remove(connection);
+                if (connections.isEmpty()) {
+                    idle.remove(connection.getRoute());
+                }
+            }
+        }
+
+        private long selectTimeout() {
+            if (active.isEmpty() && idle.isEmpty()) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            long timeout = MAX_SELECT_TIMEOUT_MS;
+            for (AsyncHttpConnection connection : active) {
+                long deadline = connection.getExchange().deadline;
+                if (deadline > 0) {
+                    timeout = Math.min(timeout, deadline - now);
+                }
+            }
+            return Math.max(timeout, 1);
+        }
+
+        private void checkTimeouts() {
+            long now = System.currentTimeMillis();
+            List<AsyncHttpConnection> expired = new ArrayList<>();
+            for (AsyncHttpConnection connection : active) {
+                long deadline = connection.getExchange().deadline;
+                if (deadline > 0 && now >= deadline) {
+                    expired.add(connection);
+                }
+            }
+            for (AsyncHttpConnection connection : expired) {
+                failed(connection, new SocketTimeoutException("Timeout waiting for the response"), false);
+            }
+            for (Iterator<Deque<AsyncHttpConnection>> iterator = idle.values().iterator(); iterator.hasNext();) {
+                Deque<AsyncHttpConnection> connections = iterator.next();
+                while (!connections.isEmpty() && now - connections.peekLast().getIdleSince() >= idleTimeoutMs) {
+                    connections.pollLast().close();
+                }
+                if (connections.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private void closeAll() {
+            HttpException exception = new HttpException("Client is closed");
+            for (AsyncHttpConnection connection : active) {
+                connection.close();
+                fail(connection.getExchange(), exception);
+            }
+            active.clear();
+            for (Deque<AsyncHttpConnection> connections : idle.values()) {
+                for (AsyncHttpConnection connection : connections) {
+                    connection.close();
+                }
+            }
+            idle.clear();
+            runTasks();
+            Utils.closeQuietly(selector);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package serguei.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import serguei.http.utils.Utils;
+
+/**
+ * A non-blocking connection used by AsyncHttpClient
+ *
+ * All methods are called by the selector thread which owns the connection. The response is accumulated in memory
+ * until it is complete, the framing (Content-Length, chunked or until the connection is closed) is worked out from
+ * the headers, so the existing response classes can parse the buffered bytes without blocking.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class AsyncHttpConnection {
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_HEADERS_SIZE = 64 * 1024;
+
+    private final String route;
+    private final SocketChannel channel;
+    private SelectionKey selectionKey;
+    private Exchange exchange;
+    private long idleSince;
+
+    // response state
+    private byte[] data;
+    private int length;
+    private int start;
+    private int scanFrom;
+    private HttpResponseHeaders headers;
+    private int bodyStart;
+    private long bodyEnd;
+    private boolean hasBody;
+    private boolean untilClose;
+    private boolean reusable;
+    // chunked body state
+    private boolean chunked;
+    private int chunkPos;
+    private long chunkRemaining;
+    private boolean trailers;
+
+    AsyncHttpConnection(String route, SocketChannel channel) {
+        this.route = route;
+        this.channel = channel;
+    }
+
+    String getRoute() {
+        return route;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * @return exchange in progress or null if the connection is idle
+     */
+    Exchange getExchange() {
+        return exchange;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    /**
+     * This starts a new exchange on this connection, the request is sent by write()
+     */
+    void start(Exchange exchange) {
+        this.exchange = exchange;
+        exchange.request.rewind();
+        data = null;
+        length = 0;
+        start = 0;
+        scanFrom = 0;
+        headers = null;
+        bodyEnd = -1;
+        untilClose = false;
+        chunked = false;
+        chunkRemaining = 0;
+        trailers = false;
+    }
+
+    /**
+     * @return true if the whole request is written
+     */
+    boolean write() throws IOException {
+        ByteBuffer request = exchange.request;
+        while (request.hasRemaining()) {
+            if (channel.write(request) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This reads data available in the channel
+     *
+     * @param buffer
+     *            - buffer used for reading, it is shared by all connections of the selector thread
+     * @return the response if it is received completely, otherwise - null
+     * @throws HttpException
+     *             - if the response is not valid HTTP or the connection is closed before the response is received
+     */
+    HttpResponse read(ByteBuffer buffer) throws IOException {
+        int read;
+        while ((read = channel.read(buffer)) > 0) {
+            buffer.flip();
+            append(buffer);
+            buffer.clear();
+        }
+        boolean eof = read < 0;
+        HttpResponse response = parse(eof);
+        if (response == null && eof) {
+            throw new HttpException("Connection closed by the server before the response was received");
+        }
+        return response;
+    }
+
+    /**
+     * @return true if any part of the response was received
+     */
+    boolean hasReceivedData() {
+        return length > 0;
+    }
+
+    /**
+     * This finishes the exchange after the response is received
+     *
+     * @return true if the connection can be used for a next request
+     */
+    boolean finish() {
+        exchange = null;
+        data = null;
+        idleSince = System.currentTimeMillis();
+        return reusable;
+    }
+
+    void close() {
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        Utils.closeQuietly(channel);
+    }
+
+    private void append(ByteBuffer buffer) {
+        if (data == null) {
+            data = new byte[Math.max(INITIAL_BUFFER_SIZE, buffer.remaining())];
+        } else if (data.length - length < buffer.remaining()) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + buffer.remaining()));
+        }
+        int count = buffer.remaining();
+        buffer.get(data, length, count);
+        length += count;
+    }
+
+    private HttpResponse parse(boolean eof) throws IOException {
+        while (headers == null) {
+            int headersEnd = findHeadersEnd();
+            if (headersEnd < 0) {
+                if (length - start > MAX_HEADERS_SIZE) {
+                    throw new HttpException("Response headers are too long");
+                }
+                return null;
+            }
+            HttpResponseHeaders responseHeaders = new HttpResponseHeaders(
+                    new ByteArrayInputStream(data, start, headersEnd - start));
+            int status = responseHeaders.getStatusCode();
+            if (status >= 100 && status < 200 && status != 101) {
+                // interim response, the final one follows
+                start = headersEnd;
+                scanFrom = headersEnd;
+                continue;
+            }
+            startBody(responseHeaders, headersEnd);
+        }
+        if (bodyEnd < 0 && chunked) {
+            bodyEnd = findChunkedBodyEnd();
+        }
+        if (bodyEnd >= 0 && length >= bodyEnd) {
+            // anything after the response means that the server does not follow the protocol
+            reusable = reusable && length == bodyEnd;
+            return createResponse((int)bodyEnd);
+        }
+        if (eof && untilClose) {
+            return createResponse(length);
+        }
+        return null;
+    }
+
+    private void startBody(HttpResponseHeaders responseHeaders, int headersEnd) throws HttpException {
+        headers = responseHeaders;
+        bodyStart = headersEnd;
+        int status = headers.getStatusCode();
+        hasBody = !exchange.method.equals("HEAD") && status != 204 && status != 304 && status != 101;
+        reusable = status != 101 && headers.getVersion().equals("HTTP/1.1")
+                && !"close".equalsIgnoreCase(headers.getHeader("Connection")) && !exchange.closeRequested;
+        if (!hasBody) {
+            bodyEnd = bodyStart;
+        } else if (headers.hasChunkedBody()) {
+            chunked = true;
+            chunkPos = bodyStart;
+        } else if (headers.getContentLength() >= 0) {
+            bodyEnd = bodyStart + headers.getContentLength();
+            if (bodyEnd > Integer.MAX_VALUE) {
+                throw new HttpException("Response body is too large to be buffered: " + headers.getContentLength());
+            }
+        } else {
+            untilClose = true;
+            reusable = false;
+        }
+    }
+
+    private HttpResponse createResponse(int end) {
+        return new HttpResponse(headers, new ByteArrayInputStream(data, bodyStart, end - bodyStart), hasBody);
+    }
+
+    private int findHeadersEnd() {
+        for (int i = scanFrom; i < length; i++) {
+            if (data[i] == '\n') {
+                if (i + 1 < length && data[i + 1] == '\n') {
+                    return i + 2;
+                }
+                if (i + 2 < length && data[i + 1] == '\r' && data[i + 2] == '\n') {
+                    return i + 3;
+                }
+                if (i + 2 >= length) {
+                    // the end might be in the next portion of data
+                    scanFrom = i;
+                    return -1;
+                }
+            }
+        }
+        scanFrom = Math.max(start, length);
+        return -1;
+    }
+
+    private int findChunkedBodyEnd() throws HttpException {
+        while (true) {
+            if (chunkRemaining > 0) {
+                if (length - chunkPos < chunkRemaining) {
+                    return -1;
+                }
+                chunkPos += (int)chunkRemaining;
+                chunkRemaining = 0;
+            }
+            int lineEnd = indexOf('\n', chunkPos);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            String line = new String(data, chunkPos, lineEnd - chunkPos, StandardCharsets.US_ASCII).trim();
+            chunkPos = lineEnd + 1;
+            if (trailers) {
+                if (line.isEmpty()) {
+                    return chunkPos;
+                }
+                continue;
+            }
+            int extension = line.indexOf(';');
+            String size = extension >= 0 ? line.substring(0, extension).trim() : line;
+            long chunkSize;
+            try {
+                chunkSize = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new HttpException("Wrong chunk size: " + line);
+            }
+            if (chunkSize == 0) {
+                trailers = true;
+            } else {
+                // data is followed by CRLF
+                chunkRemaining = chunkSize + 2;
+            }
+        }
+    }
+
+    private int indexOf(int ch, int from) {
+        for (int i = from; i < length; i++) {
+            if (data[i] == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A request sent by AsyncHttpClient and the future which receives its response
+     */
+    static class Exchange {
+
+        final String host;
+        final int port;
+        final String route;
+        final String method;
+        final ByteBuffer request;
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        final long deadline;
+        final boolean closeRequested;
+        boolean retried;
+
+        Exchange(String host, int port, HttpRequestHeaders requestHeaders, byte[] request, int timeoutMs) {
+            this.host = host;
+            this.port = port;
+            this.route = host + ":" + port;
+            this.method = requestHeaders.getMethod();
+            this.request = ByteBuffer.wrap(request);
+            this.deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+            this.closeRequested = "close".equalsIgnoreCase(requestHeaders.getHeader("Connection"));
+        }
+
+        /**
+         * @return true if the request can be sent again when a reused connection turned out to be closed
+         */
+        boolean isRetriable() {
+            return !retried && !method.equals("POST") && !method.equals("PATCH") && !method.equals("CONNECT");
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * This is asynchronous request handler. Unlike HttpServerRequestHandler, it does not have to produce the response
+ * before returning: it returns a stage that completes when the response is ready.
+ *
+ * While the stage is not completed, no thread is kept for the connection. When the stage completes the connection is
+ * resumed on one of the server threads, the response is written and the server proceeds to the next request on the
+ * same connection. This means that handlers waiting for slow downstream services do not hold server threads.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public interface AsyncHttpServerRequestHandler {
+
+    /**
+     * Starts processing of one HTTP request. This method is called by a server thread and it should not block.
+     *
+     * If the request has a body, it should be read either in this method or before the returned stage completes,
+     * the input stream of the request can be used by any thread.
+     *
+     * @param connectionContext
+     *            - context of the client connection
+     * @param request
+     *            - an incoming request
+     * @return stage completing with the response, if it completes exceptionally or with null, the connection is
+     *         closed without writing a response
+     * @throws IOException
+     *             - thrown when connection is closed or the request does not follow HTTP standards
+     */
+    public CompletionStage<AsyncResponse> process(ConnectionContext connectionContext, HttpRequest request)
+            throws IOException;
+
+}
@@ -0,0 +1,91 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This is a response produced by AsyncHttpServerRequestHandler. It is written to the client by a server thread after
+ * the stage returned by the handler completes.
+ *
+ * It can be either a complete response (headers and body) or a writer - a handler which will be called to write the
+ * response when the connection is resumed (e.g. when the response needs to be streamed).
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public final class AsyncResponse {
+
+    private final HttpResponseHeaders headers;
+    private final byte[] body;
+    private final HttpServerRequestHandler writer;
+
+    /**
+     * Creates a complete response. Content-Length is set unless the headers already specify Content-Length or
+     * Transfer-Encoding and the body is not sent when it is not allowed (e.g. in response to HEAD requests), the same
+     * way HttpServerResponse does it.
+     *
+     * @param headers
+     *            - response headers
+     * @param body
+     *            - response body, it can be null if there is no body
+     */
+    public AsyncResponse(HttpResponseHeaders headers, byte[] body) {
+        this.headers = headers;
+        this.body = body != null ? body : new byte[0];
+        this.writer = null;
+    }
+
+    /**
+     * Creates a complete response with a body encoded in UTF-8
+     *
+     * @param headers
+     *            - response headers
+     * @param body
+     *            - response body
+     */
+    public AsyncResponse(HttpResponseHeaders headers, String body) {
+        this(headers, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates a response which is written by a handler when the connection is resumed
+     *
+     * @param writer
+     *            - handler writing the response, it is called with the same context and request which were passed to
+     *            AsyncHttpServerRequestHandler
+     */
+    public AsyncResponse(HttpServerRequestHandler writer) {
+        this.headers = null;
+        this.body = null;
+        this.writer = writer;
+    }
+
+    void write(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+            throws IOException {
+        if (writer != null) {
+            writer.process(connectionContext, request, outputStream);
+            return;
+        }
+        int statusCode = headers.getStatusCode();
+        String contentLength = headers.getHeader("Content-Length");
+        if (statusCode / 100 != 1 && statusCode != 204 && statusCode != 304
+                && headers.getHeader("Transfer-Encoding") == null
+                && (contentLength == null || headers.getContentLength() == body.length)) {
+            // the most common case - the body is written as it is, without copying it into a buffer
+            if (contentLength == null) {
+                headers.setHeader("Content-Length", Integer.toString(body.length));
+            }
+            headers.write(outputStream);
+            if (!request.getMethod().equals("HEAD")) {
+                outputStream.write(body);
+            }
+            outputStream.flush();
+            return;
+        }
+        HttpServerResponse response = new HttpServerResponse(request, outputStream, headers,
+                HttpServerResponse.DEFAULT_BUFFER_SIZE);
+        response.write(body);
+        response.close();
+    }
+}
@@ -0,0 +1,92 @@
+package serguei.http;
+
+/**
+ * A request sent by HttpBatchClient: the server (host, port, plain or TLS) and the request itself
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class BatchRequest {
+
+    private final String host;
+    private final int port;
+    private final HttpRequestHeaders headers;
+    private final byte[] body;
+    private boolean tls;
+    private ClientSslContext sslContext;
+
+    /**
+     * @param host
+     *            - host name or IP address
+     * @param port
+     *            - port
+     * @param headers
+     *            - request headers
+     */
+    public BatchRequest(String host, int port, HttpRequestHeaders headers) {
+        this(host, port, headers, null);
+    }
+
+    /**
+     * @param host
+     *            - host name or IP address
+     * @param port
+     *            - port
+     * @param headers
+     *            - request headers
+     * @param body
+     *            - request body, null if there is no body
+     */
+    public BatchRequest(String host, int port, HttpRequestHeaders headers, byte[] body) {
+        this.host = host;
+        this.port = port;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * This makes the request to be sent over TLS, the server certificate is not validated
+     */
+    public BatchRequest setTls(boolean tls) {
+        this.tls = tls;
+        return this;
+    }
+
+    /**
+     * This makes the request to be sent over TLS, the server is validated as per provided context
+     */
+    public BatchRequest setTls(ClientSslContext sslContext) {
+        this.tls = true;
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public HttpRequestHeaders getHeaders() {
+        return headers;
+    }
+
+    public boolean isTls() {
+        return tls;
+    }
+
+    @Override
+    public String toString() {
+        return headers.getMethod() + " " + (tls ? "https://" : "http://") + host + ":" + port + headers.getPath();
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    ClientSslContext getSslContext() {
+        return sslContext;
+    }
+}
@@ -0,0 +1,90 @@
+package serguei.http;
+
+/**
+ * Result of a request sent by HttpBatchClient: a response, an error or nothing if the request was cancelled
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class BatchResult {
+
+    private final BatchRequest request;
+    private final HttpResponse response;
+    private final Exception error;
+    private final long leaseMs;
+    private final long durationMs;
+    private final long completedAfterMs;
+
+    BatchResult(BatchRequest request, HttpResponse response, Exception error, long leaseMs, long durationMs,
+            long completedAfterMs) {
+        this.request = request;
+        this.response = response;
+        this.error = error;
+        this.leaseMs = leaseMs;
+        this.durationMs = durationMs;
+        this.completedAfterMs = completedAfterMs;
+    }
+
+    public BatchRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return response (its body is in memory) or null if the request failed or was cancelled
+     */
+    public HttpResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return error if the request failed, null otherwise
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return true if the response was received (whatever its status code is)
+     */
+    public boolean isSuccessful() {
+        return response != null;
+    }
+
+    /**
+     * @return true if the request was cancelled because the quorum was reached or the deadline passed
+     */
+    public boolean isCancelled() {
+        return response == null && error == null;
+    }
+
+    /**
+     * @return time in milliseconds spent waiting for a connection from the pool (including connecting), -1 if the
+     *         request did not get a connection
+     */
+    public long getLeaseMillis() {
+        return leaseMs;
+    }
+
+    /**
+     * @return time in milliseconds from sending the request to reading the whole response, -1 if the response was not
+     *         received
+     */
+    public long getDurationMillis() {
+        return durationMs;
+    }
+
+    /**
+     * @return time in milliseconds from the start of the batch to the completion of the request, -1 if it was
+     *         cancelled
+     */
+    public long getCompletedAfterMillis() {
+        return completedAfterMs;
+    }
+
+    @Override
+    public String toString() {
+        String outcome = response != null ? Integer.toString(response.getStatusCode())
+                : error != null ? error.toString() : "cancelled";
+        return request + " - " + outcome;
+    }
+}
@@ -0,0 +1,61 @@
+package serguei.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A thread-safe pool of byte buffers used to copy bodies between streams, files and connections
+ *
+ * When the pool is empty, a new buffer is allocated; a buffer returned to a full pool is left to the garbage collector.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class BufferPool {
+
+    static final int BUFFER_SIZE = 8192;
+    private static final BufferPool DEFAULT = new BufferPool(64);
+
+    private final int maxPooled;
+    private final Deque<byte[]> buffers = new ArrayDeque<>();
+
+    /**
+     * @param maxPooled
+     *            - maximum number of idle buffers kept in the pool
+     */
+    BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return pool shared by connections (up to 64 buffers of 8 KB)
+     */
+    static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return buffer of BUFFER_SIZE bytes which must be returned with release()
+     */
+    byte[] borrow() {
+        synchronized (this) {
+            byte[] buffer = buffers.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    void release(byte[] buffer) {
+        synchronized (this) {
+            if (buffers.size() < maxPooled) {
+                buffers.addFirst(buffer);
+            }
+        }
+    }
+
+    synchronized int getPooledCount() {
+        return buffers.size();
+    }
+}
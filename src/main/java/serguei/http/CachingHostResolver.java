@@ -0,0 +1,166 @@
+package serguei.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Host resolver caching results for a configured time
+ *
+ * Successful results are kept for positive TTL, failures (unknown hosts) - for negative TTL. When a cached result is
+ * used shortly before it expires, it is refreshed in background, so hosts which are used all the time are never
+ * resolved by a thread sending a request. If the refresh fails, the previous result is used until it expires.
+ *
+ * When a host has several addresses, each call returns them starting from the next one (round-robin), so connections
+ * are spread across the addresses.
+ *
+ * Please note that the default underlying resolver (HostResolver.SYSTEM) has its own cache controlled by security
+ * property networkaddress.cache.ttl, the TTLs here should not be shorter than that.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class CachingHostResolver implements HostResolver {
+
+    private final HostResolver resolver;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ExecutorService refreshExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Host resolver refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long positiveTtlMs = 60000;
+    private volatile long negativeTtlMs = 10000;
+    private volatile long refreshBeforeExpiryMs = 10000;
+
+    /**
+     * This creates a resolver caching results of HostResolver.SYSTEM
+     */
+    public CachingHostResolver() {
+        this(HostResolver.SYSTEM);
+    }
+
+    /**
+     * @param resolver
+     *            - resolver which results are cached
+     */
+    public CachingHostResolver(HostResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(host);
+        if (entry == null || now >= entry.expires) {
+            entry = resolveNow(host);
+        } else if (entry.addresses != null && now >= entry.expires - refreshBeforeExpiryMs
+                && entry.refreshing.compareAndSet(false, true)) {
+            refreshExecutor.execute(() -> refresh(host));
+        }
+        if (entry.addresses == null) {
+            throw new UnknownHostException(host);
+        }
+        return entry.next();
+    }
+
+    /**
+     * @param positiveTtlMs
+     *            - how long resolved addresses are cached, default - 60 seconds
+     * @return this instance
+     */
+    public CachingHostResolver setPositiveTtlMillis(long positiveTtlMs) {
+        this.positiveTtlMs = positiveTtlMs;
+        return this;
+    }
+
+    /**
+     * @param negativeTtlMs
+     *            - how long unknown hosts are cached, default - 10 seconds, 0 - they are not cached
+     * @return this instance
+     */
+    public CachingHostResolver setNegativeTtlMillis(long negativeTtlMs) {
+        this.negativeTtlMs = negativeTtlMs;
+        return this;
+    }
+
+    /**
+     * @param refreshBeforeExpiryMs
+     *            - a result used less than this time before it expires is refreshed in background, default - 10
+     *            seconds, 0 - no background refresh
+     * @return this instance
+     */
+    public CachingHostResolver setRefreshBeforeExpiryMillis(long refreshBeforeExpiryMs) {
+        this.refreshBeforeExpiryMs = refreshBeforeExpiryMs;
+        return this;
+    }
+
+    /**
+     * This removes all cached results
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private Entry resolveNow(String host) {
+        Entry entry;
+        try {
+            entry = new Entry(resolveWithResolver(host), System.currentTimeMillis() + positiveTtlMs);
+        } catch (UnknownHostException e) {
+            entry = new Entry(null, System.currentTimeMillis() + negativeTtlMs);
+        }
+        if (entry.addresses != null || negativeTtlMs > 0) {
+            cache.put(host, entry);
+        }
+        return entry;
+    }
+
+    private void refresh(String host) {
+        try {
+            InetAddress[] addresses = resolveWithResolver(host);
+            cache.put(host, new Entry(addresses, System.currentTimeMillis() + positiveTtlMs));
+        } catch (UnknownHostException | RuntimeException e) {
+            // the current result is used until it expires
+            Entry entry = cache.get(host);
+            if (entry != null) {
+                entry.refreshing.set(false);
+            }
+        }
+    }
+
+    private InetAddress[] resolveWithResolver(String host) throws UnknownHostException {
+        InetAddress[] addresses = resolver.resolve(host);
+        if (addresses == null || addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        return addresses;
+    }
+
+    private static class Entry {
+
+        private final InetAddress[] addresses;
+        private final long expires;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private final AtomicInteger nextIndex = new AtomicInteger();
+
+        private Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+
+        private InetAddress[] next() {
+            int count = addresses.length;
+            int first = Math.floorMod(nextIndex.getAndIncrement(), count);
+            InetAddress[] result = new InetAddress[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = addresses[(first + i) % count];
+            }
+            return result;
+        }
+    }
+}
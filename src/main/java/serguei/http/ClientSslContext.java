@@ -1,20 +1,88 @@
 package serguei.http;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
-import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * TLS context used by client connections
+ *
+ * The context keeps TLS sessions per server (host name and port), so a new connection to the same server resumes the
+ * session (doing an abbreviated handshake without asymmetric cryptography) as long as it uses the same context. With
+ * TLS 1.3 sessions are resumed with session tickets, with TLS 1.2 - with session ids or, if JDK property
+ * jdk.tls.client.enableSessionTicketExtension is true (it must be set on start-up), with session tickets. The
+ * context counts full and resumed handshakes.
+ */
 public class ClientSslContext {
     private final SSLContext sslContext;
     private final TrustManagerWrapper trustManagerWrapper;
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
 
     public ClientSslContext(SSLContext sslContext, TrustManagerWrapper trustManagerWrapper) {
         this.sslContext = sslContext;
         this.trustManagerWrapper = trustManagerWrapper;
     }
 
+    /**
+     * @param size
+     *            - maximum number of cached TLS sessions, 0 - no limit
+     */
+    public void setSessionCacheSize(int size) {
+        getSessionContext().setSessionCacheSize(size);
+    }
+
+    /**
+     * @param timeoutSeconds
+     *            - how long TLS sessions are cached, 0 - no limit (JDK default is 24 hours)
+     */
+    public void setSessionTimeoutSeconds(int timeoutSeconds) {
+        getSessionContext().setSessionTimeout(timeoutSeconds);
+    }
+
+    /**
+     * This invalidates cached TLS sessions, so next connections do full handshakes
+     */
+    public void clearSessions() {
+        SSLSessionContext sessionContext = getSessionContext();
+        for (byte[] id : Collections.list(sessionContext.getIds())) {
+            SSLSession session = sessionContext.getSession(id);
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    /**
+     * @return number of full TLS handshakes done with this context
+     */
+    public long getFullHandshakeCount() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * @return number of TLS handshakes which resumed a session
+     */
+    public long getResumedHandshakeCount() {
+        return resumedHandshakes.get();
+    }
+
     SSLSocketFactory getSocketFactory() {
         return sslContext.getSocketFactory();
     }
+
+    void handshakeCompleted(boolean resumed) {
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    private SSLSessionContext getSessionContext() {
+        return sslContext.getClientSessionContext();
+    }
 }
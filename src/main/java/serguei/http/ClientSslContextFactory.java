@@ -45,6 +45,14 @@ public class ClientSslContextFactory {
         return createSslContext(validateCertificates, keyStorePath, keyStorePassword, certificatePassword, null, null);
     }
 
+    /**
+     * This creates a new context which does not validate certificates (the shared one is returned by
+     * getNoHostValidatingContext())
+     */
+    static ClientSslContext createNoHostValidatingContext() {
+        return createSslContext(false, null, null, null, null, null);
+    }
+
     static void clearSslContexts() {
         noHostValidatingContext = null;
         hostValidatingContext = null;
@@ -1,5 +1,7 @@
 package serguei.http;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -33,6 +35,9 @@ public class ConnectionContext {
     private final byte[] tlsSessionId;
 
     private CloseAction closeAction = CloseAction.NONE;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    private volatile int asyncTimeoutMs = -1;
 
     ConnectionContext(Socket socket, ClientHello clientHello) {
         this.socket = socket;
@@ -81,6 +86,52 @@ public class ConnectionContext {
         return socket;
     }
 
+    /**
+     * @return input stream of the connection, it is used after the connection is upgraded to a different protocol
+     */
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    void setInputStream(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * @return output stream of the connection, asynchronous handlers can write to it while processing of the
+     *         connection is suspended
+     */
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    void setOutputStream(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Sets how long the server waits for the stage returned by AsyncHttpServerRequestHandler for the current request,
+     * when it expires the connection is closed. This should be called by the handler before it returns the stage.
+     * 
+     * @param asyncTimeoutMs
+     *            - timeout in milliseconds, 0 - no limit (e.g. for long-lived streams of events), by default the
+     *            server timeout is used
+     */
+    public void setAsyncTimeoutMillis(int asyncTimeoutMs) {
+        this.asyncTimeoutMs = asyncTimeoutMs;
+    }
+
+    /**
+     * @return timeout set by the handler for the current request, -1 if it was not set
+     */
+    int getAsyncTimeoutMillis() {
+        return asyncTimeoutMs;
+    }
+
+    void resetAsyncTimeout() {
+        asyncTimeoutMs = -1;
+    }
+
     /**
      * @return IP address of the remote client
      */
@@ -0,0 +1,115 @@
+package serguei.http;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request body stream for requests with "Expect: 100-continue"
+ *
+ * The interim response "100 Continue" is sent only when the body is read for the first time, so a request handler can
+ * reject the request (send the final response without reading the body) and the client does not send the body at all.
+ * The handler must write the response to getResponseStream(), so "100 Continue" is not sent after the final response
+ * has been started.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class ContinueInputStream extends FilterInputStream {
+
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream outputStream;
+    private final OutputStream responseStream;
+    private volatile boolean continueSent;
+    private volatile boolean responseStarted;
+
+    /**
+     * @param inputStream
+     *            - stream with the request body
+     * @param outputStream
+     *            - stream where the response is written
+     */
+    ContinueInputStream(InputStream inputStream, OutputStream outputStream) {
+        super(inputStream);
+        this.outputStream = outputStream;
+        this.responseStream = new ResponseOutputStream(outputStream);
+    }
+
+    /**
+     * @param hasBody
+     *            - true if the request has a body
+     * @return true if the client is waiting for "100 Continue" before sending the body
+     */
+    static boolean isExpected(HttpRequestHeaders requestHeaders, boolean hasBody) {
+        // HTTP/1.0 clients do not wait for the interim response
+        return hasBody && "100-continue".equalsIgnoreCase(requestHeaders.getHeader("Expect"))
+                && !requestHeaders.getVersion().equals("HTTP/1.0");
+    }
+
+    @Override
+    public int read() throws IOException {
+        sendContinue();
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        sendContinue();
+        return in.read(buffer, offset, length);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        sendContinue();
+        return in.skip(n);
+    }
+
+    /**
+     * @return true if "100 Continue" is sent, i.e. the client sends (or has sent) the body
+     */
+    boolean isContinueSent() {
+        return continueSent;
+    }
+
+    /**
+     * @return stream which is passed to the request handler instead of the stream given to the constructor, it tells
+     *         this stream when the response is started
+     */
+    OutputStream getResponseStream() {
+        return responseStream;
+    }
+
+    private void sendContinue() throws IOException {
+        // once the final response is started, an interim response cannot be sent
+        if (!continueSent && !responseStarted) {
+            continueSent = true;
+            outputStream.write(CONTINUE_RESPONSE);
+            outputStream.flush();
+        }
+    }
+
+    private class ResponseOutputStream extends FilterOutputStream {
+
+        private ResponseOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            responseStarted = true;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (length > 0) {
+                responseStarted = true;
+            }
+            out.write(data, offset, length);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package serguei.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+
+/**
+ * A thread-safe pool of Deflaters used to compress bodies
+ *
+ * Creating a Deflater allocates native memory which is freed only when the Deflater is ended (or garbage collected),
+ * so Deflaters are reset and reused instead. When the pool is empty, a new Deflater is created; when a Deflater is
+ * returned to a full pool, it is ended. Deflaters for gzip and deflate (zlib) formats are kept separately.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class DeflaterPool {
+
+    private static final DeflaterPool DEFAULT = new DeflaterPool(32, Deflater.DEFAULT_COMPRESSION);
+
+    private final int maxPooled;
+    private final int level;
+    private final Deque<Deflater> gzipDeflaters = new ArrayDeque<>();
+    private final Deque<Deflater> zlibDeflaters = new ArrayDeque<>();
+    private long createdCount;
+
+    /**
+     * @param maxPooled
+     *            - maximum number of idle Deflaters of each format kept in the pool
+     * @param level
+     *            - compression level (0-9 or Deflater.DEFAULT_COMPRESSION)
+     */
+    public DeflaterPool(int maxPooled, int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.maxPooled = maxPooled;
+        this.level = level;
+    }
+
+    /**
+     * @return pool shared by connections which do not have their own pool (up to 32 Deflaters of each format, default
+     *         compression level)
+     */
+    public static DeflaterPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return compression level of the Deflaters
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return number of Deflaters created by the pool
+     */
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * @return number of idle Deflaters in the pool
+     */
+    public synchronized int getPooledCount() {
+        return gzipDeflaters.size() + zlibDeflaters.size();
+    }
+
+    /**
+     * @param gzip
+     *            - true for a Deflater without zlib header and checksum (used by gzip format), false for deflate (zlib)
+     *            format
+     * @return Deflater which must be returned with release()
+     */
+    Deflater borrow(boolean gzip) {
+        synchronized (this) {
+            Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).pollFirst();
+            if (deflater != null) {
+                return deflater;
+            }
+            createdCount++;
+        }
+        return new Deflater(level, gzip);
+    }
+
+    /**
+     * This resets the Deflater and returns it to the pool or ends it if the pool is full
+     */
+    void release(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        synchronized (this) {
+            Deque<Deflater> deflaters = gzip ? gzipDeflaters : zlibDeflaters;
+            if (deflaters.size() < maxPooled) {
+                deflaters.addFirst(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+}
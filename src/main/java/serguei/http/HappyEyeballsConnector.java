@@ -0,0 +1,164 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import serguei.http.utils.Utils;
+
+/**
+ * This connects to a host with several addresses racing connection attempts (Happy Eyeballs, RFC 8305)
+ *
+ * The first attempt starts immediately, each next one starts when the previous one fails or after the attempt delay,
+ * whichever happens first. Address families are interleaved, so an unreachable IPv6 (or IPv4) network does not delay
+ * the connection. The first established connection is used, all other attempts are cancelled (their sockets are
+ * closed).
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class HappyEyeballsConnector {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Connection attempt");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a socket for each connection attempt
+     */
+    interface SocketFactory {
+
+        Socket createSocket() throws IOException;
+    }
+
+    private HappyEyeballsConnector() {
+    }
+
+    /**
+     * @param addresses
+     *            - addresses of the host in the order of preference
+     * @param port
+     *            - port
+     * @param connectTimeoutMs
+     *            - overall connect timeout in milliseconds, 0 - no timeout
+     * @param attemptDelayMs
+     *            - delay between starting attempts in milliseconds
+     * @param socketFactory
+     *            - creates configured, not connected sockets
+     * @return connected socket
+     * @throws IOException
+     *             - error of the last failed attempt or SocketTimeoutException if no attempt succeeded in time
+     */
+    static Socket connect(InetAddress[] addresses, int port, int connectTimeoutMs, int attemptDelayMs,
+            SocketFactory socketFactory) throws IOException {
+        List<InetAddress> ordered = interleave(addresses);
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        List<Socket> sockets = new ArrayList<>();
+        Socket winner = null;
+        long deadline = connectTimeoutMs > 0 ? System.currentTimeMillis() + connectTimeoutMs : Long.MAX_VALUE;
+        IOException lastError = null;
+        int started = 0;
+        int pending = 0;
+        try {
+            while (true) {
+                // the next attempt starts when the previous one fails or after the delay
+                if (started < ordered.size()) {
+                    Socket socket = socketFactory.createSocket();
+                    sockets.add(socket);
+                    InetSocketAddress address = new InetSocketAddress(ordered.get(started++), port);
+                    EXECUTOR.execute(() -> completed.add(attempt(socket, address, connectTimeoutMs)));
+                    pending++;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect timed out");
+                }
+                long wait = deadline - now;
+                if (started < ordered.size()) {
+                    wait = Math.min(wait, attemptDelayMs);
+                }
+                Attempt attempt = completed.poll(wait, TimeUnit.MILLISECONDS);
+                if (attempt != null) {
+                    pending--;
+                    if (attempt.error == null) {
+                        winner = attempt.socket;
+                        return winner;
+                    }
+                    lastError = attempt.error;
+                    if (pending == 0 && started == ordered.size()) {
+                        throw lastError;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    // this aborts attempts in progress
+                    Utils.closeQuietly(socket);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return addresses with families alternating, starting with the family of the first address
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> preferred = new ArrayList<>();
+        List<InetAddress> other = new ArrayList<>();
+        boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsIpv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+        List<InetAddress> result = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                result.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                result.add(other.get(i));
+            }
+        }
+        return result;
+    }
+
+    private static Attempt attempt(Socket socket, InetSocketAddress address, int connectTimeoutMs) {
+        try {
+            socket.connect(address, connectTimeoutMs);
+            return new Attempt(socket, null);
+        } catch (IOException e) {
+            return new Attempt(socket, e);
+        }
+    }
+
+    private static class Attempt {
+
+        private final Socket socket;
+        private final IOException error;
+
+        private Attempt(Socket socket, IOException error) {
+            this.socket = socket;
+            this.error = error;
+        }
+    }
+}
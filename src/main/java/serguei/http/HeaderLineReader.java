@@ -3,6 +3,7 @@ package serguei.http;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 class HeaderLineReader {
 
@@ -17,10 +18,20 @@ class HeaderLineReader {
     private StringBuilder sb = null;
     private int buffPos = 0;
     private boolean eof = false;
+    // all bytes read so far, only kept when requested
+    private byte[] rawBytes;
+    private int rawLength;
 
     HeaderLineReader(InputStream in) {
+        this(in, false);
+    }
+
+    HeaderLineReader(InputStream in, boolean keepRawBytes) {
         this.in = in;
         this.buffer = new byte[BUFFER_SIZE];
+        if (keepRawBytes) {
+            rawBytes = new byte[BUFFER_SIZE * 4];
+        }
     }
 
     public String readLine() throws IOException {
@@ -38,6 +49,9 @@ class HeaderLineReader {
         int ch;
         while ((ch = in.read()) != -1) {
             buffer[buffPos++] = (byte)ch;
+            if (rawBytes != null) {
+                keepRawByte(ch);
+            }
             if (crlfFound) {
                 if (ch != ' ' && ch != '\t') {
                     extraByte = true;
@@ -114,6 +128,24 @@ class HeaderLineReader {
         return result;
     }
 
+    boolean isKeepingRawBytes() {
+        return rawBytes != null;
+    }
+
+    /**
+     * @return all bytes read from the stream so far (only if the reader was created to keep them)
+     */
+    byte[] getRawBytes() {
+        return rawBytes != null ? Arrays.copyOf(rawBytes, rawLength) : null;
+    }
+
+    private void keepRawByte(int ch) {
+        if (rawLength >= rawBytes.length) {
+            rawBytes = Arrays.copyOf(rawBytes, rawBytes.length * 2);
+        }
+        rawBytes[rawLength++] = (byte)ch;
+    }
+
     private String returnLastChunk(int buffPos) throws UnsupportedEncodingException {
         return buffPos != 0 ? new String(buffer, 0, buffPos, HEADER_CODEPAGE) : EMPTY_LINE;
     }
@@ -0,0 +1,270 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This sends idempotent requests to replicated servers hedging slow ones to reduce tail latency
+ *
+ * The request is sent to the first replica. If it does not respond within the hedge delay, the same request is sent to
+ * the next replica, the first response received wins. Connections of the requests which lost are closed (and
+ * discarded from the pool). If a request fails, the next replica is tried straight away.
+ *
+ * The hedge delay is a percentile (95th by default) of recent response times, until enough of them are collected a
+ * fixed delay is used. Hedged requests add load to the servers, so they are limited by a budget: each request earns
+ * a fraction of a hedge (10% by default), each hedged request spends one. When the budget is exhausted, requests are
+ * not hedged.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class HedgingHttpClient {
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Hedged request");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final int MAX_LATENCY_SAMPLES = 1000;
+    // unused budget is accumulated up to this number of hedges
+    private static final double MAX_BUDGET = 10;
+
+    private final HttpClientConnectionPool pool;
+    private final ExecutorService executor;
+
+    // guarded by this
+    private final long[] latencies = new long[MAX_LATENCY_SAMPLES];
+    private int latencyCount;
+    private int latencyIndex;
+    private long hedgeDelayMs = 100;
+    private double hedgeDelayPercentile = 95;
+    private double budgetPercent = 10;
+    private int maxHedges = 1;
+    private double budget;
+    private long requestCount;
+    private long hedgeCount;
+    private long hedgeWinCount;
+    private long budgetExhaustedCount;
+
+    /**
+     * @param pool
+     *            - pool to lease connections from, requests are sent from shared daemon threads
+     */
+    public HedgingHttpClient(HttpClientConnectionPool pool) {
+        this(pool, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * @param pool
+     *            - pool to lease connections from
+     * @param executor
+     *            - executor running the requests
+     */
+    public HedgingHttpClient(HttpClientConnectionPool pool, ExecutorService executor) {
+        this.pool = pool;
+        this.executor = executor;
+    }
+
+    /**
+     * This sends the request to the first replica hedging it with the next ones
+     *
+     * @param replicas
+     *            - the same request to each of the replicas in the order of preference, it must use an idempotent
+     *            method
+     * @return the first response received, its body is in memory
+     * @throws IOException
+     *             - error of the last request if all requests failed
+     */
+    public HttpResponse send(BatchRequest... replicas) throws IOException {
+        return send(Arrays.asList(replicas));
+    }
+
+    /**
+     * This sends the request to the first replica hedging it with the next ones
+     *
+     * @param replicas
+     *            - the same request to each of the replicas in the order of preference, it must use an idempotent
+     *            method
+     * @return the first response received, its body is in memory
+     * @throws IOException
+     *             - error of the last request if all requests failed
+     */
+    public HttpResponse send(List<BatchRequest> replicas) throws IOException {
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("No replicas to send the request to");
+        }
+        for (BatchRequest replica : replicas) {
+            if (!HttpClientConnection.isIdempotent(replica.getHeaders().getMethod())) {
+                throw new IllegalArgumentException(
+                        "Only idempotent requests can be hedged: " + replica.getHeaders().getMethod());
+            }
+        }
+        long delayMs;
+        int maxAttempts;
+        synchronized (this) {
+            requestCount++;
+            budget = Math.min(MAX_BUDGET, budget + budgetPercent / 100);
+            delayMs = getHedgeDelayMillis();
+            maxAttempts = Math.min(replicas.size(), maxHedges + 1);
+        }
+        long start = System.currentTimeMillis();
+        BlockingQueue<PooledRequest> completed = new LinkedBlockingQueue<>();
+        List<PooledRequest> attempts = new ArrayList<>(maxAttempts);
+        try {
+            attempts.add(startAttempt(replicas.get(0), start, completed));
+            long nextAttemptTime = start + delayMs;
+            int pending = 1;
+            IOException lastError = null;
+            while (true) {
+                PooledRequest attempt;
+                if (attempts.size() < maxAttempts) {
+                    attempt = completed.poll(nextAttemptTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                } else {
+                    attempt = completed.take();
+                }
+                if (attempt != null) {
+                    pending--;
+                    BatchResult result = attempt.getResult();
+                    if (result.isSuccessful()) {
+                        // measured from the start of the request, a hedged request is not faster than its delay
+                        responseReceived(result.getCompletedAfterMillis(), attempts.indexOf(attempt) > 0);
+                        return result.getResponse();
+                    }
+                    lastError = result.getError() instanceof IOException ? (IOException)result.getError()
+                            : new HttpException("Request failed: " + result.getError());
+                }
+                // on failure the next replica is tried straight away
+                boolean startNext = attempts.size() < maxAttempts
+                        && (attempt != null || System.currentTimeMillis() >= nextAttemptTime);
+                if (startNext && spendBudget()) {
+                    attempts.add(startAttempt(replicas.get(attempts.size()), start, completed));
+                    nextAttemptTime = System.currentTimeMillis() + delayMs;
+                    pending++;
+                } else if (startNext) {
+                    // no more attempts
+                    maxAttempts = attempts.size();
+                }
+                if (pending == 0) {
+                    throw lastError;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        } finally {
+            for (PooledRequest attempt : attempts) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    /**
+     * @param hedgeDelayMs
+     *            - delay before a hedged request is sent until enough response times are collected to calculate the
+     *            percentile, or always if the percentile is 0; 100 milliseconds by default
+     */
+    public synchronized void setHedgeDelayMillis(long hedgeDelayMs) {
+        this.hedgeDelayMs = hedgeDelayMs;
+    }
+
+    /**
+     * @param percentile
+     *            - percentile of recent response times used as the hedge delay, 0 - always use the fixed delay
+     */
+    public synchronized void setHedgeDelayPercentile(double percentile) {
+        if (percentile < 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Percentile must be from 0 to 100");
+        }
+        this.hedgeDelayPercentile = percentile;
+    }
+
+    /**
+     * @param budgetPercent
+     *            - hedged requests allowed as a percentage of all requests, 10 by default
+     */
+    public synchronized void setBudgetPercent(double budgetPercent) {
+        this.budgetPercent = budgetPercent;
+    }
+
+    /**
+     * @param maxHedges
+     *            - maximum number of hedged requests sent for one request, 1 by default
+     */
+    public synchronized void setMaxHedges(int maxHedges) {
+        this.maxHedges = maxHedges;
+    }
+
+    /**
+     * @return delay before a hedged request is sent which is currently used
+     */
+    public synchronized long getHedgeDelayMillis() {
+        if (hedgeDelayPercentile == 0 || latencyCount < MIN_LATENCY_SAMPLES) {
+            return hedgeDelayMs;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        return sorted[(int)Math.ceil(hedgeDelayPercentile / 100 * latencyCount) - 1];
+    }
+
+    /**
+     * @return number of requests sent with send()
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return number of hedged requests (including ones sent because a previous request failed)
+     */
+    public synchronized long getHedgeCount() {
+        return hedgeCount;
+    }
+
+    /**
+     * @return number of requests for which a hedged request returned the response
+     */
+    public synchronized long getHedgeWinCount() {
+        return hedgeWinCount;
+    }
+
+    /**
+     * @return number of times a hedged request was not sent because the budget was exhausted
+     */
+    public synchronized long getBudgetExhaustedCount() {
+        return budgetExhaustedCount;
+    }
+
+    private PooledRequest startAttempt(BatchRequest request, long start, BlockingQueue<PooledRequest> completed) {
+        PooledRequest attempt = new PooledRequest(pool, request, start, completed);
+        attempt.start(executor);
+        return attempt;
+    }
+
+    private synchronized boolean spendBudget() {
+        if (budget < 1) {
+            budgetExhaustedCount++;
+            return false;
+        }
+        budget--;
+        hedgeCount++;
+        return true;
+    }
+
+    private synchronized void responseReceived(long durationMs, boolean hedged) {
+        latencies[latencyIndex] = durationMs;
+        latencyIndex = (latencyIndex + 1) % latencies.length;
+        latencyCount = Math.min(latencyCount + 1, latencies.length);
+        if (hedged) {
+            hedgeWinCount++;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package serguei.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * This resolves host names for client connections, it can be shared by many connections
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public interface HostResolver {
+
+    /**
+     * Resolver using JDK (InetAddress.getAllByName), it is used when no resolver is set
+     */
+    public static final HostResolver SYSTEM = InetAddress::getAllByName;
+
+    /**
+     * @param host
+     *            - host name or IP address
+     * @return addresses of the host, there is at least one, connections are attempted in this order
+     * @throws UnknownHostException
+     *             - if the host cannot be resolved
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,571 @@
+package serguei.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK - header compression for HTTP/2 (RFC 7541)
+ *
+ * Decoder supports everything the RFC allows. Encoder uses static and dynamic tables and Huffman coding when it makes
+ * a string shorter. Values of sensitive headers (e.g. Authorization) are never added to the dynamic table.
+ *
+ * Header lists are represented as lists of strings where names and values alternate, this avoids creating an object
+ * per header.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+final class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int EOS = 256;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // Huffman codes of symbols 0-255, the code of EOS (256) is 0x3fffffff (30 bits)
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee};
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26};
+
+    // Huffman decoding tree: node n has children at 2n (bit 0) and 2n + 1 (bit 1), a negative value is a leaf with
+    // symbol -(value + 1), zero means there is no such code
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    private Hpack() {
+    }
+
+    private static int[] buildHuffmanTree() {
+        int[] tree = new int[1024];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = symbol < EOS ? HUFFMAN_CODES[symbol] : 0x3fffffff;
+            int length = symbol < EOS ? HUFFMAN_LENGTHS[symbol] : 30;
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int child = 2 * node + ((code >>> bit) & 1);
+                if (tree[child] == 0) {
+                    tree[child] = nodes++;
+                }
+                node = tree[child];
+            }
+            tree[2 * node + (code & 1)] = -(symbol + 1);
+        }
+        return tree;
+    }
+
+    static int huffmanLength(String value) {
+        long bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xFF];
+        }
+        return (int)((bits + 7) / 8);
+    }
+
+    static int huffmanEncode(String value, byte[] output, int position) {
+        long bits = 0;
+        int count = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xFF;
+            int length = HUFFMAN_LENGTHS[symbol];
+            bits = (bits << length) | HUFFMAN_CODES[symbol];
+            count += length;
+            while (count >= 8) {
+                count -= 8;
+                output[position++] = (byte)(bits >>> count);
+            }
+        }
+        if (count > 0) {
+            // padding with the most significant bits of EOS
+            output[position++] = (byte)((bits << (8 - count)) | (0xFF >>> count));
+        }
+        return position;
+    }
+
+    static String huffmanDecode(byte[] data, int offset, int length) throws HttpException {
+        StringBuilder result = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int bitsSinceSymbol = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + value];
+                bitsSinceSymbol++;
+                allOnes &= value == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new HttpException("EOS in Huffman encoded string");
+                    }
+                    result.append((char)symbol);
+                    node = 0;
+                    bitsSinceSymbol = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new HttpException("Wrong Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        if (bitsSinceSymbol > 7 || !allOnes) {
+            throw new HttpException("Wrong padding of Huffman encoded string");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Dynamic table, entries are kept in a circular buffer, index 0 is the newest entry
+     */
+    private static final class DynamicTable {
+
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int first;
+        private int count;
+        private int size;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+
+        private int count() {
+            return count;
+        }
+
+        private String name(int index) {
+            return names[(first + index) % names.length];
+        }
+
+        private String value(int index) {
+            return values[(first + index) % names.length];
+        }
+
+        private void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                return;
+            }
+            if (count == names.length) {
+                String[] newNames = new String[names.length * 2];
+                String[] newValues = new String[names.length * 2];
+                for (int i = 0; i < count; i++) {
+                    newNames[i] = name(i);
+                    newValues[i] = value(i);
+                }
+                names = newNames;
+                values = newValues;
+                first = 0;
+            }
+            first = (first + names.length - 1) % names.length;
+            names[first] = name;
+            values[first] = value;
+            count++;
+            size += entrySize;
+        }
+
+        private void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize) {
+            while (size > targetSize && count > 0) {
+                int last = (first + count - 1) % names.length;
+                size -= names[last].length() + values[last].length() + ENTRY_OVERHEAD;
+                names[last] = null;
+                values[last] = null;
+                count--;
+            }
+        }
+    }
+
+    static final class Decoder {
+
+        private final DynamicTable table = new DynamicTable();
+        private final int maxTableSize;
+        private byte[] data;
+        private int position;
+        private int end;
+
+        Decoder() {
+            this(DEFAULT_TABLE_SIZE);
+        }
+
+        /**
+         * @param maxTableSize
+         *            - maximum size of the dynamic table (as sent in SETTINGS_HEADER_TABLE_SIZE)
+         */
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table.setMaxSize(maxTableSize);
+        }
+
+        /**
+         * This decodes a header block and adds headers to the list (names and values alternate)
+         *
+         * @throws HttpException
+         *             - if the block cannot be decoded, the connection should be closed with COMPRESSION_ERROR
+         */
+        void decode(byte[] block, int offset, int length, List<String> headers) throws HttpException {
+            data = block;
+            position = offset;
+            end = offset + length;
+            boolean headerSeen = false;
+            while (position < end) {
+                int b = data[position] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    int index = readInteger(7);
+                    headers.add(name(index));
+                    headers.add(value(index));
+                    headerSeen = true;
+                } else if ((b & 0x40) != 0) {
+                    String name = readName(6);
+                    String value = readString();
+                    table.add(name, value);
+                    headers.add(name);
+                    headers.add(value);
+                    headerSeen = true;
+                } else if ((b & 0x20) != 0) {
+                    if (headerSeen) {
+                        throw new HttpException("Dynamic table size update after a header");
+                    }
+                    int size = readInteger(5);
+                    if (size > maxTableSize) {
+                        throw new HttpException("Dynamic table size " + size + " exceeds the limit");
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    // literal without indexing or never indexed
+                    String name = readName(4);
+                    headers.add(name);
+                    headers.add(readString());
+                    headerSeen = true;
+                }
+            }
+            data = null;
+        }
+
+        private String readName(int prefixBits) throws HttpException {
+            int index = readInteger(prefixBits);
+            return index == 0 ? readString() : name(index);
+        }
+
+        private String name(int index) throws HttpException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (index <= 0 || dynamicIndex >= table.count()) {
+                throw new HttpException("Wrong header table index " + index);
+            }
+            return table.name(dynamicIndex);
+        }
+
+        private String value(int index) {
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            return table.value(index - STATIC_TABLE.length - 1);
+        }
+
+        private int readInteger(int prefixBits) throws HttpException {
+            int mask = (1 << prefixBits) - 1;
+            int value = data[position++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            int shift = 0;
+            while (true) {
+                if (position >= end) {
+                    throw new HttpException("Truncated integer in header block");
+                }
+                int b = data[position++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+                if (shift > 21) {
+                    throw new HttpException("Integer in header block is too big");
+                }
+            }
+            return value;
+        }
+
+        private String readString() throws HttpException {
+            if (position >= end) {
+                throw new HttpException("Truncated string in header block");
+            }
+            boolean huffman = (data[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) {
+                throw new HttpException("Truncated string in header block");
+            }
+            String result = huffman ? huffmanDecode(data, position, length)
+                    : new String(data, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return result;
+        }
+    }
+
+    static final class Encoder {
+
+        private final DynamicTable table = new DynamicTable();
+        private byte[] buffer = new byte[1024];
+        private int length;
+        private int pendingTableSize = -1;
+
+        /**
+         * This is called when the peer sends SETTINGS_HEADER_TABLE_SIZE, the table size is changed at the start of
+         * the next header block
+         */
+        void setMaxTableSize(int maxTableSize) {
+            pendingTableSize = Math.min(maxTableSize, DEFAULT_TABLE_SIZE);
+        }
+
+        /**
+         * This encodes a header list (names and values alternate, names must be in lower case), the result is
+         * available from getBuffer() and getLength() until the next call
+         */
+        void encode(List<String> headers) {
+            length = 0;
+            if (pendingTableSize >= 0) {
+                table.setMaxSize(pendingTableSize);
+                writeInteger(0x20, 5, pendingTableSize);
+                pendingTableSize = -1;
+            }
+            for (int i = 0; i < headers.size(); i += 2) {
+                encode(headers.get(i), headers.get(i + 1));
+            }
+        }
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        private void encode(String name, String value) {
+            // converted before the lookup, so the dynamic table has the same entries as the peer's one
+            name = toOctets(name);
+            value = toOctets(value);
+            Integer staticIndex = STATIC_FIELDS.get(name + '\0' + value);
+            if (staticIndex != null) {
+                writeInteger(0x80, 7, staticIndex);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 0; i < table.count(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInteger(0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                    }
+                }
+            }
+            Integer staticNameIndex = STATIC_NAMES.get(name);
+            if (staticNameIndex != null) {
+                nameIndex = staticNameIndex;
+            }
+            if (isSensitive(name)) {
+                writeInteger(0x10, 4, nameIndex);
+            } else if (name.length() + value.length() + ENTRY_OVERHEAD <= table.maxSize / 2) {
+                writeInteger(0x40, 6, nameIndex);
+                table.add(name, value);
+            } else {
+                writeInteger(0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(name);
+            }
+            writeString(value);
+        }
+
+        /**
+         * Header values are sent as octets, one per char; a string with chars above 0xFF is converted into its UTF-8
+         * bytes (like HTTP/1 headers written with getBytes()), rather than losing the high bits of these chars
+         */
+        private static String toOctets(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) > 0xFF) {
+                    return new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+                }
+            }
+            return value;
+        }
+
+        private static boolean isSensitive(String name) {
+            return name.equals("authorization") || name.equals("proxy-authorization") || name.equals("cookie")
+                    || name.equals("set-cookie");
+        }
+
+        private void writeInteger(int firstByte, int prefixBits, int value) {
+            ensureCapacity(6);
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                buffer[length++] = (byte)(firstByte | value);
+                return;
+            }
+            buffer[length++] = (byte)(firstByte | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                buffer[length++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte)value;
+        }
+
+        private void writeString(String value) {
+            int huffmanLength = huffmanLength(value);
+            if (huffmanLength < value.length()) {
+                writeInteger(0x80, 7, huffmanLength);
+                ensureCapacity(huffmanLength);
+                length = huffmanEncode(value, buffer, length);
+            } else {
+                writeInteger(0x00, 7, value.length());
+                ensureCapacity(value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    buffer[length++] = (byte)value.charAt(i);
+                }
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+}
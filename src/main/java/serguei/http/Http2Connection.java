@@ -0,0 +1,897 @@
+package serguei.http;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import serguei.http.utils.Utils;
+
+/**
+ * HTTP/2 connection (RFC 7540): framing, HPACK, stream multiplexing and flow control
+ *
+ * The same class is used on both sides of a connection. One thread runs serve(), it reads frames and dispatches them
+ * to streams, any number of threads can write to streams at the same time - frames are written one at a time.
+ *
+ * Received data is delivered to the stream's input stream, window updates are sent when the data is consumed by the
+ * application, so a slow reader slows down only its own stream. Sending data waits until both the stream's and the
+ * connection's windows allow it.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class Http2Connection implements Closeable {
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // the preface looks like HTTP/1 request with no headers followed by "SM\r\n\r\n"
+    static final int PREFACE_HEADERS_LENGTH = 18;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MIN_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+    private static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+
+    static final int LOCAL_INITIAL_WINDOW_SIZE = 1024 * 1024;
+    private static final int LOCAL_CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+    private static final int LOCAL_MAX_CONCURRENT_STREAMS = 100;
+    private static final String[] CONNECTION_HEADERS = {"connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade"};
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final boolean client;
+    private final Closeable connection;
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+
+    // guarded by writeLock
+    private final Object writeLock = new Object();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private int nextStreamId;
+    private volatile boolean goAwaySent;
+
+    // guarded by windowLock
+    private final Object windowLock = new Object();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+
+    // guarded by this
+    private int connectionReceiveWindow = LOCAL_CONNECTION_WINDOW_SIZE;
+    private int connectionConsumed;
+
+    // used only by the thread reading frames
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private final byte[] readHeader = new byte[FRAME_HEADER_LENGTH];
+    private byte[] payload = new byte[MIN_FRAME_SIZE];
+    private byte[] headerBlock = new byte[MIN_FRAME_SIZE];
+    private int lastPeerStreamId;
+
+    private volatile int peerMaxFrameSize = MIN_FRAME_SIZE;
+    private volatile int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+    private volatile int goAwayLastStreamId = Integer.MAX_VALUE;
+    private volatile boolean closed;
+
+    /**
+     * @param inputStream
+     *            - input stream of the connection, the preface must be already read on the server side
+     * @param outputStream
+     *            - output stream of the connection
+     * @param client
+     *            - true on the client side
+     * @param connection
+     *            - this is closed when the HTTP/2 connection is closed, can be null
+     */
+    Http2Connection(InputStream inputStream, OutputStream outputStream, boolean client, Closeable connection) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.client = client;
+        this.connection = connection;
+        this.nextStreamId = client ? 1 : 2;
+    }
+
+    /**
+     * @param name
+     *            - header name in lower case
+     * @return true if the header is connection-specific and must not be sent in HTTP/2
+     */
+    static boolean isConnectionHeader(String name) {
+        for (String connectionHeader : CONNECTION_HEADERS) {
+            if (connectionHeader.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if these headers are the start of the preface, which means that the client uses HTTP/2 with
+     *         prior knowledge
+     */
+    static boolean isPrefaceStart(HttpRequestHeaders requestHeaders) {
+        return requestHeaders.getMethod().equals("PRI") && requestHeaders.getPath().equals("*")
+                && requestHeaders.getVersion().equals("HTTP/2.0") && requestHeaders.listHeaderNames().isEmpty();
+    }
+
+    /**
+     * This reads the client's connection preface (or the rest of it)
+     *
+     * @param offset
+     *            - number of preface bytes already read
+     */
+    static void readPreface(InputStream inputStream, int offset) throws IOException {
+        for (int i = offset; i < PREFACE.length; i++) {
+            if (inputStream.read() != PREFACE[i]) {
+                throw new HttpException("Wrong HTTP/2 connection preface");
+            }
+        }
+    }
+
+    /**
+     * This sends the preface (the client sends the magic string before its settings)
+     */
+    void start() throws IOException {
+        synchronized (writeLock) {
+            if (client) {
+                outputStream.write(PREFACE);
+            }
+            byte[] settings = new byte[12];
+            putSetting(settings, 0, client ? SETTINGS_ENABLE_PUSH : SETTINGS_MAX_CONCURRENT_STREAMS,
+                    client ? 0 : LOCAL_MAX_CONCURRENT_STREAMS);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, LOCAL_INITIAL_WINDOW_SIZE);
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            byte[] increment = new byte[4];
+            putInt(increment, 0, LOCAL_CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            writeFrame(WINDOW_UPDATE, 0, 0, increment, 0, increment.length);
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * This reads and processes frames until the connection is closed
+     *
+     * @param streamHandler
+     *            - called (on the reading thread) for every new stream opened by the peer when its headers are
+     *            received, the handler must not block
+     */
+    void serve(Consumer<Http2Stream> streamHandler) {
+        int errorCode = NO_ERROR;
+        try {
+            while (!closed) {
+                if (!readFrameHeader()) {
+                    break;
+                }
+                int length = ((readHeader[0] & 0xFF) << 16) | ((readHeader[1] & 0xFF) << 8) | (readHeader[2] & 0xFF);
+                int type = readHeader[3] & 0xFF;
+                int flags = readHeader[4] & 0xFF;
+                int streamId = getInt(readHeader, 5) & 0x7FFFFFFF;
+                if (length > MIN_FRAME_SIZE) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + length + " bytes is too big");
+                }
+                readFully(payload, length);
+                processFrame(type, flags, streamId, length, streamHandler);
+            }
+        } catch (Http2Exception e) {
+            errorCode = e.getErrorCode();
+        } catch (IOException e) {
+            // connection is closed by the peer or it is broken
+            closed = true;
+        }
+        if (!closed) {
+            goAway(errorCode);
+        }
+        close();
+    }
+
+    /**
+     * This opens a new stream by sending request headers (client only), if the peer's limit of concurrent streams is
+     * reached, this waits until one of the streams is closed
+     *
+     * @param headers
+     *            - header list including pseudo-headers, names and values alternate
+     * @param endStream
+     *            - true if there is no body
+     * @throws IOException
+     *             - if the connection is closed or the stream cannot be opened
+     */
+    Http2Stream openStream(List<String> headers, boolean endStream) throws IOException {
+        while (true) {
+            synchronized (windowLock) {
+                while (!closed && goAwayLastStreamId == Integer.MAX_VALUE
+                        && streams.size() >= peerMaxConcurrentStreams) {
+                    try {
+                        windowLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new HttpException("Interrupted while waiting for HTTP/2 stream");
+                    }
+                }
+            }
+            synchronized (writeLock) {
+                if (closed || goAwayLastStreamId != Integer.MAX_VALUE || streams.size() < peerMaxConcurrentStreams) {
+                    return openStreamLocked(headers, endStream);
+                }
+            }
+        }
+    }
+
+    private Http2Stream openStreamLocked(List<String> headers, boolean endStream) throws IOException {
+        if (closed || goAwayLastStreamId != Integer.MAX_VALUE) {
+            throw new HttpException("HTTP/2 connection is closed");
+        }
+        int streamId = nextStreamId;
+        nextStreamId += 2;
+        Http2Stream stream = newStream(streamId);
+        writeHeadersFrames(streamId, headers, endStream);
+        if (endStream) {
+            stream.localClosed();
+        }
+        outputStream.flush();
+        return stream;
+    }
+
+    /**
+     * @return true if a new stream can be opened without exceeding the peer's limit
+     */
+    boolean canOpenStream() {
+        return !closed && goAwayLastStreamId == Integer.MAX_VALUE && streams.size() < peerMaxConcurrentStreams;
+    }
+
+    int getActiveStreamCount() {
+        return streams.size();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void writeHeaders(Http2Stream stream, List<String> headers, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            checkStream(stream);
+            writeHeadersFrames(stream.getId(), headers, endStream);
+            outputStream.flush();
+        }
+        if (endStream) {
+            endLocal(stream);
+        }
+    }
+
+    /**
+     * This sends data waiting for flow control windows if necessary, data is split into several frames if required
+     */
+    void writeData(Http2Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        if (length == 0 && !endStream) {
+            return;
+        }
+        do {
+            int size = length > 0 ? reserveWindow(stream, length) : 0;
+            boolean last = size == length;
+            synchronized (writeLock) {
+                checkStream(stream);
+                writeFrame(DATA, last && endStream ? FLAG_END_STREAM : 0, stream.getId(), data, offset, size);
+                if (last) {
+                    outputStream.flush();
+                }
+            }
+            offset += size;
+            length -= size;
+        } while (length > 0);
+        if (endStream) {
+            endLocal(stream);
+        }
+    }
+
+    void resetStream(Http2Stream stream, int errorCode) {
+        if (streams.remove(stream.getId()) == null) {
+            return;
+        }
+        creditConnectionWindow(stream.reset(errorCode));
+        byte[] code = new byte[4];
+        putInt(code, 0, errorCode);
+        try {
+            synchronized (writeLock) {
+                writeFrame(RST_STREAM, 0, stream.getId(), code, 0, code.length);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+        streamRemoved();
+    }
+
+    /**
+     * This is called when the application does not need the stream any more, if the peer is still sending data
+     * the stream is reset, data received but not consumed is returned to the connection's window
+     */
+    void releaseStream(Http2Stream stream) {
+        if (streams.containsKey(stream.getId())) {
+            resetStream(stream, NO_ERROR);
+        } else {
+            creditConnectionWindow(stream.reset(NO_ERROR));
+        }
+    }
+
+    /**
+     * This sends GOAWAY, streams which are already open are not affected
+     */
+    void goAway(int errorCode) {
+        byte[] data = new byte[8];
+        putInt(data, 4, errorCode);
+        try {
+            synchronized (writeLock) {
+                if (goAwaySent) {
+                    return;
+                }
+                goAwaySent = true;
+                putInt(data, 0, lastPeerStreamId);
+                writeFrame(GOAWAY, 0, 0, data, 0, data.length);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * This sends GOAWAY and closes the connection when streams which are already open finish
+     */
+    void shutdown() {
+        goAway(NO_ERROR);
+        if (streams.isEmpty()) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Http2Stream stream : streams.values()) {
+            stream.reset(CANCEL);
+        }
+        streams.clear();
+        wakeUpWriters();
+        Utils.closeQuietly(outputStream);
+        Utils.closeQuietly(inputStream);
+        Utils.closeQuietly(connection);
+    }
+
+    /**
+     * This is called by a stream when the application consumed received data
+     */
+    void dataConsumed(Http2Stream stream, int streamIncrement, int consumed) {
+        try {
+            if (streamIncrement > 0 && streams.containsKey(stream.getId())) {
+                writeWindowUpdate(stream.getId(), streamIncrement);
+            }
+            creditConnectionWindow(consumed);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void creditConnectionWindow(int consumed) {
+        int increment = 0;
+        synchronized (this) {
+            connectionConsumed += consumed;
+            if (connectionConsumed >= LOCAL_CONNECTION_WINDOW_SIZE / 2) {
+                increment = connectionConsumed;
+                connectionReceiveWindow += increment;
+                connectionConsumed = 0;
+            }
+        }
+        if (increment > 0) {
+            try {
+                writeWindowUpdate(0, increment);
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    private Http2Stream newStream(int streamId) {
+        synchronized (windowLock) {
+            Http2Stream stream = new Http2Stream(this, streamId, peerInitialWindowSize, LOCAL_INITIAL_WINDOW_SIZE);
+            streams.put(streamId, stream);
+            return stream;
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] data = new byte[4];
+        putInt(data, 0, increment);
+        synchronized (writeLock) {
+            writeFrame(WINDOW_UPDATE, 0, streamId, data, 0, data.length);
+            outputStream.flush();
+        }
+    }
+
+    private void endLocal(Http2Stream stream) {
+        if (stream.localClosed() && streams.remove(stream.getId()) != null) {
+            streamRemoved();
+        }
+    }
+
+    private void remoteClosed(Http2Stream stream) {
+        if (stream.remoteClosed() && streams.remove(stream.getId()) != null) {
+            streamRemoved();
+        }
+    }
+
+    private void checkStream(Http2Stream stream) throws IOException {
+        if (closed) {
+            throw new HttpException("HTTP/2 connection is closed");
+        }
+        stream.checkNotReset();
+    }
+
+    private int reserveWindow(Http2Stream stream, int length) throws IOException {
+        synchronized (windowLock) {
+            while (true) {
+                checkStream(stream);
+                long window = Math.min(connectionSendWindow, stream.getSendWindow());
+                if (window > 0) {
+                    int size = (int)Math.min(Math.min(window, length), peerMaxFrameSize);
+                    connectionSendWindow -= size;
+                    stream.addSendWindow(-size);
+                    return size;
+                }
+                try {
+                    windowLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HttpException("Interrupted while waiting for HTTP/2 flow control window");
+                }
+            }
+        }
+    }
+
+    private void streamRemoved() {
+        wakeUpWriters();
+        if (goAwaySent && streams.isEmpty()) {
+            close();
+        }
+    }
+
+    private void wakeUpWriters() {
+        synchronized (windowLock) {
+            windowLock.notifyAll();
+        }
+    }
+
+    private void writeHeadersFrames(int streamId, List<String> headers, boolean endStream) throws IOException {
+        encoder.encode(headers);
+        byte[] block = encoder.getBuffer();
+        int length = encoder.getLength();
+        int frameSize = Math.min(length, peerMaxFrameSize);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (frameSize == length ? FLAG_END_HEADERS : 0);
+        writeFrame(HEADERS, flags, streamId, block, 0, frameSize);
+        for (int offset = frameSize; offset < length; offset += frameSize) {
+            frameSize = Math.min(length - offset, peerMaxFrameSize);
+            writeFrame(CONTINUATION, offset + frameSize == length ? FLAG_END_HEADERS : 0, streamId, block, offset,
+                    frameSize);
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] data, int offset, int length)
+            throws IOException {
+        frameHeader[0] = (byte)(length >>> 16);
+        frameHeader[1] = (byte)(length >>> 8);
+        frameHeader[2] = (byte)length;
+        frameHeader[3] = (byte)type;
+        frameHeader[4] = (byte)flags;
+        putInt(frameHeader, 5, streamId);
+        outputStream.write(frameHeader);
+        outputStream.write(data, offset, length);
+    }
+
+    private void processFrame(int type, int flags, int streamId, int length, Consumer<Http2Stream> streamHandler)
+            throws IOException {
+        switch (type) {
+            case DATA:
+                processData(flags, streamId, length);
+                break;
+            case HEADERS:
+                processHeaders(flags, streamId, length, streamHandler);
+                break;
+            case PRIORITY:
+                if (streamId == 0 || length != 5) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Wrong PRIORITY frame");
+                }
+                break;
+            case RST_STREAM:
+                if (streamId == 0 || length != 4) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Wrong RST_STREAM frame");
+                }
+                Http2Stream stream = streams.remove(streamId);
+                if (stream != null) {
+                    creditConnectionWindow(stream.reset(getInt(payload, 0)));
+                    streamRemoved();
+                }
+                break;
+            case SETTINGS:
+                processSettings(flags, streamId, length);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(PROTOCOL_ERROR, "Server push is not accepted");
+            case PING:
+                if (streamId != 0 || length != 8) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Wrong PING frame");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (writeLock) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, length);
+                        outputStream.flush();
+                    }
+                }
+                break;
+            case GOAWAY:
+                if (streamId != 0 || length < 8) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Wrong GOAWAY frame");
+                }
+                processGoAway(getInt(payload, 0) & 0x7FFFFFFF);
+                break;
+            case WINDOW_UPDATE:
+                processWindowUpdate(streamId, length);
+                break;
+            case CONTINUATION:
+                throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+            default:
+                // unknown frames must be ignored
+        }
+    }
+
+    private void processData(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA frame on stream 0");
+        }
+        synchronized (this) {
+            if (length > connectionReceiveWindow) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection flow control window exceeded");
+            }
+            connectionReceiveWindow -= length;
+        }
+        int padding = paddingLength(flags, length);
+        int dataLength = length - padding - ((flags & FLAG_PADDED) != 0 ? 1 : 0);
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (isIdle(streamId)) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA frame on idle stream " + streamId);
+            }
+            // the stream was closed or reset, the data is discarded
+            creditConnectionWindow(length);
+            return;
+        }
+        if (stream.isRemoteClosed()) {
+            // the peer has ended the stream already (half-closed remote)
+            resetStream(stream, STREAM_CLOSED);
+            creditConnectionWindow(length);
+            return;
+        }
+        byte[] data = Arrays.copyOfRange(payload, length - padding - dataLength, length - padding);
+        if (!stream.receiveData(data, length)) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        creditConnectionWindow(length - dataLength);
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.endInput();
+            remoteClosed(stream);
+        }
+    }
+
+    private void processHeaders(int flags, int streamId, int length, Consumer<Http2Stream> streamHandler)
+            throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS frame on stream 0");
+        }
+        int padding = paddingLength(flags, length);
+        int start = ((flags & FLAG_PADDED) != 0 ? 1 : 0) + ((flags & FLAG_PRIORITY) != 0 ? 5 : 0);
+        if (start + padding > length) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Wrong padding in HEADERS frame");
+        }
+        int blockLength = length - start - padding;
+        ensureHeaderBlockCapacity(blockLength);
+        System.arraycopy(payload, start, headerBlock, 0, blockLength);
+        int continuationFlags = flags;
+        while ((continuationFlags & FLAG_END_HEADERS) == 0) {
+            if (!readFrameHeader()) {
+                throw new EOFException("Connection closed while reading headers");
+            }
+            int frameLength = ((readHeader[0] & 0xFF) << 16) | ((readHeader[1] & 0xFF) << 8)
+                    | (readHeader[2] & 0xFF);
+            if (readHeader[3] != CONTINUATION || (getInt(readHeader, 5) & 0x7FFFFFFF) != streamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION frame expected");
+            }
+            if (frameLength > MIN_FRAME_SIZE) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + frameLength + " bytes is too big");
+            }
+            ensureHeaderBlockCapacity(blockLength + frameLength);
+            readFully(payload, frameLength);
+            System.arraycopy(payload, 0, headerBlock, blockLength, frameLength);
+            blockLength += frameLength;
+            continuationFlags = readHeader[4];
+        }
+        List<String> headers = new ArrayList<>();
+        try {
+            decoder.decode(headerBlock, 0, blockLength, headers);
+        } catch (HttpException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            // response headers on the client, or trailers
+            stream.receiveHeaders(headers);
+        } else if (!client && isIdle(streamId)) {
+            if ((streamId & 1) == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Client opened even stream " + streamId);
+            }
+            lastPeerStreamId = streamId;
+            stream = newStream(streamId);
+            stream.receiveHeaders(headers);
+            if (goAwaySent || streams.size() > LOCAL_MAX_CONCURRENT_STREAMS) {
+                resetStream(stream, REFUSED_STREAM);
+                return;
+            }
+            streamHandler.accept(stream);
+        } else {
+            // headers for a stream which is already closed
+            return;
+        }
+        if (endStream) {
+            stream.endInput();
+            remoteClosed(stream);
+        }
+    }
+
+    private void processSettings(int flags, int streamId, int length) throws IOException {
+        if (streamId != 0 || length % 6 != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Wrong SETTINGS frame");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            int value = getInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value);
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    peerMaxConcurrentStreams = value;
+                    wakeUpWriters();
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Initial window size is too big");
+                    }
+                    synchronized (windowLock) {
+                        int delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = value;
+                        for (Http2Stream stream : streams.values()) {
+                            if (!stream.addSendWindow(delta)) {
+                                throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window is too big");
+                            }
+                        }
+                        windowLock.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MIN_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Wrong max frame size " + value);
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    // other settings are not used
+            }
+        }
+        synchronized (writeLock) {
+            writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+            outputStream.flush();
+        }
+    }
+
+    private void processGoAway(int lastStreamId) {
+        goAwayLastStreamId = lastStreamId;
+        if (client) {
+            // streams which were not processed by the server can be retried on a new connection
+            for (Http2Stream stream : streams.values()) {
+                if (stream.getId() > lastStreamId) {
+                    streams.remove(stream.getId());
+                    creditConnectionWindow(stream.reset(REFUSED_STREAM));
+                }
+            }
+            wakeUpWriters();
+        }
+    }
+
+    private void processWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Wrong WINDOW_UPDATE frame");
+        }
+        int increment = getInt(payload, 0) & 0x7FFFFFFF;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Zero window increment");
+            }
+            synchronized (windowLock) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window is too big");
+                }
+                windowLock.notifyAll();
+            }
+            return;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        boolean valid;
+        synchronized (windowLock) {
+            valid = increment > 0 && stream.addSendWindow(increment);
+            windowLock.notifyAll();
+        }
+        if (!valid) {
+            resetStream(stream, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private boolean isIdle(int streamId) {
+        if ((streamId & 1) == (client ? 1 : 0)) {
+            // stream initiated by this side
+            synchronized (writeLock) {
+                return streamId >= nextStreamId;
+            }
+        }
+        return streamId > lastPeerStreamId;
+    }
+
+    private int paddingLength(int flags, int length) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return 0;
+        }
+        if (length < 1) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Wrong padding");
+        }
+        int padding = payload[0] & 0xFF;
+        if (padding >= length) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding is longer than the frame");
+        }
+        return padding;
+    }
+
+    private void ensureHeaderBlockCapacity(int capacity) throws Http2Exception {
+        if (capacity > MAX_HEADER_BLOCK_SIZE) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Header block is too big");
+        }
+        if (capacity > headerBlock.length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(capacity, headerBlock.length * 2));
+        }
+    }
+
+    /**
+     * @return false if the connection is closed at the frame boundary or it is idle for too long
+     */
+    private boolean readFrameHeader() throws IOException {
+        int position = 0;
+        while (position < FRAME_HEADER_LENGTH) {
+            int read;
+            try {
+                read = inputStream.read(readHeader, position, FRAME_HEADER_LENGTH - position);
+            } catch (SocketTimeoutException e) {
+                if (position == 0 && !streams.isEmpty()) {
+                    // the connection is idle because streams are being processed
+                    continue;
+                }
+                if (position == 0) {
+                    return false;
+                }
+                throw e;
+            }
+            if (read < 0) {
+                if (position == 0) {
+                    closed = true;
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int position = 0;
+        while (position < length) {
+            int read = inputStream.read(buffer, position, length - position);
+            if (read < 0) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            position += read;
+        }
+    }
+
+    private static void putSetting(byte[] data, int offset, int id, int value) {
+        data[offset] = (byte)(id >>> 8);
+        data[offset + 1] = (byte)id;
+        putInt(data, offset + 2, value);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte)(value >>> 24);
+        data[offset + 1] = (byte)(value >>> 16);
+        data[offset + 2] = (byte)(value >>> 8);
+        data[offset + 3] = (byte)value;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Connection error, GOAWAY with the error code is sent when it happens
+     */
+    static class Http2Exception extends HttpException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+
+        int getErrorCode() {
+            return errorCode;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package serguei.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Output stream passed to request handlers for requests received over HTTP/2
+ *
+ * Handlers write HTTP/1.1 responses (status line, headers and body framed with Content-Length, chunked or not framed
+ * at all), this stream converts them into HEADERS and DATA frames of the stream. Connection-specific headers are
+ * removed, chunked body is de-chunked. Body is buffered up to the size of a frame.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class Http2ResponseOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 16384;
+
+    private enum State {
+        HEAD, BODY_LENGTH, BODY_UNTIL_END, CHUNK_SIZE, CHUNK_EXTENSION, CHUNK_DATA, CHUNK_END, TRAILERS, DONE
+    }
+
+    private final Http2Connection connection;
+    private final Http2Stream stream;
+    private final boolean headRequest;
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferLength;
+    private State state = State.HEAD;
+    private long remaining;
+    private int lineLength;
+
+    Http2ResponseOutputStream(Http2Connection connection, Http2Stream stream, String requestMethod) {
+        this.connection = connection;
+        this.stream = stream;
+        this.headRequest = requestMethod.equals("HEAD");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            switch (state) {
+                case HEAD:
+                    offset = writeHead(data, offset, end);
+                    break;
+                case BODY_LENGTH:
+                    int count = (int)Math.min(remaining, end - offset);
+                    writeBody(data, offset, count);
+                    offset += count;
+                    remaining -= count;
+                    if (remaining == 0) {
+                        endStream();
+                    }
+                    break;
+                case BODY_UNTIL_END:
+                    writeBody(data, offset, end - offset);
+                    offset = end;
+                    break;
+                case CHUNK_DATA:
+                    count = (int)Math.min(remaining, end - offset);
+                    writeBody(data, offset, count);
+                    offset += count;
+                    remaining -= count;
+                    if (remaining == 0) {
+                        state = State.CHUNK_END;
+                    }
+                    break;
+                case DONE:
+                    throw new HttpException("Response is longer than declared in its headers");
+                default:
+                    processChunkFraming(data[offset++]);
+            }
+        }
+    }
+
+    /**
+     * This sends data written so far
+     */
+    @Override
+    public void flush() throws IOException {
+        if (bufferLength > 0) {
+            connection.writeData(stream, buffer, 0, bufferLength, false);
+            bufferLength = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * This ends the stream, it is called when the handler returns. If the handler did not write a complete response
+     * the stream is reset.
+     */
+    void finish() throws IOException {
+        if (state == State.BODY_UNTIL_END) {
+            endStream();
+        } else if (state != State.DONE) {
+            connection.resetStream(stream, Http2Connection.INTERNAL_ERROR);
+        }
+    }
+
+    private int writeHead(byte[] data, int offset, int end) throws IOException {
+        while (offset < end) {
+            byte b = data[offset++];
+            head.write(b);
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    // empty line - end of headers (or an empty line before the status line which is ignored)
+                    if (head.size() > 2) {
+                        sendHeaders();
+                    }
+                    head.reset();
+                    return offset;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        return offset;
+    }
+
+    private void sendHeaders() throws IOException {
+        HttpResponseHeaders headers = new HttpResponseHeaders(new ByteArrayInputStream(head.toByteArray()));
+        int statusCode = headers.getStatusCode();
+        if (statusCode == 101) {
+            throw new HttpException("Protocol upgrade is not supported in HTTP/2");
+        }
+        List<String> headerList = new ArrayList<>();
+        headerList.add(":status");
+        headerList.add(Integer.toString(statusCode));
+        for (String name : headers.listHeaderNames()) {
+            String lowerCaseName = name.toLowerCase(Locale.ROOT);
+            if (!Http2Connection.isConnectionHeader(lowerCaseName)) {
+                for (String value : headers.getHeaders(name)) {
+                    headerList.add(lowerCaseName);
+                    headerList.add(value);
+                }
+            }
+        }
+        if (statusCode < 200) {
+            // interim response, the final one follows
+            connection.writeHeaders(stream, headerList, false);
+            return;
+        }
+        long contentLength = headers.getContentLength();
+        boolean noBody = headRequest || statusCode == 204 || statusCode == 304 || contentLength == 0;
+        connection.writeHeaders(stream, headerList, noBody);
+        if (noBody) {
+            state = State.DONE;
+        } else if (headers.hasChunkedBody()) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            state = State.BODY_LENGTH;
+            remaining = contentLength;
+        } else {
+            state = State.BODY_UNTIL_END;
+        }
+    }
+
+    private void processChunkFraming(byte b) throws IOException {
+        switch (state) {
+            case CHUNK_SIZE:
+                if (b == '\n') {
+                    endOfChunkSize();
+                } else if (b == ';') {
+                    state = State.CHUNK_EXTENSION;
+                } else if (b != '\r' && b != ' ') {
+                    int digit = Character.digit(b, 16);
+                    if (digit < 0) {
+                        throw new HttpException("Wrong chunk size in response");
+                    }
+                    remaining = remaining * 16 + digit;
+                }
+                break;
+            case CHUNK_EXTENSION:
+                if (b == '\n') {
+                    endOfChunkSize();
+                }
+                break;
+            case CHUNK_END:
+                if (b == '\n') {
+                    state = State.CHUNK_SIZE;
+                }
+                break;
+            case TRAILERS:
+                // trailers are not sent
+                if (b == '\n') {
+                    if (lineLength == 0) {
+                        endStream();
+                    }
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    lineLength++;
+                }
+                break;
+            default:
+                throw new IllegalStateException(state.toString());
+        }
+    }
+
+    private void endOfChunkSize() {
+        if (remaining == 0) {
+            state = State.TRAILERS;
+            lineLength = 0;
+        } else {
+            state = State.CHUNK_DATA;
+        }
+    }
+
+    private void writeBody(byte[] data, int offset, int length) throws IOException {
+        if (length >= BUFFER_SIZE && bufferLength == 0) {
+            connection.writeData(stream, data, offset, length, false);
+            return;
+        }
+        while (length > 0) {
+            int count = Math.min(length, BUFFER_SIZE - bufferLength);
+            System.arraycopy(data, offset, buffer, bufferLength, count);
+            bufferLength += count;
+            offset += count;
+            length -= count;
+            if (bufferLength == BUFFER_SIZE) {
+                flush();
+            }
+        }
+    }
+
+    private void endStream() throws IOException {
+        connection.writeData(stream, buffer, 0, bufferLength, true);
+        bufferLength = 0;
+        state = State.DONE;
+    }
+}
@@ -0,0 +1,406 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * A stream of HTTP/2 connection: one request and its response
+ *
+ * Received data is kept in a queue until it is read from the input stream. The stream's window is updated when half
+ * of it is consumed, so the peer never sends more than the window allows to be buffered.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+final class Http2Stream {
+
+    private final Http2Connection connection;
+    private final int id;
+    private final int receiveWindowSize;
+    private final InputStream inputStream = new StreamInputStream();
+    private final OutputStream outputStream = new StreamOutputStream();
+    private volatile int timeoutMs;
+
+    // guarded by connection's window lock
+    private long sendWindow;
+
+    // guarded by this
+    private final Queue<byte[]> chunks = new ArrayDeque<>();
+    private int chunkPosition;
+    private int receiveWindow;
+    private int buffered;
+    private int consumed;
+    private List<String> headers;
+    private boolean remoteClosed;
+    private boolean localClosed;
+    private int resetCode = -1;
+
+    Http2Stream(Http2Connection connection, int id, int sendWindow, int receiveWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+        this.receiveWindowSize = receiveWindow;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    long getSendWindow() {
+        return sendWindow;
+    }
+
+    /**
+     * @return false if the window exceeds the maximum allowed size
+     */
+    boolean addSendWindow(int delta) {
+        sendWindow += delta;
+        return sendWindow <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return input stream with data received from the peer (request body on the server, response body on the client)
+     */
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * @return output stream which sends data to the peer as DATA frames, closing it ends the stream (request body on
+     *         the client)
+     */
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * @param timeoutMs
+     *            - how long to wait for headers or data from the peer, 0 means waiting indefinitely
+     */
+    void setTimeout(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return header list (names and values alternate) received from the peer
+     */
+    synchronized List<String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * This waits for the peer's headers (the response on the client), interim (1xx) responses are skipped
+     *
+     * @throws IOException
+     *             - if the stream is reset or the connection is closed
+     */
+    synchronized List<String> waitForHeaders() throws IOException {
+        while (headers == null) {
+            checkNotReset();
+            if (remoteClosed) {
+                throw new HttpException("HTTP/2 stream " + id + " is closed without headers");
+            }
+            waitForData();
+        }
+        return headers;
+    }
+
+    /**
+     * @return value of the header with the name (in lower case) or null
+     */
+    synchronized String getHeader(String name) {
+        for (int i = 0; headers != null && i < headers.size(); i += 2) {
+            if (headers.get(i).equals(name)) {
+                return headers.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This converts response headers received by the client into HTTP/1 style headers: :status pseudo-header is
+     * converted into status line with version HTTP/2.0
+     *
+     * @throws IOException
+     *             - if the response is malformed, the stream is reset or the connection is closed
+     */
+    HttpResponseHeaders getResponseHeaders() throws IOException {
+        List<String> headers = waitForHeaders();
+        if (headers.size() < 2 || !headers.get(0).equals(":status")) {
+            throw new HttpException("HTTP/2 response has no status");
+        }
+        HttpResponseHeaders responseHeaders = new HttpResponseHeaders("HTTP/2.0 " + headers.get(1));
+        for (int i = 2; i < headers.size(); i += 2) {
+            if (headers.get(i).startsWith(":")) {
+                throw new HttpException("Unexpected pseudo-header " + headers.get(i) + " in HTTP/2 response");
+            }
+            responseHeaders.addHeader(headers.get(i), headers.get(i + 1));
+        }
+        return responseHeaders;
+    }
+
+    /**
+     * This converts request headers received by the server into HTTP/1 style headers, so the request can be passed to
+     * HttpServerRequestHandler: pseudo-headers are converted into request line and Host header
+     *
+     * @throws HttpException
+     *             - if the request is malformed
+     */
+    HttpRequestHeaders getRequestHeaders() throws HttpException {
+        String method = null;
+        String path = null;
+        String authority = null;
+        List<String> headers = getHeaders();
+        int i = 0;
+        for (; i < headers.size() && headers.get(i).startsWith(":"); i += 2) {
+            String value = headers.get(i + 1);
+            switch (headers.get(i)) {
+                case ":method":
+                    method = value;
+                    break;
+                case ":path":
+                    path = value;
+                    break;
+                case ":authority":
+                    authority = value;
+                    break;
+                case ":scheme":
+                    break;
+                default:
+                    throw new HttpException("Unknown pseudo-header " + headers.get(i));
+            }
+        }
+        if (method != null && method.equals("CONNECT")) {
+            path = authority;
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            throw new HttpException("Mandatory pseudo-headers are missing");
+        }
+        if ((headers.size() - i) / 2 > HttpHeaders.MAX_HEADER_NUMBER) {
+            throw new HttpException(
+                    "Reading HTTP headers - too many headers found, max=" + HttpHeaders.MAX_HEADER_NUMBER);
+        }
+        // values are grouped by name, so a header repeated many times is added in one go
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        StringBuilder cookie = null;
+        for (; i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            String value = headers.get(i + 1);
+            if (name.startsWith(":") || name.equals("connection") || name.equals("transfer-encoding")) {
+                throw new HttpException("Header " + name + " is not allowed in HTTP/2 request");
+            }
+            if (name.equals("cookie")) {
+                // cookie can be split into several fields (RFC 7540 8.1.2.5), they are joined back into one
+                if (cookie == null) {
+                    cookie = new StringBuilder(value);
+                    values.put(name, null);
+                } else {
+                    cookie.append("; ").append(value);
+                }
+            } else {
+                values.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value);
+            }
+        }
+        HttpRequestHeaders requestHeaders = new HttpRequestHeaders(method + " " + path + " HTTP/2.0");
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                requestHeaders.addHeader(entry.getKey(), cookie.toString());
+            } else {
+                requestHeaders.addHeaderValues(entry.getKey(), entry.getValue());
+            }
+        }
+        if (authority != null && requestHeaders.getHeader("Host") == null) {
+            requestHeaders.setHeader("Host", authority);
+        }
+        return requestHeaders;
+    }
+
+    synchronized void receiveHeaders(List<String> headers) {
+        if (this.headers == null && !(headers.size() >= 2 && headers.get(0).equals(":status")
+                && headers.get(1).startsWith("1"))) {
+            this.headers = headers;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param data
+     *            - received data
+     * @param length
+     *            - flow-controlled length of the frame (including padding)
+     * @return false if the stream's window is exceeded
+     */
+    synchronized boolean receiveData(byte[] data, int length) {
+        if (length > receiveWindow) {
+            return false;
+        }
+        receiveWindow -= length;
+        // padding is consumed straight away
+        consumed += length - data.length;
+        if (data.length > 0) {
+            chunks.add(data);
+            buffered += data.length;
+            notifyAll();
+        }
+        return true;
+    }
+
+    synchronized void endInput() {
+        remoteClosed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
+    /**
+     * @return true if both sides are closed now
+     */
+    synchronized boolean remoteClosed() {
+        remoteClosed = true;
+        return localClosed;
+    }
+
+    /**
+     * @return true if both sides are closed now
+     */
+    synchronized boolean localClosed() {
+        localClosed = true;
+        return remoteClosed;
+    }
+
+    /**
+     * This resets the stream, readers waiting for data will get IOException
+     *
+     * @return number of received bytes not returned to the connection's window yet
+     */
+    synchronized int reset(int errorCode) {
+        if (resetCode < 0) {
+            resetCode = errorCode;
+        }
+        int unconsumed = buffered + consumed;
+        chunks.clear();
+        chunkPosition = 0;
+        buffered = 0;
+        consumed = 0;
+        notifyAll();
+        return unconsumed;
+    }
+
+    synchronized void checkNotReset() throws IOException {
+        if (resetCode >= 0) {
+            throw new HttpException("HTTP/2 stream " + id + " is reset, error code " + resetCode);
+        }
+    }
+
+    private void waitForData() throws IOException {
+        int timeout = timeoutMs;
+        long startTime = System.currentTimeMillis();
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpException("Interrupted while waiting for HTTP/2 stream " + id);
+        }
+        if (timeout > 0 && System.currentTimeMillis() - startTime >= timeout) {
+            throw new SocketTimeoutException("Timeout while waiting for HTTP/2 stream " + id);
+        }
+    }
+
+    private void consumed(int count) {
+        int increment = 0;
+        boolean updateStream;
+        synchronized (this) {
+            updateStream = !remoteClosed;
+            buffered -= count;
+            consumed += count;
+            if (consumed >= receiveWindowSize / 2) {
+                increment = consumed;
+                receiveWindow += increment;
+                consumed = 0;
+            }
+        }
+        if (increment > 0) {
+            connection.dataConsumed(this, updateStream ? increment : 0, increment);
+        }
+    }
+
+    private class StreamInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] data = new byte[1];
+            return read(data, 0, 1) > 0 ? data[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count;
+            synchronized (Http2Stream.this) {
+                while (chunks.isEmpty()) {
+                    checkNotReset();
+                    if (remoteClosed) {
+                        return -1;
+                    }
+                    waitForData();
+                }
+                byte[] chunk = chunks.peek();
+                count = Math.min(length, chunk.length - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, buffer, offset, count);
+                chunkPosition += count;
+                if (chunkPosition == chunk.length) {
+                    chunks.remove();
+                    chunkPosition = 0;
+                }
+            }
+            consumed(count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            synchronized (Http2Stream.this) {
+                return buffered;
+            }
+        }
+    }
+
+    private class StreamOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("HTTP/2 stream " + id + " output is closed");
+            }
+            connection.writeData(Http2Stream.this, data, offset, length, false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                connection.writeData(Http2Stream.this, new byte[0], 0, 0, true);
+            }
+        }
+    }
+}
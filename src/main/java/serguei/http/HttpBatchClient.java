@@ -0,0 +1,141 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This sends a batch of requests concurrently (fan-out) over connections from a pool and gathers the results
+ *
+ * sendAll() waits for all responses, sendQuorum() - for the first K of them. Both stop waiting at the deadline. When
+ * the quorum is reached (or cannot be reached any more because too many requests failed) or the deadline passes, the
+ * remaining requests are cancelled: requests which have not started yet are not sent, connections of requests in
+ * progress are closed and discarded from the pool. Responses are read into memory, so their connections are released
+ * to the pool as soon as they are received.
+ *
+ * The number of requests sent at the same time is limited by the pool: a request waits for a connection if the limit
+ * per route or the total limit is reached.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class HttpBatchClient {
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Batch request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClientConnectionPool pool;
+    private final ExecutorService executor;
+
+    /**
+     * @param pool
+     *            - pool to lease connections from, requests are sent from shared daemon threads
+     */
+    public HttpBatchClient(HttpClientConnectionPool pool) {
+        this(pool, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * @param pool
+     *            - pool to lease connections from
+     * @param executor
+     *            - executor running the requests, it needs as many threads as requests which should be sent at the same
+     *            time
+     */
+    public HttpBatchClient(HttpClientConnectionPool pool, ExecutorService executor) {
+        this.pool = pool;
+        this.executor = executor;
+    }
+
+    /**
+     * This sends all requests and waits for all of them to complete (successfully or not)
+     *
+     * @param requests
+     *            - requests to send
+     * @param timeoutMs
+     *            - deadline for the whole batch in milliseconds, 0 - no deadline
+     * @return results in the same order as the requests, requests which did not complete by the deadline are cancelled
+     * @throws InterruptedIOException
+     *             - if the current thread is interrupted, all requests are cancelled
+     */
+    public List<BatchResult> sendAll(List<BatchRequest> requests, long timeoutMs) throws IOException {
+        return send(requests, requests.size(), false, timeoutMs);
+    }
+
+    /**
+     * This sends all requests and waits until the quorum of responses is received
+     *
+     * @param requests
+     *            - requests to send
+     * @param quorum
+     *            - number of responses to wait for, from 1 to the number of requests
+     * @param timeoutMs
+     *            - deadline for the whole batch in milliseconds, 0 - no deadline
+     * @return results in the same order as the requests, the remaining requests are cancelled when the quorum is
+     *         reached, when it cannot be reached because too many requests failed or when the deadline passes
+     * @throws InterruptedIOException
+     *             - if the current thread is interrupted, all requests are cancelled
+     */
+    public List<BatchResult> sendQuorum(List<BatchRequest> requests, int quorum, long timeoutMs) throws IOException {
+        if (quorum <= 0 || quorum > requests.size()) {
+            throw new IllegalArgumentException("Quorum must be from 1 to " + requests.size() + ", but it is " + quorum);
+        }
+        return send(requests, quorum, true, timeoutMs);
+    }
+
+    private List<BatchResult> send(List<BatchRequest> requests, int quorum, boolean stopWhenQuorumIsImpossible,
+            long timeoutMs) throws IOException {
+        long start = System.currentTimeMillis();
+        long deadline = timeoutMs > 0 ? start + timeoutMs : Long.MAX_VALUE;
+        BlockingQueue<PooledRequest> completed = new LinkedBlockingQueue<>();
+        List<PooledRequest> tasks = new ArrayList<>(requests.size());
+        try {
+            for (BatchRequest request : requests) {
+                PooledRequest task = new PooledRequest(pool, request, start, completed);
+                tasks.add(task);
+                task.start(executor);
+            }
+            int successful = 0;
+            int failed = 0;
+            while (successful < quorum && successful + failed < requests.size()) {
+                if (stopWhenQuorumIsImpossible && requests.size() - failed < quorum) {
+                    break;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                PooledRequest task = completed.poll(wait, TimeUnit.MILLISECONDS);
+                if (task == null) {
+                    break;
+                }
+                if (task.getResult().isSuccessful()) {
+                    successful++;
+                } else {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for batch results");
+        } finally {
+            for (PooledRequest task : tasks) {
+                task.cancel();
+            }
+        }
+        List<BatchResult> results = new ArrayList<>(tasks.size());
+        for (PooledRequest task : tasks) {
+            results.add(task.getResult());
+        }
+        return results;
+    }
+}
@@ -5,11 +5,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipException;
 
 import serguei.http.utils.Utils;
@@ -57,6 +57,34 @@ class HttpBody {
         }
     }
 
+    /**
+     * This reads the body into the channel (at its current position) through a pooled buffer
+     *
+     * @return number of bytes written into the channel
+     */
+    long readTo(WritableByteChannel channel) throws IOException {
+        if (!hasBody) {
+            return 0;
+        }
+        InputStream stream = getBodyInputStream();
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.borrow();
+        try {
+            long total = 0;
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+                total += read;
+            }
+            return total;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
     InputStream getBodyInputStream() throws IOException {
         if (hasBody) {
             if (userFacingStream == null) {
@@ -144,7 +172,7 @@ class HttpBody {
             if (isGzip(stream)) {
                 stream.reset();
                 streamToDrainOfData = stream;
-                stream = new GZIPInputStream(stream);
+                stream = new PooledInflaterInputStream(stream, InflaterPool.getDefault(), true, false);
             } else {
                 stream.reset();
                 streamToDrainOfData = null;
@@ -157,7 +185,7 @@ class HttpBody {
             boolean wrapped = isDeflatedStreamWrapped(stream);
             stream.reset();
             streamToDrainOfData = stream;
-            stream = new InflaterInputStream(stream, new Inflater(!wrapped));
+            stream = new PooledInflaterInputStream(stream, InflaterPool.getDefault(), false, !wrapped);
         } else {
             InputStreamWrapperFactory streamFactory = getNonstandardStreamFactory(encoding);
             if (streamFactory != null) {
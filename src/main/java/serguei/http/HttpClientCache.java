@@ -0,0 +1,869 @@
+package serguei.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A private (per client) HTTP cache of responses received over connections from a pool
+ *
+ * GET responses are stored as per Cache-Control (max-age, no-store, no-cache, must-revalidate, stale-while-revalidate)
+ * or Expires headers of the response, if neither is present and there is Last-Modified, they are fresh for 10% of the
+ * time since last modification (but no more than a day). Cache-Control of the request (no-store, no-cache, max-age)
+ * and Vary are honoured too. A fresh response is returned from the cache without sending the request. When a stored
+ * response with ETag or Last-Modified becomes stale, a conditional request is sent and if the server replies with 304
+ * (Not Modified), the stored response is updated and returned without downloading the body again. A stale response
+ * within its stale-while-revalidate window is returned straight away and revalidated in background.
+ *
+ * Bodies are kept in memory up to the configured size, least recently used responses are evicted. If a disk
+ * directory is configured, evicted bodies are moved there (also up to the configured size) and moved back to memory
+ * when they are used, files are written and read outside of the cache lock. Bodies are stored as received, i.e.
+ * compressed if they were compressed. A body bigger than the maximum entry size is not stored nor read into memory,
+ * it is read from the connection, which is returned to the pool once the body is read to the end.
+ *
+ * Other methods are sent to the server as they are, unsafe ones (e.g. POST, PUT, DELETE) invalidate the stored
+ * response for the same URL. Requests which already have conditional headers are not cached.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class HttpClientCache {
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Cache revalidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Set<Integer> CACHEABLE_STATUSES = new HashSet<>(
+            Arrays.asList(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501));
+    private static final long MAX_HEURISTIC_LIFETIME_MS = 24 * 3600 * 1000L;
+    // headers of 304 response which do not replace the stored ones
+    private static final Set<String> NOT_UPDATED_HEADERS = new HashSet<>(
+            Arrays.asList("content-length", "transfer-encoding", "content-encoding", "connection", "keep-alive"));
+
+    private final HttpClientConnectionPool pool;
+    private final ExecutorService executor;
+    private final long maxMemoryBytes;
+
+    // guarded by this
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    // evicted from memory, their bodies are being written to disk
+    private final Map<String, Entry> spilling = new HashMap<>();
+    private final Set<String> revalidating = new HashSet<>();
+    private long maxEntryBytes;
+    private Path diskDirectory;
+    private long maxDiskBytes;
+    private long memoryBytes;
+    private long diskBytes;
+    private long fileCounter;
+    private long hitCount;
+    private long missCount;
+    private long revalidatedCount;
+    private long staleServedCount;
+
+    /**
+     * @param pool
+     *            - pool to lease connections from
+     * @param maxMemoryBytes
+     *            - maximum size of bodies kept in memory
+     */
+    public HttpClientCache(HttpClientConnectionPool pool, long maxMemoryBytes) {
+        this(pool, maxMemoryBytes, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * @param pool
+     *            - pool to lease connections from
+     * @param maxMemoryBytes
+     *            - maximum size of bodies kept in memory
+     * @param executor
+     *            - executor running background revalidation (stale-while-revalidate)
+     */
+    public HttpClientCache(HttpClientConnectionPool pool, long maxMemoryBytes, ExecutorService executor) {
+        this.pool = pool;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxEntryBytes = maxMemoryBytes;
+        this.executor = executor;
+    }
+
+    /**
+     * This sends a request to a plain (not TLS) server unless the response can be returned from the cache
+     *
+     * @param host
+     *            - host name or IP address
+     * @param port
+     *            - port
+     * @param requestHeaders
+     *            - request headers, the request has no body
+     * @return response, its body is in memory unless it is bigger than the maximum entry size
+     */
+    public HttpResponse send(String host, int port, HttpRequestHeaders requestHeaders) throws IOException {
+        return send(new BatchRequest(host, port, requestHeaders));
+    }
+
+    /**
+     * This sends a request over TLS (the server certificate is not validated) unless the response can be returned from
+     * the cache
+     *
+     * @param host
+     *            - host name
+     * @param port
+     *            - port
+     * @param requestHeaders
+     *            - request headers, the request has no body
+     * @return response, its body is in memory unless it is bigger than the maximum entry size
+     */
+    public HttpResponse sendTls(String host, int port, HttpRequestHeaders requestHeaders) throws IOException {
+        return send(new BatchRequest(host, port, requestHeaders).setTls(true));
+    }
+
+    /**
+     * This sends a request over TLS (the server is validated as per provided context) unless the response can be
+     * returned from the cache
+     *
+     * @param host
+     *            - host name
+     * @param port
+     *            - port
+     * @param sslContext
+     *            - context for TLS handshake
+     * @param requestHeaders
+     *            - request headers, the request has no body
+     * @return response, its body is in memory unless it is bigger than the maximum entry size
+     */
+    public HttpResponse sendTls(String host, int port, ClientSslContext sslContext, HttpRequestHeaders requestHeaders)
+            throws IOException {
+        return send(new BatchRequest(host, port, requestHeaders).setTls(sslContext));
+    }
+
+    /**
+     * @param maxEntryBytes
+     *            - maximum size of a body to be stored, by default it is the maximum memory size
+     */
+    public synchronized void setMaxEntrySize(long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * This enables storing bodies evicted from memory on disk
+     *
+     * @param directory
+     *            - directory for the bodies, it is created if it does not exist
+     * @param maxDiskBytes
+     *            - maximum size of bodies on disk
+     */
+    public synchronized void setDiskCache(Path directory, long maxDiskBytes) throws IOException {
+        Files.createDirectories(directory);
+        this.diskDirectory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * This removes all stored responses (including ones on disk)
+     */
+    public void clear() {
+        List<Entry> removed;
+        synchronized (this) {
+            removed = new ArrayList<>(disk.values());
+            disk.clear();
+            memory.clear();
+            spilling.clear();
+            memoryBytes = 0;
+            diskBytes = 0;
+        }
+        for (Entry entry : removed) {
+            deleteFile(entry);
+        }
+    }
+
+    /**
+     * @return number of stored responses
+     */
+    public synchronized int getEntryCount() {
+        return memory.size() + spilling.size() + disk.size();
+    }
+
+    /**
+     * @return size of bodies kept in memory
+     */
+    public synchronized long getMemorySize() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return size of bodies kept on disk
+     */
+    public synchronized long getDiskSize() {
+        return diskBytes;
+    }
+
+    /**
+     * @return number of responses returned from the cache without contacting the server
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of cacheable requests sent to the server without a stored response (including revalidation which
+     *         returned a new response)
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of stored responses returned after the server confirmed them with 304
+     */
+    public synchronized long getRevalidatedCount() {
+        return revalidatedCount;
+    }
+
+    /**
+     * @return number of stale responses returned while they were revalidated in background
+     */
+    public synchronized long getStaleServedCount() {
+        return staleServedCount;
+    }
+
+    private HttpResponse send(BatchRequest request) throws IOException {
+        HttpRequestHeaders requestHeaders = request.getHeaders();
+        String method = requestHeaders.getMethod();
+        String key = key(request);
+        if (!method.equals("GET")) {
+            if (!method.equals("HEAD") && !method.equals("OPTIONS") && !method.equals("TRACE")) {
+                remove(key);
+            }
+            return execute(request).response;
+        }
+        Map<String, String> requestCacheControl = cacheControl(requestHeaders);
+        if (requestCacheControl.containsKey("no-store") || requestHeaders.getHeader("If-None-Match") != null
+                || requestHeaders.getHeader("If-Modified-Since") != null) {
+            return execute(request).response;
+        }
+        boolean noCache = requestCacheControl.containsKey("no-cache")
+                || "no-cache".equalsIgnoreCase(requestHeaders.getHeader("Pragma"));
+        long maxAgeMs = seconds(requestCacheControl.get("max-age"));
+        long now = System.currentTimeMillis();
+        Entry entry = get(key, requestHeaders);
+        if (entry != null && !noCache) {
+            long ageMs = entry.currentAge(now);
+            boolean mayServe = !entry.cacheControl.containsKey("no-cache") && (maxAgeMs < 0 || ageMs <= maxAgeMs);
+            if (mayServe && ageMs < entry.freshnessLifetime()) {
+                synchronized (this) {
+                    hitCount++;
+                }
+                return entry.toResponse(now);
+            }
+            long staleWhileRevalidateMs = seconds(entry.cacheControl.get("stale-while-revalidate"));
+            if (mayServe && !entry.cacheControl.containsKey("must-revalidate")
+                    && ageMs < entry.freshnessLifetime() + staleWhileRevalidateMs) {
+                revalidateInBackground(key, entry);
+                synchronized (this) {
+                    staleServedCount++;
+                }
+                return entry.toResponse(now);
+            }
+        }
+        return fetch(key, request, entry);
+    }
+
+    /**
+     * This sends the request (conditional one if there is a stored response with a validator) and updates the cache
+     */
+    private HttpResponse fetch(String key, BatchRequest request, Entry entry) throws IOException {
+        BatchRequest sentRequest = request;
+        if (entry != null && entry.hasValidator()) {
+            HttpRequestHeaders conditionalHeaders = new HttpRequestHeaders(request.getHeaders());
+            String etag = entry.headers.getHeader("ETag");
+            if (etag != null) {
+                conditionalHeaders.setHeader("If-None-Match", etag);
+            }
+            String lastModified = entry.headers.getHeader("Last-Modified");
+            if (lastModified != null) {
+                conditionalHeaders.setHeader("If-Modified-Since", lastModified);
+            }
+            sentRequest = copy(request, conditionalHeaders);
+        }
+        Received received = execute(sentRequest);
+        if (received.response.getStatusCode() == 304 && entry != null) {
+            Entry updated = entry.updatedWith(received);
+            put(key, updated);
+            synchronized (this) {
+                revalidatedCount++;
+            }
+            return updated.toResponse(System.currentTimeMillis());
+        }
+        synchronized (this) {
+            missCount++;
+        }
+        if (isCacheable(received)) {
+            put(key, new Entry(request, received.response.getHeaders(), received.body, received.requestTime,
+                    received.responseTime));
+        } else {
+            remove(key);
+        }
+        return received.response;
+    }
+
+    private void revalidateInBackground(String key, Entry entry) {
+        synchronized (this) {
+            if (!revalidating.add(key)) {
+                return;
+            }
+        }
+        executor.execute(() -> {
+            try {
+                // a body too big to be stored is read from the connection, so it is drained to release it
+                fetch(key, entry.request, entry).getBodyAsOriginalStream().close();
+            } catch (IOException | RuntimeException e) {
+                // the stale response is kept, the next request will try again
+            } finally {
+                synchronized (this) {
+                    revalidating.remove(key);
+                }
+            }
+        });
+    }
+
+    private Received execute(BatchRequest request) throws IOException {
+        long maxBodyBytes;
+        synchronized (this) {
+            maxBodyBytes = maxEntryBytes;
+        }
+        long requestTime = System.currentTimeMillis();
+        HttpClientConnection connection = PooledRequest.lease(pool, request);
+        HttpResponse response;
+        byte[] body = null;
+        InputStream bodyStream = null;
+        try {
+            response = connection.send(request.getHeaders());
+            if (response.hasBody()) {
+                bodyStream = response.getBodyAsOriginalStream();
+                if (response.getContentLength() <= maxBodyBytes) {
+                    body = readUpTo(bodyStream, maxBodyBytes);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            pool.discard(connection);
+            throw e;
+        }
+        long responseTime = System.currentTimeMillis();
+        HttpResponseHeaders headers = response.getHeaders();
+        if (bodyStream != null && (body == null || body.length > maxBodyBytes)) {
+            // too big to be stored, the rest of the body is read from the connection
+            InputStream rest = new ConnectionBodyInputStream(connection, bodyStream, response.getContentLength());
+            if (body != null) {
+                rest = new SequenceInputStream(new ByteArrayInputStream(body), rest);
+            }
+            headers.removeHeader("Transfer-Encoding");
+            return new Received(new HttpResponse(headers, rest, true), null, true, requestTime, responseTime);
+        }
+        pool.release(connection);
+        if (body != null) {
+            // the body is not chunked any more
+            headers.removeHeader("Transfer-Encoding");
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+        }
+        return new Received(new HttpResponse(headers, new ByteArrayInputStream(body != null ? body : new byte[0]),
+                body != null), body, false, requestTime, responseTime);
+    }
+
+    /**
+     * @return up to limit + 1 bytes of the stream, i.e. more than limit bytes means the stream is longer than the limit
+     */
+    private static byte[] readUpTo(InputStream input, long limit) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        long remaining = Math.min(limit, Integer.MAX_VALUE - 16) + 1;
+        int read;
+        while (remaining > 0 && (read = input.read(buffer, 0, (int)Math.min(buffer.length, remaining))) >= 0) {
+            output.write(buffer, 0, read);
+            remaining -= read;
+        }
+        return output.toByteArray();
+    }
+
+    private boolean isCacheable(Received received) {
+        HttpResponse response = received.response;
+        if (received.streamed || !CACHEABLE_STATUSES.contains(response.getStatusCode())) {
+            return false;
+        }
+        Map<String, String> cacheControl = cacheControl(response.getHeaders());
+        if (cacheControl.containsKey("no-store") || "*".equals(response.getHeader("Vary"))) {
+            return false;
+        }
+        long size = received.body != null ? received.body.length : 0;
+        synchronized (this) {
+            if (size > maxEntryBytes) {
+                return false;
+            }
+        }
+        return cacheControl.containsKey("max-age") || response.getHeader("Expires") != null
+                || response.getHeader("ETag") != null || response.getHeader("Last-Modified") != null;
+    }
+
+    private Entry get(String key, HttpRequestHeaders requestHeaders) {
+        Entry entry;
+        synchronized (this) {
+            entry = memory.get(key);
+            if (entry == null) {
+                entry = spilling.get(key);
+            }
+            if (entry == null) {
+                entry = disk.get(key);
+            }
+        }
+        if (entry != null && entry.file != null) {
+            entry = load(key, entry);
+        }
+        if (entry != null && !entry.varyMatches(requestHeaders)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * This reads a body stored on disk and moves the entry back to memory
+     *
+     * @return entry with the body or null if the file cannot be read
+     */
+    private Entry load(String key, Entry stored) {
+        byte[] body;
+        try {
+            body = Files.readAllBytes(stored.file);
+        } catch (IOException e) {
+            // it has been evicted meanwhile
+            body = null;
+        }
+        Entry entry = body != null ? stored.withBody(body) : null;
+        List<Map.Entry<String, Entry>> evicted = null;
+        synchronized (this) {
+            if (disk.get(key) != stored) {
+                // another thread has moved, replaced or removed it, and it owns the file now
+                return entry;
+            }
+            disk.remove(key);
+            diskBytes -= stored.size;
+            if (entry != null) {
+                evicted = putInMemory(key, entry);
+            }
+        }
+        deleteFile(stored);
+        spill(evicted);
+        return entry;
+    }
+
+    private void put(String key, Entry entry) {
+        Entry removed;
+        List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            removed = detach(key);
+            evicted = putInMemory(key, entry);
+        }
+        deleteFile(removed);
+        spill(evicted);
+    }
+
+    private void remove(String key) {
+        Entry removed;
+        synchronized (this) {
+            removed = detach(key);
+        }
+        deleteFile(removed);
+    }
+
+    /**
+     * This removes the entry from the cache
+     *
+     * @return entry which file must be deleted or null
+     */
+    private Entry detach(String key) {
+        Entry entry = memory.remove(key);
+        if (entry != null) {
+            memoryBytes -= entry.size;
+        }
+        spilling.remove(key);
+        entry = disk.remove(key);
+        if (entry != null) {
+            diskBytes -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * @return entries evicted from memory which must be written to disk with spill()
+     */
+    private List<Map.Entry<String, Entry>> putInMemory(String key, Entry entry) {
+        memory.put(key, entry);
+        memoryBytes += entry.size;
+        List<Map.Entry<String, Entry>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> iterator = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (eldest.getValue() == entry) {
+                continue;
+            }
+            iterator.remove();
+            memoryBytes -= eldest.getValue().size;
+            if (diskDirectory != null && eldest.getValue().size <= maxDiskBytes) {
+                spilling.put(eldest.getKey(), eldest.getValue());
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(eldest.getKey(), eldest.getValue()));
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * This writes bodies evicted from memory to disk, it is called without holding the lock
+     */
+    private void spill(List<Map.Entry<String, Entry>> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        for (Map.Entry<String, Entry> spilled : evicted) {
+            String key = spilled.getKey();
+            Entry entry = spilled.getValue();
+            Path file;
+            synchronized (this) {
+                file = diskDirectory.resolve("response-" + (++fileCounter) + ".body");
+            }
+            boolean written;
+            try {
+                Files.write(file, entry.body);
+                written = true;
+            } catch (IOException e) {
+                // the entry is dropped
+                written = false;
+            }
+            Entry onDisk = entry.onDisk(file);
+            List<Entry> dropped = new ArrayList<>();
+            synchronized (this) {
+                if (spilling.get(key) != entry) {
+                    // it has been replaced or removed while the file was written
+                    dropped.add(onDisk);
+                } else {
+                    spilling.remove(key);
+                    if (written) {
+                        disk.put(key, onDisk);
+                        diskBytes += onDisk.size;
+                        Iterator<Entry> iterator = disk.values().iterator();
+                        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+                            Entry eldest = iterator.next();
+                            iterator.remove();
+                            diskBytes -= eldest.size;
+                            dropped.add(eldest);
+                        }
+                    }
+                }
+            }
+            if (!written) {
+                dropped.add(onDisk);
+            }
+            for (Entry entryToDelete : dropped) {
+                deleteFile(entryToDelete);
+            }
+        }
+    }
+
+    private static void deleteFile(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(entry.file);
+        } catch (IOException e) {
+            // nothing can be done
+        }
+    }
+
+    private static String key(BatchRequest request) {
+        return (request.isTls() ? "https://" : "http://") + request.getHost() + ":" + request.getPort()
+                + request.getHeaders().getPath();
+    }
+
+    private static BatchRequest copy(BatchRequest request, HttpRequestHeaders headers) {
+        BatchRequest copy = new BatchRequest(request.getHost(), request.getPort(), headers);
+        if (request.getSslContext() != null) {
+            copy.setTls(request.getSslContext());
+        } else {
+            copy.setTls(request.isTls());
+        }
+        return copy;
+    }
+
+    /**
+     * @return directives of Cache-Control headers, names are in lower case, values are null if there is no value
+     */
+    private static Map<String, String> cacheControl(HttpHeaders headers) {
+        Map<String, String> directives = new HashMap<>();
+        for (String header : headerValues(headers, "Cache-Control")) {
+            for (String directive : header.split(",")) {
+                directive = directive.trim();
+                if (directive.isEmpty()) {
+                    continue;
+                }
+                int pos = directive.indexOf('=');
+                if (pos < 0) {
+                    directives.put(directive.toLowerCase(Locale.ROOT), null);
+                } else {
+                    String value = directive.substring(pos + 1).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    directives.put(directive.substring(0, pos).trim().toLowerCase(Locale.ROOT), value);
+                }
+            }
+        }
+        return directives;
+    }
+
+    private static List<String> headerValues(HttpHeaders headers, String name) {
+        List<String> values = headers.getHeaders(name);
+        return values != null ? values : new ArrayList<>();
+    }
+
+    /**
+     * @return number of seconds converted to milliseconds or -1 if the value is missing or invalid
+     */
+    private static long seconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return time in milliseconds or -1 if the date is missing or invalid
+     */
+    private static long date(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static class Received {
+
+        private final HttpResponse response;
+        private final byte[] body;
+        private final boolean streamed;
+        private final long requestTime;
+        private final long responseTime;
+
+        private Received(HttpResponse response, byte[] body, boolean streamed, long requestTime,
+                long responseTime) {
+            this.response = response;
+            this.body = body;
+            this.streamed = streamed;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+    }
+
+    /**
+     * Body of a response which is too big to be stored, the connection is returned to the pool when the body is read
+     * to the end, it is discarded if the body is closed before that or reading fails
+     */
+    private class ConnectionBodyInputStream extends FilterInputStream {
+
+        private HttpClientConnection connection;
+        private long remaining;
+
+        /**
+         * @param contentLength
+         *            - length of the body, -1 if it is read until the end of the stream
+         */
+        private ConnectionBodyInputStream(HttpClientConnection connection, InputStream bodyStream,
+                long contentLength) {
+            super(bodyStream);
+            this.connection = connection;
+            this.remaining = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int result = in.read();
+                if (result < 0 || (remaining > 0 && --remaining == 0)) {
+                    // the response reading the body with Content-Length stops at its end
+                    finish(true);
+                }
+                return result;
+            } catch (IOException | RuntimeException e) {
+                finish(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                int result = in.read(buffer, offset, length);
+                if (result < 0 || (remaining > 0 && result > 0 && (remaining -= result) <= 0)) {
+                    finish(true);
+                }
+                return result;
+            } catch (IOException | RuntimeException e) {
+                finish(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            finish(false);
+        }
+
+        private synchronized void finish(boolean complete) {
+            if (connection != null) {
+                if (complete) {
+                    pool.release(connection);
+                } else {
+                    pool.discard(connection);
+                }
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * A stored response, it is immutable: updates create a new entry
+     */
+    private static class Entry {
+
+        private final BatchRequest request;
+        private final HttpResponseHeaders headers;
+        private final Map<String, String> cacheControl;
+        private final byte[] body;
+        private final Path file;
+        private final long size;
+        private final long requestTime;
+        private final long responseTime;
+
+        private Entry(BatchRequest request, HttpResponseHeaders headers, byte[] body, long requestTime,
+                long responseTime) {
+            this(request, headers, body, null, body != null ? body.length : 0, requestTime, responseTime);
+        }
+
+        private Entry(BatchRequest request, HttpResponseHeaders headers, byte[] body, Path file, long size,
+                long requestTime, long responseTime) {
+            this.request = request;
+            this.headers = headers;
+            this.cacheControl = cacheControl(headers);
+            this.body = body;
+            this.file = file;
+            this.size = size;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+
+        private Entry onDisk(Path file) {
+            return new Entry(request, headers, null, file, size, requestTime, responseTime);
+        }
+
+        private Entry withBody(byte[] body) {
+            return new Entry(request, headers, body, null, size, requestTime, responseTime);
+        }
+
+        /**
+         * @return entry with headers updated from 304 response
+         */
+        private Entry updatedWith(Received received) {
+            HttpResponseHeaders updatedHeaders = new HttpResponseHeaders(headers);
+            HttpResponseHeaders notModifiedHeaders = received.response.getHeaders();
+            for (String name : notModifiedHeaders.listHeaderNames()) {
+                if (!NOT_UPDATED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    updatedHeaders.removeHeader(name);
+                    for (String value : notModifiedHeaders.getHeaders(name)) {
+                        updatedHeaders.addHeader(name, value);
+                    }
+                }
+            }
+            return new Entry(request, updatedHeaders, body, null, size, received.requestTime, received.responseTime);
+        }
+
+        private boolean hasValidator() {
+            return headers.getHeader("ETag") != null || headers.getHeader("Last-Modified") != null;
+        }
+
+        private boolean varyMatches(HttpRequestHeaders requestHeaders) {
+            for (String vary : headerValues(headers, "Vary")) {
+                for (String name : vary.split(",")) {
+                    name = name.trim();
+                    if (!name.isEmpty() && !headerValues(request.getHeaders(), name)
+                            .equals(headerValues(requestHeaders, name))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private long freshnessLifetime() {
+            long maxAgeMs = seconds(cacheControl.get("max-age"));
+            if (maxAgeMs >= 0) {
+                return maxAgeMs;
+            }
+            long date = date(headers.getHeader("Date"));
+            if (date < 0) {
+                date = responseTime;
+            }
+            String expires = headers.getHeader("Expires");
+            if (expires != null) {
+                // invalid date means expired
+                return Math.max(0, date(expires) - date);
+            }
+            long lastModified = date(headers.getHeader("Last-Modified"));
+            if (lastModified >= 0 && lastModified < date) {
+                return Math.min(MAX_HEURISTIC_LIFETIME_MS, (date - lastModified) / 10);
+            }
+            return 0;
+        }
+
+        private long currentAge(long now) {
+            long date = date(headers.getHeader("Date"));
+            long apparentAge = date >= 0 ? Math.max(0, responseTime - date) : 0;
+            long ageValue = Math.max(0, seconds(headers.getHeader("Age")));
+            long correctedAge = ageValue + responseTime - requestTime;
+            return Math.max(apparentAge, correctedAge) + now - responseTime;
+        }
+
+        private HttpResponse toResponse(long now) {
+            HttpResponseHeaders responseHeaders = new HttpResponseHeaders(headers);
+            responseHeaders.setHeader("Age", Long.toString(currentAge(now) / 1000));
+            return new HttpResponse(responseHeaders, new ByteArrayInputStream(body != null ? body : new byte[0]),
+                    body != null);
+        }
+    }
+}
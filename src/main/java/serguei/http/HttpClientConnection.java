@@ -7,15 +7,30 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
 
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -25,6 +40,9 @@ import serguei.http.utils.Utils;
 /**
  * HTTP client connection - a simple HTTP client
  * 
+ * An instance is not thread-safe unless HTTP/2 is used: requests sent over HTTP/2 can be sent from many threads at the
+ * same time, they are multiplexed over the same connection.
+ * 
  * @author Serguei Poliakov
  *
  */
@@ -33,24 +51,38 @@ public class HttpClientConnection implements Closeable {
     private static final int BUFFER_SIZE = 8192;
 
     private final InetSocketAddress serverAddress;
-    private Socket socket;
+    private HostResolver hostResolver;
+    private volatile Socket socket;
     private InputStream inputStream;
     private OutputStream outputStream;
     private InputStreamWrapperFactory inputStreamWrapperFactory;
     private OutputStreamWrapperFactory outputStreamWrapperFactory;
     private ClientSslContext clientSslContext;
+    private String tlsHostname;
+    private boolean tlsHostnameChecked;
     private X509Certificate[] tlsCertificates;
     private TlsVersion[] enabledTlsProtocols;
     private String[] enabledCipherSuites;
     private TlsVersion negotiatedTlsProtocol;
     private String negotiatedCipher;
     private byte[] tlsSessionId;
+    private boolean tlsSessionResumed;
     private int timeoutMs = 0;
     private int connectTimeoutMs = 0;
+    private int connectAttemptDelayMs = 250;
+    private int expectContinueTimeoutMs = 0;
+    private int pipelineDepth = 16;
+    private DeflaterPool deflaterPool = DeflaterPool.getDefault();
+    private boolean socketChannelEnabled;
     private boolean tcpNoDelay;
+    private boolean keepRawHeaders;
+    private boolean http2Enabled;
+    private boolean protocolSelected;
+    private volatile Http2Connection http2Connection;
 
     /**
-     * Create an instance of HttpClientConnection. We don't connect to the server yet at this point.
+     * Create an instance of HttpClientConnection. We don't connect to the server yet at this point, the host is
+     * resolved every time a connection is created.
      * 
      * @param host
      *            - host name (could be a string contains an IP address), if we are connecting via a proxy, this should
@@ -59,7 +91,7 @@ public class HttpClientConnection implements Closeable {
      *            - port (e.g. 80 for HTTP or 443 for HTTPS)
      */
     public HttpClientConnection(String host, int port) {
-        this(new InetSocketAddress(host, port));
+        this(InetSocketAddress.createUnresolved(host, port));
     }
 
     /**
@@ -67,7 +99,8 @@ public class HttpClientConnection implements Closeable {
      * 
      * @param address
      *            - IP socket address to the server we will be connecting. If we connecting via a proxy, this should be
-     *            an address of the proxy.
+     *            an address of the proxy. If the address is unresolved, the host is resolved every time a connection
+     *            is created.
      */
     public HttpClientConnection(InetSocketAddress address) {
         this.serverAddress = address;
@@ -84,8 +117,10 @@ public class HttpClientConnection implements Closeable {
      * @throws IOException
      */
     public HttpResponse sendRequest(String requestLine, String... headers) throws IOException {
-        connectIfNecessary();
         String httpMethod = HttpRequestHeaders.getMethodFromRequestLine(requestLine);
+        if (http2(httpMethod) != null) {
+            return send(new HttpRequestHeaders(requestLine, headers));
+        }
         outputStream.write(requestLine.getBytes());
         outputStream.write(HttpHeaders.LINE_SEPARATOR_BYTES);
         for (String line : headers) {
@@ -94,7 +129,7 @@ public class HttpClientConnection implements Closeable {
         }
         outputStream.write(HttpHeaders.LINE_SEPARATOR_BYTES);
         outputStream.flush();
-        return new HttpResponse(inputStream, httpMethod);
+        return new HttpResponse(inputStream, httpMethod, keepRawHeaders);
     }
 
     /**
@@ -171,7 +206,9 @@ public class HttpClientConnection implements Closeable {
      * This sends a request with a body and waits for a response. It will create a connection if necessary.
      * 
      * This adds "Content-Length" header based on the length of the body (it might different from body.length if body is
-     * compressed) and "Content-Encoding" if compression is specified to requestHeaders before sending request.
+     * compressed) and "Content-Encoding" if compression is specified to requestHeaders before sending request. A
+     * compressed body bigger than 8 KB is compressed straight into the connection, so it is sent using chunked transfer
+     * encoding instead (unless the request is HTTP/1.0).
      * 
      * @param requestHeaders
      *            - request headers that will be sent to the server
@@ -183,29 +220,45 @@ public class HttpClientConnection implements Closeable {
      * @throws IOException
      */
     public HttpResponse send(HttpRequestHeaders requestHeaders, byte[] body, BodyCompression compression) throws IOException {
-        connectIfNecessary();
+        Http2Connection http2 = http2(requestHeaders.getMethod());
+        if (body != null && compression != BodyCompression.NONE && body.length > BUFFER_SIZE
+                && (http2 != null || !requestHeaders.getVersion().equals("HTTP/1.0"))) {
+            // the body is compressed straight into the connection
+            requestHeaders.removeHeader("Content-Length");
+            ActiveRequestWithWritableBody activeRequest = startRequest(requestHeaders, compression);
+            activeRequest.write(body);
+            return activeRequest.readResponse();
+        }
         if (body != null) {
             if (compression == BodyCompression.GZIP) {
-                body = gzip(body);
+                body = compress(body, true);
                 requestHeaders.setHeader("Content-Encoding", "gzip");
             } else if (compression == BodyCompression.DEFLATE) {
-                body = deflate(body);
+                body = compress(body, false);
                 requestHeaders.setHeader("Content-Encoding", "deflate");
             }
             requestHeaders.setHeader("Content-Length", Integer.toString(body.length));
         }
+        if (http2 != null) {
+            boolean noBody = body == null || body.length == 0;
+            Http2Stream stream = openStream(http2, requestHeaders, noBody);
+            if (!noBody) {
+                http2.writeData(stream, body, 0, body.length, true);
+            }
+            return new HttpResponse(stream, requestHeaders.getMethod());
+        }
         requestHeaders.write(outputStream);
         if (body != null) {
             outputStream.write(body);
         }
         outputStream.flush();
-        return new HttpResponse(inputStream, requestHeaders.getMethod());
+        return new HttpResponse(inputStream, requestHeaders.getMethod(), keepRawHeaders);
     }
 
     /**
      * This sends a request with a body and waits for a response. It will create a connection if necessary.
      * 
-     * This will send body using chunked transfer encoding.
+     * This will send body using chunked transfer encoding (over HTTP/2 the body is sent in DATA frames).
      * 
      * This adds "Transfer-Encoding: chunked" header to requestHeaders before sending the request.
      * 
@@ -242,14 +295,115 @@ public class HttpClientConnection implements Closeable {
     public HttpResponse send(HttpRequestHeaders requestHeaders, InputStream body, BodyCompression compression)
             throws IOException {
         ActiveRequestWithWritableBody activeRequest = startRequest(requestHeaders, compression);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int read;
-        while ((read = body.read(buffer)) != -1) {
-            activeRequest.write(buffer, 0, read);
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.borrow();
+        try {
+            int read;
+            while (!activeRequest.isRejected() && (read = body.read(buffer)) != -1) {
+                activeRequest.write(buffer, 0, read);
+            }
+        } finally {
+            pool.release(buffer);
         }
         return activeRequest.readResponse();
     }
 
+    /**
+     * This sends a request with the content of a file as the body and waits for a response. It will create a connection
+     * if necessary.
+     * 
+     * This adds "Content-Length" header based on the size of the file to requestHeaders before sending the request.
+     * If the connection is plain (not TLS) and uses a socket channel (see setSocketChannelEnabled()), the file is
+     * transferred to the socket by FileChannel.transferTo(), which avoids copying the data through the Java heap where
+     * the OS supports it (sendfile). Otherwise the file is copied through a pooled buffer.
+     * 
+     * @param requestHeaders
+     *            - request headers that will be sent to the server
+     * @param file
+     *            - file with the body of the request
+     * @return a response the server sends after receiving the request
+     * @throws IOException
+     */
+    public HttpResponse send(HttpRequestHeaders requestHeaders, Path file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            requestHeaders.removeHeader("Transfer-Encoding");
+            requestHeaders.setHeader("Content-Length", Long.toString(size));
+            ActiveRequestWithWritableBody activeRequest = startRequest(requestHeaders);
+            if (activeRequest.isRejected()) {
+                return activeRequest.readResponse();
+            }
+            SocketChannel socketChannel = http2Connection == null && outputStreamWrapperFactory == null
+                    && !(socket instanceof SSLSocket) ? socket.getChannel() : null;
+            if (socketChannel != null) {
+                outputStream.flush();
+                long position = 0;
+                while (position < size) {
+                    long transferred = fileChannel.transferTo(position, size - position, socketChannel);
+                    if (transferred <= 0 && position >= fileChannel.size()) {
+                        throw new HttpException("File " + file + " was truncated while being sent");
+                    }
+                    position += transferred;
+                }
+            } else {
+                BufferPool pool = BufferPool.getDefault();
+                byte[] buffer = pool.borrow();
+                try {
+                    long remaining = size;
+                    while (remaining > 0) {
+                        int read = fileChannel.read(ByteBuffer.wrap(buffer, 0, (int)Math.min(buffer.length, remaining)));
+                        if (read < 0) {
+                            throw new HttpException("File " + file + " was truncated while being sent");
+                        }
+                        activeRequest.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                } finally {
+                    pool.release(buffer);
+                }
+            }
+            return activeRequest.readResponse();
+        }
+    }
+
+    /**
+     * This sends requests without body one after another without waiting for responses (pipelining) and returns the
+     * responses in the same order. It will create a connection if necessary.
+     * 
+     * At most pipeline depth requests are sent ahead of the responses. The response bodies are read into memory, so
+     * the responses can be processed in any order. If the server closes the connection in the middle of the pipeline
+     * (or says it will close it), the requests which were not answered are sent again on a new connection (with the
+     * same TLS handshake). A connection established through a proxy with sendConnectRequest() is not re-established.
+     * Over HTTP/2 the requests are sent as concurrent streams.
+     * 
+     * @param requests
+     *            - request headers of idempotent requests (e.g. GET or HEAD), as they can be sent more than once
+     * @return responses in the order of requests
+     * @throws IOException
+     *             - if a connection fails before any response is received on it
+     */
+    public List<HttpResponse> sendPipelined(List<HttpRequestHeaders> requests) throws IOException {
+        for (HttpRequestHeaders request : requests) {
+            if (!isIdempotent(request.getMethod())) {
+                throw new IllegalArgumentException("Only idempotent requests can be pipelined: " + request.getMethod());
+            }
+        }
+        List<HttpResponse> responses = new ArrayList<>(requests.size());
+        while (responses.size() < requests.size()) {
+            int received = responses.size();
+            try {
+                pipeline(requests, responses);
+            } catch (IOException e) {
+                if (responses.size() == received) {
+                    throw e;
+                }
+                // the server closed the connection, the requests without responses are sent again
+                reconnect();
+            }
+        }
+        return responses;
+    }
+
 
     /**
      * This starts a request with a request body to be written and waits for a response.
@@ -288,23 +442,73 @@ public class HttpClientConnection implements Closeable {
      */
     public ActiveRequestWithWritableBody startRequest(HttpRequestHeaders requestHeaders, BodyCompression compression)
             throws IOException {
-        connectIfNecessary();
-        boolean knownLength = requestHeaders.getHeader("Content-Length") != null;
-        OutputStream bodyStream = knownLength ?
-                new NonCloseableOutputStream(outputStream) :
-                new ChunkedOutputStream(outputStream, true);
+        Http2Connection http2 = http2(requestHeaders.getMethod());
         if (compression == BodyCompression.GZIP) {
             requestHeaders.setHeader("Content-Encoding", "gzip");
-            bodyStream = new GZIPOutputStream(bodyStream);
         } else if (compression == BodyCompression.DEFLATE) {
             requestHeaders.setHeader("Content-Encoding", "deflate");
-            bodyStream = new DeflaterOutputStream(bodyStream);
         }
+        if (http2 != null) {
+            Http2Stream stream = openStream(http2, requestHeaders, false);
+            OutputStream bodyStream = new BufferedOutputStream(stream.getOutputStream(), BUFFER_SIZE);
+            return new ActiveRequestWithWritableBody(compress(bodyStream, compression), stream,
+                    requestHeaders.getMethod());
+        }
+        boolean knownLength = requestHeaders.getHeader("Content-Length") != null;
         if (!knownLength) {
             requestHeaders.setHeader("Transfer-Encoding", "chunked");
         }
+        boolean expectContinue = expectContinueTimeoutMs > 0 && !requestHeaders.getVersion().equals("HTTP/1.0");
+        if (expectContinue) {
+            requestHeaders.setHeader("Expect", "100-continue");
+        }
         requestHeaders.write(outputStream);
-        return new ActiveRequestWithWritableBody(bodyStream, inputStream, requestHeaders.getMethod());
+        OutputStream bodyStream = knownLength ?
+                new NonCloseableOutputStream(outputStream) :
+                new ChunkedOutputStream(outputStream, true);
+        if (expectContinue) {
+            outputStream.flush();
+            HttpResponse response = waitForContinue(requestHeaders.getMethod());
+            if (response != null) {
+                skipBody(bodyStream, knownLength);
+                return new ActiveRequestWithWritableBody(response);
+            }
+        }
+        return new ActiveRequestWithWritableBody(compress(bodyStream, compression), inputStream,
+                requestHeaders.getMethod(), keepRawHeaders, expectContinue);
+    }
+
+    /**
+     * This upgrades the connection to WebSocket (RFC 6455). It will create a connection if necessary.
+     * 
+     * This adds "Upgrade", "Connection", "Sec-WebSocket-Key" and "Sec-WebSocket-Version" headers to requestHeaders
+     * before sending the request. After the upgrade the connection can only be used through the returned WebSocket,
+     * closing the WebSocket closes the connection.
+     * 
+     * @param requestHeaders
+     *            - headers of GET request
+     * @return WebSocket to exchange messages with the server
+     * @throws HttpException
+     *             - if the server did not accept the upgrade or the connection uses HTTP/2
+     */
+    public WebSocket upgradeToWebSocket(HttpRequestHeaders requestHeaders) throws IOException {
+        if (http2(requestHeaders.getMethod()) != null) {
+            throw new HttpException("WebSocket upgrade is not supported over HTTP/2");
+        }
+        byte[] nonce = new byte[16];
+        new SecureRandom().nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+        requestHeaders.setHeader("Upgrade", "websocket");
+        requestHeaders.setHeader("Connection", "Upgrade");
+        requestHeaders.setHeader("Sec-WebSocket-Key", key);
+        requestHeaders.setHeader("Sec-WebSocket-Version", "13");
+        HttpResponse response = send(requestHeaders);
+        if (response.getStatusCode() != 101
+                || !WebSocket.acceptKey(key).equals(response.getHeader("Sec-WebSocket-Accept"))) {
+            throw new HttpException("Server did not accept WebSocket upgrade: " + response.getStatusCode() + " "
+                    + response.getReason());
+        }
+        return new WebSocket(inputStream, outputStream, true, this);
     }
 
     /**
@@ -315,13 +519,16 @@ public class HttpClientConnection implements Closeable {
      * 
      * @return a response the server sends after receiving the request
      * @throws IOException
+     *             - also thrown if the connection uses HTTP/2
      */
     public HttpResponse send(byte[] data) throws IOException {
         String httpMethod = HttpRequestHeaders.getMethodFromRequest(data);
-        connectIfNecessary();
+        if (http2(httpMethod) != null) {
+            throw new HttpException("Sending raw data is not supported over HTTP/2");
+        }
         outputStream.write(data);
         outputStream.flush();
-        return new HttpResponse(inputStream, httpMethod);
+        return new HttpResponse(inputStream, httpMethod, keepRawHeaders);
     }
 
     /**
@@ -453,6 +660,29 @@ public class HttpClientConnection implements Closeable {
         startHandshake(hostName, sslContext, true);
     }
 
+    /**
+     * When the host has several addresses, connection attempts are raced (Happy Eyeballs, RFC 8305): the next address
+     * is tried when the previous attempt fails or after this delay, the first established connection is used and the
+     * other attempts are cancelled. The connect timeout applies to all attempts together.
+     * 
+     * @param connectAttemptDelayMs
+     *            - delay before trying the next address in milliseconds, default - 250, 0 - try all addresses at
+     *            once
+     */
+    public void setConnectAttemptDelayMillis(int connectAttemptDelayMs) {
+        this.connectAttemptDelayMs = connectAttemptDelayMs;
+    }
+
+    /**
+     * @param hostResolver
+     *            - resolver used when a connection is created, it can be shared by many connections (e.g.
+     *            CachingHostResolver), default - HostResolver.SYSTEM. It is not used when this instance was created
+     *            with a resolved address.
+     */
+    public void setHostResolver(HostResolver hostResolver) {
+        this.hostResolver = hostResolver;
+    }
+
     public void setInputStreamWrapperFactory(InputStreamWrapperFactory inputStreamWrapperFactory) {
         this.inputStreamWrapperFactory = inputStreamWrapperFactory;
     }
@@ -462,28 +692,53 @@ public class HttpClientConnection implements Closeable {
     }
 
     private void startHandshake(String hostname, ClientSslContext sslContext, boolean checkHostname) throws IOException {
+        if (http2Connection != null) {
+            throw new HttpException("The connection already uses HTTP/2");
+        }
         clientSslContext = sslContext;
+        tlsHostname = hostname;
+        tlsHostnameChecked = checkHostname;
         connectIfNecessary();
         SSLSocketFactory socketFactory = sslContext.getSocketFactory();
         if (inputStreamWrapperFactory != null || outputStreamWrapperFactory != null) {
             socket = new SocketWrapper(socket, inputStream, outputStream);
         }
-        SSLSocket sslSocket = (SSLSocket)socketFactory.createSocket(socket, hostname, serverAddress.getPort(), true);
+        // the peer host is the key of the session cache, so sessions are resumed even when SNI is not sent
+        String peerHost = hostname != null ? hostname : serverAddress.getHostString();
+        SSLSocket sslSocket = (SSLSocket)socketFactory.createSocket(socket, peerHost, serverAddress.getPort(), true);
+        if (hostname == null) {
+            SSLParameters sslParameters = sslSocket.getSSLParameters();
+            sslParameters.setServerNames(Collections.emptyList());
+            sslSocket.setSSLParameters(sslParameters);
+        }
         if (enabledTlsProtocols != null) {
             sslSocket.setEnabledProtocols(TlsVersion.toJdkStrings(enabledTlsProtocols));
         }
         if (enabledCipherSuites != null) {
             sslSocket.setEnabledCipherSuites(enabledCipherSuites);
         }
+        if (http2Enabled) {
+            SSLParameters sslParameters = sslSocket.getSSLParameters();
+            sslParameters.setApplicationProtocols(new String[] {"h2", "http/1.1"});
+            sslSocket.setSSLParameters(sslParameters);
+        }
+        long handshakeStart = System.currentTimeMillis();
         sslSocket.startHandshake();
         this.socket = sslSocket;
         this.inputStream = sslSocket.getInputStream();
         this.outputStream = sslSocket.getOutputStream();
+        if ("h2".equals(sslSocket.getApplicationProtocol())) {
+            startHttp2();
+        }
+        protocolSelected = true;
         SSLSession session = sslSocket.getSession();
         setTlsCertificates(session.getPeerCertificates());
         negotiatedTlsProtocol = TlsVersion.fromJdkString(session.getProtocol());
         negotiatedCipher = session.getCipherSuite();
         tlsSessionId = session.getId();
+        // a resumed session keeps the creation time of the session established by the full handshake
+        tlsSessionResumed = session.getCreationTime() < handshakeStart;
+        sslContext.handshakeCompleted(tlsSessionResumed);
         if (checkHostname) {
             HostnameChecker hostnameChecker = new HostnameChecker();
             if (!hostnameChecker.check(hostname, getTlsCertificates()[0])) {
@@ -496,6 +751,11 @@ public class HttpClientConnection implements Closeable {
      * Close the connection to the server
      */
     public void close() {
+        if (http2Connection != null) {
+            http2Connection.close();
+            http2Connection = null;
+        }
+        protocolSelected = false;
         Utils.closeQuietly(inputStream);
         Utils.closeQuietly(outputStream);
         Utils.closeQuietly(socket);
@@ -503,9 +763,11 @@ public class HttpClientConnection implements Closeable {
         inputStream = null;
         outputStream = null;
         clientSslContext = null;
+        tlsHostname = null;
         negotiatedTlsProtocol = null;
         negotiatedCipher = null;
         tlsSessionId = null;
+        tlsSessionResumed = false;
     }
 
     /**
@@ -550,6 +812,22 @@ public class HttpClientConnection implements Closeable {
         return tlsSessionId;
     }
 
+    /**
+     * @return true if the TLS session was resumed (an abbreviated handshake was done), false if it was a full handshake
+     *         or not a TLS connection
+     */
+    public boolean isTlsSessionResumed() {
+        return tlsSessionResumed;
+    }
+
+    /**
+     * @return TLS context used by the connection (it keeps TLS sessions and handshake counters) or null if TLS
+     *         handshake did not happen
+     */
+    public ClientSslContext getClientSslContext() {
+        return clientSslContext;
+    }
+
     /**
      * @param enabledTlsProtocols
      *            - list of allowed TLS protocols
@@ -601,7 +879,7 @@ public class HttpClientConnection implements Closeable {
      */
     public void setTimeoutMillis(int timeoutMs) throws SocketException {
         this.timeoutMs = timeoutMs;
-        if (socket != null) {
+        if (socket != null && http2Connection == null) {
             socket.setSoTimeout(timeoutMs);
         }
     }
@@ -618,6 +896,58 @@ public class HttpClientConnection implements Closeable {
         this.connectTimeoutMs = connectTimeoutMs;
     }
 
+    /**
+     * Send "Expect: 100-continue" with requests started by startRequest() or sent with send(requestHeaders,
+     * InputStream)
+     * 
+     * The body is sent after the server responds with "100 Continue" or after the timeout if the server does not
+     * respond. If the server responds with a final status, the body is not sent: the response is returned by
+     * ActiveRequestWithWritableBody.readResponse() and the data written is discarded. After such a rejection the
+     * connection can be reused only if the body was sent with chunked transfer encoding, if "Content-Length" was set
+     * the connection is half-closed. This is not used over HTTP/2 and for HTTP/1.0 requests.
+     * 
+     * @param expectContinueTimeoutMs
+     *            - how long to wait for "100 Continue" in milliseconds, 0 (default) - do not send the expectation
+     */
+    public void setExpectContinueTimeoutMillis(int expectContinueTimeoutMs) {
+        this.expectContinueTimeoutMs = expectContinueTimeoutMs;
+    }
+
+    /**
+     * @param pipelineDepth
+     *            - maximum number of requests sent by sendPipelined() ahead of the responses, default - 16
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth <= 0) {
+            throw new IllegalArgumentException("Pipeline depth must be positive");
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * @param deflaterPool
+     *            - pool of Deflaters (it also defines compression level) used to compress request bodies, by default
+     *            the pool shared by all connections
+     */
+    public void setDeflaterPool(DeflaterPool deflaterPool) {
+        this.deflaterPool = deflaterPool;
+    }
+
+    /**
+     * If this is set, plain connections are made with a SocketChannel, so send() with a file transfers it with
+     * FileChannel.transferTo() without copying the data through the Java heap. With Java 8 a socket made with a channel
+     * cannot be read and written at the same time by different threads, so this is not used for HTTP/2 and should not
+     * be used for WebSocket connections.
+     * 
+     * This affects the next connection (established after this is called).
+     * 
+     * @param socketChannelEnabled
+     *            - true if connections should be made with a SocketChannel, false (default) otherwise
+     */
+    public void setSocketChannelEnabled(boolean socketChannelEnabled) {
+        this.socketChannelEnabled = socketChannelEnabled;
+    }
+
     /**
      * Switch TCP_NODELAY
      * 
@@ -634,6 +964,43 @@ public class HttpClientConnection implements Closeable {
         }
     }
 
+    /**
+     * Keep original bytes of response headers
+     * 
+     * When this is on, response headers are written exactly as they were received (with the original order and case
+     * of header names), only headers changed after receiving the response are written anew. This is useful when
+     * responses are forwarded to a different connection (e.g. in a proxy).
+     * 
+     * @param keepRawHeaders
+     *            - true to keep original bytes, default - false
+     */
+    public void setKeepRawHeaders(boolean keepRawHeaders) {
+        this.keepRawHeaders = keepRawHeaders;
+    }
+
+    /**
+     * Use HTTP/2 if the server supports it
+     * 
+     * On TLS connections HTTP/2 is offered during the handshake (ALPN) and used only if the server selects it,
+     * otherwise HTTP/1.1 is used. On plain connections HTTP/2 is used with prior knowledge, i.e. the server must support
+     * it. This must be set before the first request is sent on a connection. Requests sent over HTTP/2 are multiplexed,
+     * so the same instance can be used by many threads at the same time. Every response body must be read to the end,
+     * streams with unread responses count towards the server's limit of concurrent streams.
+     * 
+     * @param http2Enabled
+     *            - true to use HTTP/2, default - false
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    /**
+     * @return true if the connection uses HTTP/2
+     */
+    public boolean isHttp2() {
+        return http2Connection != null;
+    }
+
     /**
      * Clear SslContext. This will clear all cached SSL sessions with standard SSL context.
      */
@@ -649,29 +1016,293 @@ public class HttpClientConnection implements Closeable {
         }
     }
 
+    /**
+     * This chooses the protocol when the first request (other than CONNECT) is sent on a connection
+     * 
+     * @return HTTP/2 connection or null if HTTP/1 is used
+     */
+    private synchronized Http2Connection http2(String httpMethod) throws IOException {
+        boolean connect = "CONNECT".equals(httpMethod);
+        if (http2Connection != null) {
+            if (connect) {
+                throw new HttpException("CONNECT is not supported over HTTP/2");
+            }
+            return http2Connection;
+        }
+        connectIfNecessary();
+        if (!protocolSelected && !connect) {
+            if (http2Enabled && !(socket instanceof SSLSocket)) {
+                startHttp2();
+            }
+            protocolSelected = true;
+        }
+        return http2Connection;
+    }
+
+    private void startHttp2() throws IOException {
+        // the reader thread waits for frames indefinitely, the timeout is applied to the streams
+        socket.setSoTimeout(0);
+        if (socket instanceof SSLSocket) {
+            inputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+            outputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+        }
+        Http2Connection connection = new Http2Connection(inputStream, outputStream, true, socket);
+        connection.start();
+        Thread reader = new Thread(() -> connection.serve(stream -> {
+        }), "HTTP/2 reader " + serverAddress.getHostString() + ":" + serverAddress.getPort());
+        reader.setDaemon(true);
+        reader.start();
+        http2Connection = connection;
+    }
+
+    private Http2Stream openStream(Http2Connection http2, HttpRequestHeaders requestHeaders, boolean endStream)
+            throws IOException {
+        String path = requestHeaders.getPath();
+        String authority = requestHeaders.getHeader("Host");
+        if (!path.startsWith("/") && !path.equals("*")) {
+            // absolute form
+            URL url = requestHeaders.getUrl();
+            path = url.getFile().isEmpty() ? "/" : url.getFile();
+            if (authority == null) {
+                authority = url.getAuthority();
+            }
+        }
+        if (authority == null) {
+            authority = serverAddress.getHostString() + ":" + serverAddress.getPort();
+        }
+        List<String> headers = new ArrayList<>();
+        headers.add(":method");
+        headers.add(requestHeaders.getMethod());
+        headers.add(":scheme");
+        headers.add(socket instanceof SSLSocket ? "https" : "http");
+        headers.add(":path");
+        headers.add(path);
+        headers.add(":authority");
+        headers.add(authority);
+        for (String name : requestHeaders.listHeaderNames()) {
+            String lowerCaseName = name.toLowerCase(Locale.ROOT);
+            if (!lowerCaseName.equals("host") && !Http2Connection.isConnectionHeader(lowerCaseName)) {
+                for (String value : requestHeaders.getHeaders(name)) {
+                    headers.add(lowerCaseName);
+                    headers.add(value);
+                }
+            }
+        }
+        Http2Stream stream = http2.openStream(headers, endStream);
+        stream.setTimeout(timeoutMs);
+        return stream;
+    }
+
     private Socket connectSocket(int connectTimeoutMs) throws IOException {
-        Socket newSocket = new Socket();
+        InetSocketAddress address = serverAddress;
+        if (address.isUnresolved()) {
+            HostResolver resolver = hostResolver != null ? hostResolver : HostResolver.SYSTEM;
+            InetAddress[] addresses = resolver.resolve(address.getHostString());
+            if (addresses.length > 1) {
+                return HappyEyeballsConnector.connect(addresses, address.getPort(), connectTimeoutMs,
+                        connectAttemptDelayMs, this::createSocket);
+            }
+            address = new InetSocketAddress(addresses[0], address.getPort());
+        }
+        Socket newSocket = createSocket();
+        newSocket.connect(address, connectTimeoutMs);
+        return newSocket;
+    }
+
+    private Socket createSocket() throws IOException {
+        Socket newSocket = socketChannelEnabled && !http2Enabled ? SocketChannel.open().socket() : new Socket();
         newSocket.setReuseAddress(true);
         newSocket.setSoLinger(false, 1);
         newSocket.setSoTimeout(timeoutMs);
         newSocket.setTcpNoDelay(tcpNoDelay);
-        newSocket.connect(serverAddress, connectTimeoutMs);
         return newSocket;
     }
 
-    private byte[] gzip(byte[] data) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        GZIPOutputStream gzipOutput = new GZIPOutputStream(output);
-        gzipOutput.write(data);
-        gzipOutput.close();
-        return output.toByteArray();
+    /**
+     * This waits for "100 Continue" after sending headers with "Expect: 100-continue"
+     * 
+     * @return final response if the server rejected the request, null if the body should be sent
+     */
+    private HttpResponse waitForContinue(String httpMethod) throws IOException {
+        makeInputStreamMarkable();
+        while (true) {
+            socket.setSoTimeout(expectContinueTimeoutMs);
+            try {
+                inputStream.mark(1);
+                if (inputStream.read() < 0) {
+                    throw new HttpException("Connection is closed while waiting for 100 Continue");
+                }
+                inputStream.reset();
+            } catch (SocketTimeoutException e) {
+                // the server does not support expectations, the body is sent anyway
+                return null;
+            } finally {
+                socket.setSoTimeout(timeoutMs);
+            }
+            HttpResponse response = new HttpResponse(inputStream, httpMethod, keepRawHeaders);
+            if (response.getStatusCode() == 100) {
+                return null;
+            } else if (response.getStatusCode() >= 200) {
+                return response;
+            }
+            // other interim responses are ignored
+        }
+    }
+
+    private void makeInputStreamMarkable() {
+        if (!inputStream.markSupported()) {
+            // nothing is buffered between requests, so the stream can be wrapped
+            inputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * @return true if the connection to the server is established (it still might be closed by the server)
+     */
+    boolean isConnected() {
+        Socket socket = this.socket;
+        return socket != null && !socket.isClosed();
     }
 
-    private byte[] deflate(byte[] data) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        DeflaterOutputStream gzipOutput = new DeflaterOutputStream(output);
-        gzipOutput.write(data);
-        gzipOutput.close();
+    /**
+     * This can be called from another thread to abort a request in progress: it closes the socket, so the thread
+     * sending the request or reading the response gets an exception. The connection still must be closed.
+     */
+    void abort() {
+        Utils.closeQuietly(socket);
+    }
+
+    /**
+     * This checks if an idle connection was closed by the server, it waits for data for 1 millisecond
+     * 
+     * @return true if the connection cannot be used for a next request
+     */
+    boolean isStale() {
+        if (socket == null || socket.isClosed()) {
+            return true;
+        }
+        Http2Connection connection = http2Connection;
+        if (connection != null) {
+            return connection.isClosed();
+        }
+        try {
+            socket.setSoTimeout(1);
+            // EOF or unexpected data - either way the connection cannot be used
+            inputStream.read();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        } finally {
+            try {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(timeoutMs);
+                }
+            } catch (SocketException e) {
+                // the connection is closed
+            }
+        }
+    }
+
+    /**
+     * This sends requests starting from the first one without a response until all responses are received or the
+     * server closes the connection
+     */
+    private void pipeline(List<HttpRequestHeaders> requests, List<HttpResponse> responses) throws IOException {
+        Http2Connection http2 = http2(requests.get(responses.size()).getMethod());
+        Deque<Http2Stream> streams = new ArrayDeque<>();
+        int sent = responses.size();
+        while (responses.size() < requests.size()) {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (; sent < requests.size() && sent - responses.size() < pipelineDepth; sent++) {
+                if (http2 != null) {
+                    streams.add(openStream(http2, requests.get(sent), true));
+                } else {
+                    requests.get(sent).write(batch);
+                }
+            }
+            String httpMethod = requests.get(responses.size()).getMethod();
+            if (http2 != null) {
+                responses.add(new HttpResponse(streams.remove(), httpMethod).buffered());
+                continue;
+            }
+            if (batch.size() > 0) {
+                // requests are written together, so they go in as few packets (and TLS records) as possible
+                batch.writeTo(outputStream);
+                outputStream.flush();
+            }
+            HttpResponse response = new HttpResponse(inputStream, httpMethod, keepRawHeaders).buffered();
+            responses.add(response);
+            if (responses.size() < requests.size() && isLastResponse(response)) {
+                reconnect();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the server closes the connection after this response
+     */
+    private static boolean isLastResponse(HttpResponse response) {
+        String connection = response.getHeader("Connection");
+        if (response.getVersion().equals("HTTP/1.0")) {
+            return !"keep-alive".equalsIgnoreCase(connection);
+        }
+        return "close".equalsIgnoreCase(connection)
+                || (response.hasBody() && response.getContentLength() < 0 && !response.isContentChunked());
+    }
+
+    static boolean isIdempotent(String httpMethod) {
+        return httpMethod.equals("GET") || httpMethod.equals("HEAD") || httpMethod.equals("OPTIONS")
+                || httpMethod.equals("TRACE") || httpMethod.equals("PUT") || httpMethod.equals("DELETE");
+    }
+
+    /**
+     * This closes the connection and connects again doing the same TLS handshake if it was done
+     */
+    private void reconnect() throws IOException {
+        ClientSslContext sslContext = clientSslContext;
+        String hostname = tlsHostname;
+        boolean checkHostname = tlsHostnameChecked;
+        close();
+        if (sslContext != null) {
+            startHandshake(hostname, sslContext, checkHostname);
+        }
+    }
+
+    /**
+     * This finishes a request which is rejected before its body is sent
+     */
+    private void skipBody(OutputStream bodyStream, boolean knownLength) throws IOException {
+        if (knownLength) {
+            // the server might wait for the body, so the connection cannot be used for other requests
+            try {
+                socket.shutdownOutput();
+            } catch (UnsupportedOperationException e) {
+                // the connection can be closed only
+            }
+        } else {
+            // empty body is sent as the last chunk, after which the connection can be reused
+            bodyStream.close();
+        }
+    }
+
+    private OutputStream compress(OutputStream bodyStream, BodyCompression compression) throws IOException {
+        if (compression == BodyCompression.GZIP) {
+            return new PooledDeflaterOutputStream(bodyStream, deflaterPool, true);
+        } else if (compression == BodyCompression.DEFLATE) {
+            return new PooledDeflaterOutputStream(bodyStream, deflaterPool, false);
+        } else {
+            return bodyStream;
+        }
+    }
+
+    private byte[] compress(byte[] data, boolean gzip) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 32);
+        try (OutputStream compressingOutput = new PooledDeflaterOutputStream(output, deflaterPool, gzip)) {
+            compressingOutput.write(data);
+        }
         return output.toByteArray();
     }
 
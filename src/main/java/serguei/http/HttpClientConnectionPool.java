@@ -0,0 +1,546 @@
+package serguei.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A thread-safe pool of keep-alive client connections
+ *
+ * Connections are kept per route: scheme (plain or TLS), host, port and TLS context. A connection is leased, used for
+ * one or more requests and then released back to the pool, the next lease for the same route reuses it instead of
+ * connecting (and doing TLS handshake) again. Before the response is released, its body must be read to the end,
+ * otherwise the connection must be discarded.
+ *
+ * The number of connections is limited per route and in total, when the limit is reached lease() waits until a
+ * connection is released. Idle connections are closed after the idle timeout, connections which were idle for a while
+ * are checked before reuse, so a connection closed by the server is replaced with a new one.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class HttpClientConnectionPool implements Closeable {
+
+    private final int maxPerRoute;
+    private final int maxTotal;
+    private final Map<Route, RoutePool> routes = new HashMap<>();
+    private final Map<HttpClientConnection, Entry> leased = new IdentityHashMap<>();
+    private int total;
+    private boolean closed;
+    private int timeoutMs;
+    private int connectTimeoutMs;
+    private int leaseTimeoutMs;
+    private long idleTimeoutMs = 60000;
+    private long validateAfterInactivityMs = 2000;
+    private HostResolver hostResolver;
+
+    // guarded by this
+    private long leaseCount;
+    private long waitingLeaseCount;
+    private long totalLeaseWaitMs;
+    private long maxLeaseWaitMs;
+    private long leaseTimeoutCount;
+    private long connectionsCreated;
+    private long connectionsReused;
+    private long staleConnectionsClosed;
+
+    /**
+     * @param maxPerRoute
+     *            - maximum number of connections (leased and idle) to the same route
+     * @param maxTotal
+     *            - maximum number of connections in the pool
+     */
+    public HttpClientConnectionPool(int maxPerRoute, int maxTotal) {
+        if (maxPerRoute <= 0 || maxTotal <= 0) {
+            throw new IllegalArgumentException("Pool limits must be positive");
+        }
+        this.maxPerRoute = maxPerRoute;
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * This leases a plain (not TLS) connection
+     *
+     * @param host
+     *            - host name or IP address
+     * @param port
+     *            - port
+     * @return connection which must be returned with release() or discard()
+     * @throws HttpException
+     *             - if no connection became available within the lease timeout
+     * @throws IOException
+     *             - if a new connection cannot be established
+     */
+    public HttpClientConnection lease(String host, int port) throws IOException {
+        return lease(new Route(host, port, false, null));
+    }
+
+    /**
+     * This leases a TLS connection, certificates received from the server are not validated (as in
+     * HttpClientConnection.startHandshake())
+     *
+     * @param host
+     *            - host name, it is sent as SNI
+     * @param port
+     *            - port
+     * @return connection which must be returned with release() or discard()
+     * @throws HttpException
+     *             - if no connection became available within the lease timeout
+     * @throws IOException
+     *             - if a new connection cannot be established
+     */
+    public HttpClientConnection leaseTls(String host, int port) throws IOException {
+        return lease(new Route(host, port, true, null));
+    }
+
+    /**
+     * This leases a TLS connection, the server is validated as per provided context (as in
+     * HttpClientConnection.startHandshake(hostname, clientSslContext)). Connections with different contexts are never
+     * shared.
+     *
+     * @param host
+     *            - host name, it is sent as SNI and checked against the server certificate
+     * @param port
+     *            - port
+     * @param sslContext
+     *            - context for TLS handshake
+     * @return connection which must be returned with release() or discard()
+     * @throws HttpException
+     *             - if no connection became available within the lease timeout
+     * @throws IOException
+     *             - if a new connection cannot be established
+     */
+    public HttpClientConnection leaseTls(String host, int port, ClientSslContext sslContext) throws IOException {
+        return lease(new Route(host, port, true, sslContext));
+    }
+
+    /**
+     * This returns a connection to the pool, so it can be reused. The response body must be read to the end before
+     * this. If the connection was closed, it is removed from the pool.
+     */
+    public void release(HttpClientConnection connection) {
+        boolean close;
+        synchronized (this) {
+            Entry entry = leased.remove(connection);
+            if (entry == null) {
+                throw new IllegalStateException("The connection is not leased from this pool");
+            }
+            close = closed || !connection.isConnected();
+            if (close) {
+                remove(entry);
+            } else {
+                entry.lastUsed = System.currentTimeMillis();
+                routes.get(entry.route).idle.addFirst(entry);
+            }
+            notifyAll();
+        }
+        if (close) {
+            connection.close();
+        }
+    }
+
+    /**
+     * This closes a leased connection and removes it from the pool, this should be used when the connection is in
+     * unknown state (e.g. after an IOException or if the response body was not read)
+     */
+    public void discard(HttpClientConnection connection) {
+        synchronized (this) {
+            Entry entry = leased.remove(connection);
+            if (entry == null) {
+                throw new IllegalStateException("The connection is not leased from this pool");
+            }
+            remove(entry);
+            notifyAll();
+        }
+        connection.close();
+    }
+
+    /**
+     * This closes connections which were idle longer than the idle timeout
+     */
+    public void closeIdleConnections() {
+        closeAll(removeExpired(System.currentTimeMillis()));
+    }
+
+    /**
+     * This closes idle connections, connections which are leased now are closed when they are released
+     */
+    @Override
+    public void close() {
+        List<HttpClientConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (RoutePool routePool : routes.values()) {
+                for (Entry entry : routePool.idle) {
+                    toClose.add(entry.connection);
+                    routePool.count--;
+                    total--;
+                }
+                routePool.idle.clear();
+            }
+            notifyAll();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @param timeoutMs
+     *            - socket timeout of new connections in milliseconds
+     */
+    public synchronized void setTimeoutMillis(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @param connectTimeoutMs
+     *            - connect timeout of new connections in milliseconds
+     */
+    public synchronized void setConnectTimeoutMillis(int connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * @param leaseTimeoutMs
+     *            - how long lease() waits for a connection when the limits are reached, 0 (default) - wait
+     *            indefinitely
+     */
+    public synchronized void setLeaseTimeoutMillis(int leaseTimeoutMs) {
+        this.leaseTimeoutMs = leaseTimeoutMs;
+    }
+
+    /**
+     * @param idleTimeoutMs
+     *            - idle connections are closed after this time, default - 60 seconds
+     */
+    public synchronized void setIdleTimeoutMillis(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * @param validateAfterInactivityMs
+     *            - connections idle for longer than this are checked (if they were closed by the server) before they
+     *            are leased, default - 2 seconds, 0 - check always
+     */
+    public synchronized void setValidateAfterInactivityMillis(long validateAfterInactivityMs) {
+        this.validateAfterInactivityMs = validateAfterInactivityMs;
+    }
+
+    /**
+     * @param hostResolver
+     *            - resolver used by new connections, default - HostResolver.SYSTEM
+     */
+    public synchronized void setHostResolver(HostResolver hostResolver) {
+        this.hostResolver = hostResolver;
+    }
+
+    /**
+     * @return number of connections leased now
+     */
+    public synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    /**
+     * @return number of idle connections in the pool
+     */
+    public synchronized int getIdleCount() {
+        return total - leased.size();
+    }
+
+    /**
+     * @return number of successful leases
+     */
+    public synchronized long getLeaseCount() {
+        return leaseCount;
+    }
+
+    /**
+     * @return number of leases which had to wait because the limits were reached
+     */
+    public synchronized long getWaitingLeaseCount() {
+        return waitingLeaseCount;
+    }
+
+    /**
+     * @return total time spent by all leases (including timed out ones) waiting for a connection in milliseconds
+     */
+    public synchronized long getTotalLeaseWaitMillis() {
+        return totalLeaseWaitMs;
+    }
+
+    /**
+     * @return the longest time a lease (including timed out ones) waited for a connection in milliseconds
+     */
+    public synchronized long getMaxLeaseWaitMillis() {
+        return maxLeaseWaitMs;
+    }
+
+    /**
+     * @return number of leases which failed because no connection became available within the lease timeout
+     */
+    public synchronized long getLeaseTimeoutCount() {
+        return leaseTimeoutCount;
+    }
+
+    /**
+     * @return number of connections created by the pool
+     */
+    public synchronized long getConnectionsCreated() {
+        return connectionsCreated;
+    }
+
+    /**
+     * @return number of leases which reused an idle connection
+     */
+    public synchronized long getConnectionsReused() {
+        return connectionsReused;
+    }
+
+    /**
+     * @return number of idle connections which were found closed by the server when they were about to be reused
+     */
+    public synchronized long getStaleConnectionsClosed() {
+        return staleConnectionsClosed;
+    }
+
+    private HttpClientConnection lease(Route route) throws IOException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            Entry entry = acquire(route, start);
+            if (entry.connection != null) {
+                boolean validate = System.currentTimeMillis() - entry.lastUsed >= validateAfterInactivityMs;
+                if (!validate || !entry.connection.isStale()) {
+                    return entry.connection;
+                }
+                synchronized (this) {
+                    staleConnectionsClosed++;
+                    connectionsReused--;
+                    leaseCount--;
+                    leased.remove(entry.connection);
+                    remove(entry);
+                    notifyAll();
+                }
+                entry.connection.close();
+            } else {
+                return connect(entry);
+            }
+        }
+    }
+
+    /**
+     * @return leased idle entry or a new entry without a connection, for which a slot is reserved
+     */
+    private Entry acquire(Route route, long start) throws IOException {
+        List<HttpClientConnection> toClose = new ArrayList<>();
+        try {
+            synchronized (this) {
+                boolean waited = false;
+                while (true) {
+                    if (closed) {
+                        throw new HttpException("Connection pool is closed");
+                    }
+                    long now = System.currentTimeMillis();
+                    toClose.addAll(removeExpired(now));
+                    RoutePool routePool = routes.get(route);
+                    if (routePool == null) {
+                        routePool = new RoutePool();
+                        routes.put(route, routePool);
+                    }
+                    Entry entry = routePool.idle.pollFirst();
+                    if (entry != null) {
+                        connectionsReused++;
+                        leased(entry, start, waited);
+                        return entry;
+                    }
+                    if (routePool.count < maxPerRoute) {
+                        if (total >= maxTotal) {
+                            Entry oldest = removeOldestIdle();
+                            if (oldest != null) {
+                                toClose.add(oldest.connection);
+                            }
+                        }
+                        if (total < maxTotal) {
+                            routePool.count++;
+                            total++;
+                            entry = new Entry(route);
+                            leased(entry, start, waited);
+                            return entry;
+                        }
+                    }
+                    long remaining = leaseTimeoutMs > 0 ? start + leaseTimeoutMs - now : 0;
+                    if (leaseTimeoutMs > 0 && remaining <= 0) {
+                        leaseTimeoutCount++;
+                        recordWait(now - start);
+                        throw new HttpException("Timeout waiting for a connection to " + route);
+                    }
+                    waited = true;
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new HttpException("Interrupted while waiting for a connection to " + route);
+                    }
+                }
+            }
+        } finally {
+            closeAll(toClose);
+        }
+    }
+
+    private void leased(Entry entry, long start, boolean waited) {
+        leaseCount++;
+        if (waited) {
+            waitingLeaseCount++;
+        }
+        recordWait(System.currentTimeMillis() - start);
+        if (entry.connection != null) {
+            leased.put(entry.connection, entry);
+        }
+    }
+
+    private void recordWait(long waitMs) {
+        totalLeaseWaitMs += waitMs;
+        maxLeaseWaitMs = Math.max(maxLeaseWaitMs, waitMs);
+    }
+
+    private HttpClientConnection connect(Entry entry) throws IOException {
+        Route route = entry.route;
+        HttpClientConnection connection = new HttpClientConnection(route.host, route.port);
+        try {
+            synchronized (this) {
+                connection.setTimeoutMillis(timeoutMs);
+                connection.setConnectTimeoutMillis(connectTimeoutMs);
+                connection.setHostResolver(hostResolver);
+            }
+            connection.connect();
+            if (route.sslContext != null) {
+                connection.startHandshake(route.host, route.sslContext);
+            } else if (route.tls) {
+                connection.startHandshake(route.host);
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            synchronized (this) {
+                remove(entry);
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            entry.connection = connection;
+            leased.put(connection, entry);
+            connectionsCreated++;
+        }
+        return connection;
+    }
+
+    private List<HttpClientConnection> removeExpired(long now) {
+        List<HttpClientConnection> expired = new ArrayList<>();
+        synchronized (this) {
+            for (RoutePool routePool : routes.values()) {
+                for (Iterator<Entry> iterator = routePool.idle.iterator(); iterator.hasNext();) {
+                    Entry entry = iterator.next();
+                    if (now - entry.lastUsed >= idleTimeoutMs) {
+                        iterator.remove();
+                        routePool.count--;
+                        total--;
+                        expired.add(entry.connection);
+                    }
+                }
+            }
+            if (!expired.isEmpty()) {
+                notifyAll();
+            }
+        }
+        return expired;
+    }
+
+    private Entry removeOldestIdle() {
+        RoutePool oldestPool = null;
+        for (RoutePool routePool : routes.values()) {
+            Entry last = routePool.idle.peekLast();
+            if (last != null && (oldestPool == null || last.lastUsed < oldestPool.idle.peekLast().lastUsed)) {
+                oldestPool = routePool;
+            }
+        }
+        if (oldestPool == null) {
+            return null;
+        }
+        Entry oldest = oldestPool.idle.pollLast();
+        oldestPool.count--;
+        total--;
+        return oldest;
+    }
+
+    private void remove(Entry entry) {
+        routes.get(entry.route).count--;
+        total--;
+    }
+
+    private static void closeAll(List<HttpClientConnection> connections) {
+        for (HttpClientConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private static class RoutePool {
+
+        // the most recently used connections first
+        private final Deque<Entry> idle = new ArrayDeque<>();
+        private int count;
+    }
+
+    private static class Entry {
+
+        private final Route route;
+        private HttpClientConnection connection;
+        private long lastUsed;
+
+        private Entry(Route route) {
+            this.route = route;
+        }
+    }
+
+    private static final class Route {
+
+        private final String host;
+        private final int port;
+        private final boolean tls;
+        private final ClientSslContext sslContext;
+
+        private Route(String host, int port, boolean tls, ClientSslContext sslContext) {
+            this.host = host;
+            this.port = port;
+            this.tls = tls;
+            this.sslContext = sslContext;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Route)) {
+                return false;
+            }
+            Route other = (Route)obj;
+            return host.equals(other.host) && port == other.port && tls == other.tls
+                    && sslContext == other.sslContext;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, port, tls, System.identityHashCode(sslContext));
+        }
+
+        @Override
+        public String toString() {
+            return (tls ? "https://" : "http://") + host + ":" + port;
+        }
+    }
+}
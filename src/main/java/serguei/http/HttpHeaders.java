@@ -2,12 +2,15 @@ package serguei.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 /**
  * HTTP headers
@@ -22,18 +25,46 @@ abstract class HttpHeaders {
     protected static final byte[] SPACE = " ".getBytes();
     private static final String KEY_VALUE_SEPARATOR = ": ";
     private static final byte[] KEY_VALUE_SEPARATOR_BYTES = KEY_VALUE_SEPARATOR.getBytes();
-    private static final int MAX_HEADER_NUMBER = 1000;
+    static final int MAX_HEADER_NUMBER = 1000;
     private static final int UPPER_LOW_DIFF = 'a' - 'A';
     private static final BodyEncoding NO_BODY_ENCODING = new BodyEncoding(false, null);
 
-    private final Map<String, HeaderValues> headers = new LinkedHashMap<>();
+    private Map<String, HeaderValues> headers;
+    // true when the map is shared with another instance, it is copied before the first modification
+    private boolean shared;
+    // body framing, derived from Content-Length, Content-Encoding and Transfer-Encoding headers on first use
+    private boolean framingKnown;
+    private long contentLength;
+    private boolean chunked;
+    private List<String> encodings;
+    private BodyEncoding bodyEncoding;
+    // original bytes of the message head (start line, headers and the empty line) when kept for passthrough
+    private byte[] rawHeaders;
+    private int rawStartLineOffset;
+    private int rawHeadersOffset;
+    // names of headers modified after the raw bytes were kept
+    private Set<String> changedHeaders;
 
     protected HttpHeaders() {
-
+        headers = new LinkedHashMap<>();
     }
 
+    /**
+     * This creates a copy sharing header values with the original until either of them is modified
+     */
     protected HttpHeaders(HttpHeaders headers) {
-        this.headers.putAll(headers.headers);
+        this.headers = headers.headers;
+        this.shared = true;
+        headers.shared = true;
+        this.framingKnown = headers.framingKnown;
+        this.contentLength = headers.contentLength;
+        this.chunked = headers.chunked;
+        this.encodings = headers.encodings;
+        this.bodyEncoding = headers.bodyEncoding;
+        this.rawHeaders = headers.rawHeaders;
+        this.rawStartLineOffset = headers.rawStartLineOffset;
+        this.rawHeadersOffset = headers.rawHeadersOffset;
+        this.changedHeaders = headers.changedHeaders != null ? new LinkedHashSet<>(headers.changedHeaders) : null;
     }
 
     /**
@@ -49,6 +80,9 @@ abstract class HttpHeaders {
             }
             addHeader(line);
         }
+        if (reader.isKeepingRawBytes()) {
+            setRawHeaders(reader.getRawBytes());
+        }
     }
 
     /**
@@ -64,6 +98,8 @@ abstract class HttpHeaders {
 
     /**
      * This returns headers by name, if there are more then one header with this name, all of them will be returned
+     * 
+     * The returned list cannot be modified
      */
     public List<String> getHeaders(String headerName) {
         headerName = normalize(headerName);
@@ -75,26 +111,16 @@ abstract class HttpHeaders {
      * @return content length or -1 if content length is not defined
      */
     public long getContentLength() {
-        String contentLengthString = getHeader("Content-Length");
-        if (contentLengthString != null) {
-            try {
-                return Long.parseLong(contentLengthString.trim());
-            } catch (NumberFormatException e) {
-                // nothing
-            }
-        }
-        return -1;
+        ensureFraming();
+        return contentLength;
     }
 
     /**
      * @return true if the body is chunked or false if not
      */
     public boolean hasChunkedBody() {
-        if (getContentLength() >= 0) {
-            return false;
-        }
-        BodyEncoding bodyEncoding = getBodyEncoding();
-        return bodyEncoding.isChunked;
+        ensureFraming();
+        return contentLength < 0 && chunked;
     }
 
     /**
@@ -113,7 +139,9 @@ abstract class HttpHeaders {
      * Sets header If headers with this name already exists, replaces it
      */
     public void setHeader(String headerName, String value) {
-        headers.put(normalize(headerName), new HeaderValues(headerName, value));
+        String normalizedHeaderName = normalize(headerName);
+        writableHeaders().put(normalizedHeaderName, new HeaderValues(headerName, value));
+        headerChanged(normalizedHeaderName);
     }
 
     /**
@@ -121,19 +149,47 @@ abstract class HttpHeaders {
      */
     public void addHeader(String headerName, String headerValue) {
         String normalizedHeaderName = normalize(headerName);
+        Map<String, HeaderValues> headers = writableHeaders();
         HeaderValues values = headers.get(normalizedHeaderName);
         if (values == null) {
             headers.put(normalizedHeaderName, new HeaderValues(headerName, headerValue));
         } else {
             headers.put(normalizedHeaderName, values.addValue(headerValue));
         }
+        headerChanged(normalizedHeaderName);
+    }
+
+    /**
+     * Adds all values of a header at once, it is used instead of calling addHeader() for each value, as every call
+     * copies the list of values which already exist
+     */
+    void addHeaderValues(String headerName, List<String> headerValues) {
+        if (headerValues.size() == 1) {
+            addHeader(headerName, headerValues.get(0));
+            return;
+        }
+        String normalizedHeaderName = normalize(headerName);
+        Map<String, HeaderValues> headers = writableHeaders();
+        HeaderValues values = headers.get(normalizedHeaderName);
+        List<String> newValues = new ArrayList<>(headerValues.size() + 1);
+        if (values != null) {
+            newValues.addAll(values.getValues());
+        }
+        newValues.addAll(headerValues);
+        headers.put(normalizedHeaderName, new HeaderValues(values != null ? values.getName() : headerName,
+                Collections.unmodifiableList(newValues)));
+        headerChanged(normalizedHeaderName);
     }
 
     /**
      * Removes header with a specified name
      */
     public void removeHeader(String headerName) {
-        headers.remove(normalize(headerName));
+        String normalizedHeaderName = normalize(headerName);
+        if (headers.containsKey(normalizedHeaderName)) {
+            writableHeaders().remove(normalizedHeaderName);
+        }
+        headerChanged(normalizedHeaderName);
     }
 
     /**
@@ -147,14 +203,19 @@ abstract class HttpHeaders {
      * Write headers into the stream
      */
     protected void write(OutputStream output) throws IOException {
+        if (rawHeaders != null) {
+            writeRaw(output, false);
+            return;
+        }
         for (Entry<String, HeaderValues> headerEntry : headers.entrySet()) {
-            if (headerEntry.getValue().getValue() != null) {
-                for (String header : headerEntry.getValue().getValues()) {
-                    output.write(headerEntry.getValue().getName().getBytes());
-                    output.write(KEY_VALUE_SEPARATOR_BYTES);
-                    output.write(header.getBytes());
-                    output.write(LINE_SEPARATOR_BYTES);
+            HeaderValues values = headerEntry.getValue();
+            if (values.values != null) {
+                byte[] name = values.getName().getBytes();
+                for (String header : values.values) {
+                    writeHeader(output, name, header);
                 }
+            } else if (values.value != null) {
+                writeHeader(output, values.getName().getBytes(), values.value);
             } else {
                 output.write(headerEntry.getKey().getBytes());
                 output.write(KEY_VALUE_SEPARATOR_BYTES);
@@ -165,6 +226,131 @@ abstract class HttpHeaders {
         output.flush();
     }
 
+    /**
+     * @return true if headers were read keeping their original bytes which will be used when writing them
+     */
+    public boolean hasRawHeaders() {
+        return rawHeaders != null;
+    }
+
+    /**
+     * This stops using the original bytes of the headers, after this headers are written the same way as headers
+     * created by the user
+     */
+    public void discardRawHeaders() {
+        rawHeaders = null;
+        changedHeaders = null;
+    }
+
+    /**
+     * Writes the original bytes of the headers. Headers which were changed since then are not written where they
+     * were originally but after all unchanged headers.
+     * 
+     * This must only be called when hasRawHeaders() returns true
+     * 
+     * @param includeStartLine
+     *            - if true, the original request or status line is written as well
+     */
+    void writeRaw(OutputStream output, boolean includeStartLine) throws IOException {
+        int start = includeStartLine ? rawStartLineOffset : rawHeadersOffset;
+        if (changedHeaders == null) {
+            output.write(rawHeaders, start, rawHeaders.length - start);
+            output.flush();
+            return;
+        }
+        if (includeStartLine) {
+            output.write(rawHeaders, start, rawHeadersOffset - start);
+        }
+        int pos = rawHeadersOffset;
+        while (pos < rawHeaders.length && rawHeaders[pos] != '\r' && rawHeaders[pos] != '\n') {
+            int end = rawLineEnd(pos);
+            if (!changedHeaders.contains(rawHeaderName(pos, end))) {
+                output.write(rawHeaders, pos, end - pos);
+            }
+            pos = end;
+        }
+        for (String headerName : changedHeaders) {
+            HeaderValues values = headers.get(headerName);
+            if (values != null) {
+                byte[] name = values.getName().getBytes();
+                for (String value : values.getValues()) {
+                    writeHeader(output, name, value);
+                }
+            }
+        }
+        output.write(LINE_SEPARATOR_BYTES);
+        output.flush();
+    }
+
+    private void setRawHeaders(byte[] raw) {
+        int pos = 0;
+        while (pos < raw.length && (raw[pos] == '\r' || raw[pos] == '\n')) {
+            pos++;
+        }
+        rawStartLineOffset = pos;
+        while (pos < raw.length && raw[pos] != '\n') {
+            pos++;
+        }
+        rawHeadersOffset = Math.min(pos + 1, raw.length);
+        rawHeaders = raw;
+        changedHeaders = null;
+    }
+
+    // returns position after the line ending, taking into account that a header might continue on the next line
+    private int rawLineEnd(int pos) {
+        while (pos < rawHeaders.length) {
+            if (rawHeaders[pos++] == '\n' && (pos >= rawHeaders.length
+                    || (rawHeaders[pos] != ' ' && rawHeaders[pos] != '\t'))) {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private String rawHeaderName(int start, int end) {
+        int pos = start;
+        while (pos < end && rawHeaders[pos] != ':') {
+            pos++;
+        }
+        return normalize(new String(rawHeaders, start, pos - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private void headerChanged(String normalizedHeaderName) {
+        if (rawHeaders != null) {
+            if (changedHeaders == null) {
+                changedHeaders = new LinkedHashSet<>();
+            }
+            changedHeaders.add(normalizedHeaderName);
+        }
+        if (framingKnown && (normalizedHeaderName.equals("Content-Length")
+                || normalizedHeaderName.equals("Transfer-Encoding")
+                || normalizedHeaderName.equals("Content-Encoding"))) {
+            framingKnown = false;
+        }
+        onHeaderChanged(normalizedHeaderName);
+    }
+
+    /**
+     * Called after a header was set, added or removed so that subclasses can drop values derived from it
+     */
+    void onHeaderChanged(String normalizedHeaderName) {
+    }
+
+    private static void writeHeader(OutputStream output, byte[] name, String value) throws IOException {
+        output.write(name);
+        output.write(KEY_VALUE_SEPARATOR_BYTES);
+        output.write(value.getBytes());
+        output.write(LINE_SEPARATOR_BYTES);
+    }
+
+    private Map<String, HeaderValues> writableHeaders() {
+        if (shared) {
+            headers = new LinkedHashMap<>(headers);
+            shared = false;
+        }
+        return headers;
+    }
+
     boolean isEmpty() {
         return headers.isEmpty();
     }
@@ -275,16 +461,16 @@ abstract class HttpHeaders {
         }
 
         private HeaderValues addValue(String value) {
+            List<String> newValues;
             if (this.values == null) {
-                List<String> newValues = new ArrayList<>();
+                newValues = new ArrayList<>(2);
                 newValues.add(this.value);
-                newValues.add(value);
-                return new HeaderValues(name, newValues);
             } else {
-                List<String> newValues = new ArrayList<>(values);
-                newValues.add(value);
-                return new HeaderValues(name, newValues);
+                newValues = new ArrayList<>(values.size() + 1);
+                newValues.addAll(values);
             }
+            newValues.add(value);
+            return new HeaderValues(name, Collections.unmodifiableList(newValues));
         }
 
         private String getValue() {
@@ -298,14 +484,10 @@ abstract class HttpHeaders {
         private List<String> getValues() {
             if (values != null) {
                 return values;
+            } else if (value != null) {
+                return Collections.singletonList(value);
             } else {
-                if (value != null) {
-                    List<String> result = new ArrayList<>();
-                    result.add(value);
-                    return result;
-                } else {
-                    return Collections.emptyList();
-                }
+                return Collections.emptyList();
             }
         }
 
@@ -370,7 +552,38 @@ abstract class HttpHeaders {
     }
 
     BodyEncoding getBodyEncoding() {
-        List<String> list = encodingData();
+        ensureFraming();
+        return bodyEncoding;
+    }
+
+    List<String> encodingData() {
+        ensureFraming();
+        return encodings;
+    }
+
+    private void ensureFraming() {
+        if (!framingKnown) {
+            contentLength = parseContentLength();
+            encodings = parseEncodingData();
+            bodyEncoding = parseBodyEncoding(encodings);
+            chunked = bodyEncoding.isChunked;
+            framingKnown = true;
+        }
+    }
+
+    private long parseContentLength() {
+        String contentLengthString = getHeader("Content-Length");
+        if (contentLengthString != null) {
+            try {
+                return Long.parseLong(contentLengthString.trim());
+            } catch (NumberFormatException e) {
+                // nothing
+            }
+        }
+        return -1;
+    }
+
+    private static BodyEncoding parseBodyEncoding(List<String> list) {
         if (list.size() == 0) {
             return NO_BODY_ENCODING;
         }
@@ -390,7 +603,7 @@ abstract class HttpHeaders {
         return new BodyEncoding(isChunked, encoding);
     }
 
-    List<String> encodingData() {
+    private List<String> parseEncodingData() {
         List<String> result = null;
         HeaderValues header = headers.get("Content-Encoding");
         if (header != null) {
@@ -411,7 +624,7 @@ abstract class HttpHeaders {
             }
         }
         if (result != null) {
-            return result;
+            return Collections.unmodifiableList(result);
         } else {
             return Collections.emptyList();
         }
@@ -435,8 +648,8 @@ abstract class HttpHeaders {
 
     static class BodyEncoding {
 
-        private boolean isChunked;
-        private String encoding;
+        private final boolean isChunked;
+        private final String encoding;
 
         private BodyEncoding(boolean isChunked, String encoding) {
             this.isChunked = isChunked;
@@ -23,21 +23,32 @@ public class HttpRequest {
     private final HttpBody body;
     private final long contentLength;
     private final boolean chunked;
-    private final URL url;
+    private String[] pathParameterNames;
+    private String[] pathParameterValues;
 
     public HttpRequest(InputStream inputStream) throws IOException {
         this(new HttpRequestHeaders(inputStream), inputStream);
     }
 
     HttpRequest(HttpRequestHeaders requestHeaders, InputStream inputStream) throws IOException {
+        this(requestHeaders, inputStream, false);
+    }
+
+    /**
+     * @param bodyUntilEndOfStream
+     *            - if true, a request without Content-Length has a body which ends with the stream (HTTP/2)
+     */
+    HttpRequest(HttpRequestHeaders requestHeaders, InputStream inputStream, boolean bodyUntilEndOfStream)
+            throws IOException {
         this.headers = requestHeaders;
-        this.url = headers.getUrl();
+        // errors are reported here, so getUrl(), getHost() and getPort() do not fail later
+        headers.validateTarget();
         String method = headers.getMethod();
         if (!method.equals("GET") && !method.equals("CONNECT")) {
-            HttpHeaders.BodyEncoding bodyEncoding = headers.getBodyEncoding();
             contentLength = headers.getContentLength();
-            chunked = contentLength < 0 && bodyEncoding.isChunked();
-            body = new HttpBody(inputStream, contentLength, chunked, bodyEncoding.geEncoding(), false);
+            chunked = headers.hasChunkedBody();
+            body = new HttpBody(inputStream, contentLength, chunked, headers.getBodyEncoding().geEncoding(),
+                    bodyUntilEndOfStream);
         } else {
             contentLength = 0;
             chunked = false;
@@ -59,11 +70,39 @@ public class HttpRequest {
         return headers.getPath();
     }
 
+    /**
+     * This returns a value of a path parameter when the request was routed by HttpRouter
+     * 
+     * @param name
+     *            - parameter name as specified in the route pattern (without ":" or "*")
+     * @return value of the parameter or null if there is no such parameter
+     */
+    public String getPathParameter(String name) {
+        if (pathParameterNames != null) {
+            for (int i = 0; i < pathParameterNames.length; i++) {
+                if (pathParameterNames[i].equals(name)) {
+                    return pathParameterValues[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    void setPathParameters(String[] names, String[] values) {
+        this.pathParameterNames = names;
+        this.pathParameterValues = values;
+    }
+
     /**
      * @return Request url (build from a request line and, if it is missing host name, from Host header)
      */
     public URL getUrl() {
-        return url;
+        try {
+            return headers.getUrl();
+        } catch (HttpException e) {
+            // the target is validated when the request is created and the headers cannot be changed after that
+            throw new IllegalStateException(e.getMessage(), e);
+        }
     }
 
     /**
@@ -77,11 +116,23 @@ public class HttpRequest {
      * @return Host name. Comes from Host header or, if absent (e.g. when HTTP/1.0) then from request line
      */
     public String getHost() {
-        String host = headers.getHeader("Host");
-        if (host != null) {
-            return host;
-        } else {
-            return url.getHost();
+        try {
+            return headers.getHost();
+        } catch (HttpException e) {
+            // validated when the request is created
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return Port. Comes from the request line or, if absent, from Host header, -1 if not specified
+     */
+    public int getPort() {
+        try {
+            return headers.getPort();
+        } catch (HttpException e) {
+            // validated when the request is created
+            throw new IllegalStateException(e.getMessage(), e);
         }
     }
 
@@ -125,11 +176,7 @@ public class HttpRequest {
      */
     public List<String> getHeaders(String headerName) {
         List<String> list = headers.getHeaders(headerName);
-        if (list != null) {
-            return Collections.unmodifiableList(list);
-        } else {
-            return Collections.emptyList();
-        }
+        return list != null ? list : Collections.<String>emptyList();
     }
 
     /**
@@ -194,6 +241,9 @@ public class HttpRequest {
     }
 
     /**
+     * This returns a copy of the HTTP headers. The copy shares data with the request, so it does not cost anything
+     * unless it is modified. Modifications of the copy do not affect this request.
+     * 
      * @return copy of the HTTP headers
      */
     public HttpRequestHeaders getHeaders() {
@@ -22,10 +22,16 @@ import java.util.Arrays;
 public final class HttpRequestHeaders extends HttpHeaders {
 
     private static final String PROTOCOL_SEPARATOR = "://";
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH",
+            "CONNECT", "TRACE"};
+    private static final String[] KNOWN_VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
 
     private String method;
     private String version;
     private String path;
+    // derived from path and Host header when first requested
+    private RequestTarget target;
+    private URL url;
 
     /**
      * This creates an instance of HttpRequestHeaders
@@ -52,7 +58,20 @@ public final class HttpRequestHeaders extends HttpHeaders {
      *             - thrown when the data is not HTTP or IO errors
      */
     public HttpRequestHeaders(InputStream inputStream) throws IOException {
-        HeaderLineReader reader = new HeaderLineReader(inputStream);
+        this(inputStream, false);
+    }
+
+    /**
+     * This creates an instance of this class by reading request line and headers from a stream
+     * 
+     * @param inputStream
+     * @param keepRawHeaders
+     *            - if true, the original bytes are kept and used when the headers are written (e.g. by a proxy)
+     * @throws IOException
+     *             - thrown when the data is not HTTP or IO errors
+     */
+    HttpRequestHeaders(InputStream inputStream, boolean keepRawHeaders) throws IOException {
+        HeaderLineReader reader = new HeaderLineReader(inputStream, keepRawHeaders);
         String line = reader.readLine();
         if (line != null) {
             parseRequestLine(line);
@@ -62,23 +81,49 @@ public final class HttpRequestHeaders extends HttpHeaders {
         readHeaders(reader);
     }
 
-    HttpRequestHeaders(HttpRequestHeaders requestHeaders) {
+    /**
+     * This creates a copy of request headers
+     * 
+     * The copy is cheap: header values are shared with the original until either of them is modified, at which point
+     * the modified instance takes its own copy. This is meant for proxies that forward received headers with small
+     * changes.
+     * 
+     * @param requestHeaders
+     *            - headers to copy
+     */
+    public HttpRequestHeaders(HttpRequestHeaders requestHeaders) {
         super(requestHeaders);
         this.method = requestHeaders.method;
         this.version = requestHeaders.version;
         this.path = requestHeaders.path;
+        this.target = requestHeaders.target;
+        this.url = requestHeaders.url;
     }
 
     /**
      * This returns Url based on command line and host header. If request line contains host, it has a priority over
      * what is specified in host header
      * 
+     * The URL is built when this is called for the first time and then reused
+     * 
      * @throws HttpException
      *             - thrown when URL is incorrect
      */
     public URL getUrl() throws HttpException {
-        String host = getHeader("Host");
-        return parseUrl(path, host);
+        if (url == null) {
+            RequestTarget target = getTarget();
+            try {
+                if (target.port >= 0) {
+                    url = new URL(target.protocol, target.host, target.port, target.path);
+                } else {
+                    url = new URL(target.protocol, target.host, target.path);
+                }
+            } catch (MalformedURLException e) {
+                throw new HttpException("Cannot create url for protocol: " + target.protocol + ", host: "
+                        + target.host + ", path: " + target.path);
+            }
+        }
+        return url;
     }
 
     /**
@@ -93,18 +138,35 @@ public final class HttpRequestHeaders extends HttpHeaders {
         if (host != null) {
             return host;
         } else {
-            return parseUrl(path, null).getHost();
+            return getTarget().host;
         }
     }
 
+    /**
+     * This returns port based on command line and host header (the same way as it is done for getUrl())
+     * 
+     * @return port or -1 if port is not specified
+     * @throws HttpException
+     *             - thrown if there was an error parsing path in request line
+     */
+    public int getPort() throws HttpException {
+        return getTarget().port;
+    }
+
     /**
      * This writes the request line and headers into the output stream
      * 
      * This includes an empty line separating headers and body (i.e. you can start writing the body immediately after
      * this)
+     * 
+     * If headers were read keeping the original bytes, those bytes are written instead
      */
     @Override
     public void write(OutputStream outputStream) throws IOException {
+        if (hasRawHeaders()) {
+            writeRaw(outputStream, true);
+            return;
+        }
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         out.write(method.getBytes());
         out.write(SPACE);
@@ -159,17 +221,75 @@ public final class HttpRequestHeaders extends HttpHeaders {
 
     }
 
+    @Override
+    void onHeaderChanged(String normalizedHeaderName) {
+        if (normalizedHeaderName.equals("Host")) {
+            target = null;
+            url = null;
+        }
+    }
+
+    /**
+     * This checks that host, port and URL can be taken from the request line and Host header, the URL itself is built
+     * only if the protocol is neither http nor https
+     *
+     * @throws HttpException
+     *             - if there is no host, the port is wrong or the URL cannot be built
+     */
+    void validateTarget() throws HttpException {
+        String protocol = getTarget().protocol;
+        if (!protocol.equals("http") && !protocol.equals("https")) {
+            getUrl();
+        }
+    }
+
     private void parseRequestLine(String requestLine) throws HttpException {
-        String[] parts = requestLine.split(" ");
-        if (parts.length != 3) {
+        int end = requestLine.length();
+        while (end > 0 && requestLine.charAt(end - 1) == ' ') {
+            end--;
+        }
+        int methodEnd = -1;
+        int pathEnd = -1;
+        for (int i = 0; i < end; i++) {
+            if (requestLine.charAt(i) == ' ') {
+                if (methodEnd < 0) {
+                    methodEnd = i;
+                } else if (pathEnd < 0) {
+                    pathEnd = i;
+                } else {
+                    pathEnd = -1;
+                    break;
+                }
+            }
+        }
+        if (methodEnd <= 0 || pathEnd <= methodEnd + 1) {
             throw new HttpException("Wrong number of elements in command line: " + requestLine);
         }
-        method = parts[0];
-        path = parts[1];
-        version = parts[2];
+        method = knownValue(KNOWN_METHODS, requestLine, 0, methodEnd);
+        path = requestLine.substring(methodEnd + 1, pathEnd);
+        version = knownValue(KNOWN_VERSIONS, requestLine, pathEnd + 1, end);
+        target = null;
+        url = null;
     }
 
-    private URL parseUrl(String line, String host) throws HttpException {
+    private static String knownValue(String[] knownValues, String line, int start, int end) {
+        int len = end - start;
+        for (String value : knownValues) {
+            if (value.length() == len && line.startsWith(value, start)) {
+                return value;
+            }
+        }
+        return line.substring(start, end);
+    }
+
+    private RequestTarget getTarget() throws HttpException {
+        if (target == null) {
+            target = parseTarget(path, getHeader("Host"));
+        }
+        return target;
+    }
+
+    private RequestTarget parseTarget(String line, String host) throws HttpException {
         String protocol;
         String fullPath;
         int pos = line.indexOf(PROTOCOL_SEPARATOR);
@@ -204,15 +324,7 @@ public final class HttpRequestHeaders extends HttpHeaders {
         } else {
             port = -1;
         }
-        try {
-            if (port >= 0) {
-                return new URL(protocol, host, port, path);
-            } else {
-                return new URL(protocol, host, path);
-            }
-        } catch (MalformedURLException e) {
-            throw new HttpException("Cannot create url for protocol: " + protocol + ", host: " + host + ", path: " + path);
-        }
+        return new RequestTarget(protocol, host, port, path);
     }
 
     /**
@@ -250,4 +362,19 @@ public final class HttpRequestHeaders extends HttpHeaders {
             return -1;
         }
     }
+
+    private static class RequestTarget {
+
+        private final String protocol;
+        private final String host;
+        private final int port;
+        private final String path;
+
+        private RequestTarget(String protocol, String host, int port, String path) {
+            this.protocol = protocol;
+            this.host = host;
+            this.port = port;
+            this.path = path;
+        }
+    }
 }
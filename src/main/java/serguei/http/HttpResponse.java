@@ -1,9 +1,14 @@
 package serguei.http;
 
 import serguei.http.utils.EmptyInputStream;
+import serguei.http.utils.Utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collections;
 import java.util.List;
 
@@ -27,19 +32,78 @@ public class HttpResponse {
     }
 
     public HttpResponse(InputStream inputStream, String httpRequestMethod) throws IOException {
-        this.headers = new HttpResponseHeaders(inputStream);
+        this(inputStream, httpRequestMethod, false);
+    }
+
+    HttpResponse(InputStream inputStream, String httpRequestMethod, boolean keepRawHeaders) throws IOException {
+        this.headers = new HttpResponseHeaders(inputStream, keepRawHeaders);
+        contentLength = headers.getContentLength();
+        chunked = headers.hasChunkedBody();
+        if (httpRequestMethod != null && httpRequestMethod.equals("HEAD")) {
+            body = EMPTY_BODY;
+        } else {
+            body = new HttpBody(inputStream, contentLength, chunked, headers.getBodyEncoding().geEncoding(), true);
+        }
+    }
+
+    /**
+     * This creates a response received over HTTP/2, it waits for the response headers
+     */
+    HttpResponse(Http2Stream stream, String httpRequestMethod) throws IOException {
+        this.headers = stream.getResponseHeaders();
         contentLength = headers.getContentLength();
-        HttpHeaders.BodyEncoding bodyEncoding = headers.getBodyEncoding();
-        chunked = contentLength < 0 && bodyEncoding.isChunked();
+        chunked = false;
         if (httpRequestMethod != null && httpRequestMethod.equals("HEAD")) {
             body = EMPTY_BODY;
         } else {
-            body = new HttpBody(inputStream, contentLength, chunked, bodyEncoding.geEncoding(), true);
+            body = new HttpBody(stream.getInputStream(), contentLength, false,
+                    headers.getBodyEncoding().geEncoding(), true);
         }
     }
 
     /**
-     * @return HTTP version ("HTTP/1.0" or "HTTP/1.1")
+     * This creates a response which headers are already parsed (e.g. by the asynchronous client)
+     *
+     * @param bodyStream
+     *            - stream with the body as it was sent (i.e. chunked if Transfer-Encoding is chunked)
+     * @param hasBody
+     *            - false if the response cannot have a body (e.g. in response to HEAD or with status 204)
+     */
+    HttpResponse(HttpResponseHeaders headers, InputStream bodyStream, boolean hasBody) {
+        this.headers = headers;
+        contentLength = headers.getContentLength();
+        chunked = headers.hasChunkedBody();
+        if (hasBody) {
+            body = new HttpBody(bodyStream, contentLength, chunked, headers.getBodyEncoding().geEncoding(), true);
+        } else {
+            body = EMPTY_BODY;
+        }
+    }
+
+    private HttpResponse(HttpResponseHeaders headers, HttpBody body) {
+        this.headers = headers;
+        this.body = body;
+        contentLength = headers.getContentLength();
+        chunked = headers.hasChunkedBody();
+    }
+
+    /**
+     * This reads the body into memory (un-chunked, but not decompressed), so the connection can be used to read the
+     * next response before this one is processed
+     *
+     * @return response which body is in memory
+     */
+    HttpResponse buffered() throws IOException {
+        if (!body.hasBody()) {
+            return this;
+        }
+        byte[] content = Utils.readFully(body.getOriginalBodyInputStream());
+        return new HttpResponse(headers, new HttpBody(new ByteArrayInputStream(content), content.length, false,
+                headers.getBodyEncoding().geEncoding(), false));
+    }
+
+    /**
+     * @return HTTP version ("HTTP/1.0", "HTTP/1.1" or "HTTP/2.0")
      */
     public String getVersion() {
         return headers.getVersion();
@@ -87,11 +151,7 @@ public class HttpResponse {
      */
     public List<String> getHeaders(String headerName) {
         List<String> list = headers.getHeaders(headerName);
-        if (list != null) {
-            return Collections.unmodifiableList(list);
-        } else {
-            return Collections.emptyList();
-        }
+        return list != null ? list : Collections.<String>emptyList();
     }
 
     /**
@@ -112,6 +172,35 @@ public class HttpResponse {
         return body.readAsBytes();
     }
 
+    /**
+     * This reads the body of the response (decompressed if it is compressed) into a file without keeping the whole body
+     * in memory. The file is created or, if it exists, truncated.
+     * 
+     * @param file
+     *            - file to write the body to
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public long readBodyToFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            return body.readTo(channel);
+        }
+    }
+
+    /**
+     * This reads the body of the response (decompressed if it is compressed) into a channel starting at its current
+     * position without keeping the whole body in memory. The channel is not closed.
+     * 
+     * @param channel
+     *            - file channel to write the body to
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public long readBodyTo(FileChannel channel) throws IOException {
+        return body.readTo(channel);
+    }
+
     /**
      * This returns the body of the response as a stream
      * 
@@ -160,7 +249,10 @@ public class HttpResponse {
     }
 
     /**
-     * @return HTTP headers
+     * This returns a copy of the HTTP headers. The copy shares data with the response, so it does not cost anything
+     * unless it is modified. Modifications of the copy do not affect this response.
+     * 
+     * @return copy of the HTTP headers
      */
     public HttpResponseHeaders getHeaders() {
         return new HttpResponseHeaders(headers);
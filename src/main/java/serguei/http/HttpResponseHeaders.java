@@ -20,6 +20,7 @@ public final class HttpResponseHeaders extends HttpHeaders {
     private String version;
     private int statusCode;
     private String reason;
+    private boolean statusLineChanged;
 
     /**
      * This creates an instance of HttpResponseHeaders
@@ -46,7 +47,20 @@ public final class HttpResponseHeaders extends HttpHeaders {
      *             - thrown when the data is not HTTP or IO errors
      */
     public HttpResponseHeaders(InputStream inputStream) throws IOException {
-        HeaderLineReader reader = new HeaderLineReader(inputStream);
+        this(inputStream, false);
+    }
+
+    /**
+     * This creates an instance of this class by reading status line and headers from a stream
+     * 
+     * @param inputStream
+     * @param keepRawHeaders
+     *            - if true, the original bytes are kept and used when the headers are written (e.g. by a proxy)
+     * @throws IOException
+     *             - thrown when the data is not HTTP or IO errors
+     */
+    HttpResponseHeaders(InputStream inputStream, boolean keepRawHeaders) throws IOException {
+        HeaderLineReader reader = new HeaderLineReader(inputStream, keepRawHeaders);
         String line = reader.readLine();
         if (line != null && line.length() == 0) {
             line = reader.readLine();
@@ -59,11 +73,22 @@ public final class HttpResponseHeaders extends HttpHeaders {
         readHeaders(reader);
     }
 
-    HttpResponseHeaders(HttpResponseHeaders responseHeaders) {
+    /**
+     * This creates a copy of response headers
+     * 
+     * The copy is cheap: header values are shared with the original until either of them is modified, at which point
+     * the modified instance takes its own copy. This is meant for proxies that forward received headers with small
+     * changes.
+     * 
+     * @param responseHeaders
+     *            - headers to copy
+     */
+    public HttpResponseHeaders(HttpResponseHeaders responseHeaders) {
         super(responseHeaders);
         this.version = responseHeaders.version;
         this.statusCode = responseHeaders.statusCode;
         this.reason = responseHeaders.reason;
+        this.statusLineChanged = responseHeaders.statusLineChanged;
     }
 
     public static HttpResponseHeaders ok() {
@@ -104,6 +129,10 @@ public final class HttpResponseHeaders extends HttpHeaders {
 
     @Override
     public void write(OutputStream outputStream) throws IOException {
+        if (hasRawHeaders() && !statusLineChanged) {
+            writeRaw(outputStream, true);
+            return;
+        }
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         output.write(version.getBytes());
         output.write(SPACE);
@@ -135,6 +164,7 @@ public final class HttpResponseHeaders extends HttpHeaders {
     public void setStatusCode(int statusCode, String reason) {
         this.statusCode = statusCode;
         this.reason = reason;
+        this.statusLineChanged = true;
     }
 
     private final void parseResponseLine(String line) throws HttpException {
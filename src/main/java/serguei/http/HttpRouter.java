@@ -0,0 +1,378 @@
+package serguei.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is a request handler that passes requests to other handlers depending on the request method and path
+ *
+ * Routes are specified with patterns consisting of segments separated by "/". A segment can be:
+ * <ul>
+ * <li>static text, e.g. "/users/list"</li>
+ * <li>a parameter starting with ":", it matches one non-empty segment, e.g. "/users/:id"</li>
+ * <li>a wildcard starting with "*", it can only be the last segment and it matches the rest of the path including
+ * "/", e.g. "/static/*file"</li>
+ * </ul>
+ *
+ * Values of parameters and wildcards are available from HttpRequest.getPathParameter(). If several routes match a
+ * path, static segments have priority over parameters and parameters have priority over wildcards.
+ *
+ * Routes are kept in a radix tree, so a path is resolved in one pass without creating any objects apart from values
+ * of parameters. Query string is not taken into account, the path is not URL-decoded.
+ *
+ * Routes should be added before the server starts, after that this class can be used by many threads.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class HttpRouter implements HttpServerRequestHandler {
+
+    private static final String PROTOCOL_SEPARATOR = "://";
+    private static final String[] NO_NAMES = new String[0];
+
+    private final Node root = new Node("");
+    // bounds of parameter values in the path, reused by requests processed in the same thread
+    private final ThreadLocal<int[]> parameterBounds = new ThreadLocal<>();
+    private int maxParameters;
+    private HttpServerRequestHandler notFoundHandler;
+
+    /**
+     * This adds a route
+     *
+     * @param method
+     *            - HTTP method (e.g. "GET")
+     * @param pattern
+     *            - path pattern, it must start with "/", e.g. "/users/:id/orders"
+     * @param handler
+     *            - handler that will process requests matching method and pattern
+     * @return this
+     * @throws IllegalArgumentException
+     *             - if pattern is not valid or the same route was already added
+     */
+    public HttpRouter add(String method, String pattern, HttpServerRequestHandler handler) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route pattern should start with \"/\": " + pattern);
+        }
+        List<String> names = new ArrayList<>();
+        Node node = root;
+        int pos = 0;
+        while (pos < pattern.length()) {
+            char ch = pattern.charAt(pos);
+            int segmentEnd = pattern.indexOf('/', pos);
+            if (segmentEnd < 0) {
+                segmentEnd = pattern.length();
+            }
+            if (ch == ':') {
+                if (segmentEnd == pos + 1) {
+                    throw new IllegalArgumentException("Parameter without name in route pattern: " + pattern);
+                }
+                names.add(pattern.substring(pos + 1, segmentEnd));
+                if (node.parameterChild == null) {
+                    node.parameterChild = new Node("");
+                }
+                node = node.parameterChild;
+                pos = segmentEnd;
+            } else if (ch == '*') {
+                if (segmentEnd != pattern.length()) {
+                    throw new IllegalArgumentException("Wildcard should be the last segment of route pattern: "
+                            + pattern);
+                }
+                names.add(pattern.substring(pos + 1));
+                if (node.wildcardChild == null) {
+                    node.wildcardChild = new Node("");
+                }
+                node = node.wildcardChild;
+                pos = segmentEnd;
+            } else {
+                int staticEnd = pos;
+                while (staticEnd < pattern.length() && !isSpecialSegmentStart(pattern, staticEnd)) {
+                    staticEnd++;
+                }
+                node = node.addStatic(pattern.substring(pos, staticEnd));
+                pos = staticEnd;
+            }
+        }
+        if (node.routes.containsKey(method)) {
+            throw new IllegalArgumentException("Route already exists: " + method + " " + pattern);
+        }
+        node.routes.put(method, new Route(handler, names.isEmpty() ? NO_NAMES : names.toArray(new String[0])));
+        maxParameters = Math.max(maxParameters, names.size());
+        return this;
+    }
+
+    /**
+     * This adds a route for GET requests (HEAD requests are routed to it as well unless there is a route for HEAD)
+     *
+     * @return this
+     */
+    public HttpRouter get(String pattern, HttpServerRequestHandler handler) {
+        return add("GET", pattern, handler);
+    }
+
+    /**
+     * This adds a route for POST requests
+     *
+     * @return this
+     */
+    public HttpRouter post(String pattern, HttpServerRequestHandler handler) {
+        return add("POST", pattern, handler);
+    }
+
+    /**
+     * This adds a route for PUT requests
+     *
+     * @return this
+     */
+    public HttpRouter put(String pattern, HttpServerRequestHandler handler) {
+        return add("PUT", pattern, handler);
+    }
+
+    /**
+     * This adds a route for DELETE requests
+     *
+     * @return this
+     */
+    public HttpRouter delete(String pattern, HttpServerRequestHandler handler) {
+        return add("DELETE", pattern, handler);
+    }
+
+    /**
+     * @param notFoundHandler
+     *            - handler processing requests not matching any route, if null (default) - 404 Not Found is sent
+     */
+    public void setNotFoundHandler(HttpServerRequestHandler notFoundHandler) {
+        this.notFoundHandler = notFoundHandler;
+    }
+
+    @Override
+    public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+            throws IOException {
+        String path = request.getPath();
+        int start = pathStart(path);
+        int end = pathEnd(path, start);
+        int[] bounds = maxParameters > 0 ? getParameterBounds() : null;
+        Node node = start >= 0 ? match(root, path, start, end, bounds, 0) : null;
+        if (node == null) {
+            if (notFoundHandler != null) {
+                notFoundHandler.process(connectionContext, request, outputStream);
+            } else {
+                writeEmptyResponse(HttpResponseHeaders.notFound(), outputStream);
+            }
+            return;
+        }
+        Route route = node.routes.get(request.getMethod());
+        if (route == null && request.getMethod().equals("HEAD")) {
+            route = node.routes.get("GET");
+            if (route != null) {
+                // GET handler writes the body, but there must be none in response to HEAD
+                outputStream = new HeadResponseOutputStream(outputStream);
+            }
+        }
+        if (route == null) {
+            List<String> allowed = new ArrayList<>(node.routes.keySet());
+            if (allowed.contains("GET") && !allowed.contains("HEAD")) {
+                allowed.add("HEAD");
+            }
+            HttpResponseHeaders headers = new HttpResponseHeaders("HTTP/1.1 405 Method Not Allowed");
+            headers.setHeader("Allow", String.join(", ", allowed));
+            writeEmptyResponse(headers, outputStream);
+            return;
+        }
+        if (route.names.length > 0) {
+            String[] values = new String[route.names.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = path.substring(bounds[i * 2], bounds[i * 2 + 1]);
+            }
+            request.setPathParameters(route.names, values);
+        }
+        route.handler.process(connectionContext, request, outputStream);
+    }
+
+    private int[] getParameterBounds() {
+        int[] bounds = parameterBounds.get();
+        if (bounds == null || bounds.length < maxParameters * 2) {
+            bounds = new int[maxParameters * 2];
+            parameterBounds.set(bounds);
+        }
+        return bounds;
+    }
+
+    private static Node match(Node node, String path, int pos, int end, int[] bounds, int depth) {
+        if (pos == end) {
+            if (!node.routes.isEmpty()) {
+                return node;
+            }
+            if (node.wildcardChild != null) {
+                bounds[depth * 2] = pos;
+                bounds[depth * 2 + 1] = end;
+                return node.wildcardChild;
+            }
+            return null;
+        }
+        char ch = path.charAt(pos);
+        for (int i = 0; i < node.indices.length(); i++) {
+            if (node.indices.charAt(i) == ch) {
+                Node child = node.children.get(i);
+                int len = child.prefix.length();
+                if (len <= end - pos && path.regionMatches(pos, child.prefix, 0, len)) {
+                    Node result = match(child, path, pos + len, end, bounds, depth);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+                break;
+            }
+        }
+        if (node.parameterChild != null && ch != '/') {
+            int segmentEnd = pos;
+            while (segmentEnd < end && path.charAt(segmentEnd) != '/') {
+                segmentEnd++;
+            }
+            bounds[depth * 2] = pos;
+            bounds[depth * 2 + 1] = segmentEnd;
+            Node result = match(node.parameterChild, path, segmentEnd, end, bounds, depth + 1);
+            if (result != null) {
+                return result;
+            }
+        }
+        if (node.wildcardChild != null) {
+            bounds[depth * 2] = pos;
+            bounds[depth * 2 + 1] = end;
+            return node.wildcardChild;
+        }
+        return null;
+    }
+
+    private static boolean isSpecialSegmentStart(String pattern, int pos) {
+        char ch = pattern.charAt(pos);
+        return (ch == ':' || ch == '*') && pos > 0 && pattern.charAt(pos - 1) == '/';
+    }
+
+    private static int pathStart(String path) {
+        if (path.startsWith("/")) {
+            return 0;
+        }
+        int pos = path.indexOf(PROTOCOL_SEPARATOR);
+        if (pos < 0) {
+            return -1;
+        }
+        pos = path.indexOf('/', pos + PROTOCOL_SEPARATOR.length());
+        return pos;
+    }
+
+    private static int pathEnd(String path, int start) {
+        if (start < 0) {
+            return -1;
+        }
+        for (int i = start; i < path.length(); i++) {
+            char ch = path.charAt(i);
+            if (ch == '?' || ch == '#') {
+                return i;
+            }
+        }
+        return path.length();
+    }
+
+    private static void writeEmptyResponse(HttpResponseHeaders headers, OutputStream outputStream)
+            throws IOException {
+        headers.setHeader("Content-Length", "0");
+        headers.write(outputStream);
+    }
+
+    /**
+     * This passes the response headers through and discards the body
+     */
+    private static class HeadResponseOutputStream extends FilterOutputStream {
+
+        private static final byte[] HEADERS_END = {13, 10, 13, 10};
+
+        private int matched;
+
+        private HeadResponseOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (matched == HEADERS_END.length) {
+                return;
+            }
+            int pos = offset;
+            int end = offset + length;
+            while (pos < end && matched < HEADERS_END.length) {
+                byte b = data[pos++];
+                if (b == HEADERS_END[matched]) {
+                    matched++;
+                } else {
+                    matched = b == HEADERS_END[0] ? 1 : 0;
+                }
+            }
+            out.write(data, offset, pos - offset);
+        }
+    }
+
+    private static class Route {
+
+        private final HttpServerRequestHandler handler;
+        private final String[] names;
+
+        private Route(HttpServerRequestHandler handler, String[] names) {
+            this.handler = handler;
+            this.names = names;
+        }
+    }
+
+    private static class Node {
+
+        private String prefix;
+        // first characters of prefixes of children, in the same order as children
+        private String indices = "";
+        private final List<Node> children = new ArrayList<>();
+        private Node parameterChild;
+        private Node wildcardChild;
+        private final Map<String, Route> routes = new LinkedHashMap<>();
+
+        private Node(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private Node addStatic(String text) {
+            char ch = text.charAt(0);
+            int index = indices.indexOf(ch);
+            if (index < 0) {
+                Node child = new Node(text);
+                indices += ch;
+                children.add(child);
+                return child;
+            }
+            Node child = children.get(index);
+            int common = 0;
+            int maxCommon = Math.min(text.length(), child.prefix.length());
+            while (common < maxCommon && text.charAt(common) == child.prefix.charAt(common)) {
+                common++;
+            }
+            if (common < child.prefix.length()) {
+                Node intermediate = new Node(child.prefix.substring(0, common));
+                child.prefix = child.prefix.substring(common);
+                intermediate.indices += child.prefix.charAt(0);
+                intermediate.children.add(child);
+                children.set(index, intermediate);
+                child = intermediate;
+            }
+            if (common == text.length()) {
+                return child;
+            }
+            return child.addStatic(text.substring(common));
+        }
+    }
+}
@@ -17,11 +17,20 @@ import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -41,10 +50,21 @@ import serguei.http.utils.Utils;
  */
 public class HttpServer {
 
+    private static final ScheduledThreadPoolExecutor ASYNC_TIMEOUTS = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "Async request timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ASYNC_TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
     private final SocketAddress socketAddress;
     private final SocketAddress sslSocketAddress;
     private final HttpServerRequestHandler requestHandler;
+    private final AsyncHttpServerRequestHandler asyncRequestHandler;
     private final Map<Long, SocketRunner> connections = new ConcurrentHashMap<>();
     private final int numberOfPorts;
     private int timeoutMs;
@@ -65,6 +85,8 @@ public class HttpServer {
     private boolean tcpNoDelay;
     private boolean needClientAuthentication;
     private final int waitForProcessesToFinishOnShutdownMs;
+    private final boolean keepRawHeaders;
+    private final boolean http2Enabled;
 
     /**
      * Creating an instance of HttpServer listening to one ports (this does not
@@ -92,7 +114,43 @@ public class HttpServer {
      * @param options        - server options
      */
     public HttpServer(HttpServerRequestHandler requestHandler, ServerOptions options) {
+        this(requestHandler, null, options);
+    }
+
+    /**
+     * Creating an instance of HttpServer with asynchronous request handler
+     * listening to one port (this does not actually start the server - call
+     * start() for that). This listens to connection to all IP addresses (bind to
+     * 0.0.0.0).
+     * 
+     * @param requestHandler - an implementation of AsyncHttpServerRequestHandler
+     *                       that will processes all requests
+     * @param port           - port for HTTP requests
+     */
+    public HttpServer(AsyncHttpServerRequestHandler requestHandler, int port) {
+        this(requestHandler, (new ServerOptions()).setPort(port));
+    }
+
+    /**
+     * Creating an instance of HttpServer with asynchronous request handler (this
+     * does not actually start the server - call start() for that).
+     * 
+     * A connection does not hold a thread while the handler is waiting for the
+     * response, so the number of threads does not grow with the latency of
+     * services the handler depends on.
+     *
+     * @param requestHandler - an implementation of AsyncHttpServerRequestHandler
+     *                       that will processes all requests
+     * @param options        - server options
+     */
+    public HttpServer(AsyncHttpServerRequestHandler requestHandler, ServerOptions options) {
+        this(null, requestHandler, options);
+    }
+
+    private HttpServer(HttpServerRequestHandler requestHandler, AsyncHttpServerRequestHandler asyncRequestHandler,
+            ServerOptions options) {
         this.requestHandler = requestHandler;
+        this.asyncRequestHandler = asyncRequestHandler;
         int portNo = 0;
         InetAddress inetAddress = options.getInetAddress() != null ? options.getInetAddress() : allLocalAddresses();
         if (options.getPort() > 0) {
@@ -115,6 +173,8 @@ public class HttpServer {
         this.tcpNoDelay = options.isTcpNoDelay();
         this.needClientAuthentication = options.isNeedClientAuthentication();
         this.waitForProcessesToFinishOnShutdownMs = options.getWaitForProcessesToFinishOnShutdownMs();
+        this.keepRawHeaders = options.isKeepRawHeaders();
+        this.http2Enabled = options.isHttp2Enabled();
     }
 
     /**
@@ -628,6 +688,13 @@ public class HttpServer {
      * Sets a handler that will be called immediately after the request headers are
      * read but before reading the request body (if any)
      * 
+     * If the request has "Expect: 100-continue" header, the interim response is
+     * not sent before the handler is called, so the handler can reject the request
+     * (write the final response and return false) before the client sends the body.
+     * If the handler writes nothing and returns true, "100 Continue" is sent when
+     * the request handler starts reading the body; if the request handler responds
+     * without reading the body, the connection is closed after the response.
+     * 
      * @param onRequestHeadersHandler - the handler, if null (default) - no
      *                                processing will take place
      */
@@ -736,6 +803,7 @@ public class HttpServer {
 
         private SSLSocket socket;
         private ClientHello clientHello;
+        private boolean http2;
     }
 
     private class SocketRunner implements Runnable {
@@ -745,6 +813,12 @@ public class HttpServer {
         private Socket socket;
         private int requestCount;
         private volatile boolean finished = false;
+        private Long connNo;
+        private InputStream inputStream;
+        private OutputStream outputStream;
+        private PostponedCloseOutputStream postponedCloseOutputStream;
+        private volatile Http2Connection http2Connection;
+        private ContinueInputStream continueInputStream;
 
         public SocketRunner(Socket socket, boolean ssl) throws IOException {
             this.socket = socket;
@@ -753,12 +827,10 @@ public class HttpServer {
 
         @Override
         public void run() {
-            Long connNo = connectionNo.incrementAndGet();
+            connNo = connectionNo.incrementAndGet();
             connections.put(connNo, this);
-            InputStream inputStream = null;
-            OutputStream outputStream = null;
-            PostponedCloseOutputStream postponedCloseOutputStream = null;
             SslConnection sslConnection;
+            boolean suspended = false;
             try {
                 socket.setTcpNoDelay(tcpNoDelay);
                 if (ssl) {
@@ -791,58 +863,322 @@ public class HttpServer {
                 outputStream = new BufferedOutputStream(postponedCloseOutputStream);
                 connectionContext = new ConnectionContext(socket,
                         sslConnection != null ? sslConnection.clientHello : null);
-                while (!finished) {
+                connectionContext.setInputStream(inputStream);
+                connectionContext.setOutputStream(outputStream);
+                if (sslConnection != null && sslConnection.http2) {
                     setIdleTimeout();
-                    HttpRequest request;
-                    try {
-                        HttpRequestHeaders requestHeaders = new HttpRequestHeaders(inputStream);
-                        setRequestTimeout();
-                        if (onRequestHeadersHandler != null) {
-                            if (!onRequestHeadersHandler.process(connectionContext, requestHeaders,
-                                    postponedCloseOutputStream)) {
-                                break;
-                            }
+                    processHttp2(0);
+                } else {
+                    suspended = processRequests();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (!suspended) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * @return true if processing is suspended waiting for an asynchronous handler, in this case the connection
+         *         must be left open - it will be resumed by another thread
+         */
+        private boolean processRequests() throws IOException {
+            while (!finished) {
+                setIdleTimeout();
+                HttpRequest request;
+                try {
+                    HttpRequestHeaders requestHeaders = new HttpRequestHeaders(inputStream, keepRawHeaders);
+                    if (http2Enabled && requestCount == 0 && Http2Connection.isPrefaceStart(requestHeaders)) {
+                        // HTTP/2 with prior knowledge
+                        processHttp2(Http2Connection.PREFACE_HEADERS_LENGTH);
+                        break;
+                    }
+                    setRequestTimeout();
+                    long bytesWritten = postponedCloseOutputStream.getBytesWritten();
+                    if (onRequestHeadersHandler != null) {
+                        if (!onRequestHeadersHandler.process(connectionContext, requestHeaders,
+                                postponedCloseOutputStream)) {
+                            break;
                         }
+                    }
+                    // if the handler has responded to the expectation itself, the body will be sent anyway
+                    if (postponedCloseOutputStream.getBytesWritten() == bytesWritten
+                            && ContinueInputStream.isExpected(requestHeaders,
+                                    requestHeaders.getContentLength() > 0 || requestHeaders.hasChunkedBody())) {
+                        continueInputStream = new ContinueInputStream(inputStream, outputStream);
+                        request = new HttpRequest(requestHeaders, continueInputStream);
+                    } else {
+                        continueInputStream = null;
                         request = new HttpRequest(requestHeaders, inputStream);
-                    } catch (HttpException | SocketTimeoutException | SocketException e) {
-                        // this happens when connection is closed by the client or
-                        // client sends non-HTTP data
+                    }
+                } catch (HttpException | SocketTimeoutException | SocketException e) {
+                    // this happens when connection is closed by the client or
+                    // client sends non-HTTP data
+                    finished = true;
+                    break;
+                }
+                if (asyncRequestHandler != null) {
+                    CompletableFuture<AsyncResponse> future;
+                    try {
+                        connectionContext.resetAsyncTimeout();
+                        future = asyncRequestHandler.process(connectionContext, request).toCompletableFuture();
+                    } catch (IOException e) {
                         finished = true;
                         break;
                     }
+                    if (!future.isDone()) {
+                        // from now on this runner belongs to the thread completing the future
+                        withTimeout(future).whenComplete((response, error) -> resume(request, response, error));
+                        return true;
+                    }
+                    AsyncResponse response;
                     try {
-                        requestHandler.process(connectionContext, request, outputStream);
-                        if (postponedCloseOutputStream.shouldClose()) {
-                            // this will cause the connection to close abnormally
-                            finished = true;
-                        } else {
-                            outputStream.flush();
-                            if (connectionContext.getCloseAction() != ConnectionContext.CloseAction.NONE) {
-                                finished = true;
-                            }
-                        }
+                        response = future.join();
+                    } catch (CompletionException | CancellationException e) {
+                        response = null;
+                    }
+                    writeAsyncResponse(request, response);
+                } else {
+                    try {
+                        requestHandler.process(connectionContext, request,
+                                continueInputStream != null ? continueInputStream.getResponseStream() : outputStream);
+                        afterResponse();
                     } catch (IOException e) {
                         finished = true;
                     }
-                    requestCount++;
                 }
-                if (connectionContext.getCloseAction() == ConnectionContext.CloseAction.RESET) {
-                    connectionContext.getSocket().setSoLinger(true, 0);
+                requestCount++;
+            }
+            if (connectionContext.getCloseAction() == ConnectionContext.CloseAction.RESET) {
+                connectionContext.getSocket().setSoLinger(true, 0);
+            }
+            return false;
+        }
+
+        /**
+         * This serves HTTP/2 connection until it is closed, the current thread reads frames and requests are
+         * processed by other threads of the pool
+         */
+        private void processHttp2(int prefaceBytesRead) throws IOException {
+            Http2Connection.readPreface(inputStream, prefaceBytesRead);
+            // the connection cannot be taken over by SSE or WebSocket
+            connectionContext.setInputStream(null);
+            connectionContext.setOutputStream(null);
+            if (timeoutMs != timeoutBetweenRequestsMs) {
+                socket.setSoTimeout(timeoutBetweenRequestsMs);
+            }
+            Http2Connection connection = new Http2Connection(inputStream, outputStream, false, socket);
+            http2Connection = connection;
+            connection.start();
+            if (finished) {
+                connection.shutdown();
+            }
+            connection.serve(stream -> {
+                try {
+                    threadPool.execute(() -> processHttp2Stream(connection, stream));
+                } catch (RejectedExecutionException e) {
+                    // the server is shutting down
+                    connection.resetStream(stream, Http2Connection.REFUSED_STREAM);
+                }
+            });
+            finished = true;
+        }
+
+        private void processHttp2Stream(Http2Connection connection, Http2Stream stream) {
+            HttpRequestHeaders requestHeaders;
+            try {
+                requestHeaders = stream.getRequestHeaders();
+            } catch (HttpException e) {
+                connection.resetStream(stream, Http2Connection.PROTOCOL_ERROR);
+                return;
+            }
+            Http2ResponseOutputStream responseStream = new Http2ResponseOutputStream(connection, stream,
+                    requestHeaders.getMethod());
+            boolean suspended = false;
+            try {
+                if (onRequestHeadersHandler != null
+                        && !onRequestHeadersHandler.process(connectionContext, requestHeaders, responseStream)) {
+                    responseStream.finish();
+                    return;
                 }
-            } catch (Exception e) {
+                InputStream bodyStream = stream.getInputStream();
+                OutputStream handlerStream = responseStream;
+                if (ContinueInputStream.isExpected(requestHeaders, !stream.isRemoteClosed())) {
+                    // the interim response is converted into HEADERS frame
+                    ContinueInputStream continueStream = new ContinueInputStream(bodyStream, responseStream);
+                    bodyStream = continueStream;
+                    handlerStream = continueStream.getResponseStream();
+                }
+                HttpRequest request = new HttpRequest(requestHeaders, bodyStream, !stream.isRemoteClosed());
+                if (asyncRequestHandler != null) {
+                    connectionContext.resetAsyncTimeout();
+                    CompletableFuture<AsyncResponse> future = asyncRequestHandler.process(connectionContext, request)
+                            .toCompletableFuture();
+                    if (!future.isDone()) {
+                        withTimeout(future).whenComplete((response, error) -> resumeHttp2Stream(connection, stream,
+                                responseStream, request, error == null ? response : null));
+                        suspended = true;
+                        return;
+                    }
+                    AsyncResponse response;
+                    try {
+                        response = future.join();
+                    } catch (CompletionException | CancellationException e) {
+                        response = null;
+                    }
+                    writeHttp2Response(connection, stream, responseStream, request, response);
+                } else {
+                    requestHandler.process(connectionContext, request, handlerStream);
+                    responseStream.finish();
+                }
+            } catch (IOException e) {
+                connection.resetStream(stream, Http2Connection.INTERNAL_ERROR);
+            } catch (RuntimeException e) {
                 e.printStackTrace();
+                connection.resetStream(stream, Http2Connection.INTERNAL_ERROR);
             } finally {
-                if (postponedCloseOutputStream != null) {
-                    postponedCloseOutputStream.setClosing();
+                if (!suspended) {
+                    afterHttp2Stream(connection, stream);
+                }
+            }
+        }
+
+        private void resumeHttp2Stream(Http2Connection connection, Http2Stream stream,
+                Http2ResponseOutputStream responseStream, HttpRequest request, AsyncResponse response) {
+            try {
+                threadPool.execute(() -> {
+                    writeHttp2Response(connection, stream, responseStream, request, response);
+                    afterHttp2Stream(connection, stream);
+                });
+            } catch (RejectedExecutionException e) {
+                // the server is shutting down
+                connection.resetStream(stream, Http2Connection.CANCEL);
+                afterHttp2Stream(connection, stream);
+            }
+        }
+
+        private void writeHttp2Response(Http2Connection connection, Http2Stream stream,
+                Http2ResponseOutputStream responseStream, HttpRequest request, AsyncResponse response) {
+            try {
+                if (response != null) {
+                    response.write(connectionContext, request, responseStream);
+                }
+                responseStream.finish();
+            } catch (IOException e) {
+                connection.resetStream(stream, Http2Connection.INTERNAL_ERROR);
+            }
+        }
+
+        private void afterHttp2Stream(Http2Connection connection, Http2Stream stream) {
+            connection.releaseStream(stream);
+            ConnectionContext.CloseAction closeAction = connectionContext.getCloseAction();
+            if (closeAction == ConnectionContext.CloseAction.RESET) {
+                try {
+                    socket.setSoLinger(true, 0);
+                } catch (SocketException e) {
+                    // the socket is closed already
+                }
+                connection.close();
+            } else if (closeAction == ConnectionContext.CloseAction.CLOSE) {
+                connection.shutdown();
+            }
+        }
+
+        /**
+         * The socket timeout does not apply while a request is waiting for an asynchronous handler, so the request
+         * fails if the handler does not complete it within the request timeout (or the timeout the handler has set
+         * in the connection context). The handler's stage is completed exceptionally as well, so its producer knows
+         * the connection is closed.
+         */
+        private CompletableFuture<AsyncResponse> withTimeout(CompletableFuture<AsyncResponse> future) {
+            int asyncTimeoutMs = connectionContext.getAsyncTimeoutMillis();
+            int timeout = asyncTimeoutMs >= 0 ? asyncTimeoutMs : timeoutMs;
+            if (timeout <= 0) {
+                return future;
+            }
+            CompletableFuture<AsyncResponse> result = new CompletableFuture<>();
+            ScheduledFuture<?> timeoutTask = ASYNC_TIMEOUTS.schedule(() -> {
+                TimeoutException error = new TimeoutException("Asynchronous handler did not respond in " + timeout
+                        + " ms");
+                result.completeExceptionally(error);
+                future.completeExceptionally(error);
+            }, timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete((response, error) -> {
+                timeoutTask.cancel(false);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(response);
                 }
-                connections.remove(connNo);
-                Utils.closeQuietly(inputStream);
-                Utils.closeQuietly(outputStream);
-                Utils.closeQuietly(socket);
+            });
+            return result;
+        }
+
+        private void resume(HttpRequest request, AsyncResponse response, Throwable error) {
+            Runnable continuation = () -> {
+                boolean suspended = false;
+                try {
+                    writeAsyncResponse(request, error == null ? response : null);
+                    requestCount++;
+                    suspended = processRequests();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    if (!suspended) {
+                        close();
+                    }
+                }
+            };
+            try {
+                threadPool.execute(continuation);
+            } catch (RejectedExecutionException e) {
+                // the server is shutting down
+                close();
+            }
+        }
+
+        private void writeAsyncResponse(HttpRequest request, AsyncResponse response) {
+            if (response == null) {
+                finished = true;
+                return;
+            }
+            try {
+                response.write(connectionContext, request, outputStream);
+                afterResponse();
+            } catch (IOException e) {
                 finished = true;
             }
         }
 
+        private void afterResponse() throws IOException {
+            if (postponedCloseOutputStream.shouldClose()) {
+                // this will cause the connection to close abnormally
+                finished = true;
+            } else {
+                outputStream.flush();
+                if (connectionContext.getCloseAction() != ConnectionContext.CloseAction.NONE) {
+                    finished = true;
+                } else if (continueInputStream != null && !continueInputStream.isContinueSent()) {
+                    // the request is rejected without reading the body, the client will not send it, so the connection
+                    // cannot be used for the next request
+                    finished = true;
+                }
+            }
+        }
+
+        private void close() {
+            if (postponedCloseOutputStream != null) {
+                postponedCloseOutputStream.setClosing();
+            }
+            connections.remove(connNo);
+            Utils.closeQuietly(inputStream);
+            Utils.closeQuietly(outputStream);
+            Utils.closeQuietly(socket);
+            finished = true;
+        }
+
         public void abort() {
             finished = true;
             Utils.closeQuietly(socket);
@@ -850,6 +1186,10 @@ public class HttpServer {
 
         public void stop() {
             finished = true;
+            Http2Connection connection = http2Connection;
+            if (connection != null) {
+                connection.shutdown();
+            }
         }
 
         private SslConnection setupSsl(Socket socket) throws IOException {
@@ -875,10 +1215,16 @@ public class HttpServer {
             if (needClientAuthentication) {
                 sslSocket.setNeedClientAuth(true);
             }
+            if (http2Enabled) {
+                SSLParameters sslParameters = sslSocket.getSSLParameters();
+                sslParameters.setApplicationProtocols(new String[] {"h2", "http/1.1"});
+                sslSocket.setSSLParameters(sslParameters);
+            }
             sslSocket.startHandshake();
             SslConnection result = new SslConnection();
             result.socket = sslSocket;
             result.clientHello = clientHello;
+            result.http2 = http2Enabled && "h2".equals(sslSocket.getApplicationProtocol());
             return result;
         }
 
@@ -902,6 +1248,7 @@ public class HttpServer {
         private final OutputStream output;
         private boolean toClose = false;
         private boolean closing = false;
+        private long bytesWritten;
 
         public PostponedCloseOutputStream(OutputStream output) throws IOException {
             this.output = output;
@@ -910,10 +1257,12 @@ public class HttpServer {
         @Override
         public void write(int b) throws IOException {
             output.write(b);
+            bytesWritten++;
         }
 
         public void write(byte b[], int off, int len) throws IOException {
             output.write(b, off, len);
+            bytesWritten += len;
         }
 
         public void flush() throws IOException {
@@ -935,6 +1284,10 @@ public class HttpServer {
         public boolean shouldClose() {
             return toClose;
         }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
     }
 
     SSLSocketFactory getSslSocketFactory(String serverName, boolean warnWhenSniNotMatching, OutputStream outputStream)
@@ -0,0 +1,301 @@
+package serguei.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This is a response written by a server request handler. It takes care of framing of the response body, so the
+ * connection can be reused by the client.
+ *
+ * The body is buffered up to a threshold (8KB by default). If the whole body fits, it is sent with Content-Length,
+ * otherwise the headers are sent as soon as the buffer overflows (or on flush()) and the body is sent chunked. If the
+ * client does not support chunked encoding (HTTP/1.0), the body is sent as is and the connection is closed after it.
+ * When a handler sets Content-Length or Transfer-Encoding itself, the body is sent according to these headers without
+ * buffering.
+ *
+ * No body is sent in response to HEAD requests and with statuses 1xx, 204 and 304, whatever was written is discarded.
+ * For HEAD requests Content-Length is set to the number of discarded bytes, so the handler can use the same code for
+ * GET and HEAD.
+ *
+ * Headers can be changed until they are sent, the response is finished by close(). Closing the response does not
+ * close the connection.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class HttpServerResponse implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte[] CRLF = {13, 10};
+    private static final byte[] LAST_CHUNK = {'0', 13, 10, 13, 10};
+
+    private final OutputStream outputStream;
+    private final boolean headRequest;
+    private final boolean chunkingSupported;
+    private final int bufferSize;
+    private final HttpResponseHeaders headers;
+    private final BodyOutputStream bodyStream = new BodyOutputStream();
+    private byte[] buffer;
+    private int bufferedBytes;
+    private long bodyLength;
+    private long declaredLength = -1;
+    private boolean noBody;
+    private boolean chunked;
+    private boolean closeConnection;
+    private boolean committed;
+    private boolean closed;
+
+    /**
+     * Creates a response with status 200 OK
+     *
+     * @param request
+     *            - request to which this is a response
+     * @param outputStream
+     *            - output stream passed to the request handler
+     */
+    public HttpServerResponse(HttpRequest request, OutputStream outputStream) {
+        this(request, outputStream, HttpResponseHeaders.ok(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a response
+     *
+     * @param request
+     *            - request to which this is a response
+     * @param outputStream
+     *            - output stream passed to the request handler
+     * @param headers
+     *            - response headers, they can be changed until they are sent
+     * @param bufferSize
+     *            - maximum size of a body which is sent with Content-Length
+     */
+    public HttpServerResponse(HttpRequest request, OutputStream outputStream, HttpResponseHeaders headers,
+            int bufferSize) {
+        this.outputStream = outputStream;
+        this.headRequest = request.getMethod().equals("HEAD");
+        this.chunkingSupported = !request.getVersion().equals("HTTP/1.0");
+        this.headers = headers;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return response headers, changing them after they are sent has no effect
+     */
+    public HttpResponseHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return this
+     */
+    public HttpServerResponse setStatusCode(int statusCode, String reason) {
+        headers.setStatusCode(statusCode, reason);
+        return this;
+    }
+
+    /**
+     * @return this
+     */
+    public HttpServerResponse setHeader(String headerName, String value) {
+        headers.setHeader(headerName, value);
+        return this;
+    }
+
+    /**
+     * @return stream to which the body should be written, closing it finishes the response
+     */
+    public OutputStream getOutputStream() {
+        return bodyStream;
+    }
+
+    /**
+     * This writes a part of the body
+     */
+    public void write(byte[] data) throws IOException {
+        bodyStream.write(data, 0, data.length);
+    }
+
+    /**
+     * This writes a part of the body encoded in UTF-8
+     */
+    public void write(String data) throws IOException {
+        write(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return true if the headers were already sent
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * This finishes the response: sends the headers (if they were not sent yet) and the rest of the body
+     *
+     * @throws HttpException
+     *             - if the handler has set Content-Length, but wrote a different number of bytes, in this case the
+     *             connection cannot be reused
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!committed) {
+            if (!noBodyAllowed()) {
+                if (!headers.hasChunkedBody()) {
+                    long length = headers.getContentLength();
+                    if (length < 0) {
+                        // the whole body is buffered, so its length is known
+                        headers.removeHeader("Transfer-Encoding");
+                        headers.setHeader("Content-Length", Integer.toString(bufferedBytes));
+                    } else if (length != bufferedBytes) {
+                        throw new HttpException("Response body length " + bufferedBytes
+                                + " does not match Content-Length " + length);
+                    }
+                }
+            } else if (headRequest && headers.getHeader("Content-Length") == null
+                    && headers.getHeader("Transfer-Encoding") == null) {
+                headers.setHeader("Content-Length", Long.toString(bodyLength));
+            }
+            commit();
+        }
+        if (chunked) {
+            writePendingChunk();
+            outputStream.write(LAST_CHUNK);
+        } else if (declaredLength >= 0 && declaredLength != bodyLength) {
+            throw new HttpException("Response body length " + bodyLength + " does not match Content-Length "
+                    + declaredLength);
+        }
+        buffer = null;
+        outputStream.flush();
+        if (closeConnection) {
+            outputStream.close();
+        }
+    }
+
+    private boolean noBodyAllowed() {
+        int statusCode = headers.getStatusCode();
+        return headRequest || statusCode / 100 == 1 || statusCode == 204 || statusCode == 304;
+    }
+
+    private void commit() throws IOException {
+        committed = true;
+        if (noBodyAllowed()) {
+            noBody = true;
+            if (headers.getStatusCode() == 204) {
+                headers.removeHeader("Content-Length");
+            }
+            if (!headRequest) {
+                headers.removeHeader("Transfer-Encoding");
+            }
+            headers.write(outputStream);
+            return;
+        }
+        declaredLength = headers.hasChunkedBody() ? -1 : headers.getContentLength();
+        if (declaredLength < 0) {
+            if (chunkingSupported) {
+                headers.setHeader("Transfer-Encoding", "chunked");
+            } else {
+                headers.setHeader("Connection", "close");
+                closeConnection = true;
+            }
+        }
+        headers.write(outputStream);
+        chunked = headers.hasChunkedBody();
+        if (!chunked) {
+            if (bufferedBytes > 0) {
+                outputStream.write(buffer, 0, bufferedBytes);
+            }
+            bufferedBytes = 0;
+            buffer = null;
+        }
+    }
+
+    private void writeBody(byte[] data, int offset, int length) throws IOException {
+        if (!chunked) {
+            outputStream.write(data, offset, length);
+        } else if (bufferedBytes + length <= bufferSize) {
+            if (buffer == null) {
+                buffer = new byte[bufferSize];
+            }
+            System.arraycopy(data, offset, buffer, bufferedBytes, length);
+            bufferedBytes += length;
+        } else {
+            writePendingChunk();
+            if (length >= bufferSize) {
+                writeChunk(data, offset, length);
+            } else {
+                writeBody(data, offset, length);
+            }
+        }
+    }
+
+    private void writePendingChunk() throws IOException {
+        if (bufferedBytes > 0) {
+            writeChunk(buffer, 0, bufferedBytes);
+            bufferedBytes = 0;
+        }
+    }
+
+    private void writeChunk(byte[] data, int offset, int length) throws IOException {
+        outputStream.write(Integer.toHexString(length).getBytes(StandardCharsets.US_ASCII));
+        outputStream.write(CRLF);
+        outputStream.write(data, offset, length);
+        outputStream.write(CRLF);
+    }
+
+    private class BodyOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("Response is already finished");
+            }
+            bodyLength += length;
+            if (noBody || (!committed && noBodyAllowed())) {
+                return;
+            }
+            if (!committed) {
+                if (headers.getHeader("Content-Length") == null && headers.getHeader("Transfer-Encoding") == null
+                        && bufferedBytes + length <= bufferSize) {
+                    if (buffer == null) {
+                        buffer = new byte[bufferSize];
+                    }
+                    System.arraycopy(data, offset, buffer, bufferedBytes, length);
+                    bufferedBytes += length;
+                    return;
+                }
+                commit();
+            }
+            writeBody(data, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (!committed) {
+                commit();
+            }
+            if (chunked) {
+                writePendingChunk();
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            HttpServerResponse.this.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package serguei.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Inflater;
+
+/**
+ * A thread-safe pool of Inflaters used to decompress bodies
+ *
+ * Creating an Inflater allocates native memory which is freed only when the Inflater is ended (or garbage collected),
+ * so Inflaters are reset and reused instead. When the pool is empty, a new Inflater is created; when an Inflater is
+ * returned to a full pool, it is ended. Inflaters for gzip (raw deflate data) and deflate (zlib) formats are kept
+ * separately.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class InflaterPool {
+
+    private static final InflaterPool DEFAULT = new InflaterPool(32);
+
+    private final int maxPooled;
+    private final Deque<Inflater> rawInflaters = new ArrayDeque<>();
+    private final Deque<Inflater> zlibInflaters = new ArrayDeque<>();
+    private long createdCount;
+
+    /**
+     * @param maxPooled
+     *            - maximum number of idle Inflaters of each format kept in the pool
+     */
+    public InflaterPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return pool shared by all bodies received by clients and servers (up to 32 Inflaters of each format)
+     */
+    public static InflaterPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return number of Inflaters created by the pool
+     */
+    public synchronized long getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * @return number of idle Inflaters in the pool
+     */
+    public synchronized int getPooledCount() {
+        return rawInflaters.size() + zlibInflaters.size();
+    }
+
+    /**
+     * @param nowrap
+     *            - true for an Inflater of raw deflate data (used by gzip format), false for deflate (zlib) format
+     * @return Inflater which must be returned with release()
+     */
+    Inflater borrow(boolean nowrap) {
+        synchronized (this) {
+            Inflater inflater = (nowrap ? rawInflaters : zlibInflaters).pollFirst();
+            if (inflater != null) {
+                return inflater;
+            }
+            createdCount++;
+        }
+        return new Inflater(nowrap);
+    }
+
+    /**
+     * This resets the Inflater and returns it to the pool or ends it if the pool is full
+     */
+    void release(Inflater inflater, boolean nowrap) {
+        inflater.reset();
+        synchronized (this) {
+            Deque<Inflater> inflaters = nowrap ? rawInflaters : zlibInflaters;
+            if (inflaters.size() < maxPooled) {
+                inflaters.addFirst(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+}
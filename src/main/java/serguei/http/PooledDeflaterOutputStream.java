@@ -0,0 +1,95 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * This compresses data in gzip or deflate (zlib) format using a Deflater from a pool, the Deflater is returned to the
+ * pool when the stream is closed
+ *
+ * Unlike GZIPOutputStream this does not create a new Deflater, otherwise the gzip format is the same.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final DeflaterPool pool;
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+
+    /**
+     * @param out
+     *            - stream to write compressed data to
+     * @param pool
+     *            - pool to borrow a Deflater from
+     * @param gzip
+     *            - true for gzip format, false for deflate (zlib) format
+     */
+    PooledDeflaterOutputStream(OutputStream out, DeflaterPool pool, boolean gzip) throws IOException {
+        super(out, pool.borrow(gzip), BUFFER_SIZE);
+        this.pool = pool;
+        this.gzip = gzip;
+        if (gzip) {
+            try {
+                out.write(GZIP_HEADER);
+            } catch (IOException e) {
+                pool.release(def, gzip);
+                closed = true;
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        super.write(buffer, offset, len);
+        if (gzip) {
+            crc.update(buffer, offset, len);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (closed || def.finished()) {
+            return;
+        }
+        super.finish();
+        if (gzip) {
+            // trailer: CRC-32 and size of uncompressed data, both little-endian
+            writeInt((int)crc.getValue());
+            writeInt((int)def.getBytesRead());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            finish();
+            out.close();
+        } finally {
+            closed = true;
+            pool.release(def, gzip);
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+}
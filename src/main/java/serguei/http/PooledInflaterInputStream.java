@@ -0,0 +1,207 @@
+package serguei.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * This decompresses data in gzip or deflate (zlib or raw) format using an Inflater from a pool
+ *
+ * The Inflater is returned to the pool as soon as the end of the compressed data is reached or when the stream is
+ * closed or released, whichever happens first. Unlike GZIPInputStream this does not create a new Inflater, otherwise
+ * it reads gzip format the same way (including concatenated gzip members).
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class PooledInflaterInputStream extends InflaterInputStream {
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InflaterPool pool;
+    private final boolean gzip;
+    private final boolean nowrap;
+    private final CRC32 crc = new CRC32();
+    private boolean eof;
+    private boolean released;
+    private byte[] pending;
+    private int pendingPosition;
+
+    /**
+     * @param in
+     *            - stream with compressed data
+     * @param pool
+     *            - pool to borrow an Inflater from
+     * @param gzip
+     *            - true for gzip format, the gzip header is read straight away
+     * @param nowrap
+     *            - for deflate format: true if it is raw deflate data, false if it is zlib format
+     */
+    PooledInflaterInputStream(InputStream in, InflaterPool pool, boolean gzip, boolean nowrap) throws IOException {
+        super(in, pool.borrow(gzip || nowrap), BUFFER_SIZE);
+        this.pool = pool;
+        this.gzip = gzip;
+        this.nowrap = gzip || nowrap;
+        if (gzip) {
+            try {
+                readHeader();
+            } catch (IOException e) {
+                release();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        if (released) {
+            throw new IOException("Stream closed");
+        }
+        while (true) {
+            int read = super.read(buffer, offset, len);
+            if (read > 0 && gzip) {
+                crc.update(buffer, offset, read);
+            }
+            if (read != -1) {
+                return read;
+            }
+            if (!gzip || !readTrailer()) {
+                eof = true;
+                release();
+                return -1;
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof || released ? 0 : super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * This returns the Inflater to the pool without closing the underlying stream, after this the stream cannot be
+     * read (unless the end of data was reached)
+     */
+    void release() {
+        if (!released) {
+            released = true;
+            pool.release(inf, nowrap);
+        }
+    }
+
+    /**
+     * This checks the trailer of gzip member and reads the header of the next member if there is one
+     *
+     * @return true if there is a next member
+     */
+    private boolean readTrailer() throws IOException {
+        // the trailer and possibly the next member may have been read into the buffer already
+        int remaining = inf.getRemaining();
+        pending = Arrays.copyOfRange(buf, len - remaining, len);
+        pendingPosition = 0;
+        long expectedCrc = readInt();
+        long expectedSize = readInt();
+        if (expectedCrc != crc.getValue() || expectedSize != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+        int next = nextByte();
+        if (next == -1) {
+            return false;
+        }
+        int magic = next | (nextByte() << 8);
+        if (magic != GZIPInputStream.GZIP_MAGIC) {
+            // trailing garbage is ignored as GZIPInputStream does
+            return false;
+        }
+        readHeaderAfterMagic();
+        inf.reset();
+        crc.reset();
+        // data of the next member which is already read goes to the Inflater first
+        len = pending.length - pendingPosition;
+        if (len > 0) {
+            System.arraycopy(pending, pendingPosition, buf, 0, len);
+            inf.setInput(buf, 0, len);
+        }
+        pending = null;
+        return true;
+    }
+
+    private void readHeader() throws IOException {
+        if ((readByte() | (readByte() << 8)) != GZIPInputStream.GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        readHeaderAfterMagic();
+    }
+
+    private void readHeaderAfterMagic() throws IOException {
+        if (readByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readByte();
+        // modification time, extra flags and OS
+        skipBytes(6);
+        if ((flags & FEXTRA) != 0) {
+            skipBytes(readByte() | (readByte() << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            while (readByte() != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readByte() != 0) {
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            skipBytes(2);
+        }
+    }
+
+    private long readInt() throws IOException {
+        return (readByte() | (readByte() << 8) | (readByte() << 16) | ((long)readByte() << 24)) & 0xffffffffL;
+    }
+
+    private void skipBytes(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readByte();
+        }
+    }
+
+    private int readByte() throws IOException {
+        int result = nextByte();
+        if (result == -1) {
+            throw new EOFException();
+        }
+        return result;
+    }
+
+    /**
+     * @return next byte of gzip header or trailer, -1 if it is the end of data
+     */
+    private int nextByte() throws IOException {
+        if (pending != null && pendingPosition < pending.length) {
+            return pending[pendingPosition++] & 0xff;
+        }
+        return in.read();
+    }
+}
@@ -0,0 +1,128 @@
+package serguei.http;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request sent from an executor thread over a connection leased from a pool, it can be cancelled from another thread
+ *
+ * When the request completes (successfully or not) its result is set and it is added to the queue of completed
+ * requests. If it is cancelled first, the result is a cancelled one and the request is never added to the queue.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+class PooledRequest implements Runnable {
+
+    private final HttpClientConnectionPool pool;
+    private final BatchRequest request;
+    private final long batchStart;
+    private final Queue<PooledRequest> completed;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile Future<?> future;
+    private volatile HttpClientConnection connection;
+    private volatile long leaseMs = -1;
+    private volatile BatchResult result;
+
+    /**
+     * @param pool
+     *            - pool to lease a connection from
+     * @param request
+     *            - request to send
+     * @param batchStart
+     *            - time when the batch (or a group of requests) started, completion time is measured from it
+     * @param completed
+     *            - queue to add this request to when it completes
+     */
+    PooledRequest(HttpClientConnectionPool pool, BatchRequest request, long batchStart,
+            Queue<PooledRequest> completed) {
+        this.pool = pool;
+        this.request = request;
+        this.batchStart = batchStart;
+        this.completed = completed;
+    }
+
+    void start(ExecutorService executor) {
+        future = executor.submit(this);
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        HttpClientConnection leasedConnection = null;
+        try {
+            leasedConnection = lease(pool, request);
+            long sendStart = System.currentTimeMillis();
+            leaseMs = sendStart - start;
+            connection = leasedConnection;
+            if (finished.get()) {
+                // cancelled while waiting for the connection, it is still good to be reused
+                connection = null;
+                pool.release(leasedConnection);
+                return;
+            }
+            // the connection adds headers (like Content-Length) before sending, so every attempt gets its own copy
+            HttpResponse response = leasedConnection
+                    .send(new HttpRequestHeaders(request.getHeaders()), request.getBody()).buffered();
+            long end = System.currentTimeMillis();
+            connection = null;
+            pool.release(leasedConnection);
+            complete(new BatchResult(request, response, null, leaseMs, end - sendStart, end - batchStart));
+        } catch (IOException | RuntimeException e) {
+            connection = null;
+            if (leasedConnection != null) {
+                pool.discard(leasedConnection);
+            }
+            complete(new BatchResult(request, null, e, leaseMs, -1, System.currentTimeMillis() - batchStart));
+        }
+    }
+
+    /**
+     * This cancels the request unless it is completed: if it has not started, it will not be sent, if it is in
+     * progress, its connection is aborted (and discarded from the pool)
+     */
+    void cancel() {
+        if (finished.compareAndSet(false, true)) {
+            result = new BatchResult(request, null, null, leaseMs, -1, -1);
+            Future<?> future = this.future;
+            if (future != null) {
+                // this stops waiting for a connection
+                future.cancel(true);
+            }
+            HttpClientConnection connection = this.connection;
+            if (connection != null) {
+                connection.abort();
+            }
+        }
+    }
+
+    /**
+     * @return result if the request is completed or cancelled, null otherwise
+     */
+    BatchResult getResult() {
+        return result;
+    }
+
+    /**
+     * This leases a connection to the server of the request (plain or TLS)
+     */
+    static HttpClientConnection lease(HttpClientConnectionPool pool, BatchRequest request) throws IOException {
+        if (!request.isTls()) {
+            return pool.lease(request.getHost(), request.getPort());
+        } else if (request.getSslContext() == null) {
+            return pool.leaseTls(request.getHost(), request.getPort());
+        } else {
+            return pool.leaseTls(request.getHost(), request.getPort(), request.getSslContext());
+        }
+    }
+
+    private void complete(BatchResult result) {
+        if (finished.compareAndSet(false, true)) {
+            this.result = result;
+            completed.add(this);
+        }
+    }
+}
@@ -27,6 +27,8 @@ public class ServerOptions {
     private boolean tcpNoDelay;
     private boolean needClientAuthentication;
     private int waitForProcessesToFinishOnShutdownMs = WAIT_FOR_PROCESSES_TO_FINISH_MS;
+    private boolean keepRawHeaders;
+    private boolean http2Enabled;
 
     InetAddress getInetAddress() {
         return inetAddress;
@@ -216,4 +218,44 @@ public class ServerOptions {
         this.waitForProcessesToFinishOnShutdownMs = waitForProcessesToFinishOnShutdownMs;
         return this;
     }
+
+    boolean isKeepRawHeaders() {
+        return keepRawHeaders;
+    }
+
+    /**
+     * Keep original bytes of request headers
+     * 
+     * When this is on, request headers (and their copies) are written exactly as
+     * they were received (with the original order and case of header names), only
+     * headers changed after receiving the request are written anew. This is
+     * useful when requests are forwarded to a different server (e.g. in a proxy).
+     * 
+     * @param keepRawHeaders - true to keep original bytes, default - false
+     * @return this
+     */
+    public ServerOptions setKeepRawHeaders(boolean keepRawHeaders) {
+        this.keepRawHeaders = keepRawHeaders;
+        return this;
+    }
+
+    boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Enable HTTP/2
+     * 
+     * When it is enabled, HTTP/2 is offered to TLS clients via ALPN and plain
+     * connections starting with HTTP/2 preface (prior knowledge) are served as
+     * HTTP/2. Requests received over HTTP/2 are passed to the same request
+     * handler, the response it writes is converted into HTTP/2 frames.
+     * 
+     * @param http2Enabled - true to enable HTTP/2, default - false
+     * @return this
+     */
+    public ServerOptions setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+        return this;
+    }
 }
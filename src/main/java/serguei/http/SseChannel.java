@@ -0,0 +1,306 @@
+package serguei.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import serguei.http.utils.Utils;
+
+/**
+ * This is a channel of Server-Sent Events (text/event-stream). Clients subscribe to the channel and every event sent
+ * to the channel is delivered to all subscribers.
+ *
+ * The channel is meant to be used with AsyncHttpServerRequestHandler, so subscribed connections do not hold server
+ * threads:
+ *
+ * <pre>
+ * HttpServer server = new HttpServer((connectionContext, request) -> channel.subscribe(connectionContext, request), 8080);
+ * </pre>
+ *
+ * An event is encoded once and the same bytes are written to all subscribers by a small pool of writer threads. Each
+ * subscriber has a bounded queue of events: if a subscriber cannot keep up and its queue overflows, it is evicted (its
+ * connection is closed) so it does not hold memory or writer threads. A comment is sent to all subscribers
+ * periodically as a heartbeat, this keeps intermediaries from closing idle connections and detects clients which went
+ * away.
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class SseChannel implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int DEFAULT_HEARTBEAT_INTERVAL_MS = 15000;
+
+    private static final EncodedEvent HEARTBEAT = new EncodedEvent(":\n\n");
+
+    private final int queueCapacity;
+    private final ScheduledExecutorService executor;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Creates a channel with default queue capacity, heartbeat interval and a writer thread per processor
+     */
+    public SseChannel() {
+        this(DEFAULT_QUEUE_CAPACITY, DEFAULT_HEARTBEAT_INTERVAL_MS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param queueCapacity
+     *            - maximum number of events waiting to be written to one subscriber, if it is exceeded the subscriber
+     *            is evicted
+     * @param heartbeatIntervalMs
+     *            - interval between heartbeat comments, if zero - heartbeats are not sent
+     * @param writerThreads
+     *            - number of threads writing events to subscribers
+     */
+    public SseChannel(int queueCapacity, int heartbeatIntervalMs, int writerThreads) {
+        this.queueCapacity = queueCapacity;
+        this.executor = Executors.newScheduledThreadPool(writerThreads);
+        if (heartbeatIntervalMs > 0) {
+            executor.scheduleAtFixedRate(() -> broadcast(HEARTBEAT), heartbeatIntervalMs, heartbeatIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * This subscribes the client which sent the request to the channel. It sends the response headers and returns
+     * a stage which completes when the subscriber leaves the channel, the connection is closed after that.
+     *
+     * This must be called from AsyncHttpServerRequestHandler and its result should be returned by the handler.
+     *
+     * @param connectionContext
+     *            - context passed to the handler
+     * @param request
+     *            - request passed to the handler
+     * @return stage which should be returned by the handler
+     * @throws IOException
+     *             - if the response headers cannot be sent
+     */
+    public CompletionStage<AsyncResponse> subscribe(ConnectionContext connectionContext, HttpRequest request)
+            throws IOException {
+        OutputStream outputStream = connectionContext.getOutputStream();
+        if (outputStream == null) {
+            throw new IllegalStateException("Only connections of HttpServer can subscribe to a channel");
+        }
+        if (closed) {
+            HttpResponseHeaders headers = new HttpResponseHeaders("HTTP/1.1 503 Service Unavailable");
+            return CompletableFuture.completedFuture(new AsyncResponse(headers, (byte[])null));
+        }
+        boolean chunked = !request.getVersion().equals("HTTP/1.0");
+        HttpResponseHeaders headers = HttpResponseHeaders.ok();
+        headers.setHeader("Content-Type", "text/event-stream");
+        headers.setHeader("Cache-Control", "no-cache");
+        if (chunked) {
+            headers.setHeader("Transfer-Encoding", "chunked");
+        } else {
+            headers.setHeader("Connection", "close");
+        }
+        headers.write(outputStream);
+        outputStream.flush();
+        Subscriber subscriber = new Subscriber(connectionContext, outputStream, chunked);
+        // a subscription lasts until the client or the channel ends it, the server timeout does not apply
+        connectionContext.setAsyncTimeoutMillis(0);
+        subscriber.future.whenComplete((response, error) -> {
+            if (error != null) {
+                // the server gave up on the connection
+                remove(subscriber, false);
+            }
+        });
+        subscribers.add(subscriber);
+        if (closed) {
+            remove(subscriber, false);
+        }
+        return subscriber.future;
+    }
+
+    /**
+     * Sends an event with data only, it will be dispatched by clients as "message" event
+     */
+    public void send(String data) {
+        send(null, null, data);
+    }
+
+    /**
+     * Sends a named event
+     */
+    public void send(String event, String data) {
+        send(null, event, data);
+    }
+
+    /**
+     * Sends an event
+     *
+     * @param id
+     *            - event id, if null - id is not sent
+     * @param event
+     *            - event name, if null - the event will be dispatched by clients as "message" event
+     * @param data
+     *            - event data, it can have several lines
+     */
+    public void send(String id, String event, String data) {
+        StringBuilder builder = new StringBuilder();
+        if (id != null) {
+            builder.append("id: ").append(id).append('\n');
+        }
+        if (event != null) {
+            builder.append("event: ").append(event).append('\n');
+        }
+        int start = 0;
+        while (true) {
+            int end = start;
+            while (end < data.length() && data.charAt(end) != '\n' && data.charAt(end) != '\r') {
+                end++;
+            }
+            builder.append("data: ").append(data, start, end).append('\n');
+            if (end == data.length()) {
+                break;
+            }
+            start = data.startsWith("\r\n", end) ? end + 2 : end + 1;
+        }
+        builder.append('\n');
+        broadcast(new EncodedEvent(builder.toString()));
+    }
+
+    /**
+     * @return current number of subscribers
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return number of subscribers evicted because they could not keep up with events
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Closes connections of all subscribers and stops writer threads
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            remove(subscriber, false);
+        }
+    }
+
+    private void broadcast(EncodedEvent event) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.enqueue(event);
+        }
+    }
+
+    private void remove(Subscriber subscriber, boolean evicted) {
+        if (subscribers.remove(subscriber)) {
+            if (evicted) {
+                evictedCount.incrementAndGet();
+            }
+            // closing the socket unblocks a writer thread which might be stuck writing to it
+            Utils.closeQuietly(subscriber.connectionContext.getSocket());
+            subscriber.future.complete(null);
+        }
+    }
+
+    private static class EncodedEvent {
+
+        private static final byte[] CRLF = {13, 10};
+
+        // the event as a chunk of chunked body, the event itself is in the middle
+        private final byte[] chunk;
+        private final int offset;
+        private final int length;
+
+        private EncodedEvent(String text) {
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            byte[] chunkHeader = (Integer.toHexString(data.length)).getBytes(StandardCharsets.US_ASCII);
+            chunk = new byte[chunkHeader.length + CRLF.length + data.length + CRLF.length];
+            System.arraycopy(chunkHeader, 0, chunk, 0, chunkHeader.length);
+            System.arraycopy(CRLF, 0, chunk, chunkHeader.length, CRLF.length);
+            offset = chunkHeader.length + CRLF.length;
+            length = data.length;
+            System.arraycopy(data, 0, chunk, offset, length);
+            System.arraycopy(CRLF, 0, chunk, offset + length, CRLF.length);
+        }
+
+        private void write(OutputStream outputStream, boolean chunked) throws IOException {
+            if (chunked) {
+                outputStream.write(chunk);
+            } else {
+                outputStream.write(chunk, offset, length);
+            }
+        }
+    }
+
+    private class Subscriber implements Runnable {
+
+        private final ConnectionContext connectionContext;
+        private final OutputStream outputStream;
+        private final boolean chunked;
+        private final Queue<EncodedEvent> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final CompletableFuture<AsyncResponse> future = new CompletableFuture<>();
+
+        private Subscriber(ConnectionContext connectionContext, OutputStream outputStream, boolean chunked) {
+            this.connectionContext = connectionContext;
+            this.outputStream = outputStream;
+            this.chunked = chunked;
+        }
+
+        private void enqueue(EncodedEvent event) {
+            if (!queue.offer(event)) {
+                remove(this, true);
+                return;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the channel is closed
+                    remove(this, false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                EncodedEvent event;
+                while ((event = queue.poll()) != null) {
+                    event.write(outputStream, chunked);
+                }
+                outputStream.flush();
+            } catch (Exception e) {
+                // the client went away or the subscriber was evicted
+                remove(this, false);
+                return;
+            } finally {
+                scheduled.set(false);
+            }
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
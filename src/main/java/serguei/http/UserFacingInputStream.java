@@ -38,6 +38,10 @@ class UserFacingInputStream extends FilterInputStream {
 
     @Override
     public void close() throws IOException {
+        if (in instanceof PooledInflaterInputStream) {
+            // the Inflater goes back to the pool, the compressed data is drained below
+            ((PooledInflaterInputStream)in).release();
+        }
         if (streamToDrainOfData != null) {
             Utils.drainStream(streamToDrainOfData);
         } else if (!eof) {
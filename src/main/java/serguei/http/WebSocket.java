@@ -0,0 +1,587 @@
+package serguei.http;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * This is a WebSocket connection (RFC 6455) established by upgrading an HTTP connection.
+ *
+ * On the server side a request handler checks the request with isUpgradeRequest() and calls accept(), which sends
+ * "101 Switching Protocols" response. After that the handler exchanges messages on the same thread and returns when
+ * the WebSocket is closed, the connection is closed after that. Upgrade requests can also be validated (e.g. checking
+ * Origin) earlier by HttpServerOnRequestHeadersProcess using isUpgradeRequest(HttpRequestHeaders).
+ *
+ * On the client side WebSocket is created by HttpClientConnection.upgradeToWebSocket().
+ *
+ * Messages bigger than the maximum frame size are sent as several fragments. Sending can be done by several threads,
+ * receiving - by one thread at a time. Pings are answered automatically while receiving. Received text messages and
+ * close reasons must be valid UTF-8 (otherwise the WebSocket is closed with 1007), close status codes must be ones
+ * which can be sent (otherwise it is closed with 1002).
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class WebSocket implements Closeable {
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 65536;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_NO_STATUS = 1005;
+    public static final int CLOSE_INVALID_DATA = 1007;
+    public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int MASKING_BUFFER_SIZE = 8192;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final boolean client;
+    private final Closeable connection;
+    private final Object sendLock = new Object();
+    // buffers reused for every frame, so sending and receiving do not allocate apart from message payloads
+    private final byte[] sendHeader = new byte[14];
+    private final byte[] sendMask = new byte[4];
+    private final byte[] maskingBuffer;
+    private final byte[] receiveMask = new byte[4];
+    private final byte[] controlPayload = new byte[MAX_CONTROL_PAYLOAD];
+    private final SecureRandom random;
+    private byte[] fragments = EMPTY;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private volatile boolean closeSent;
+    private volatile boolean closeReceived;
+    private volatile int closeCode = -1;
+
+    WebSocket(InputStream inputStream, OutputStream outputStream, boolean client, Closeable connection) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.client = client;
+        this.connection = connection;
+        this.maskingBuffer = client ? new byte[MASKING_BUFFER_SIZE] : null;
+        this.random = client ? new SecureRandom() : null;
+    }
+
+    /**
+     * @return true if the request asks to upgrade the connection to WebSocket
+     */
+    public static boolean isUpgradeRequest(HttpRequest request) {
+        return isUpgradeRequest(request.getMethod(), request.getHeader("Upgrade"), request.getHeaders("Connection"),
+                request.getHeader("Sec-WebSocket-Key"));
+    }
+
+    /**
+     * @return true if the request asks to upgrade the connection to WebSocket
+     */
+    public static boolean isUpgradeRequest(HttpRequestHeaders requestHeaders) {
+        return isUpgradeRequest(requestHeaders.getMethod(), requestHeaders.getHeader("Upgrade"),
+                requestHeaders.getHeaders("Connection"), requestHeaders.getHeader("Sec-WebSocket-Key"));
+    }
+
+    /**
+     * This accepts the upgrade request: it sends "101 Switching Protocols" response and returns WebSocket, the
+     * connection is closed when the handler returns.
+     *
+     * @param connectionContext
+     *            - context passed to the request handler
+     * @param request
+     *            - request passed to the request handler
+     * @param outputStream
+     *            - output stream passed to the request handler
+     * @return WebSocket to exchange messages with the client
+     * @throws HttpException
+     *             - if this is not a valid WebSocket upgrade request
+     */
+    public static WebSocket accept(ConnectionContext connectionContext, HttpRequest request,
+            OutputStream outputStream) throws IOException {
+        return accept(connectionContext, request, outputStream, 0);
+    }
+
+    /**
+     * This accepts the upgrade request like accept(connectionContext, request, outputStream), the request timeout of
+     * the server does not apply to the WebSocket
+     *
+     * @param idleTimeoutMs
+     *            - maximum time to wait for the next frame in receive(), 0 - no timeout
+     */
+    public static WebSocket accept(ConnectionContext connectionContext, HttpRequest request,
+            OutputStream outputStream, int idleTimeoutMs) throws IOException {
+        if (connectionContext.getInputStream() == null) {
+            // HTTP/2 connection is shared by streams, it cannot be taken over by WebSocket
+            throw new HttpException("WebSocket cannot be accepted on HTTP/2 connection");
+        }
+        if (!isUpgradeRequest(request)) {
+            throw new HttpException("Not a WebSocket upgrade request");
+        }
+        if (!"13".equals(request.getHeader("Sec-WebSocket-Version"))) {
+            HttpResponseHeaders headers = new HttpResponseHeaders("HTTP/1.1 426 Upgrade Required",
+                    "Sec-WebSocket-Version: 13", "Content-Length: 0");
+            headers.write(outputStream);
+            throw new HttpException("Unsupported WebSocket version " + request.getHeader("Sec-WebSocket-Version"));
+        }
+        HttpResponseHeaders headers = new HttpResponseHeaders("HTTP/1.1 101 Switching Protocols", "Upgrade: websocket",
+                "Connection: Upgrade");
+        headers.setHeader("Sec-WebSocket-Accept", acceptKey(request.getHeader("Sec-WebSocket-Key")));
+        headers.write(outputStream);
+        outputStream.flush();
+        connectionContext.closeConnection();
+        Socket socket = connectionContext.getSocket();
+        if (socket != null) {
+            socket.setSoTimeout(idleTimeoutMs);
+        }
+        return new WebSocket(connectionContext.getInputStream(), outputStream, false, null);
+    }
+
+    /**
+     * @param maxFrameSize
+     *            - messages with payload bigger than this are sent in several frames
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @param maxMessageSize
+     *            - maximum size of a received message, if a bigger message arrives, the WebSocket is closed with
+     *            status 1009
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public void sendText(String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        sendMessage(OPCODE_TEXT, data, 0, data.length);
+    }
+
+    public void sendBinary(byte[] data) throws IOException {
+        sendMessage(OPCODE_BINARY, data, 0, data.length);
+    }
+
+    public void sendBinary(byte[] data, int offset, int length) throws IOException {
+        sendMessage(OPCODE_BINARY, data, offset, length);
+    }
+
+    /**
+     * @param data
+     *            - ping payload, up to 125 bytes
+     */
+    public void sendPing(byte[] data) throws IOException {
+        if (data.length > MAX_CONTROL_PAYLOAD) {
+            throw new IllegalArgumentException("Ping payload cannot be longer than " + MAX_CONTROL_PAYLOAD);
+        }
+        synchronized (sendLock) {
+            writeFrame(OPCODE_PING, true, data, 0, data.length);
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * This waits for the next message. Pings are answered and pongs are skipped while waiting.
+     *
+     * @return the message or null if the other side closed the WebSocket
+     * @throws HttpException
+     *             - if the other side does not follow the protocol, the WebSocket is closed in this case
+     */
+    public WebSocketMessage receive() throws IOException {
+        int messageOpcode = -1;
+        int messageLength = 0;
+        while (true) {
+            if (closeReceived) {
+                return null;
+            }
+            int b0 = readByte();
+            int b1 = readByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+                if (length < 126) {
+                    throw protocolError(CLOSE_PROTOCOL_ERROR, "Non-minimal WebSocket payload length");
+                }
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+                // the most significant bit must be 0
+                if (length < 0) {
+                    throw protocolError(CLOSE_PROTOCOL_ERROR, "Wrong WebSocket payload length");
+                }
+                if (length <= 0xFFFF) {
+                    throw protocolError(CLOSE_PROTOCOL_ERROR, "Non-minimal WebSocket payload length");
+                }
+            }
+            if ((b0 & 0x70) != 0) {
+                throw protocolError(CLOSE_PROTOCOL_ERROR, "Unexpected reserved bits in WebSocket frame");
+            }
+            if (masked == client) {
+                throw protocolError(CLOSE_PROTOCOL_ERROR,
+                        client ? "Masked frame received from server" : "Unmasked frame received from client");
+            }
+            if (masked) {
+                readFully(receiveMask, 0, 4);
+            }
+            if (opcode >= OPCODE_CLOSE) {
+                if (!fin || length > MAX_CONTROL_PAYLOAD) {
+                    throw protocolError(CLOSE_PROTOCOL_ERROR, "Wrong control frame");
+                }
+                readPayload(controlPayload, 0, (int)length, masked);
+                processControlFrame(opcode, (int)length);
+                continue;
+            }
+            if (opcode == OPCODE_CONTINUATION ? messageOpcode < 0 : messageOpcode >= 0 || opcode > OPCODE_BINARY) {
+                throw protocolError(CLOSE_PROTOCOL_ERROR, "Unexpected WebSocket frame with opcode " + opcode);
+            }
+            if (messageLength + length > maxMessageSize) {
+                throw protocolError(CLOSE_MESSAGE_TOO_BIG, "WebSocket message is too big");
+            }
+            if (opcode != OPCODE_CONTINUATION) {
+                messageOpcode = opcode;
+            }
+            if (fin && messageLength == 0) {
+                // the most common case - the message fits into one frame, it is read straight into the result
+                byte[] data = new byte[(int)length];
+                readPayload(data, 0, data.length, masked);
+                return message(messageOpcode, data);
+            }
+            if (fragments.length < messageLength + length) {
+                fragments = Arrays.copyOf(fragments, Math.max((int)(messageLength + length), fragments.length * 2));
+            }
+            readPayload(fragments, messageLength, (int)length, masked);
+            messageLength += length;
+            if (fin) {
+                byte[] data = Arrays.copyOf(fragments, messageLength);
+                if (fragments.length > maxFrameSize) {
+                    fragments = EMPTY;
+                }
+                return message(messageOpcode, data);
+            }
+        }
+    }
+
+    /**
+     * @return true if close frame was neither sent nor received
+     */
+    public boolean isOpen() {
+        return !closeSent && !closeReceived;
+    }
+
+    /**
+     * @return status code received in the close frame from the other side, 1005 if it did not have a status code, -1
+     *         if close frame was not received
+     */
+    public int getCloseCode() {
+        return closeCode;
+    }
+
+    /**
+     * Closes WebSocket with status 1000 (normal closure)
+     */
+    @Override
+    public void close() throws IOException {
+        close(CLOSE_NORMAL, "");
+    }
+
+    /**
+     * This sends close frame and waits for close frame from the other side (messages arriving in between are
+     * discarded), then closes the connection
+     *
+     * @param code
+     *            - status code
+     * @param reason
+     *            - reason, it should be short (its UTF-8 encoding should be not longer than 123 bytes)
+     */
+    public void close(int code, String reason) throws IOException {
+        try {
+            sendClose(code, reason);
+            while (!closeReceived) {
+                try {
+                    receive();
+                } catch (HttpException e) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // the other side closed the connection without sending close frame
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * This applies WebSocket mask (XOR with 4 byte key) to the data in place, 4 bytes at a time
+     *
+     * @return position in the key where the next portion of data should start
+     */
+    static int mask(byte[] data, int offset, int length, byte[] key, int keyPosition) {
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end && (keyPosition & 3) != 0) {
+            data[pos++] ^= key[keyPosition++ & 3];
+        }
+        // the key is aligned with pos here, the loop is simple enough for JIT to unroll it
+        byte key0 = key[0];
+        byte key1 = key[1];
+        byte key2 = key[2];
+        byte key3 = key[3];
+        for (int limit = end - 3; pos < limit; pos += 4) {
+            data[pos] ^= key0;
+            data[pos + 1] ^= key1;
+            data[pos + 2] ^= key2;
+            data[pos + 3] ^= key3;
+        }
+        while (pos < end) {
+            data[pos++] ^= key[keyPosition++ & 3];
+        }
+        return keyPosition & 3;
+    }
+
+    /**
+     * @return true if the code can be received in a close frame (RFC 6455 7.4), i.e. it is defined by the protocol and
+     *         not reserved for local use (like 1005), or it is in the range for libraries and applications
+     */
+    static boolean isValidCloseCode(int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+    }
+
+    /**
+     * This checks that the bytes are well-formed UTF-8 (RFC 3629): no overlong forms, surrogates or code points above
+     * U+10FFFF
+     */
+    static boolean isValidUtf8(byte[] data, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            int b = data[pos++] & 0xFF;
+            if (b < 0x80) {
+                continue;
+            }
+            int continuation;
+            int min;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                continuation = 1;
+                min = 0x80;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuation = 2;
+                // no overlong forms after E0, no surrogates after ED
+                min = b == 0xE0 ? 0xA0 : 0x80;
+                max = b == 0xED ? 0x9F : 0xBF;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuation = 3;
+                // no overlong forms after F0, nothing above U+10FFFF after F4
+                min = b == 0xF0 ? 0x90 : 0x80;
+                max = b == 0xF4 ? 0x8F : 0xBF;
+            } else {
+                return false;
+            }
+            if (end - pos < continuation) {
+                return false;
+            }
+            int next = data[pos++] & 0xFF;
+            if (next < min || next > max) {
+                return false;
+            }
+            for (int i = 1; i < continuation; i++) {
+                if ((data[pos++] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUpgradeRequest(String method, String upgrade, List<String> connection,
+            String key) {
+        if (!"GET".equals(method) || upgrade == null || !upgrade.equalsIgnoreCase("websocket") || key == null
+                || connection == null) {
+            return false;
+        }
+        for (String value : connection) {
+            for (String token : value.split(",")) {
+                if (token.trim().equalsIgnoreCase("upgrade")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void sendMessage(int opcode, byte[] data, int offset, int length) throws IOException {
+        synchronized (sendLock) {
+            if (closeSent) {
+                throw new IOException("WebSocket is closed");
+            }
+            int frameOpcode = opcode;
+            while (length > maxFrameSize) {
+                writeFrame(frameOpcode, false, data, offset, maxFrameSize);
+                frameOpcode = OPCODE_CONTINUATION;
+                offset += maxFrameSize;
+                length -= maxFrameSize;
+            }
+            writeFrame(frameOpcode, true, data, offset, length);
+            outputStream.flush();
+        }
+    }
+
+    private void sendClose(int code, String reason) throws IOException {
+        synchronized (sendLock) {
+            if (closeSent) {
+                return;
+            }
+            closeSent = true;
+            byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(reasonBytes.length, MAX_CONTROL_PAYLOAD - 2);
+            byte[] payload = new byte[length + 2];
+            payload[0] = (byte)(code >> 8);
+            payload[1] = (byte)code;
+            System.arraycopy(reasonBytes, 0, payload, 2, length);
+            writeFrame(OPCODE_CLOSE, true, payload, 0, payload.length);
+            outputStream.flush();
+        }
+    }
+
+    private void processControlFrame(int opcode, int length) throws IOException {
+        if (opcode == OPCODE_PING) {
+            synchronized (sendLock) {
+                if (!closeSent) {
+                    writeFrame(OPCODE_PONG, true, controlPayload, 0, length);
+                    outputStream.flush();
+                }
+            }
+        } else if (opcode == OPCODE_CLOSE) {
+            int code = CLOSE_NO_STATUS;
+            if (length >= 2) {
+                code = ((controlPayload[0] & 0xFF) << 8) | (controlPayload[1] & 0xFF);
+            }
+            if (length == 1 || (length >= 2 && !isValidCloseCode(code))) {
+                throw protocolError(CLOSE_PROTOCOL_ERROR, "Wrong status code in WebSocket close frame");
+            }
+            if (length > 2 && !isValidUtf8(controlPayload, 2, length - 2)) {
+                throw protocolError(CLOSE_INVALID_DATA, "Close reason is not valid UTF-8");
+            }
+            closeReceived = true;
+            closeCode = code;
+            sendClose(length >= 2 ? closeCode : CLOSE_NORMAL, "");
+        } else if (opcode != OPCODE_PONG) {
+            throw protocolError(CLOSE_PROTOCOL_ERROR, "Unknown WebSocket control frame with opcode " + opcode);
+        }
+    }
+
+    private void writeFrame(int opcode, boolean fin, byte[] data, int offset, int length) throws IOException {
+        int pos = 0;
+        sendHeader[pos++] = (byte)((fin ? 0x80 : 0) | opcode);
+        int maskBit = client ? 0x80 : 0;
+        if (length < 126) {
+            sendHeader[pos++] = (byte)(maskBit | length);
+        } else if (length <= 0xFFFF) {
+            sendHeader[pos++] = (byte)(maskBit | 126);
+            sendHeader[pos++] = (byte)(length >> 8);
+            sendHeader[pos++] = (byte)length;
+        } else {
+            sendHeader[pos++] = (byte)(maskBit | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                sendHeader[pos++] = (byte)((long)length >> shift);
+            }
+        }
+        if (!client) {
+            outputStream.write(sendHeader, 0, pos);
+            outputStream.write(data, offset, length);
+            return;
+        }
+        int key = random.nextInt();
+        for (int i = 0; i < 4; i++) {
+            sendMask[i] = (byte)(key >> (24 - i * 8));
+            sendHeader[pos++] = sendMask[i];
+        }
+        outputStream.write(sendHeader, 0, pos);
+        // the caller's data must not be changed, so it is masked in portions in a reusable buffer
+        while (length > 0) {
+            int portion = Math.min(length, maskingBuffer.length);
+            System.arraycopy(data, offset, maskingBuffer, 0, portion);
+            mask(maskingBuffer, 0, portion, sendMask, 0);
+            outputStream.write(maskingBuffer, 0, portion);
+            offset += portion;
+            length -= portion;
+        }
+    }
+
+    private void readPayload(byte[] buffer, int offset, int length, boolean masked) throws IOException {
+        readFully(buffer, offset, length);
+        if (masked) {
+            mask(buffer, offset, length, receiveMask, 0);
+        }
+    }
+
+    private WebSocketMessage message(int opcode, byte[] data) throws IOException {
+        if (opcode == OPCODE_TEXT && !isValidUtf8(data, 0, data.length)) {
+            throw protocolError(CLOSE_INVALID_DATA, "WebSocket text message is not valid UTF-8");
+        }
+        return new WebSocketMessage(opcode == OPCODE_TEXT, data);
+    }
+
+    private HttpException protocolError(int code, String message) throws IOException {
+        try {
+            sendClose(code, "");
+        } catch (IOException e) {
+            // we are failing anyway
+        }
+        closeReceived = true;
+        return new HttpException(message);
+    }
+
+    private int readByte() throws IOException {
+        int b = inputStream.read();
+        if (b < 0) {
+            throw new EOFException("WebSocket connection closed");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = inputStream.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException("WebSocket connection closed");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
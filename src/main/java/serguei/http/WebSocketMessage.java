@@ -0,0 +1,46 @@
+package serguei.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message received from a WebSocket (fragments of a message are already put together)
+ *
+ * @author Serguei Poliakov
+ *
+ */
+public class WebSocketMessage {
+
+    private final boolean text;
+    private final byte[] data;
+
+    WebSocketMessage(boolean text, byte[] data) {
+        this.text = text;
+        this.data = data;
+    }
+
+    /**
+     * @return true if this is a text message or false if it is a binary one
+     */
+    public boolean isText() {
+        return text;
+    }
+
+    /**
+     * @return payload of the message decoded from UTF-8
+     */
+    public String getText() {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return payload of the message
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return text ? getText() : "Binary message of " + data.length + " bytes";
+    }
+}
@@ -0,0 +1,176 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import serguei.http.utils.Utils;
+
+public class AsyncHttpClientTest {
+
+    private static final int PORT = 8100;
+    private static final int NO_SERVER_PORT = 8101;
+    private static final int REQUESTS = 200;
+
+    private HttpServer server;
+    private AsyncHttpClient client;
+
+    @Before
+    public void setup() throws IOException {
+        server = new HttpServer(new Handler(), PORT);
+        server.start(3, 500);
+        client = new AsyncHttpClient();
+    }
+
+    @After
+    public void clearUp() {
+        client.close();
+        server.stopNow();
+    }
+
+    @Test
+    public void shouldReceiveResponse() throws Exception {
+        HttpResponse response = client.send(get("/hello")).get();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("GET /hello", response.readBodyAsString());
+    }
+
+    @Test
+    public void shouldSendManyRequestsConcurrently() throws Exception {
+        List<CompletableFuture<HttpResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            futures.add(client.send("localhost", PORT, new HttpRequestHeaders("GET /" + i + " HTTP/1.1",
+                    "Host: localhost")));
+        }
+
+        for (int i = 0; i < REQUESTS; i++) {
+            assertEquals("GET /" + i, futures.get(i).get().readBodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldReuseConnection() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            HttpResponse response = client.send(get("/" + i)).get();
+            assertEquals("GET /" + i, response.readBodyAsString());
+        }
+
+        assertEquals(1, server.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldSendBodyAndReceiveChunkedResponse() throws Exception {
+        byte[] body = Utils.buildDataArray(100000);
+        HttpRequestHeaders requestHeaders = new HttpRequestHeaders("POST /echo HTTP/1.1", "Host: localhost:" + PORT);
+
+        HttpResponse response1 = client.send(requestHeaders, body).get();
+        HttpResponse response2 = client.send(get("/next")).get();
+
+        assertTrue(response1.isContentChunked());
+        assertArrayEquals(body, response1.readBodyAsBytes());
+        assertEquals("GET /next", response2.readBodyAsString());
+        assertEquals(1, server.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldReceiveResponseWithoutBodyToHeadRequest() throws Exception {
+        HttpResponse response = client.send(new HttpRequestHeaders("HEAD /head HTTP/1.1", "Host: localhost:" + PORT))
+                .get();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(10, response.getContentLength());
+        assertFalse(response.hasBody());
+    }
+
+    @Test
+    public void shouldOpenNewConnectionWhenServerClosesIdleOne() throws Exception {
+        HttpResponse response1 = client.send(get("/close")).get();
+        HttpResponse response2 = client.send(get("/next")).get();
+
+        assertEquals("GET /close", response1.readBodyAsString());
+        assertEquals("GET /next", response2.readBodyAsString());
+        assertEquals(2, server.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldTimeOut() throws Exception {
+        client.setTimeoutMillis(100);
+
+        try {
+            client.send(get("/slow")).get();
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void shouldFailWhenServerIsNotAvailable() throws Exception {
+        try {
+            client.send(HttpRequestHeaders.getRequest("http://localhost:" + NO_SERVER_PORT + "/")).get();
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConnectException);
+        }
+    }
+
+    @Test
+    public void shouldFailRequestsAfterClose() throws Exception {
+        client.close();
+
+        try {
+            client.send(get("/")).get();
+            fail("Exception expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HttpException);
+        }
+    }
+
+    private static HttpRequestHeaders get(String path) throws HttpException {
+        return new HttpRequestHeaders("GET " + path + " HTTP/1.1", "Host: localhost:" + PORT);
+    }
+
+    private static class Handler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            if (request.getPath().equals("/echo")) {
+                try (HttpServerResponse response = new HttpServerResponse(request, outputStream)) {
+                    response.write(request.readBodyAsBytes());
+                }
+                return;
+            }
+            if (request.getPath().equals("/slow")) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = (request.getMethod() + " " + request.getPath()).getBytes(StandardCharsets.UTF_8);
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            headers.write(outputStream);
+            if (!request.getMethod().equals("HEAD")) {
+                outputStream.write(body);
+            }
+            if (request.getPath().equals("/close")) {
+                connectionContext.closeConnection();
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncHttpServerTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8091;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BlockingQueue<PendingRequest> pendingRequests = new LinkedBlockingQueue<>();
+    private HttpServer server;
+
+    @After
+    public void clearUp() {
+        executor.shutdownNow();
+        if (server != null) {
+            server.stopNow();
+        }
+    }
+
+    @Test
+    public void shouldRespondWhenStageCompletes() throws Exception {
+        startServer(new PendingRequestHandler());
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            for (int i = 0; i < 2; i++) {
+                HttpRequestHeaders headers = requestHeaders("/test" + i);
+                Future<HttpResponse> responseFuture = executor.submit(() -> client.send(headers));
+                PendingRequest pending = nextPendingRequest();
+                pending.future.complete(new AsyncResponse(HttpResponseHeaders.ok(), "response " + pending.path));
+
+                HttpResponse response = responseFuture.get(5, TimeUnit.SECONDS);
+                assertEquals(200, response.getStatusCode());
+                assertEquals("response /test" + i, response.readBodyAsString());
+            }
+        }
+    }
+
+    @Test
+    public void shouldCompleteRequestsInAnyOrder() throws Exception {
+        startServer(new PendingRequestHandler());
+        int count = 10;
+        List<HttpClientConnection> clients = new ArrayList<>();
+        List<Future<HttpResponse>> responses = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                HttpClientConnection client = new HttpClientConnection(HOST, PORT);
+                clients.add(client);
+                HttpRequestHeaders headers = requestHeaders("/test" + i);
+                responses.add(executor.submit(() -> client.send(headers)));
+            }
+            List<PendingRequest> pending = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                pending.add(nextPendingRequest());
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                PendingRequest request = pending.get(i);
+                request.future.complete(new AsyncResponse(HttpResponseHeaders.ok(), "response " + request.path));
+            }
+
+            for (int i = 0; i < count; i++) {
+                assertEquals("response /test" + i, responses.get(i).get(5, TimeUnit.SECONDS).readBodyAsString());
+            }
+        } finally {
+            for (HttpClientConnection client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void shouldRespondWithCompletedStage() throws Exception {
+        startServer((connectionContext, request) -> {
+            byte[] body = request.readBodyAsBytes();
+            return CompletableFuture.completedFuture(new AsyncResponse(HttpResponseHeaders.ok(), body));
+        });
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            HttpResponse response = client.send(new HttpRequestHeaders("POST /test HTTP/1.1", "Host: localhost"),
+                    "request body");
+
+            assertEquals("request body", response.readBodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldWriteResponseWithWriter() throws Exception {
+        startServer(new PendingRequestHandler());
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            Future<HttpResponse> responseFuture = executor.submit(() -> client.send(requestHeaders("/stream")));
+            nextPendingRequest().future.complete(new AsyncResponse(new StreamingWriter()));
+
+            HttpResponse response = responseFuture.get(5, TimeUnit.SECONDS);
+            assertEquals("chunked", response.getHeader("Transfer-Encoding"));
+            assertEquals("part 1, part 2", response.readBodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldNotSendBodyInResponseToHead() throws Exception {
+        startServer((connectionContext, request) -> CompletableFuture
+                .completedFuture(new AsyncResponse(HttpResponseHeaders.ok(), "body")));
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            HttpResponse response = client.sendRequest("HEAD / HTTP/1.1", "Host: localhost");
+            assertEquals("4", response.getHeader("Content-Length"));
+            response = client.sendRequest("GET / HTTP/1.1", "Host: localhost");
+            assertEquals("body", response.readBodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldRespectFramingSetInHeaders() throws Exception {
+        startServer((connectionContext, request) -> {
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            if (request.getPath().equals("/chunked")) {
+                headers.setHeader("Transfer-Encoding", "chunked");
+            } else {
+                headers.setHeader("Content-Length", "4");
+            }
+            return CompletableFuture.completedFuture(new AsyncResponse(headers, "body"));
+        });
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            HttpResponse response = client.sendRequest("GET /chunked HTTP/1.1", "Host: localhost");
+            assertEquals("chunked", response.getHeader("Transfer-Encoding"));
+            assertNull(response.getHeader("Content-Length"));
+            assertEquals("body", response.readBodyAsString());
+            response = client.sendRequest("GET /length HTTP/1.1", "Host: localhost");
+            assertEquals("4", response.getHeader("Content-Length"));
+            assertEquals("body", response.readBodyAsString());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldCloseConnectionWhenStageFails() throws Exception {
+        startServer(new PendingRequestHandler());
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            Future<HttpResponse> responseFuture = executor.submit(() -> client.send(requestHeaders("/fail")));
+            nextPendingRequest().future.completeExceptionally(new IOException("Backend is not available"));
+            try {
+                responseFuture.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                throw (Exception)e.getCause();
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldCloseConnectionWhenStageDoesNotCompleteInTime() throws Exception {
+        server = new HttpServer(new PendingRequestHandler(), PORT);
+        server.setTimeoutMils(200);
+        server.start(3, 500);
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            Future<HttpResponse> responseFuture = executor.submit(() -> client.send(requestHeaders("/slow")));
+            nextPendingRequest();
+            try {
+                responseFuture.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                throw (Exception)e.getCause();
+            }
+        }
+    }
+
+    private void startServer(AsyncHttpServerRequestHandler handler) throws IOException {
+        server = new HttpServer(handler, PORT);
+        server.start(3, 500);
+    }
+
+    private PendingRequest nextPendingRequest() throws InterruptedException {
+        PendingRequest request = pendingRequests.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Request did not arrive", request);
+        return request;
+    }
+
+    private static HttpRequestHeaders requestHeaders(String path) throws HttpException {
+        return new HttpRequestHeaders("GET " + path + " HTTP/1.1", "Host: localhost");
+    }
+
+    private static class PendingRequest {
+
+        private final String path;
+        private final CompletableFuture<AsyncResponse> future = new CompletableFuture<>();
+
+        private PendingRequest(String path) {
+            this.path = path;
+        }
+    }
+
+    private class PendingRequestHandler implements AsyncHttpServerRequestHandler {
+
+        @Override
+        public CompletionStage<AsyncResponse> process(ConnectionContext connectionContext, HttpRequest request) {
+            PendingRequest pending = new PendingRequest(request.getPath());
+            pendingRequests.add(pending);
+            return pending.future;
+        }
+    }
+
+    private static class StreamingWriter implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Transfer-Encoding", "chunked");
+            headers.write(outputStream);
+            ChunkedOutputStream chunkedStream = new ChunkedOutputStream(outputStream, true);
+            chunkedStream.write("part 1, ".getBytes());
+            chunkedStream.flush();
+            chunkedStream.write("part 2".getBytes());
+            chunkedStream.close();
+        }
+    }
+}
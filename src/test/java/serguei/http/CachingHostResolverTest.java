@@ -0,0 +1,144 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingHostResolverTest {
+
+    private static final int PORT = 8104;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile InetAddress[] addresses;
+
+    private final HostResolver countingResolver = host -> {
+        calls.incrementAndGet();
+        if (addresses == null) {
+            throw new UnknownHostException(host);
+        }
+        return addresses;
+    };
+
+    @Test
+    public void shouldCacheResolvedAddresses() throws Exception {
+        addresses = addresses("10.0.0.1");
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver);
+
+        assertArrayEquals(addresses("10.0.0.1"), resolver.resolve("backend"));
+        assertArrayEquals(addresses("10.0.0.1"), resolver.resolve("backend"));
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldResolveAgainWhenTtlExpires() throws Exception {
+        addresses = addresses("10.0.0.1");
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver).setPositiveTtlMillis(50)
+                .setRefreshBeforeExpiryMillis(0);
+        resolver.resolve("backend");
+        addresses = addresses("10.0.0.2");
+        Thread.sleep(100);
+
+        assertArrayEquals(addresses("10.0.0.2"), resolver.resolve("backend"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void shouldCacheUnknownHosts() throws Exception {
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown");
+                fail("Exception expected");
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldNotCacheUnknownHostsWhenNegativeTtlIsZero() throws Exception {
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver).setNegativeTtlMillis(0);
+        try {
+            resolver.resolve("backend");
+            fail("Exception expected");
+        } catch (UnknownHostException e) {
+            // expected
+        }
+        addresses = addresses("10.0.0.1");
+
+        assertArrayEquals(addresses("10.0.0.1"), resolver.resolve("backend"));
+    }
+
+    @Test
+    public void shouldReturnAddressesInRoundRobin() throws Exception {
+        addresses = addresses("10.0.0.1", "10.0.0.2", "10.0.0.3");
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver);
+
+        assertArrayEquals(addresses("10.0.0.1", "10.0.0.2", "10.0.0.3"), resolver.resolve("backend"));
+        assertArrayEquals(addresses("10.0.0.2", "10.0.0.3", "10.0.0.1"), resolver.resolve("backend"));
+        assertArrayEquals(addresses("10.0.0.3", "10.0.0.1", "10.0.0.2"), resolver.resolve("backend"));
+        assertArrayEquals(addresses("10.0.0.1", "10.0.0.2", "10.0.0.3"), resolver.resolve("backend"));
+    }
+
+    @Test
+    public void shouldRefreshInBackgroundBeforeExpiry() throws Exception {
+        addresses = addresses("10.0.0.1");
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver).setPositiveTtlMillis(1000)
+                .setRefreshBeforeExpiryMillis(500);
+        resolver.resolve("backend");
+        addresses = addresses("10.0.0.2");
+        Thread.sleep(600);
+
+        // the cached result is returned while the refresh is in progress
+        assertArrayEquals(addresses("10.0.0.1"), resolver.resolve("backend"));
+        Thread.sleep(100);
+
+        assertArrayEquals(addresses("10.0.0.2"), resolver.resolve("backend"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void shouldConnectUsingResolver() throws Exception {
+        addresses = addresses("127.0.0.1");
+        CachingHostResolver resolver = new CachingHostResolver(countingResolver);
+        HttpServer server = new HttpServer((connectionContext, request, outputStream) -> {
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", "2");
+            headers.write(outputStream);
+            outputStream.write("OK".getBytes());
+        }, PORT);
+        server.start(3, 500);
+        try {
+            for (int i = 0; i < 3; i++) {
+                HttpClientConnection connection = new HttpClientConnection("backend.test", PORT);
+                connection.setHostResolver(resolver);
+                try {
+                    HttpResponse response = connection.sendRequest("GET / HTTP/1.1", "Host: backend.test");
+                    assertEquals("OK", response.readBodyAsString());
+                } finally {
+                    connection.close();
+                }
+            }
+        } finally {
+            server.stopNow();
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+    private static InetAddress[] addresses(String... ips) throws UnknownHostException {
+        InetAddress[] result = new InetAddress[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            result[i] = InetAddress.getByName(ips[i]);
+        }
+        return result;
+    }
+}
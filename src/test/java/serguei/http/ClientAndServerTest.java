@@ -160,6 +160,39 @@ public class ClientAndServerTest {
         assertEquals(responseBody, response.readBodyAsString());
     }
 
+    @Test
+    public void shouldStreamBigCompressedBodyChunked() throws Exception {
+        server.setResponse(HttpResponseHeaders.ok(), responseBody.getBytes(BODY_CHARSET));
+        DeflaterPool deflaterPool = new DeflaterPool(1, 6);
+        clientConnection.setDeflaterPool(deflaterPool);
+        String bigBody = requestBody + requestBody;
+
+        for (BodyCompression compression : new BodyCompression[] { BodyCompression.GZIP, BodyCompression.GZIP,
+                BodyCompression.DEFLATE }) {
+            HttpRequestHeaders headers = new HttpRequestHeaders(REQUEST_LINE, "Host: localhost");
+            HttpResponse response = clientConnection.send(headers, bigBody.getBytes(BODY_CHARSET), compression);
+            assertEquals(responseBody, response.readBodyAsString());
+
+            assertEquals("chunked", server.getLatestRequestHeaders().getHeader("Transfer-Encoding"));
+            assertNull(server.getLatestRequestHeaders().getHeader("Content-Length"));
+            assertTrue(server.isLatestRequestBodyCompressed());
+            assertEquals(bigBody, server.getLatestRequestBodyAsString());
+        }
+        assertEquals(2, deflaterPool.getCreatedCount());
+    }
+
+    @Test
+    public void shouldSendSmallCompressedBodyWithContentLength() throws Exception {
+        server.setResponse(HttpResponseHeaders.ok(), responseBody.getBytes(BODY_CHARSET));
+        HttpRequestHeaders headers = new HttpRequestHeaders(REQUEST_LINE, "Host: localhost");
+
+        clientConnection.send(headers, "small body", BodyCompression.GZIP).readBodyAsString();
+
+        assertNotNull(server.getLatestRequestHeaders().getHeader("Content-Length"));
+        assertNull(server.getLatestRequestHeaders().getHeader("Transfer-Encoding"));
+        assertEquals("small body", server.getLatestRequestBodyAsString());
+    }
+
     @Test
     public void shouldSendAndReceiveGZippedDataFromServerChunked() throws Exception {
         server.setChunkedResponse(HttpResponseHeaders.ok(), responseBody.getBytes(BODY_CHARSET), BodyCompression.GZIP);
@@ -401,6 +434,78 @@ public class ClientAndServerTest {
         assertEquals(responseBody, response.readBodyAsString());
     }
 
+    @Test(timeout = 10000)
+    public void shouldSendBodyAfterContinue() throws Exception {
+        server.setResponse(HttpResponseHeaders.ok(), responseBody.getBytes(BODY_CHARSET));
+        clientConnection.setExpectContinueTimeoutMillis(5000);
+        HttpRequestHeaders headers = new HttpRequestHeaders(REQUEST_LINE, "Host: localhost");
+
+        long start = System.currentTimeMillis();
+        HttpResponse response = clientConnection.send(headers,
+                new ByteArrayInputStream(requestBody.getBytes(BODY_CHARSET)));
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(responseBody, response.readBodyAsString());
+        assertEquals("100-continue", server.getLatestRequestHeaders().getHeader("Expect"));
+        assertEquals(requestBody, server.getLatestRequestBodyAsString());
+        assertTrue("The client did not get 100 Continue", System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldSkipLateContinueAfterSendingBody() throws Exception {
+        server.setResponse(HttpResponseHeaders.ok(), responseBody.getBytes(BODY_CHARSET));
+        server.setOnRequestHeadersHandler(
+                (ConnectionContext connectionContext, HttpRequestHeaders requestHeaders, OutputStream outputStream) -> {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return true;
+                });
+        clientConnection.setExpectContinueTimeoutMillis(100);
+        clientConnection.setTimeoutMillis(3000);
+
+        for (int i = 0; i < 2; i++) {
+            HttpRequestHeaders headers = new HttpRequestHeaders(REQUEST_LINE, "Host: localhost");
+            HttpResponse response = clientConnection.send(headers,
+                    new ByteArrayInputStream(requestBody.getBytes(BODY_CHARSET)));
+
+            assertEquals(200, response.getStatusCode());
+            assertEquals(responseBody, response.readBodyAsString());
+            assertEquals(requestBody, server.getLatestRequestBodyAsString());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldNotSendBodyWhenRequestIsRejected() throws Exception {
+        server.setOnRequestHeadersHandler(new RejectingHandler());
+        clientConnection.setExpectContinueTimeoutMillis(5000);
+        HttpRequestHeaders headers = new HttpRequestHeaders(REQUEST_LINE, "Host: localhost");
+        AtomicLong bytesRead = new AtomicLong();
+        InputStream body = new InputStreamCountingBytes(
+                new ByteArrayInputStream(requestBody.getBytes(BODY_CHARSET)), bytesRead);
+
+        HttpResponse response = clientConnection.send(headers, body);
+
+        assertEquals(413, response.getStatusCode());
+        assertEquals(0, bytesRead.get());
+        assertNull(server.getLatestRequestHeaders());
+    }
+
+    @Test(timeout = 10000)
+    public void shouldDiscardBodyOfRejectedRequest() throws Exception {
+        server.setOnRequestHeadersHandler(new RejectingHandler());
+        clientConnection.setExpectContinueTimeoutMillis(5000);
+        HttpRequestHeaders headers = new HttpRequestHeaders(REQUEST_LINE, "Host: localhost");
+
+        ActiveRequestWithWritableBody request = clientConnection.startRequest(headers);
+        request.write(requestBody.getBytes(BODY_CHARSET));
+
+        assertTrue(request.isRejected());
+        assertEquals(413, request.readResponse().getStatusCode());
+    }
+
     @Test
     public void shouldReadResponseBodyAsStream() throws Exception {
         server.setResponse(HttpResponseHeaders.ok(), responseBody.getBytes(BODY_CHARSET), BodyCompression.NONE);
@@ -914,6 +1019,16 @@ public class ClientAndServerTest {
 
     }
 
+    private class RejectingHandler implements HttpServerOnRequestHeadersProcess {
+
+        @Override
+        public boolean process(ConnectionContext connectionContext, HttpRequestHeaders requestHeaders,
+                OutputStream outputStream) throws IOException {
+            new HttpResponseHeaders("HTTP/1.1 413 Payload Too Large", "Content-Length: 0").write(outputStream);
+            return false;
+        }
+    }
+
     private byte[] gzipBody(byte[] body) {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         try {
@@ -0,0 +1,108 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import serguei.http.utils.Utils;
+
+public class DeflaterPoolTest {
+
+    private final DeflaterPool pool = new DeflaterPool(2, Deflater.BEST_SPEED);
+
+    @Test
+    public void shouldReuseReleasedDeflater() {
+        Deflater deflater = pool.borrow(true);
+        pool.release(deflater, true);
+
+        assertSame(deflater, pool.borrow(true));
+        assertNotSame(deflater, pool.borrow(true));
+        assertEquals(2, pool.getCreatedCount());
+    }
+
+    @Test
+    public void shouldKeepGzipAndDeflateDeflatersSeparately() {
+        Deflater deflater = pool.borrow(true);
+        pool.release(deflater, true);
+
+        assertNotSame(deflater, pool.borrow(false));
+    }
+
+    @Test
+    public void shouldNotKeepMoreThanMaximumDeflaters() {
+        Deflater deflater1 = pool.borrow(false);
+        Deflater deflater2 = pool.borrow(false);
+        Deflater deflater3 = pool.borrow(false);
+        pool.release(deflater1, false);
+        pool.release(deflater2, false);
+        pool.release(deflater3, false);
+
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidLevel() {
+        new DeflaterPool(2, 10);
+    }
+
+    @Test
+    public void shouldCompressInGzipFormat() throws Exception {
+        byte[] data = makeData();
+
+        for (int i = 0; i < 3; i++) {
+            byte[] compressed = compress(data, true);
+            assertArrayEquals(data, Utils.readFully(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        }
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void shouldCompressInDeflateFormat() throws Exception {
+        byte[] data = makeData();
+
+        for (int i = 0; i < 3; i++) {
+            byte[] compressed = compress(data, false);
+            assertArrayEquals(data, Utils.readFully(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+        }
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotWriteAfterClose() throws Exception {
+        PooledDeflaterOutputStream output = new PooledDeflaterOutputStream(new ByteArrayOutputStream(), pool, true);
+        output.close();
+
+        output.write(1);
+    }
+
+    private byte[] compress(byte[] data, boolean gzip) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (PooledDeflaterOutputStream compressingOutput = new PooledDeflaterOutputStream(output, pool, gzip)) {
+            InputStream input = new ByteArrayInputStream(data);
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                compressingOutput.write(buffer, 0, read);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] makeData() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append("Line ").append(i).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,129 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import serguei.http.utils.Utils;
+
+public class FileTransferTest {
+
+    private static final int PORT = 8114;
+    private static final byte[] DATA = Utils.buildDataArray(1024 * 1024 + 17);
+
+    private HttpServer server;
+    private HttpClientConnection connection;
+    private Path file;
+
+    @Before
+    public void setup() throws Exception {
+        server = new HttpServer((connectionContext, request, outputStream) -> {
+            byte[] body;
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            if (request.getMethod().equals("POST")) {
+                byte[] received = request.readBodyAsBytes();
+                String result = request.getHeader("Content-Length") + " " + received.length + " "
+                        + Arrays.equals(DATA, received);
+                body = result.getBytes();
+            } else if (request.getPath().equals("/gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(DATA);
+                }
+                body = compressed.toByteArray();
+                headers.setHeader("Content-Encoding", "gzip");
+            } else {
+                body = DATA;
+            }
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            headers.write(outputStream);
+            outputStream.write(body);
+        }, PORT);
+        server.start(3, 500);
+        connection = new HttpClientConnection("localhost", PORT);
+        file = Files.createTempFile("http-file", ".bin");
+    }
+
+    @After
+    public void clearUp() throws Exception {
+        connection.close();
+        server.stopNow();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void shouldUploadFileWithContentLength() throws Exception {
+        Files.write(file, DATA);
+
+        HttpResponse response = connection.send(new HttpRequestHeaders("POST / HTTP/1.1", "Host: localhost"), file);
+
+        assertEquals(DATA.length + " " + DATA.length + " true", response.readBodyAsString());
+    }
+
+    @Test
+    public void shouldUploadFileThroughSocketChannel() throws Exception {
+        Files.write(file, DATA);
+        connection.setSocketChannelEnabled(true);
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse response = connection.send(new HttpRequestHeaders("POST / HTTP/1.1", "Host: localhost"),
+                    file);
+
+            assertEquals(DATA.length + " " + DATA.length + " true", response.readBodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldUploadEmptyFile() throws Exception {
+        HttpResponse response = connection.send(new HttpRequestHeaders("POST / HTTP/1.1", "Host: localhost"), file);
+
+        assertEquals("0 0 false", response.readBodyAsString());
+    }
+
+    @Test
+    public void shouldDownloadBodyToFile() throws Exception {
+        Files.write(file, "old content which is longer than nothing".getBytes());
+
+        HttpResponse response = connection.sendRequest("GET / HTTP/1.1", "Host: localhost");
+
+        assertEquals(DATA.length, response.readBodyToFile(file));
+        assertArrayEquals(DATA, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void shouldDownloadDecompressedBodyToFileChannel() throws Exception {
+        byte[] prefix = "prefix".getBytes();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(prefix));
+
+            HttpResponse response = connection.sendRequest("GET /gzip HTTP/1.1", "Host: localhost");
+
+            assertEquals(DATA.length, response.readBodyTo(channel));
+        }
+        assertArrayEquals(Utils.concat(prefix, DATA), Files.readAllBytes(file));
+    }
+
+    @Test
+    public void shouldReuseConnectionAfterDownloadToFile() throws Exception {
+        connection.sendRequest("GET / HTTP/1.1", "Host: localhost").readBodyToFile(file);
+        int port = connection.getSocketSourcePort();
+
+        HttpResponse response = connection.sendRequest("GET /gzip HTTP/1.1", "Host: localhost");
+
+        assertEquals(DATA.length, response.readBodyToFile(file));
+        assertArrayEquals(DATA, Files.readAllBytes(file));
+        assertEquals(port, connection.getSocketSourcePort());
+        assertTrue(BufferPool.getDefault().getPooledCount() > 0);
+    }
+}
@@ -0,0 +1,125 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HappyEyeballsConnectorTest {
+
+    private static final int PORT = 8105;
+    // nothing listens on this loopback address, connection is refused immediately
+    private static final String REFUSING_ADDRESS = "127.0.0.2";
+    // the server on this address never accepts connections, new connection attempts hang
+    private static final String UNRESPONSIVE_ADDRESS = "127.0.0.3";
+
+    private ServerSocket serverSocket;
+    private ServerSocket unresponsiveServerSocket;
+    private final List<Socket> backlog = new ArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName("127.0.0.1"));
+        unresponsiveServerSocket = new ServerSocket(PORT, 1, InetAddress.getByName(UNRESPONSIVE_ADDRESS));
+        // when the accept queue is full, connection requests are dropped
+        for (int i = 0; i < 3; i++) {
+            Socket socket = new Socket();
+            backlog.add(socket);
+            try {
+                socket.connect(new InetSocketAddress(UNRESPONSIVE_ADDRESS, PORT), 100);
+            } catch (IOException e) {
+                break;
+            }
+        }
+    }
+
+    @After
+    public void clearUp() throws IOException {
+        for (Socket socket : backlog) {
+            socket.close();
+        }
+        unresponsiveServerSocket.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void shouldInterleaveAddressFamilies() throws Exception {
+        InetAddress[] addresses = addresses("::1", "::2", "::3", "10.0.0.1", "10.0.0.2");
+
+        assertEquals(Arrays.asList(addresses("::1", "10.0.0.1", "::2", "10.0.0.2", "::3")),
+                HappyEyeballsConnector.interleave(addresses));
+    }
+
+    @Test
+    public void shouldTryNextAddressWhenConnectionIsRefused() throws Exception {
+        try (Socket socket = HappyEyeballsConnector.connect(addresses(REFUSING_ADDRESS, "127.0.0.1"), PORT, 5000,
+                10000, Socket::new)) {
+            assertTrue(socket.isConnected());
+            assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+        }
+    }
+
+    @Test
+    public void shouldNotWaitForUnresponsiveAddress() throws Exception {
+        long start = System.currentTimeMillis();
+
+        try (Socket socket = HappyEyeballsConnector.connect(addresses(UNRESPONSIVE_ADDRESS, "127.0.0.1"), PORT,
+                5000, 100, Socket::new)) {
+            assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void shouldThrowErrorOfLastAttemptWhenAllFail() throws Exception {
+        serverSocket.close();
+
+        try {
+            HappyEyeballsConnector.connect(addresses(REFUSING_ADDRESS, "127.0.0.1"), PORT, 5000, 100, Socket::new);
+            fail("Exception expected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldConnectToHostWithSeveralAddresses() throws Exception {
+        serverSocket.close();
+        HttpServer server = new HttpServer((connectionContext, request, outputStream) -> {
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", "2");
+            headers.write(outputStream);
+            outputStream.write("OK".getBytes());
+        }, new ServerOptions().setInetAddress(InetAddress.getByName("127.0.0.1")).setPort(PORT));
+        server.start(3, 500);
+        HttpClientConnection connection = new HttpClientConnection("backend.test", PORT);
+        connection.setHostResolver(host -> addresses(UNRESPONSIVE_ADDRESS, REFUSING_ADDRESS, "127.0.0.1"));
+        connection.setConnectAttemptDelayMillis(100);
+        try {
+            HttpResponse response = connection.sendRequest("GET / HTTP/1.1", "Host: backend.test");
+            assertEquals("OK", response.readBodyAsString());
+        } finally {
+            connection.close();
+            server.stopNow();
+        }
+    }
+
+    private static InetAddress[] addresses(String... ips) throws UnknownHostException {
+        InetAddress[] result = new InetAddress[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            result[i] = InetAddress.getByName(ips[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,174 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HedgingHttpClientTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT1 = 8110;
+    private static final int PORT2 = 8111;
+    private static final int CLOSED_PORT = 8112;
+
+    private HttpServer server1;
+    private HttpServer server2;
+    private HttpClientConnectionPool pool;
+    private HedgingHttpClient client;
+
+    @Before
+    public void setup() throws IOException {
+        server1 = new HttpServer(new Handler("server1"), PORT1);
+        server1.start(5, 500);
+        server2 = new HttpServer(new Handler("server2"), PORT2);
+        server2.start(5, 500);
+        pool = new HttpClientConnectionPool(5, 20);
+        client = new HedgingHttpClient(pool);
+    }
+
+    @After
+    public void clearUp() {
+        pool.close();
+        server1.stopNow();
+        server2.stopNow();
+    }
+
+    @Test
+    public void shouldNotHedgeFastRequest() throws Exception {
+        client.setHedgeDelayMillis(1000);
+        client.setBudgetPercent(100);
+
+        HttpResponse response = client.send(request(PORT1, "/fast"), request(PORT2, "/fast"));
+
+        assertEquals("server1 /fast", response.readBodyAsString());
+        assertEquals(0, client.getHedgeCount());
+        assertEquals(0, server2.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldTakeResponseOfHedgedRequest() throws Exception {
+        client.setHedgeDelayMillis(100);
+        client.setBudgetPercent(100);
+        long start = System.currentTimeMillis();
+
+        HttpResponse response = client.send(request(PORT1, "/slow"), request(PORT2, "/fast"));
+
+        assertEquals("server2 /fast", response.readBodyAsString());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, client.getHedgeCount());
+        assertEquals(1, client.getHedgeWinCount());
+        // the connection of the slow request is closed, the other one is returned to the pool
+        for (int i = 0; i < 100 && pool.getLeasedCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getLeasedCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void shouldNotHedgeWhenBudgetIsExhausted() throws Exception {
+        client.setHedgeDelayMillis(100);
+        client.setBudgetPercent(50);
+
+        // the first request earns half of a hedge only
+        HttpResponse response = client.send(request(PORT1, "/slow"), request(PORT2, "/fast"));
+        assertEquals("server1 /slow", response.readBodyAsString());
+        response = client.send(request(PORT1, "/slow"), request(PORT2, "/fast"));
+        assertEquals("server2 /fast", response.readBodyAsString());
+
+        assertEquals(2, client.getRequestCount());
+        assertEquals(1, client.getHedgeCount());
+        assertEquals(1, client.getBudgetExhaustedCount());
+    }
+
+    @Test
+    public void shouldTryNextReplicaWhenRequestFails() throws Exception {
+        client.setHedgeDelayMillis(5000);
+        client.setBudgetPercent(100);
+        long start = System.currentTimeMillis();
+
+        HttpResponse response = client.send(request(CLOSED_PORT, "/fast"), request(PORT2, "/fast"));
+
+        assertEquals("server2 /fast", response.readBodyAsString());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void shouldThrowErrorWhenAllRequestsFail() throws Exception {
+        client.setBudgetPercent(100);
+
+        try {
+            client.send(request(CLOSED_PORT, "/fast"), request(CLOSED_PORT, "/fast"));
+            fail("Exception expected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldUsePercentileOfResponseTimesAsDelay() throws Exception {
+        client.setHedgeDelayMillis(5000);
+        assertEquals(5000, client.getHedgeDelayMillis());
+
+        for (int i = 0; i < 20; i++) {
+            client.send(request(PORT1, "/fast"));
+        }
+
+        assertTrue(client.getHedgeDelayMillis() < 1000);
+    }
+
+    @Test
+    public void shouldMeasureResponseTimeOfHedgedRequestFromStart() throws Exception {
+        client.setHedgeDelayMillis(100);
+        client.setBudgetPercent(100);
+
+        for (int i = 0; i < 20; i++) {
+            client.send(request(PORT1, "/slow"), request(PORT2, "/fast"));
+        }
+
+        assertEquals(20, client.getHedgeWinCount());
+        assertTrue(client.getHedgeDelayMillis() >= 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotHedgeNonIdempotentRequest() throws Exception {
+        client.send(new BatchRequest(HOST, PORT1, new HttpRequestHeaders("POST / HTTP/1.1", "Host: localhost")));
+    }
+
+    private static BatchRequest request(int port, String path) throws HttpException {
+        return new BatchRequest(HOST, port, new HttpRequestHeaders("GET " + path + " HTTP/1.1", "Host: localhost"));
+    }
+
+    private static class Handler implements HttpServerRequestHandler {
+
+        private final String name;
+
+        private Handler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            if (request.getPath().equals("/slow")) {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            byte[] body = (name + " " + request.getPath()).getBytes(StandardCharsets.UTF_8);
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            headers.write(outputStream);
+            outputStream.write(body);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HpackTest {
+
+    // examples from RFC 7541, C.4
+    private static final List<String> REQUEST1 = Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+            ":authority", "www.example.com");
+    private static final List<String> REQUEST2 = Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+            ":authority", "www.example.com", "cache-control", "no-cache");
+    private static final List<String> REQUEST3 = Arrays.asList(":method", "GET", ":scheme", "https", ":path",
+            "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    private static final String ENCODED1 = "828684418cf1e3c2e5f23a6ba0ab90f4ff";
+    private static final String ENCODED2 = "828684be5886a8eb10649cbf";
+    private static final String ENCODED3 = "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf";
+
+    @Test
+    public void shouldEncodeHuffman() {
+        String value = "www.example.com";
+        byte[] output = new byte[Hpack.huffmanLength(value)];
+
+        int length = Hpack.huffmanEncode(value, output, 0);
+
+        assertEquals(12, length);
+        assertEquals("f1e3c2e5f23a6ba0ab90f4ff", toHex(output, length));
+    }
+
+    @Test
+    public void shouldDecodeHuffman() throws HttpException {
+        byte[] data = fromHex("25a849e95bb8e8b4bf");
+
+        assertEquals("custom-value", Hpack.huffmanDecode(data, 0, data.length));
+    }
+
+    @Test
+    public void shouldRejectWrongHuffmanPadding() {
+        // "a" is 00011, padding with zeros is not allowed
+        byte[] data = {0x18};
+
+        try {
+            Hpack.huffmanDecode(data, 0, data.length);
+            fail("Padding with zeros should not be accepted");
+        } catch (HttpException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldEncodeRequestsUsingDynamicTable() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+
+        encoder.encode(REQUEST1);
+        assertEquals(ENCODED1, toHex(encoder.getBuffer(), encoder.getLength()));
+        encoder.encode(REQUEST2);
+        assertEquals(ENCODED2, toHex(encoder.getBuffer(), encoder.getLength()));
+        encoder.encode(REQUEST3);
+        assertEquals(ENCODED3, toHex(encoder.getBuffer(), encoder.getLength()));
+    }
+
+    @Test
+    public void shouldDecodeRequestsUsingDynamicTable() throws HttpException {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+
+        assertEquals(REQUEST1, decode(decoder, ENCODED1));
+        assertEquals(REQUEST2, decode(decoder, ENCODED2));
+        assertEquals(REQUEST3, decode(decoder, ENCODED3));
+    }
+
+    @Test
+    public void shouldDecodeWhatIsEncoded() throws HttpException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        char[] longValue = new char[5000];
+        Arrays.fill(longValue, 'x');
+        List<String> headers = Arrays.asList(":status", "200", "content-type", "text/plain", "authorization",
+                "secret", "x-long", new String(longValue), "x-binary", "\u0000\u00ff\u007f");
+
+        for (int i = 0; i < 3; i++) {
+            encoder.encode(headers);
+            List<String> decoded = new ArrayList<>();
+            decoder.decode(encoder.getBuffer(), 0, encoder.getLength(), decoded);
+            assertEquals(headers, decoded);
+        }
+        encoder.setMaxTableSize(0);
+        encoder.encode(headers);
+        List<String> decoded = new ArrayList<>();
+        decoder.decode(encoder.getBuffer(), 0, encoder.getLength(), decoded);
+        assertEquals(headers, decoded);
+    }
+
+    @Test
+    public void shouldRejectWrongIndex() {
+        byte[] data = {(byte)0xFF, 0x10};
+
+        try {
+            new Hpack.Decoder().decode(data, 0, data.length, new ArrayList<>());
+            fail("Index which is not in the tables should not be accepted");
+        } catch (HttpException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldEncodeCharsAboveLatin1AsUtf8() throws HttpException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        String value = "caf\u00e9 \u20ac";
+        List<String> headers = Arrays.asList("x-value", value, "x-value", value);
+
+        encoder.encode(headers);
+        List<String> decoded = decode(decoder, toHex(encoder.getBuffer(), encoder.getLength()));
+
+        String octets = new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+        assertEquals(Arrays.asList("x-value", octets, "x-value", octets), decoded);
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex) throws HttpException {
+        byte[] data = fromHex(hex);
+        List<String> headers = new ArrayList<>();
+        decoder.decode(data, 0, data.length, headers);
+        return headers;
+    }
+
+    private static String toHex(byte[] data, int length) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            result.append(String.format("%02x", data[i] & 0xFF));
+        }
+        return result.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,161 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class Http2ClientTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8096;
+    private static final int SSL_PORT = 8097;
+    private static final int THREADS = 10;
+    private static final int REQUESTS_PER_THREAD = 20;
+
+    private HttpServer server;
+    private HttpClientConnection client;
+
+    @After
+    public void clearUp() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.stopNow();
+        }
+    }
+
+    @Test
+    public void shouldSendRequestsWithPriorKnowledge() throws Exception {
+        startServer(true);
+        client = new HttpClientConnection(HOST, PORT);
+        client.setHttp2Enabled(true);
+
+        HttpResponse response1 = client.send(HttpRequestHeaders.getRequest("http://localhost:" + PORT + "/hello"));
+        assertEquals(200, response1.getStatusCode());
+        assertEquals("HTTP/2.0", response1.getVersion());
+        assertEquals("GET /hello", response1.readBodyAsString());
+        HttpResponse response2 = client.sendRequest("GET /again HTTP/1.1", "Host: localhost");
+        assertEquals("GET /again", response2.readBodyAsString());
+
+        assertTrue(client.isHttp2());
+        assertEquals(1, server.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldSendRequestBody() throws Exception {
+        startServer(true);
+        client = new HttpClientConnection(HOST, PORT);
+        client.setHttp2Enabled(true);
+        byte[] body = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte)(i * 13);
+        }
+
+        HttpResponse response1 = client.send(new HttpRequestHeaders("POST /echo HTTP/1.1", "Host: localhost"), body);
+        HttpResponse response2 = client.send(new HttpRequestHeaders("POST /echo HTTP/1.1", "Host: localhost"),
+                new ByteArrayInputStream(body), BodyCompression.GZIP);
+
+        assertArrayEquals(body, response1.readBodyAsBytes());
+        assertArrayEquals(body, response2.readBodyAsBytes());
+    }
+
+    @Test
+    public void shouldMultiplexRequestsFromManyThreads() throws Exception {
+        startServer(true);
+        client = new HttpClientConnection(HOST, PORT);
+        client.setHttp2Enabled(true);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                int thread = i;
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+                        String path = "/thread" + thread + "/" + j;
+                        HttpResponse response = client.send(new HttpRequestHeaders("POST " + path + " HTTP/1.1",
+                                "Host: localhost"), path);
+                        assertEquals("POST " + path + " " + path, response.readBodyAsString());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, server.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldNegotiateHttp2WithAlpn() throws Exception {
+        startServer(true);
+        client = new HttpClientConnection(HOST, SSL_PORT);
+        client.setHttp2Enabled(true);
+        client.startHandshake();
+
+        HttpResponse response = client.sendRequest("GET /secure HTTP/1.1", "Host: localhost");
+
+        assertTrue(client.isHttp2());
+        assertEquals("HTTP/2.0", response.getVersion());
+        assertEquals("GET /secure", response.readBodyAsString());
+    }
+
+    @Test
+    public void shouldUseHttp11WhenServerDoesNotSupportHttp2() throws Exception {
+        startServer(false);
+        client = new HttpClientConnection(HOST, SSL_PORT);
+        client.setHttp2Enabled(true);
+        client.startHandshake();
+
+        HttpResponse response = client.sendRequest("GET /secure HTTP/1.1", "Host: localhost");
+
+        assertFalse(client.isHttp2());
+        assertEquals("HTTP/1.1", response.getVersion());
+        assertEquals("GET /secure", response.readBodyAsString());
+    }
+
+    private void startServer(boolean http2Enabled) throws IOException {
+        String keyStorePath = getClass().getResource("/server-keystore.jks").getFile();
+        server = new HttpServer(new Handler(), new ServerOptions().setPort(PORT).setSslPort(SSL_PORT)
+                .setHttp2Enabled(http2Enabled).setTlsParameters(keyStorePath, "password", "test01", null));
+        server.start(3, 500);
+    }
+
+    private static class Handler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            if (request.getPath().equals("/echo")) {
+                try (HttpServerResponse response = new HttpServerResponse(request, outputStream)) {
+                    response.write(request.readBodyAsBytes());
+                }
+                return;
+            }
+            String text = request.getMethod() + " " + request.getPath();
+            if (request.hasBody()) {
+                text += " " + request.readBodyAsString();
+            }
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            headers.write(outputStream);
+            outputStream.write(body);
+        }
+    }
+}
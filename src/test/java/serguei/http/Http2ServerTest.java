@@ -0,0 +1,294 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import serguei.http.utils.Utils;
+
+public class Http2ServerTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8094;
+    private static final int SSL_PORT = 8095;
+    private static final int PARALLEL_REQUESTS = 10;
+
+    private static final int DATA_FRAME = 0x0;
+    private static final int HEADERS_FRAME = 0x1;
+    private static final int RST_STREAM_FRAME = 0x3;
+    private static final int SETTINGS_FRAME = 0x4;
+
+    private final CountDownLatch waitingRequests = new CountDownLatch(1);
+    private final CountDownLatch parallelRequests = new CountDownLatch(PARALLEL_REQUESTS);
+    private HttpServer server;
+    private Http2Connection connection;
+
+    @After
+    public void clearUp() {
+        if (connection != null) {
+            connection.close();
+        }
+        if (server != null) {
+            server.stopNow();
+        }
+    }
+
+    @Test
+    public void shouldServeRequestWithPriorKnowledge() throws Exception {
+        startServer(new ServerOptions().setPort(PORT).setHttp2Enabled(true));
+        connection = connect(new Socket(HOST, PORT));
+
+        Http2Stream stream = connection.openStream(request("GET", "/hello"), true);
+
+        assertEquals("200", headerValue(stream, ":status"));
+        assertEquals("text/plain", headerValue(stream, "content-type"));
+        assertNull(headerValue(stream, "connection"));
+        assertEquals("Hello /hello", readBody(stream));
+    }
+
+    @Test
+    public void shouldReceiveLargeBodyAndSendChunkedResponse() throws Exception {
+        startServer(new ServerOptions().setPort(PORT).setHttp2Enabled(true));
+        connection = connect(new Socket(HOST, PORT));
+        // bigger than both stream and connection windows
+        byte[] body = new byte[20 * 1024 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte)(i * 7);
+        }
+
+        Http2Stream stream = connection.openStream(request("POST", "/echo"), false);
+        connection.writeData(stream, body, 0, body.length, true);
+
+        assertEquals("200", headerValue(stream, ":status"));
+        assertNull(headerValue(stream, "transfer-encoding"));
+        assertArrayEquals(body, Utils.readFully(stream.getInputStream()));
+    }
+
+    @Test
+    public void shouldProcessStreamsInParallel() throws Exception {
+        startServer(new ServerOptions().setPort(PORT).setHttp2Enabled(true));
+        connection = connect(new Socket(HOST, PORT));
+
+        List<Http2Stream> streams = new ArrayList<>();
+        for (int i = 0; i < PARALLEL_REQUESTS; i++) {
+            streams.add(connection.openStream(request("GET", "/parallel" + i), true));
+        }
+
+        for (int i = 0; i < PARALLEL_REQUESTS; i++) {
+            assertEquals("200", headerValue(streams.get(i), ":status"));
+            assertEquals("Hello /parallel" + i, readBody(streams.get(i)));
+        }
+    }
+
+    @Test
+    public void shouldServeHttp11OnTheSamePort() throws Exception {
+        startServer(new ServerOptions().setPort(PORT).setHttp2Enabled(true));
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            HttpResponse response = client.sendRequest("GET /hello HTTP/1.1", "Host: localhost");
+
+            assertEquals(200, response.getStatusCode());
+            assertEquals("Hello /hello", response.readBodyAsString());
+        }
+    }
+
+    @Test
+    public void shouldNegotiateHttp2WithAlpn() throws Exception {
+        String keyStorePath = getClass().getResource("/server-keystore.jks").getFile();
+        startServer(new ServerOptions().setPort(PORT).setSslPort(SSL_PORT).setHttp2Enabled(true)
+                .setTlsParameters(keyStorePath, "password", "test01", null));
+        SSLSocket socket = (SSLSocket)ClientSslContextFactory.getNoHostValidatingContext().getSocketFactory()
+                .createSocket(HOST, SSL_PORT);
+        SSLParameters sslParameters = socket.getSSLParameters();
+        sslParameters.setApplicationProtocols(new String[] {"h2"});
+        socket.setSSLParameters(sslParameters);
+        socket.startHandshake();
+        assertEquals("h2", socket.getApplicationProtocol());
+        connection = connect(socket);
+
+        Http2Stream stream = connection.openStream(request("GET", "/secure"), true);
+
+        assertEquals("200", headerValue(stream, ":status"));
+        assertEquals("Hello /secure", readBody(stream));
+    }
+
+    @Test
+    public void shouldNotServeHttp2WhenItIsNotEnabled() throws Exception {
+        startServer(new ServerOptions().setPort(PORT));
+
+        try (Socket socket = new Socket(HOST, PORT)) {
+            socket.getOutputStream().write(Http2Connection.PREFACE);
+
+            // the preface is processed as HTTP/1 request
+            byte[] response = new byte[8];
+            new DataInputStream(socket.getInputStream()).readFully(response);
+            assertEquals("HTTP/1.1", new String(response, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void shouldResetStreamWhenDataArrivesAfterEndOfStream() throws Exception {
+        startServer(new ServerOptions().setPort(PORT).setHttp2Enabled(true));
+        try (Socket socket = new Socket(HOST, PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream output = socket.getOutputStream();
+            output.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(output, SETTINGS_FRAME, 0, 0, new byte[0]);
+            Hpack.Encoder encoder = new Hpack.Encoder();
+            encoder.encode(request("GET", "/wait"));
+            // END_STREAM and END_HEADERS, the request handler waits, so the stream stays half-closed
+            writeFrame(output, HEADERS_FRAME, 0x5, 1, Arrays.copyOf(encoder.getBuffer(), encoder.getLength()));
+            writeFrame(output, DATA_FRAME, 0, 1, "late".getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            while (true) {
+                int length = (input.readUnsignedByte() << 16) | input.readUnsignedShort();
+                int type = input.readUnsignedByte();
+                input.readUnsignedByte();
+                int streamId = input.readInt() & 0x7FFFFFFF;
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                if (type == RST_STREAM_FRAME) {
+                    assertEquals(1, streamId);
+                    assertEquals(Http2Connection.STREAM_CLOSED, ByteBuffer.wrap(payload).getInt());
+                    break;
+                }
+            }
+        } finally {
+            waitingRequests.countDown();
+        }
+    }
+
+    @Test
+    public void shouldJoinCookieFieldsAndKeepRepeatedHeaders() throws Exception {
+        startServer(new ServerOptions().setPort(PORT).setHttp2Enabled(true));
+        connection = connect(new Socket(HOST, PORT));
+        List<String> headers = request("GET", "/headers");
+        for (int i = 0; i < 3; i++) {
+            headers.addAll(Arrays.asList("cookie", "c" + i + "=" + i, "x-repeated", Integer.toString(i)));
+        }
+
+        Http2Stream stream = connection.openStream(headers, true);
+
+        assertEquals("200", headerValue(stream, ":status"));
+        assertEquals("c0=0; c1=1; c2=2 [0, 1, 2]", readBody(stream));
+    }
+
+    @Test
+    public void shouldResetStreamWithTooManyHeaders() throws Exception {
+        startServer(new ServerOptions().setPort(PORT).setHttp2Enabled(true));
+        connection = connect(new Socket(HOST, PORT));
+        List<String> headers = request("GET", "/headers");
+        for (int i = 0; i <= HttpHeaders.MAX_HEADER_NUMBER; i++) {
+            headers.addAll(Arrays.asList("x-repeated", "1"));
+        }
+
+        Http2Stream stream = connection.openStream(headers, true);
+
+        try {
+            stream.waitForHeaders();
+            fail("Stream should be reset");
+        } catch (HttpException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("error code " + Http2Connection.PROTOCOL_ERROR));
+        }
+    }
+
+    private void startServer(ServerOptions options) throws IOException {
+        server = new HttpServer(new Handler(), options);
+        server.start(3, 500);
+    }
+
+    private static void writeFrame(OutputStream output, int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        output.write(new byte[] {(byte)(payload.length >> 16), (byte)(payload.length >> 8), (byte)payload.length,
+                (byte)type, (byte)flags});
+        output.write(ByteBuffer.allocate(4).putInt(streamId).array());
+        output.write(payload);
+    }
+
+    private static Http2Connection connect(Socket socket) throws IOException {
+        Http2Connection connection = new Http2Connection(new BufferedInputStream(socket.getInputStream()),
+                new BufferedOutputStream(socket.getOutputStream()), true, socket);
+        connection.start();
+        Thread reader = new Thread(() -> connection.serve(stream -> {
+        }));
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    private static List<String> request(String method, String path) {
+        return new ArrayList<>(Arrays.asList(":method", method, ":scheme", "http", ":path", path, ":authority",
+                HOST + ":" + PORT));
+    }
+
+    private static String headerValue(Http2Stream stream, String name) throws IOException {
+        stream.waitForHeaders();
+        return stream.getHeader(name);
+    }
+
+    private static String readBody(Http2Stream stream) throws IOException {
+        return new String(Utils.readFully(stream.getInputStream()), StandardCharsets.UTF_8);
+    }
+
+    private class Handler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            if (request.getPath().startsWith("/parallel")) {
+                // every request waits until all of them arrive
+                parallelRequests.countDown();
+                try {
+                    if (!parallelRequests.await(5, TimeUnit.SECONDS)) {
+                        throw new IOException("Requests are not processed in parallel");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (request.getPath().equals("/wait")) {
+                try {
+                    waitingRequests.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (request.getPath().equals("/echo")) {
+                try (HttpServerResponse response = new HttpServerResponse(request, outputStream)) {
+                    response.write(request.readBodyAsBytes());
+                }
+                return;
+            }
+            String text = "Hello " + request.getPath();
+            if (request.getPath().equals("/headers")) {
+                text = request.getHeader("Cookie") + " " + request.getHeaders("X-Repeated");
+            }
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Type", "text/plain");
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            headers.write(outputStream);
+            outputStream.write(body);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpBatchClientTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8106;
+    private static final int CLOSED_PORT = 8109;
+
+    private HttpServer server;
+    private HttpClientConnectionPool pool;
+    private HttpBatchClient client;
+
+    @Before
+    public void setup() throws IOException {
+        server = new HttpServer(new Handler(), PORT);
+        server.start(10, 500);
+        pool = new HttpClientConnectionPool(10, 20);
+        client = new HttpBatchClient(pool);
+    }
+
+    @After
+    public void clearUp() {
+        pool.close();
+        server.stopNow();
+    }
+
+    @Test
+    public void shouldReturnAllResultsInOrder() throws Exception {
+        List<BatchResult> results = client.sendAll(Arrays.asList(request("/a"), request("/b"), request("/c")), 5000);
+
+        assertEquals(3, results.size());
+        assertEquals("GET /a", results.get(0).getResponse().readBodyAsString());
+        assertEquals("GET /b", results.get(1).getResponse().readBodyAsString());
+        assertEquals("GET /c", results.get(2).getResponse().readBodyAsString());
+        for (BatchResult result : results) {
+            assertTrue(result.isSuccessful());
+            assertTrue(result.getLeaseMillis() >= 0);
+            assertTrue(result.getDurationMillis() >= 0);
+            assertTrue(result.getCompletedAfterMillis() >= result.getDurationMillis());
+        }
+        assertEquals(0, pool.getLeasedCount());
+        assertEquals(pool.getConnectionsCreated(), pool.getIdleCount());
+    }
+
+    @Test
+    public void shouldReuseConnectionsForNextBatch() throws Exception {
+        client.sendAll(Arrays.asList(request("/a"), request("/b")), 5000);
+        List<BatchResult> results = client.sendAll(Arrays.asList(request("/c"), request("/d")), 5000);
+
+        assertTrue(results.get(0).isSuccessful());
+        assertTrue(results.get(1).isSuccessful());
+        assertEquals(2, pool.getConnectionsCreated());
+        assertEquals(2, pool.getConnectionsReused());
+    }
+
+    @Test
+    public void shouldCancelStragglersWhenQuorumIsReached() throws Exception {
+        long start = System.currentTimeMillis();
+
+        List<BatchResult> results = client.sendQuorum(
+                Arrays.asList(request("/slow"), request("/a"), request("/b")), 2, 5000);
+
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertTrue(results.get(0).isCancelled());
+        assertNull(results.get(0).getResponse());
+        assertEquals("GET /a", results.get(1).getResponse().readBodyAsString());
+        assertEquals("GET /b", results.get(2).getResponse().readBodyAsString());
+        // the connection of the cancelled request is closed and not returned to the pool
+        waitForLeasedConnections(0);
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void shouldCancelRequestsAtDeadline() throws Exception {
+        long start = System.currentTimeMillis();
+
+        List<BatchResult> results = client.sendAll(Arrays.asList(request("/slow"), request("/a")), 300);
+
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertTrue(results.get(0).isCancelled());
+        assertEquals(-1, results.get(0).getCompletedAfterMillis());
+        assertTrue(results.get(1).isSuccessful());
+    }
+
+    @Test
+    public void shouldReportFailedRequests() throws Exception {
+        List<BatchResult> results = client.sendAll(
+                Arrays.asList(request("/a"), new BatchRequest(HOST, CLOSED_PORT, headers("/b"))), 5000);
+
+        assertTrue(results.get(0).isSuccessful());
+        assertFalse(results.get(1).isSuccessful());
+        assertFalse(results.get(1).isCancelled());
+        assertTrue(results.get(1).getError() instanceof IOException);
+    }
+
+    @Test
+    public void shouldStopWhenQuorumCannotBeReached() throws Exception {
+        long start = System.currentTimeMillis();
+
+        List<BatchResult> results = client.sendQuorum(Arrays.asList(request("/slow"),
+                new BatchRequest(HOST, CLOSED_PORT, headers("/a")), new BatchRequest(HOST, CLOSED_PORT, headers("/b"))),
+                2, 5000);
+
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertTrue(results.get(0).isCancelled());
+        assertNotNull(results.get(1).getError());
+        assertNotNull(results.get(2).getError());
+    }
+
+    @Test
+    public void shouldNotChangeHeadersSharedByRequests() throws Exception {
+        HttpRequestHeaders headers = new HttpRequestHeaders("POST /post HTTP/1.1", "Host: localhost");
+        byte[] body = "body".getBytes(StandardCharsets.UTF_8);
+
+        List<BatchResult> results = client.sendAll(Arrays.asList(new BatchRequest(HOST, PORT, headers, body),
+                new BatchRequest(HOST, PORT, headers, body)), 5000);
+
+        assertEquals("POST /post", results.get(0).getResponse().readBodyAsString());
+        assertEquals("POST /post", results.get(1).getResponse().readBodyAsString());
+        assertNull(headers.getHeader("Content-Length"));
+    }
+
+    @Test
+    public void shouldReturnEmptyResultsForEmptyBatch() throws Exception {
+        assertTrue(client.sendAll(new ArrayList<>(), 5000).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidQuorum() throws Exception {
+        client.sendQuorum(Arrays.asList(request("/a")), 2, 5000);
+    }
+
+    private void waitForLeasedConnections(int expected) throws InterruptedException {
+        for (int i = 0; i < 100 && pool.getLeasedCount() != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, pool.getLeasedCount());
+    }
+
+    private static BatchRequest request(String path) throws HttpException {
+        return new BatchRequest(HOST, PORT, headers(path));
+    }
+
+    private static HttpRequestHeaders headers(String path) throws HttpException {
+        return new HttpRequestHeaders("GET " + path + " HTTP/1.1", "Host: localhost");
+    }
+
+    private static class Handler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            if (request.getPath().equals("/slow")) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            byte[] body = (request.getMethod() + " " + request.getPath()).getBytes(StandardCharsets.UTF_8);
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            headers.write(outputStream);
+            outputStream.write(body);
+        }
+    }
+}
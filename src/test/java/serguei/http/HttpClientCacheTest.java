@@ -0,0 +1,266 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpClientCacheTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8113;
+
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private HttpClientConnectionPool pool;
+    private HttpClientCache cache;
+    private Path diskDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        server = new HttpServer(new Handler(), PORT);
+        server.start(3, 500);
+        pool = new HttpClientConnectionPool(5, 10);
+        cache = new HttpClientCache(pool, 1500);
+    }
+
+    @After
+    public void clearUp() throws IOException {
+        cache.clear();
+        pool.close();
+        server.stopNow();
+        if (diskDirectory != null) {
+            Files.deleteIfExists(diskDirectory);
+        }
+    }
+
+    @Test
+    public void shouldReturnFreshResponseFromCache() throws Exception {
+        assertEquals("/max-age 1", get("/max-age").readBodyAsString());
+        HttpResponse response = get("/max-age");
+
+        assertEquals("/max-age 1", response.readBodyAsString());
+        assertEquals("0", response.getHeader("Age"));
+        assertEquals(1, requestCount("/max-age"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void shouldNotStoreResponseWithNoStore() throws Exception {
+        get("/no-store");
+        HttpResponse response = get("/no-store");
+
+        assertEquals("/no-store 2", response.readBodyAsString());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void shouldSendRequestWhenRequestHasNoCache() throws Exception {
+        get("/max-age");
+        HttpResponse response = cache.send(HOST, PORT,
+                new HttpRequestHeaders("GET /max-age HTTP/1.1", "Host: localhost", "Cache-Control: no-cache"));
+
+        assertEquals("/max-age 2", response.readBodyAsString());
+        assertEquals("/max-age 2", get("/max-age").readBodyAsString());
+    }
+
+    @Test
+    public void shouldRevalidateWithEtag() throws Exception {
+        assertEquals("/etag 1", get("/etag").readBodyAsString());
+        HttpResponse response = get("/etag");
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("/etag 1", response.readBodyAsString());
+        assertEquals("updated", response.getHeader("X-Revalidated"));
+        assertEquals(2, requestCount("/etag"));
+        assertEquals(1, cache.getRevalidatedCount());
+    }
+
+    @Test
+    public void shouldUseHeuristicFreshnessWithLastModified() throws Exception {
+        get("/last-modified");
+        HttpResponse response = get("/last-modified");
+
+        assertEquals("/last-modified 1", response.readBodyAsString());
+        assertEquals(1, requestCount("/last-modified"));
+    }
+
+    @Test
+    public void shouldServeStaleResponseWhileRevalidating() throws Exception {
+        get("/swr");
+        Thread.sleep(1100);
+
+        HttpResponse response = get("/swr");
+
+        assertEquals("/swr 1", response.readBodyAsString());
+        assertEquals(1, cache.getStaleServedCount());
+        for (int i = 0; i < 100 && cache.getRevalidatedCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, cache.getRevalidatedCount());
+        assertEquals(2, requestCount("/swr"));
+        // revalidated response is fresh again
+        assertEquals("/swr 1", get("/swr").readBodyAsString());
+        assertEquals(2, requestCount("/swr"));
+    }
+
+    @Test
+    public void shouldKeepVariantsSeparately() throws Exception {
+        assertEquals("/vary 1 en", get("/vary", "Accept-Language: en").readBodyAsString());
+        assertEquals("/vary 2 fr", get("/vary", "Accept-Language: fr").readBodyAsString());
+        assertEquals("/vary 2 fr", get("/vary", "Accept-Language: fr").readBodyAsString());
+    }
+
+    @Test
+    public void shouldInvalidateOnUnsafeRequest() throws Exception {
+        get("/max-age");
+        cache.send(HOST, PORT, new HttpRequestHeaders("DELETE /max-age HTTP/1.1", "Host: localhost"));
+
+        assertEquals("/max-age 3", get("/max-age").readBodyAsString());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedResponse() throws Exception {
+        get("/big/1");
+        get("/big/2");
+
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(1000, cache.getMemorySize());
+        get("/big/1");
+        assertEquals(2, requestCount("/big/1"));
+    }
+
+    @Test
+    public void shouldSpillEvictedResponsesToDisk() throws Exception {
+        diskDirectory = Files.createTempDirectory("http-cache");
+        cache.setDiskCache(diskDirectory, 10000);
+        byte[] body1 = get("/big/1").readBodyAsBytes();
+        get("/big/2");
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1000, cache.getDiskSize());
+        assertArrayEquals(body1, get("/big/1").readBodyAsBytes());
+        assertEquals(1, requestCount("/big/1"));
+        // now the second one is on disk
+        assertEquals(1000, cache.getDiskSize());
+        assertEquals(1, Files.list(diskDirectory).count());
+    }
+
+    @Test
+    public void shouldNotStoreResponseBiggerThanMaxEntrySize() throws Exception {
+        cache.setMaxEntrySize(500);
+        get("/big/1");
+
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void shouldStreamResponseBiggerThanMaxEntrySize() throws Exception {
+        cache.setMaxEntrySize(500);
+
+        HttpResponse response = get("/big/1");
+
+        // the body is not read yet, so the connection is still in use
+        assertEquals(1, pool.getLeasedCount());
+        assertEquals(1000, response.readBodyAsString().length());
+        assertEquals(0, pool.getLeasedCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void shouldStreamChunkedResponseBiggerThanMaxEntrySize() throws Exception {
+        cache.setMaxEntrySize(500);
+
+        HttpResponse response = get("/chunked/1");
+
+        assertEquals(1000, response.readBodyAsString().length());
+        assertEquals(0, pool.getLeasedCount());
+        assertEquals(0, cache.getEntryCount());
+        // the connection is reused
+        assertEquals("/max-age 1", get("/max-age").readBodyAsString());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    private HttpResponse get(String path, String... headers) throws IOException {
+        String[] allHeaders = Arrays.copyOf(headers, headers.length + 1);
+        allHeaders[headers.length] = "Host: localhost";
+        return cache.send(HOST, PORT, new HttpRequestHeaders("GET " + path + " HTTP/1.1", allHeaders));
+    }
+
+    private int requestCount(String path) {
+        AtomicInteger count = requestCounts.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+    private static String date(ZonedDateTime time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(time);
+    }
+
+    private class Handler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            String path = request.getPath();
+            int count = requestCounts.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+            headers.setHeader("Date", date(now));
+            String body = path + " " + count;
+            if (path.equals("/max-age")) {
+                headers.setHeader("Cache-Control", "max-age=60");
+            } else if (path.equals("/no-store")) {
+                headers.setHeader("Cache-Control", "no-store");
+            } else if (path.equals("/etag") || path.equals("/swr")) {
+                String cacheControl = path.equals("/etag") ? "no-cache" : "max-age=1, stale-while-revalidate=60";
+                headers.setHeader("Cache-Control", cacheControl);
+                headers.setHeader("ETag", "\"v1\"");
+                if ("\"v1\"".equals(request.getHeader("If-None-Match"))) {
+                    headers.setStatusCode(304, "Not Modified");
+                    headers.setHeader("X-Revalidated", "updated");
+                    body = "";
+                }
+            } else if (path.equals("/last-modified")) {
+                headers.setHeader("Last-Modified", date(now.minusDays(10)));
+            } else if (path.equals("/vary")) {
+                headers.setHeader("Cache-Control", "max-age=60");
+                headers.setHeader("Vary", "Accept-Language");
+                body += " " + request.getHeader("Accept-Language");
+            } else if (path.startsWith("/chunked/")) {
+                headers.setHeader("Cache-Control", "max-age=60");
+                headers.setHeader("Transfer-Encoding", "chunked");
+                headers.write(outputStream);
+                char[] chars = new char[500];
+                Arrays.fill(chars, path.charAt(9));
+                String chunk = "1f4\r\n" + new String(chars) + "\r\n";
+                outputStream.write((chunk + chunk + "0\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            } else if (path.startsWith("/big/")) {
+                headers.setHeader("Cache-Control", "max-age=60");
+                char[] chars = new char[1000];
+                Arrays.fill(chars, path.charAt(5));
+                body = new String(chars);
+            }
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            headers.setHeader("Content-Length", Integer.toString(bodyBytes.length));
+            headers.write(outputStream);
+            outputStream.write(bodyBytes);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpClientConnectionPoolTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8098;
+    private static final int SSL_PORT = 8099;
+
+    private HttpServer server;
+    private HttpClientConnectionPool pool;
+
+    @Before
+    public void setup() throws IOException {
+        String keyStorePath = getClass().getResource("/server-keystore.jks").getFile();
+        server = new HttpServer(new Handler(), new ServerOptions().setPort(PORT).setSslPort(SSL_PORT)
+                .setTlsParameters(keyStorePath, "password", "test01", null));
+        server.start(3, 500);
+    }
+
+    @After
+    public void clearUp() {
+        if (pool != null) {
+            pool.close();
+        }
+        server.stopNow();
+    }
+
+    @Test
+    public void shouldReuseReleasedConnection() throws Exception {
+        pool = new HttpClientConnectionPool(2, 10);
+
+        HttpClientConnection connection1 = pool.lease(HOST, PORT);
+        assertEquals("GET /1", send(connection1, "/1"));
+        pool.release(connection1);
+        HttpClientConnection connection2 = pool.lease(HOST, PORT);
+        assertEquals("GET /2", send(connection2, "/2"));
+        pool.release(connection2);
+
+        assertSame(connection1, connection2);
+        assertEquals(1, server.getConnectionsCreated());
+        assertEquals(2, pool.getLeaseCount());
+        assertEquals(1, pool.getConnectionsCreated());
+        assertEquals(1, pool.getConnectionsReused());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, pool.getLeasedCount());
+    }
+
+    @Test
+    public void shouldKeepTlsConnectionsSeparately() throws Exception {
+        pool = new HttpClientConnectionPool(2, 10);
+
+        HttpClientConnection plain = pool.lease(HOST, PORT);
+        pool.release(plain);
+        HttpClientConnection secure = pool.leaseTls(HOST, SSL_PORT);
+        assertEquals("GET /secure", send(secure, "/secure"));
+        pool.release(secure);
+        HttpClientConnection secureAgain = pool.leaseTls(HOST, SSL_PORT);
+
+        assertNotSame(plain, secure);
+        assertSame(secure, secureAgain);
+        assertEquals("GET /again", send(secureAgain, "/again"));
+        pool.release(secureAgain);
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void shouldTimeOutWhenRouteLimitIsReached() throws Exception {
+        pool = new HttpClientConnectionPool(1, 10);
+        pool.setLeaseTimeoutMillis(100);
+        HttpClientConnection connection = pool.lease(HOST, PORT);
+
+        try {
+            pool.lease(HOST, PORT);
+            fail("Exception expected");
+        } catch (HttpException e) {
+            // expected
+        }
+
+        assertEquals(1, pool.getLeaseTimeoutCount());
+        assertTrue(pool.getMaxLeaseWaitMillis() >= 100);
+        pool.release(connection);
+    }
+
+    @Test
+    public void shouldWaitForReleasedConnection() throws Exception {
+        pool = new HttpClientConnectionPool(1, 1);
+        HttpClientConnection connection = pool.lease(HOST, PORT);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<HttpClientConnection> future = executor.submit(() -> pool.lease(HOST, PORT));
+            Thread.sleep(100);
+            assertFalse(future.isDone());
+
+            pool.release(connection);
+
+            assertSame(connection, future.get());
+            assertEquals(1, pool.getWaitingLeaseCount());
+            assertTrue(pool.getTotalLeaseWaitMillis() >= 100);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldEvictIdleConnectionOfAnotherRouteWhenTotalLimitIsReached() throws Exception {
+        pool = new HttpClientConnectionPool(1, 1);
+        HttpClientConnection plain = pool.lease(HOST, PORT);
+        pool.release(plain);
+
+        HttpClientConnection secure = pool.leaseTls(HOST, SSL_PORT);
+
+        assertNotSame(plain, secure);
+        assertFalse(plain.isConnected());
+        assertEquals(0, pool.getIdleCount());
+        pool.release(secure);
+    }
+
+    @Test
+    public void shouldReplaceConnectionClosedByServer() throws Exception {
+        pool = new HttpClientConnectionPool(2, 10);
+        pool.setValidateAfterInactivityMillis(0);
+        HttpClientConnection connection1 = pool.lease(HOST, PORT);
+        assertEquals("GET /close", send(connection1, "/close"));
+        pool.release(connection1);
+        Thread.sleep(100);
+
+        HttpClientConnection connection2 = pool.lease(HOST, PORT);
+
+        assertNotSame(connection1, connection2);
+        assertEquals("GET /next", send(connection2, "/next"));
+        pool.release(connection2);
+        assertEquals(1, pool.getStaleConnectionsClosed());
+        assertEquals(2, pool.getConnectionsCreated());
+        assertEquals(2, pool.getLeaseCount());
+    }
+
+    @Test
+    public void shouldCloseIdleConnections() throws Exception {
+        pool = new HttpClientConnectionPool(2, 10);
+        pool.setIdleTimeoutMillis(50);
+        HttpClientConnection connection = pool.lease(HOST, PORT);
+        pool.release(connection);
+        Thread.sleep(100);
+
+        pool.closeIdleConnections();
+
+        assertEquals(0, pool.getIdleCount());
+        assertFalse(connection.isConnected());
+    }
+
+    @Test
+    public void shouldCloseDiscardedConnection() throws Exception {
+        pool = new HttpClientConnectionPool(1, 1);
+        HttpClientConnection connection1 = pool.lease(HOST, PORT);
+
+        pool.discard(connection1);
+        HttpClientConnection connection2 = pool.lease(HOST, PORT);
+
+        assertFalse(connection1.isConnected());
+        assertNotSame(connection1, connection2);
+        pool.release(connection2);
+    }
+
+    private static String send(HttpClientConnection connection, String path) throws IOException {
+        HttpResponse response = connection.sendRequest("GET " + path + " HTTP/1.1", "Host: localhost");
+        return response.readBodyAsString();
+    }
+
+    private static class Handler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            byte[] body = (request.getMethod() + " " + request.getPath()).getBytes(StandardCharsets.UTF_8);
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            headers.write(outputStream);
+            outputStream.write(body);
+            if (request.getPath().equals("/close")) {
+                connectionContext.closeConnection();
+            }
+        }
+    }
+}
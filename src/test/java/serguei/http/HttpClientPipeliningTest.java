@@ -0,0 +1,192 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HttpClientPipeliningTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8102;
+    private static final int SSL_PORT = 8103;
+
+    private HttpServer server;
+    private HttpClientConnection client;
+
+    @After
+    public void clearUp() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.stopNow();
+        }
+    }
+
+    @Test
+    public void shouldReturnResponsesInOrder() throws Exception {
+        startServer(false);
+        client = new HttpClientConnection(HOST, PORT);
+
+        List<HttpResponse> responses = client.sendPipelined(requests("/", 100));
+
+        assertResponses(responses, "/", 100);
+        assertEquals(1, server.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldReceiveResponsesWithDifferentFraming() throws Exception {
+        startServer(false);
+        client = new HttpClientConnection(HOST, PORT);
+        client.setPipelineDepth(2);
+        List<HttpRequestHeaders> requests = Arrays.asList(request("/a"), request("/chunked"),
+                new HttpRequestHeaders("HEAD /head HTTP/1.1", "Host: localhost"), request("/b"));
+
+        List<HttpResponse> responses = client.sendPipelined(requests);
+
+        assertEquals("GET /a", responses.get(0).readBodyAsString());
+        assertTrue(responses.get(1).isContentChunked());
+        assertEquals("GET /chunked", responses.get(1).readBodyAsString());
+        assertFalse(responses.get(2).hasBody());
+        assertEquals("GET /b", responses.get(3).readBodyAsString());
+        assertEquals(1, server.getConnectionsCreated());
+    }
+
+    @Test
+    public void shouldResendRequestsWhenServerClosesConnection() throws Exception {
+        startServer(false);
+        client = new HttpClientConnection(HOST, PORT);
+
+        List<HttpResponse> responses = client.sendPipelined(requests("/close/", 30));
+
+        assertResponses(responses, "/close/", 30);
+        // a response can be lost when the server resets the connection with unread requests, then it is sent again
+        assertTrue(server.getConnectionsCreated() >= 3);
+    }
+
+    @Test
+    public void shouldResendRequestsAfterConnectionCloseHeader() throws Exception {
+        startServer(false);
+        client = new HttpClientConnection(HOST, PORT);
+
+        List<HttpResponse> responses = client.sendPipelined(requests("/last/", 30));
+
+        assertResponses(responses, "/last/", 30);
+        // a response can be lost when the server resets the connection with unread requests, then it is sent again
+        assertTrue(server.getConnectionsCreated() >= 3);
+    }
+
+    @Test
+    public void shouldPipelineOverTls() throws Exception {
+        startServer(false);
+        client = new HttpClientConnection(HOST, SSL_PORT);
+        client.startHandshake();
+
+        List<HttpResponse> responses = client.sendPipelined(requests("/close/", 20));
+
+        assertResponses(responses, "/close/", 20);
+        assertNotNull(client.getNegotiatedTlsProtocol());
+    }
+
+    @Test
+    public void shouldSendRequestsAsStreamsOverHttp2() throws Exception {
+        startServer(true);
+        client = new HttpClientConnection(HOST, PORT);
+        client.setHttp2Enabled(true);
+
+        List<HttpResponse> responses = client.sendPipelined(requests("/", 50));
+
+        assertResponses(responses, "/", 50);
+        assertTrue(client.isHttp2());
+    }
+
+    @Test
+    public void shouldFailWhenConnectionIsClosedBeforeAnyResponse() throws Exception {
+        startServer(false);
+        client = new HttpClientConnection(HOST, PORT);
+
+        try {
+            client.sendPipelined(Arrays.asList(request("/reset"), request("/a")));
+            fail("Exception expected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotPipelineNonIdempotentRequests() throws Exception {
+        client = new HttpClientConnection(HOST, PORT);
+
+        client.sendPipelined(Arrays.asList(request("/a"), new HttpRequestHeaders("POST /b HTTP/1.1",
+                "Host: localhost")));
+    }
+
+    private static List<HttpRequestHeaders> requests(String prefix, int count) throws HttpException {
+        List<HttpRequestHeaders> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(request(prefix + i));
+        }
+        return requests;
+    }
+
+    private static HttpRequestHeaders request(String path) throws HttpException {
+        return new HttpRequestHeaders("GET " + path + " HTTP/1.1", "Host: localhost");
+    }
+
+    private static void assertResponses(List<HttpResponse> responses, String prefix, int count) throws IOException {
+        assertEquals(count, responses.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("GET " + prefix + i, responses.get(i).readBodyAsString());
+        }
+    }
+
+    private void startServer(boolean http2Enabled) throws IOException {
+        String keyStorePath = getClass().getResource("/server-keystore.jks").getFile();
+        server = new HttpServer(new Handler(), new ServerOptions().setPort(PORT).setSslPort(SSL_PORT)
+                .setHttp2Enabled(http2Enabled).setTlsParameters(keyStorePath, "password", "test01", null));
+        server.start(3, 500);
+    }
+
+    private static class Handler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            String path = request.getPath();
+            if (path.equals("/reset")) {
+                connectionContext.resetConnection();
+                return;
+            }
+            byte[] body = (request.getMethod() + " " + path).getBytes(StandardCharsets.UTF_8);
+            if (path.equals("/chunked")) {
+                try (HttpServerResponse response = new HttpServerResponse(request, outputStream)) {
+                    response.setHeader("Transfer-Encoding", "chunked");
+                    response.write(body);
+                }
+                return;
+            }
+            // every 10th request is the last one on the connection
+            boolean last = path.endsWith("9");
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", Integer.toString(body.length));
+            if (last && path.startsWith("/last/")) {
+                headers.setHeader("Connection", "close");
+            }
+            headers.write(outputStream);
+            if (!request.getMethod().equals("HEAD")) {
+                outputStream.write(body);
+            }
+            if (last && (path.startsWith("/close/") || path.startsWith("/last/"))) {
+                connectionContext.closeConnection();
+            }
+        }
+    }
+}
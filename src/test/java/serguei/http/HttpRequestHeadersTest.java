@@ -316,4 +316,103 @@ public class HttpRequestHeadersTest {
         assertSame(headerValue, newHeaders.getHeader(headerName));
         assertSame(headerName, newHeaders.listHeaderNames().get(0));
     }
+
+    @Test
+    public void shouldReuseKnownMethodAndVersion() throws Exception {
+        HttpRequestHeaders headers = new HttpRequestHeaders(new String("POST /test HTTP/1.1"), "Host: localhost");
+
+        assertSame("POST", headers.getMethod());
+        assertSame("HTTP/1.1", headers.getVersion());
+        assertEquals("/test", headers.getPath());
+    }
+
+    @Test
+    public void shouldAcceptUnknownMethod() throws Exception {
+        HttpRequestHeaders headers = new HttpRequestHeaders("PROPFIND /test HTTP/1.1", "Host: localhost");
+
+        assertEquals("PROPFIND", headers.getMethod());
+        assertEquals("/test", headers.getPath());
+        assertEquals("HTTP/1.1", headers.getVersion());
+    }
+
+    @Test
+    public void shouldFailOnWrongNumberOfElementsInRequestLine() throws Exception {
+        String[] wrongLines = {"GET /test", "GET  /test HTTP/1.1", " GET /test HTTP/1.1", "GET /test HTTP/1.1 extra", ""};
+        for (String line : wrongLines) {
+            try {
+                new HttpRequestHeaders(line);
+                fail("Failed to throw exception for \"" + line + "\"");
+            } catch (HttpException e) {
+                assertTrue("Was: " + e.getMessage(), e.getMessage().startsWith("Wrong number of elements"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldReturnPort() throws Exception {
+        HttpRequestHeaders headers = new HttpRequestHeaders("GET /test HTTP/1.1", "Host: localhost:8080");
+
+        assertEquals(8080, headers.getPort());
+        assertEquals(-1, new HttpRequestHeaders("GET http://www.fitltd.com/ HTTP/1.0").getPort());
+    }
+
+    @Test
+    public void shouldRebuildUrlWhenHostChanged() throws Exception {
+        HttpRequestHeaders headers = new HttpRequestHeaders("GET /test HTTP/1.1", "Host: localhost:8080");
+        URL url = headers.getUrl();
+
+        assertSame(url, headers.getUrl());
+        headers.setHeader("Host", "www.fitltd.com");
+
+        assertEquals(new URL("http://www.fitltd.com/test"), headers.getUrl());
+        assertEquals(-1, headers.getPort());
+    }
+
+    @Test
+    public void shouldWriteRawHeadersAsReceived() throws Exception {
+        String data = "GET /test HTTP/1.1" + LINE_BREAK + "host: www.myhost.com" + LINE_BREAK + "X-header:value"
+                + LINE_BREAK + "Multi-Line: line1" + LINE_BREAK + " line2" + LINE_BREAK + LINE_BREAK;
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(data.getBytes("UTF-8"));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        HttpRequestHeaders headers = new HttpRequestHeaders(inputStream, true);
+        headers.write(outputStream);
+
+        assertTrue(headers.hasRawHeaders());
+        assertEquals(data, outputStream.toString("UTF-8"));
+        assertEquals("www.myhost.com", headers.getHeader("Host"));
+    }
+
+    @Test
+    public void shouldWriteRawHeadersWithChanges() throws Exception {
+        String data = "GET /test HTTP/1.1" + LINE_BREAK + "host: www.myhost.com" + LINE_BREAK + "x-header1: value1"
+                + LINE_BREAK + "x-header2: value2" + LINE_BREAK + "x-header3: value3" + LINE_BREAK + LINE_BREAK;
+        String expected = "GET /test HTTP/1.1" + LINE_BREAK + "host: www.myhost.com" + LINE_BREAK + "x-header3: value3"
+                + LINE_BREAK + "x-header1: new value" + LINE_BREAK + "Content-Length: 10" + LINE_BREAK + LINE_BREAK;
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(data.getBytes("UTF-8"));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        HttpRequestHeaders headers = new HttpRequestHeaders(new HttpRequestHeaders(inputStream, true));
+        headers.setHeader("x-header1", "new value");
+        headers.removeHeader("X-Header2");
+        headers.setHeader("Content-Length", "10");
+        headers.write(outputStream);
+
+        assertEquals(expected, outputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void shouldStopUsingRawHeadersWhenDiscarded() throws Exception {
+        String data = "GET /test HTTP/1.1" + LINE_BREAK + "host: www.myhost.com" + LINE_BREAK + LINE_BREAK;
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(data.getBytes("UTF-8"));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        HttpRequestHeaders headers = new HttpRequestHeaders(inputStream, true);
+        headers.discardRawHeaders();
+        headers.write(outputStream);
+
+        assertFalse(headers.hasRawHeaders());
+        assertEquals("GET /test HTTP/1.1" + LINE_BREAK + "host: www.myhost.com" + LINE_BREAK + LINE_BREAK,
+                outputStream.toString("UTF-8"));
+    }
 }
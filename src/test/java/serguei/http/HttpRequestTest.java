@@ -30,6 +30,7 @@ public class HttpRequestTest {
         assertEquals("/test", request.getUrl().getPath());
         assertEquals("param=1", request.getUrl().getQuery());
         assertEquals(8080, request.getUrl().getPort());
+        assertEquals(8080, request.getPort());
         assertEquals("http", request.getUrl().getProtocol());
         assertEquals(bodyLen, request.getContentLength());
         assertEquals(requestBody, request.readBodyAsString());
@@ -98,4 +99,20 @@ public class HttpRequestTest {
 
         assertEquals(0, data.length);
     }
+
+    @Test(expected = HttpException.class)
+    public void shouldFailWhenNoHost() throws IOException {
+        String requestData = "GET / HTTP/1.0\r\n\r\n";
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(requestData.getBytes());
+
+        new HttpRequest(inputStream);
+    }
+
+    @Test(expected = HttpException.class)
+    public void shouldFailWhenUrlCannotBeBuilt() throws IOException {
+        String requestData = "GET unknown://www.fitltd.com/ HTTP/1.1\r\n\r\n";
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(requestData.getBytes());
+
+        new HttpRequest(inputStream);
+    }
 }
@@ -160,6 +160,41 @@ public class HttpResponseHeadersTest {
         assertEquals(Arrays.asList("test1", "test2", "test3", "test4", "test5"), result);
     }
 
+    @Test
+    public void shouldUpdateBodyFramingWhenHeadersChange() throws HttpException {
+        HttpResponseHeaders headers = new HttpResponseHeaders("HTTP/1.1 200 OK", "Content-Length: 100");
+        assertEquals(100, headers.getContentLength());
+        assertFalse(headers.hasChunkedBody());
+
+        headers.removeHeader("Content-Length");
+        headers.setHeader("Transfer-Encoding", "chunked");
+        headers.setHeader("Content-Encoding", "gzip");
+
+        assertEquals(-1, headers.getContentLength());
+        assertTrue(headers.hasChunkedBody());
+        assertEquals("gzip", headers.getBodyEncoding().geEncoding());
+        assertEquals(Arrays.asList("gzip", "chunked"), headers.encodingData());
+
+        headers.setHeader("Content-Length", "10");
+
+        assertEquals(10, headers.getContentLength());
+        assertFalse(headers.hasChunkedBody());
+    }
+
+    @Test
+    public void shouldWriteRawHeadersWithNewStatusLine() throws IOException {
+        String data = "HTTP/1.1 200 OK" + LINE_BREAK + "content-length: 100" + LINE_BREAK + "x-test: value" + LINE_BREAK
+                + LINE_BREAK;
+        HttpResponseHeaders headers = new HttpResponseHeaders(new ByteArrayInputStream(data.getBytes()), true);
+
+        assertEquals(data, writeToString(headers));
+
+        headers.setStatusCode(404, "Not Found");
+
+        assertEquals("HTTP/1.1 404 Not Found" + LINE_BREAK + "content-length: 100" + LINE_BREAK + "x-test: value"
+                + LINE_BREAK + LINE_BREAK, writeToString(headers));
+    }
+
     @Test
     public void shouldUpdateStatusCode() throws IOException {
         HttpResponseHeaders headers = new HttpResponseHeaders("HTTP/1.1 200 OK", "Content-Length: 100");
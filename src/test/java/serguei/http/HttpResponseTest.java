@@ -94,4 +94,27 @@ public class HttpResponseTest {
 
         assertEquals(0, data.length);
     }
+
+    @Test
+    public void shouldNotChangeResponseWhenHeadersCopyModified() throws IOException {
+        String responseData = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nHeader1: test1\r\n\r\n";
+        HttpResponse response = new HttpResponse(new ByteArrayInputStream(responseData.getBytes()));
+
+        HttpResponseHeaders headers = response.getHeaders();
+        headers.setHeader("Header1", "test2");
+        headers.addHeader("Header2", "test3");
+
+        assertEquals("test2", headers.getHeader("Header1"));
+        assertEquals("test1", response.getHeader("Header1"));
+        assertNull(response.getHeader("Header2"));
+        assertEquals("test1", response.getHeaders().getHeader("Header1"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldNotAllowToModifyHeaderList() throws IOException {
+        String responseData = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nHeader1: test1\r\n\r\n";
+        HttpResponse response = new HttpResponse(new ByteArrayInputStream(responseData.getBytes()));
+
+        response.getHeaders().getHeaders("Header1").add("test2");
+    }
 }
@@ -0,0 +1,168 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class HttpRouterTest {
+
+    private static final int PORT = 8115;
+
+    private final HttpRouter router = new HttpRouter();
+
+    @Test
+    public void shouldRouteStaticPaths() throws IOException {
+        router.get("/users", new NamedHandler("users"));
+        router.get("/users/list", new NamedHandler("list"));
+        router.get("/user", new NamedHandler("user"));
+        router.get("/", new NamedHandler("root"));
+
+        assertEquals("users", route("GET", "/users"));
+        assertEquals("list", route("GET", "/users/list"));
+        assertEquals("user", route("GET", "/user"));
+        assertEquals("root", route("GET", "/"));
+        assertEquals("404", route("GET", "/users/lis"));
+    }
+
+    @Test
+    public void shouldRouteByMethod() throws IOException {
+        router.get("/users", new NamedHandler("get"));
+        router.post("/users", new NamedHandler("post"));
+
+        assertEquals("get", route("GET", "/users"));
+        assertEquals("post", route("POST", "/users"));
+        assertEquals("get", route("HEAD", "/users"));
+    }
+
+    @Test
+    public void shouldReturnMethodNotAllowed() throws IOException {
+        router.get("/users", new NamedHandler("get"));
+        router.post("/users", new NamedHandler("post"));
+
+        HttpResponse response = routeToResponse("DELETE", "/users");
+
+        assertEquals(405, response.getStatusCode());
+        assertEquals("GET, POST, HEAD", response.getHeader("Allow"));
+    }
+
+    @Test
+    public void shouldNotSendBodyOfGetHandlerInResponseToHead() throws Exception {
+        router.get("/hello", (connectionContext, request, outputStream) -> {
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", "5");
+            headers.write(outputStream);
+            outputStream.write("Hello".getBytes());
+        });
+        HttpServer server = new HttpServer(router, PORT);
+        server.start(3, 500);
+
+        try (HttpClientConnection client = new HttpClientConnection("localhost", PORT)) {
+            HttpResponse response = client.sendRequest("HEAD /hello HTTP/1.1", "Host: localhost");
+            assertEquals(200, response.getStatusCode());
+            assertEquals("5", response.getHeader("Content-Length"));
+
+            response = client.sendRequest("GET /hello HTTP/1.1", "Host: localhost");
+            assertEquals(200, response.getStatusCode());
+            assertEquals("Hello", response.readBodyAsString());
+        } finally {
+            server.stopNow();
+        }
+    }
+
+    @Test
+    public void shouldExtractParameters() throws IOException {
+        router.get("/users/:id/orders/:orderId", new NamedHandler("order"));
+
+        assertEquals("order id=12 orderId=abc", route("GET", "/users/12/orders/abc?x=1"));
+        assertEquals("404", route("GET", "/users//orders/abc"));
+        assertEquals("404", route("GET", "/users/12/orders"));
+    }
+
+    @Test
+    public void shouldPreferStaticOverParameterAndWildcard() throws IOException {
+        router.get("/files/new", new NamedHandler("new"));
+        router.get("/files/:id", new NamedHandler("file"));
+        router.get("/files/:id/content", new NamedHandler("content"));
+        router.get("/files/*path", new NamedHandler("any"));
+
+        assertEquals("new", route("GET", "/files/new"));
+        assertEquals("file id=newer", route("GET", "/files/newer"));
+        assertEquals("content id=new", route("GET", "/files/new/content"));
+        assertEquals("any path=a/b/c", route("GET", "/files/a/b/c"));
+        assertEquals("any path=", route("GET", "/files/"));
+    }
+
+    @Test
+    public void shouldRouteAbsolutePath() throws IOException {
+        router.get("/users/:id", new NamedHandler("user"));
+
+        assertEquals("user id=5", route("GET", "http://localhost:8080/users/5"));
+    }
+
+    @Test
+    public void shouldUseNotFoundHandler() throws IOException {
+        router.get("/users", new NamedHandler("users"));
+        router.setNotFoundHandler(new NamedHandler("not found"));
+
+        assertEquals("not found", route("GET", "/other"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowDuplicateRoutes() {
+        router.get("/users/:id", new NamedHandler("user"));
+        router.get("/users/:name", new NamedHandler("user"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotAllowWildcardInTheMiddle() {
+        router.get("/users/*rest/list", new NamedHandler("user"));
+    }
+
+    private String route(String method, String path) throws IOException {
+        HttpResponse response = routeToResponse(method, path);
+        if (response.getStatusCode() == 404) {
+            return "404";
+        }
+        return response.getHeader("Handler");
+    }
+
+    private HttpResponse routeToResponse(String method, String path) throws IOException {
+        String requestData = method + " " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        HttpRequest request = new HttpRequest(new ByteArrayInputStream(requestData.getBytes()));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        router.process(null, request, output);
+
+        return new HttpResponse(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static class NamedHandler implements HttpServerRequestHandler {
+
+        private final String name;
+
+        private NamedHandler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            StringBuilder value = new StringBuilder(name);
+            for (String parameter : new String[] {"id", "orderId", "path"}) {
+                String parameterValue = request.getPathParameter(parameter);
+                if (parameterValue != null) {
+                    value.append(' ').append(parameter).append('=').append(parameterValue);
+                }
+            }
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Handler", value.toString());
+            headers.setHeader("Content-Length", "0");
+            headers.write(outputStream);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class HttpServerResponseTest {
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @Test
+    public void shouldSetContentLengthForSmallBody() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+
+        response.write("Hello, ");
+        response.write("world");
+        response.close();
+
+        HttpResponse httpResponse = parse("GET");
+        assertEquals(12, httpResponse.getContentLength());
+        assertNull(httpResponse.getHeader("Transfer-Encoding"));
+        assertEquals("Hello, world", httpResponse.readBodyAsString());
+    }
+
+    @Test
+    public void shouldSendEmptyBodyWithContentLength() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+
+        response.close();
+
+        assertEquals("0", parse("GET").getHeader("Content-Length"));
+    }
+
+    @Test
+    public void shouldSwitchToChunkedWhenBufferOverflows() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output,
+                HttpResponseHeaders.ok(), 16);
+
+        response.write("0123456789");
+        assertFalse(response.isCommitted());
+        response.write("0123456789");
+        assertTrue(response.isCommitted());
+        response.write("abc");
+        response.close();
+
+        HttpResponse httpResponse = parse("GET");
+        assertNull(httpResponse.getHeader("Content-Length"));
+        assertEquals("chunked", httpResponse.getHeader("Transfer-Encoding"));
+        assertEquals("01234567890123456789abc", httpResponse.readBodyAsString());
+    }
+
+    @Test
+    public void shouldSendHeadersOnFlush() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+        OutputStream body = response.getOutputStream();
+
+        body.write("part".getBytes());
+        body.flush();
+
+        assertTrue(output.toString().endsWith("\r\n\r\n4\r\npart\r\n"));
+        body.close();
+        assertEquals("part", parse("GET").readBodyAsString());
+    }
+
+    @Test
+    public void shouldCloseConnectionWhenChunkingIsNotSupported() throws IOException {
+        CloseTrackingOutputStream closeTracking = new CloseTrackingOutputStream();
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.0"), closeTracking,
+                HttpResponseHeaders.ok(), 4);
+
+        response.write("0123456789");
+        response.close();
+
+        assertTrue(closeTracking.closed);
+        HttpResponse httpResponse = new HttpResponse(new ByteArrayInputStream(closeTracking.toByteArray()));
+        assertEquals("close", httpResponse.getHeader("Connection"));
+        assertNull(httpResponse.getHeader("Transfer-Encoding"));
+        assertEquals("0123456789", httpResponse.readBodyAsString());
+    }
+
+    @Test
+    public void shouldUseContentLengthSetByHandler() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+        response.setHeader("Content-Length", "10");
+
+        response.write("0123456789");
+        assertTrue(response.isCommitted());
+        response.close();
+
+        HttpResponse httpResponse = parse("GET");
+        assertNull(httpResponse.getHeader("Transfer-Encoding"));
+        assertEquals("0123456789", httpResponse.readBodyAsString());
+    }
+
+    @Test(expected = HttpException.class)
+    public void shouldFailWhenBodyDoesNotMatchContentLength() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+        response.setHeader("Content-Length", "10");
+
+        response.write("012345");
+        response.close();
+    }
+
+    @Test
+    public void shouldFailWhenBufferedBodyDoesNotMatchContentLength() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+        response.write("012345");
+        response.setHeader("Content-Length", "100");
+
+        try {
+            response.close();
+            fail("Exception expected");
+        } catch (HttpException e) {
+            // expected
+        }
+
+        assertEquals(0, output.size());
+    }
+
+    @Test
+    public void shouldSendBufferedBodyChunkedWhenHandlerSetsTransferEncoding() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+        response.write("012345");
+        response.setHeader("Transfer-Encoding", "chunked");
+
+        response.close();
+
+        HttpResponse httpResponse = parse("GET");
+        assertNull(httpResponse.getHeader("Content-Length"));
+        assertEquals("012345", httpResponse.readBodyAsString());
+    }
+
+    @Test
+    public void shouldNotSendBodyInResponseToHead() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("HEAD", "HTTP/1.1"), output,
+                HttpResponseHeaders.ok(), 4);
+
+        response.write("0123456789");
+        response.close();
+
+        assertTrue(output.toString().endsWith("Content-Length: 10\r\n\r\n"));
+    }
+
+    @Test
+    public void shouldNotSendBodyWithNotModified() throws IOException {
+        HttpServerResponse response = new HttpServerResponse(request("GET", "HTTP/1.1"), output);
+        response.setStatusCode(304, "Not Modified");
+
+        response.write("0123456789");
+        response.close();
+
+        String result = output.toString();
+        assertTrue(result.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertFalse(result.contains("Content-Length"));
+        assertTrue(result.endsWith("\r\n\r\n"));
+    }
+
+    private HttpResponse parse(String method) throws IOException {
+        return new HttpResponse(new ByteArrayInputStream(output.toByteArray()), method);
+    }
+
+    private static HttpRequest request(String method, String version) throws IOException {
+        String data = method + " /test " + version + "\r\nHost: localhost\r\n\r\n";
+        return new HttpRequest(new ByteArrayInputStream(data.getBytes()));
+    }
+
+    private static class CloseTrackingOutputStream extends ByteArrayOutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
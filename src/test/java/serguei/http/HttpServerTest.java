@@ -2,6 +2,7 @@ package serguei.http;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -324,6 +325,91 @@ public class HttpServerTest {
         }
     }
 
+    @Test(timeout = 60000)
+    public void shouldSendContinueWhenBodyIsRead() throws Exception {
+        SimpleRequestHandler requestHandler = new SimpleRequestHandler();
+        server = new HttpServer(requestHandler, PORT);
+        server.start();
+        try (HttpClientConnection client = new HttpClientConnection("localhost", PORT)) {
+            byte[] body = REQUEST_BODY.getBytes("ASCII");
+            byte[] headers = ("POST / HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\nContent-Length: "
+                    + body.length + "\r\n\r\n").getBytes("ASCII");
+
+            HttpResponse response = client.send(headers);
+            assertEquals(100, response.getStatusCode());
+            response = client.send(body);
+
+            assertEquals(200, response.getStatusCode());
+            assertArrayEquals(body, requestHandler.getLatestRequestBody());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void shouldRejectRequestBeforeBodyIsSent() throws Exception {
+        SimpleRequestHandler requestHandler = new SimpleRequestHandler();
+        server = new HttpServer(requestHandler, PORT);
+        server.setOnRequestHeadersHandler((connectionContext, requestHeaders, outputStream) -> {
+            new HttpResponseHeaders("HTTP/1.1 413 Payload Too Large", "Content-Length: 0").write(outputStream);
+            return false;
+        });
+        server.start();
+        try (HttpClientConnection client = new HttpClientConnection("localhost", PORT)) {
+            byte[] headers = ("POST / HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\n"
+                    + "Content-Length: 1000000000\r\n\r\n").getBytes("ASCII");
+
+            HttpResponse response = client.send(headers);
+
+            assertEquals(413, response.getStatusCode());
+            assertNull(requestHandler.getLatestRequestBody());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void shouldCloseConnectionWhenExpectedBodyIsNotRead() throws Exception {
+        server = new HttpServer((connectionContext, request, outputStream) -> new HttpResponseHeaders(
+                "HTTP/1.1 403 Forbidden", "Content-Length: 0").write(outputStream), PORT);
+        server.start();
+        try (HttpClientConnection client = new HttpClientConnection("localhost", PORT)) {
+            byte[] headers = ("POST / HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\n"
+                    + "Content-Length: 1000\r\n\r\n").getBytes("ASCII");
+
+            HttpResponse response = client.send(headers);
+            assertEquals(403, response.getStatusCode());
+
+            try {
+                client.send(headers);
+                fail("Connection was not closed");
+            } catch (IOException e) {
+                // the body was not sent, so the connection cannot be reused
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void shouldNotSendContinueAfterFinalResponseIsStarted() throws Exception {
+        server = new HttpServer((connectionContext, request, outputStream) -> {
+            new HttpResponseHeaders("HTTP/1.1 403 Forbidden", "Content-Length: 0").write(outputStream);
+            outputStream.flush();
+            request.readBodyAsBytes();
+        }, PORT);
+        server.start();
+        try (HttpClientConnection client = new HttpClientConnection("localhost", PORT)) {
+            byte[] headers = ("POST / HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\n"
+                    + "Content-Length: " + REQUEST_BODY.length() + "\r\n\r\n").getBytes("ASCII");
+
+            HttpResponse response = client.send(headers);
+            assertEquals(403, response.getStatusCode());
+
+            try {
+                // the client sends the body anyway, the server reads it and closes the connection
+                response = client.send(REQUEST_BODY.getBytes("ASCII"));
+                fail("Unexpected response " + response.getStatusCode());
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
     private class RequestHandler implements HttpServerRequestHandler {
 
         private final CountDownLatch latch;
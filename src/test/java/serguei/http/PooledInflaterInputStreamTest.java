@@ -0,0 +1,147 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.junit.Test;
+
+import serguei.http.utils.Utils;
+
+public class PooledInflaterInputStreamTest {
+
+    private final InflaterPool pool = new InflaterPool(2);
+    private final byte[] data = makeData();
+
+    @Test
+    public void shouldDecompressGzipReusingInflater() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            InputStream input = new PooledInflaterInputStream(new ByteArrayInputStream(gzip(data)), pool, true, false);
+            assertArrayEquals(data, Utils.readFully(input));
+            // returned to the pool at the end of data, before the stream is closed
+            assertEquals(1, pool.getPooledCount());
+        }
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void shouldDecompressConcatenatedGzipMembers() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(gzip(data));
+        output.write(gzip("second".getBytes(StandardCharsets.UTF_8)));
+
+        InputStream input = new PooledInflaterInputStream(new ByteArrayInputStream(output.toByteArray()), pool, true,
+                false);
+
+        assertEquals(new String(data, StandardCharsets.UTF_8) + "second",
+                new String(Utils.readFully(input), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldSkipOptionalGzipHeaderFields() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // FEXTRA, FNAME and FCOMMENT flags
+        output.write(new byte[] { 0x1f, (byte)0x8b, 8, 4 | 8 | 16, 0, 0, 0, 0, 0, 0 });
+        output.write(new byte[] { 3, 0, 1, 2, 3 });
+        output.write("name.txt\0comment\0".getBytes(StandardCharsets.US_ASCII));
+        byte[] gzipped = gzip(data);
+        // compressed data and trailer without the standard header
+        output.write(gzipped, 10, gzipped.length - 10);
+
+        InputStream input = new PooledInflaterInputStream(new ByteArrayInputStream(output.toByteArray()), pool, true,
+                false);
+
+        assertArrayEquals(data, Utils.readFully(input));
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldDetectCorruptGzipTrailer() throws Exception {
+        byte[] gzipped = gzip(data);
+        gzipped[gzipped.length - 8] ^= 1;
+
+        Utils.readFully(new PooledInflaterInputStream(new ByteArrayInputStream(gzipped), pool, true, false));
+    }
+
+    @Test
+    public void shouldDecompressZlibAndRawDeflate() throws Exception {
+        InputStream zlibInput = new PooledInflaterInputStream(new ByteArrayInputStream(deflate(data, false)), pool,
+                false, false);
+        assertArrayEquals(data, Utils.readFully(zlibInput));
+
+        InputStream rawInput = new PooledInflaterInputStream(new ByteArrayInputStream(deflate(data, true)), pool,
+                false, true);
+        assertArrayEquals(data, Utils.readFully(rawInput));
+
+        assertEquals(2, pool.getPooledCount());
+    }
+
+    @Test
+    public void shouldReturnInflaterWhenClosedBeforeEnd() throws Exception {
+        InputStream input = new PooledInflaterInputStream(new ByteArrayInputStream(gzip(data)), pool, true, false);
+        input.read(new byte[100]);
+
+        input.close();
+
+        assertEquals(1, pool.getPooledCount());
+        try {
+            input.read();
+            fail("Exception expected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldReturnInflaterWhenResponseBodyIsRead() throws Exception {
+        InflaterPool defaultPool = InflaterPool.getDefault();
+        byte[] body = gzip(data);
+        long created = defaultPool.getCreatedCount();
+
+        for (int i = 0; i < 3; i++) {
+            ByteArrayOutputStream responseData = new ByteArrayOutputStream();
+            responseData.write(("HTTP/1.1 200 OK\r\nContent-Encoding: gzip\r\nContent-Length: " + body.length
+                    + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            responseData.write(body);
+            HttpResponse response = new HttpResponse(new ByteArrayInputStream(responseData.toByteArray()));
+
+            assertArrayEquals(data, response.readBodyAsBytes());
+        }
+
+        assertTrue(defaultPool.getCreatedCount() - created <= 1);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutput = new GZIPOutputStream(output)) {
+            gzipOutput.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean nowrap) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output, deflater)) {
+            deflaterOutput.write(data);
+        } finally {
+            deflater.end();
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] makeData() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append("Line ").append(i).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,166 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.concurrent.CompletionStage;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SseChannelTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8092;
+
+    private SseChannel channel;
+    private HttpServer server;
+
+    @After
+    public void clearUp() {
+        if (server != null) {
+            server.stopNow();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void shouldBroadcastEventsToAllSubscribers() throws Exception {
+        startServer(new SseChannel(16, 0, 2));
+
+        try (HttpClientConnection client1 = new HttpClientConnection(HOST, PORT);
+                HttpClientConnection client2 = new HttpClientConnection(HOST, PORT)) {
+            BufferedReader reader1 = subscribe(client1);
+            BufferedReader reader2 = subscribe(client2);
+            waitForSubscribers(2);
+
+            channel.send("update", "line 1\nline 2");
+            channel.send("7", null, "plain");
+
+            for (BufferedReader reader : Arrays.asList(reader1, reader2)) {
+                assertEquals("event: update", reader.readLine());
+                assertEquals("data: line 1", reader.readLine());
+                assertEquals("data: line 2", reader.readLine());
+                assertEquals("", reader.readLine());
+                assertEquals("id: 7", reader.readLine());
+                assertEquals("data: plain", reader.readLine());
+                assertEquals("", reader.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void shouldSendHeartbeats() throws Exception {
+        startServer(new SseChannel(16, 50, 1));
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            BufferedReader reader = subscribe(client);
+
+            assertEquals(":", reader.readLine());
+            assertEquals("", reader.readLine());
+        }
+    }
+
+    @Test
+    public void shouldEvictSlowSubscriber() throws Exception {
+        startServer(new SseChannel(2, 0, 1));
+        char[] data = new char[1024 * 1024];
+        Arrays.fill(data, 'a');
+        String event = new String(data);
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            subscribe(client);
+            waitForSubscribers(1);
+
+            // the client does not read, so the writer blocks and the queue overflows
+            for (int i = 0; i < 100 && channel.getSubscriberCount() > 0; i++) {
+                channel.send(event);
+            }
+
+            assertEquals(0, channel.getSubscriberCount());
+            assertEquals(1, channel.getEvictedCount());
+        }
+    }
+
+    @Test
+    public void shouldRemoveSubscribersOnClose() throws Exception {
+        startServer(new SseChannel(16, 0, 1));
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            BufferedReader reader = subscribe(client);
+            waitForSubscribers(1);
+
+            channel.close();
+
+            assertEquals(0, channel.getSubscriberCount());
+            assertEquals(0, channel.getEvictedCount());
+            try {
+                assertNull(reader.readLine());
+            } catch (IOException e) {
+                // connection might be reset
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepStreamOpenLongerThanServerTimeout() throws Exception {
+        channel = new SseChannel(16, 100, 1);
+        server = new HttpServer((connectionContext, request) -> channel.subscribe(connectionContext, request), PORT);
+        server.setTimeoutMils(300);
+        server.start(3, 500);
+        long start = System.currentTimeMillis();
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            BufferedReader reader = subscribe(client);
+            while (System.currentTimeMillis() - start < 1000) {
+                assertEquals(":", reader.readLine());
+                assertEquals("", reader.readLine());
+            }
+
+            assertEquals(1, channel.getSubscriberCount());
+        }
+    }
+
+    @Test
+    public void shouldRemoveSubscriberWhenServerGivesUpOnConnection() throws Exception {
+        channel = new SseChannel(16, 0, 1);
+        server = new HttpServer((connectionContext, request) -> {
+            CompletionStage<AsyncResponse> stage = channel.subscribe(connectionContext, request);
+            connectionContext.setAsyncTimeoutMillis(200);
+            return stage;
+        }, PORT);
+        server.start(3, 500);
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            subscribe(client);
+            waitForSubscribers(1);
+
+            waitForSubscribers(0);
+        }
+    }
+
+    private void startServer(SseChannel channel) throws IOException {
+        this.channel = channel;
+        server = new HttpServer((connectionContext, request) -> channel.subscribe(connectionContext, request), PORT);
+        server.start(3, 500);
+    }
+
+    private BufferedReader subscribe(HttpClientConnection client) throws IOException {
+        HttpResponse response = client.sendRequest("GET /events HTTP/1.1", "Host: localhost");
+        assertEquals(200, response.getStatusCode());
+        assertEquals("text/event-stream", response.getHeader("Content-Type"));
+        return new BufferedReader(new InputStreamReader(response.getBodyAsStream(), "UTF-8"));
+    }
+
+    private void waitForSubscribers(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && channel.getSubscriberCount() != count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, channel.getSubscriberCount());
+    }
+}
@@ -0,0 +1,99 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TlsSessionResumptionTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8107;
+    private static final int SSL_PORT = 8108;
+
+    private HttpServer server;
+    private ClientSslContext sslContext;
+
+    @Before
+    public void setup() throws IOException {
+        String keyStorePath = getClass().getResource("/server-keystore.jks").getFile();
+        server = new HttpServer((connectionContext, request, outputStream) -> {
+            HttpResponseHeaders headers = HttpResponseHeaders.ok();
+            headers.setHeader("Content-Length", "2");
+            headers.write(outputStream);
+            outputStream.write("OK".getBytes());
+        }, new ServerOptions().setPort(PORT).setSslPort(SSL_PORT).setTlsParameters(keyStorePath, "password",
+                "test01", null));
+        server.start(3, 500);
+        sslContext = ClientSslContextFactory.createNoHostValidatingContext();
+    }
+
+    @After
+    public void clearUp() {
+        server.stopNow();
+    }
+
+    @Test
+    public void shouldResumeSessionOnNewConnection() throws Exception {
+        assertFalse(connect(null));
+        assertTrue(connect(null));
+        assertTrue(connect(null));
+
+        assertEquals(1, sslContext.getFullHandshakeCount());
+        assertEquals(2, sslContext.getResumedHandshakeCount());
+    }
+
+    @Test
+    public void shouldResumeTls12Session() throws Exception {
+        assertFalse(connect(TlsVersion.TLSv12));
+        assertTrue(connect(TlsVersion.TLSv12));
+
+        assertEquals(1, sslContext.getFullHandshakeCount());
+        assertEquals(1, sslContext.getResumedHandshakeCount());
+    }
+
+    @Test
+    public void shouldDoFullHandshakeAfterSessionsAreCleared() throws Exception {
+        connect(TlsVersion.TLSv12);
+
+        sslContext.clearSessions();
+
+        assertFalse(connect(TlsVersion.TLSv12));
+        assertEquals(2, sslContext.getFullHandshakeCount());
+    }
+
+    @Test
+    public void shouldNotShareSessionsBetweenContexts() throws Exception {
+        connect(null);
+
+        HttpClientConnection connection = new HttpClientConnection(HOST, SSL_PORT);
+        try {
+            connection.startHandshake(HOST, ClientSslContextFactory.createNoHostValidatingContext());
+            assertFalse(connection.isTlsSessionResumed());
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return true if the session was resumed
+     */
+    private boolean connect(TlsVersion tlsVersion) throws IOException {
+        HttpClientConnection connection = new HttpClientConnection(HOST, SSL_PORT);
+        try {
+            if (tlsVersion != null) {
+                connection.setTlsProtocol(tlsVersion);
+            }
+            connection.startHandshake(HOST, sslContext);
+            HttpResponse response = connection.sendRequest("GET / HTTP/1.1", "Host: localhost");
+            assertEquals("OK", response.readBodyAsString());
+            assertSame(sslContext, connection.getClientSslContext());
+            return connection.isTlsSessionResumed();
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package serguei.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WebSocketTest {
+
+    private static final String HOST = "localhost";
+    private static final int PORT = 8093;
+    private static final byte[] MASK = {0x11, 0x22, 0x33, 0x44};
+
+    private final AtomicInteger serverCloseCode = new AtomicInteger();
+    private final CountDownLatch serverClosed = new CountDownLatch(1);
+    private HttpServer server;
+
+    @After
+    public void clearUp() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void shouldCalculateAcceptKey() {
+        // example from RFC 6455
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocket.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void shouldMaskData() {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)i;
+        }
+        byte[] masked = data.clone();
+
+        int keyPosition = WebSocket.mask(masked, 3, 10, MASK, 0);
+        WebSocket.mask(masked, 13, 87, MASK, keyPosition);
+
+        for (int i = 0; i < data.length; i++) {
+            byte expected = i < 3 ? data[i] : (byte)(data[i] ^ MASK[(i - 3) % 4]);
+            assertEquals("Byte " + i, expected, masked[i]);
+        }
+    }
+
+    @Test
+    public void shouldEchoMessages() throws Exception {
+        startEchoServer();
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            WebSocket webSocket = client.upgradeToWebSocket(upgradeRequest());
+
+            webSocket.sendText("Hello");
+            WebSocketMessage message = webSocket.receive();
+            assertTrue(message.isText());
+            assertEquals("Hello", message.getText());
+
+            byte[] data = {1, 2, 3, 4, 5};
+            webSocket.sendBinary(data);
+            message = webSocket.receive();
+            assertFalse(message.isText());
+            assertArrayEquals(data, message.getData());
+
+            webSocket.close();
+        }
+        assertTrue(serverClosed.await(5, TimeUnit.SECONDS));
+        assertEquals(WebSocket.CLOSE_NORMAL, serverCloseCode.get());
+    }
+
+    @Test
+    public void shouldFragmentLargeMessages() throws Exception {
+        startEchoServer();
+        byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 31);
+        }
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            WebSocket webSocket = client.upgradeToWebSocket(upgradeRequest());
+            webSocket.setMaxFrameSize(1000);
+
+            webSocket.sendBinary(data);
+
+            assertArrayEquals(data, webSocket.receive().getData());
+            webSocket.close();
+        }
+    }
+
+    @Test
+    public void shouldRejectNonUpgradeRequest() throws Exception {
+        startEchoServer();
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            HttpResponse response = client.sendRequest("GET / HTTP/1.1", "Host: localhost");
+
+            assertEquals(404, response.getStatusCode());
+        }
+    }
+
+    @Test
+    public void shouldAnswerPingAndUnmaskFramesFromClient() throws IOException {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        writeMaskedFrame(input, 0x89, "ping".getBytes());
+        writeMaskedFrame(input, 0x01, "Hel".getBytes());
+        writeMaskedFrame(input, 0x80, "lo".getBytes());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WebSocket webSocket = new WebSocket(new ByteArrayInputStream(input.toByteArray()), output, false, null);
+
+        WebSocketMessage message = webSocket.receive();
+
+        assertEquals("Hello", message.getText());
+        byte[] expectedPong = {(byte)0x8A, 4, 'p', 'i', 'n', 'g'};
+        assertArrayEquals(expectedPong, output.toByteArray());
+    }
+
+    @Test
+    public void shouldFailOnUnmaskedFrameFromClient() throws IOException {
+        byte[] input = {(byte)0x81, 2, 'h', 'i'};
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WebSocket webSocket = new WebSocket(new ByteArrayInputStream(input), output, false, null);
+
+        try {
+            webSocket.receive();
+            fail("Unmasked frame should not be accepted");
+        } catch (HttpException e) {
+            // expected
+        }
+
+        byte[] expectedClose = {(byte)0x88, 2, 0x03, (byte)0xEA};
+        assertArrayEquals(expectedClose, output.toByteArray());
+        assertFalse(webSocket.isOpen());
+    }
+
+    @Test
+    public void shouldFailOnPayloadLengthWithMostSignificantBitSet() throws IOException {
+        byte[] input = {(byte)0x82, (byte)(0x80 | 127), (byte)0x80, 0, 0, 0, 0, 0, 0, 1, 0x11, 0x22, 0x33, 0x44};
+
+        assertClosedWithProtocolError(input);
+    }
+
+    @Test
+    public void shouldFailOnNonMinimalPayloadLength() throws IOException {
+        byte[] input = {(byte)0x82, (byte)(0x80 | 127), 0, 0, 0, 0, 0, 0, 0, 2, 0x11, 0x22, 0x33, 0x44, 1, 2};
+
+        assertClosedWithProtocolError(input);
+    }
+
+    @Test
+    public void shouldFailOnInvalidUtf8InTextMessage() throws IOException {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        // a surrogate encoded in UTF-8 is not allowed
+        writeMaskedFrame(input, 0x81, new byte[] {'a', (byte)0xED, (byte)0xA0, (byte)0x80});
+
+        assertClosedWith(input.toByteArray(), WebSocket.CLOSE_INVALID_DATA);
+    }
+
+    @Test
+    public void shouldFailOnCloseCodeWhichCannotBeSent() throws IOException {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        writeMaskedFrame(input, 0x88, new byte[] {0x03, (byte)0xED});
+
+        assertClosedWith(input.toByteArray(), WebSocket.CLOSE_PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void shouldValidateUtf8() {
+        String text = "Hello, \u043f\u0440\u0438\u0432\u0435\u0442 \u20ac \ud83d\ude00";
+
+        assertTrue(isValidUtf8(text.getBytes(StandardCharsets.UTF_8)));
+        // overlong '/'
+        assertFalse(isValidUtf8(new byte[] {(byte)0xC0, (byte)0xAF}));
+        // truncated sequence
+        assertFalse(isValidUtf8(new byte[] {(byte)0xE2, (byte)0x82}));
+        // above U+10FFFF
+        assertFalse(isValidUtf8(new byte[] {(byte)0xF4, (byte)0x90, (byte)0x80, (byte)0x80}));
+    }
+
+    @Test
+    public void shouldKeepWebSocketOpenLongerThanServerTimeout() throws Exception {
+        server = new HttpServer(new EchoHandler(), PORT);
+        server.setTimeoutMils(500);
+        server.start(3, 500);
+
+        try (HttpClientConnection client = new HttpClientConnection(HOST, PORT)) {
+            WebSocket webSocket = client.upgradeToWebSocket(upgradeRequest());
+            Thread.sleep(1000);
+
+            webSocket.sendText("Hello");
+
+            assertEquals("Hello", webSocket.receive().getText());
+            webSocket.close();
+        }
+    }
+
+    private static boolean isValidUtf8(byte[] data) {
+        return WebSocket.isValidUtf8(data, 0, data.length);
+    }
+
+    private void assertClosedWithProtocolError(byte[] input) throws IOException {
+        assertClosedWith(input, WebSocket.CLOSE_PROTOCOL_ERROR);
+    }
+
+    private void assertClosedWith(byte[] input, int code) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WebSocket webSocket = new WebSocket(new ByteArrayInputStream(input), output, false, null);
+
+        try {
+            webSocket.receive();
+            fail("Wrong frame should not be accepted");
+        } catch (HttpException e) {
+            // expected
+        }
+
+        byte[] expectedClose = {(byte)0x88, 2, (byte)(code >> 8), (byte)code};
+        assertArrayEquals(expectedClose, output.toByteArray());
+    }
+
+    private void startEchoServer() throws IOException {
+        server = new HttpServer(new EchoHandler(), PORT);
+        server.start(3, 500);
+    }
+
+    private static HttpRequestHeaders upgradeRequest() throws HttpException {
+        return new HttpRequestHeaders("GET /ws HTTP/1.1", "Host: localhost");
+    }
+
+    private static void writeMaskedFrame(OutputStream output, int firstByte, byte[] payload) throws IOException {
+        output.write(firstByte);
+        output.write(0x80 | payload.length);
+        output.write(MASK);
+        byte[] masked = Arrays.copyOf(payload, payload.length);
+        WebSocket.mask(masked, 0, masked.length, MASK, 0);
+        output.write(masked);
+    }
+
+    private class EchoHandler implements HttpServerRequestHandler {
+
+        @Override
+        public void process(ConnectionContext connectionContext, HttpRequest request, OutputStream outputStream)
+                throws IOException {
+            if (!WebSocket.isUpgradeRequest(request)) {
+                HttpResponseHeaders headers = HttpResponseHeaders.notFound();
+                headers.setHeader("Content-Length", "0");
+                headers.write(outputStream);
+                return;
+            }
+            WebSocket webSocket = WebSocket.accept(connectionContext, request, outputStream);
+            WebSocketMessage message;
+            while ((message = webSocket.receive()) != null) {
+                if (message.isText()) {
+                    webSocket.sendText(message.getText());
+                } else {
+                    webSocket.sendBinary(message.getData());
+                }
+            }
+            serverCloseCode.set(webSocket.getCloseCode());
+            serverClosed.countDown();
+        }
+    }
+}